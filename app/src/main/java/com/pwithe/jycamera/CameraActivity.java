@@ -1,33 +1,172 @@
 package com.pwithe.jycamera;
 
+import android.content.Intent;
 import android.os.Bundle;
 import android.os.Environment;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
 import com.pwithe.jycamera.camera.CameraGLView;
+import com.pwithe.jycamera.record.BitrateController;
+import com.pwithe.jycamera.record.CodecCapabilityCache;
+import com.pwithe.jycamera.record.LiveStreamer;
+import com.pwithe.jycamera.record.FrameRateGovernor;
+import com.pwithe.jycamera.record.HlsSegmenter;
+import com.pwithe.jycamera.record.HlsServer;
 import com.pwithe.jycamera.record.MediaAudioEncoder;
 import com.pwithe.jycamera.record.MediaEncoder;
 import com.pwithe.jycamera.record.MediaMuxerWrapper;
 import com.pwithe.jycamera.record.MediaVideoEncoder;
+import com.pwithe.jycamera.record.PipelineScheduler;
+import com.pwithe.jycamera.record.RecordLatencyProbe;
+import com.pwithe.jycamera.record.StorageBudget;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 public class CameraActivity extends AppCompatActivity {
-    private MediaMuxerWrapper mMuxer;
+    private static final String TAG = "CameraActivity";
+    // 调试选项，通过启动intent的extra打开，不带extra时行为不变。比如
+    // adb shell am start -n com.pwithe.jycamera/.CameraActivity --ez shared_frame true
+    /**
+     * boolean：共享帧纹理模式，相机画面只采样一次，预览和录像都带水印
+     */
+    public static final String EXTRA_SHARED_FRAME = "shared_frame";
+    /**
+     * int：录像帧率（默认25）；boolean：固定帧率，相机帧率不够时重复帧（默认可变帧率，只丢帧）
+     */
+    public static final String EXTRA_FRAME_RATE = "frame_rate";
+    public static final String EXTRA_CONSTANT_FRAME_RATE = "constant_frame_rate";
+    /**
+     * boolean：预览连续绘制（默认只在有新帧时绘制），用来对比两种方式的绘制次数
+     */
+    public static final String EXTRA_CONTINUOUS_RENDER = "continuous_render";
+    /**
+     * boolean：使用Camera2采集后端；boolean：录像时相机直接输出到编码器（需要Camera2，没有水印）
+     */
+    public static final String EXTRA_CAMERA2 = "camera2";
+    public static final String EXTRA_DIRECT_OUTPUT = "direct_output";
+    /**
+     * boolean：画中画，后置相机主画面加前置相机小画面（使用Camera2后端，不能和direct_output同时使用）
+     */
+    public static final String EXTRA_PIP = "pip";
+    /**
+     * boolean：启动时输出编码器能力缓存的内容（第一次启动或系统更新后是扫描结果）
+     */
+    public static final String EXTRA_LIST_CODECS = "list_codecs";
+    /**
+     * String：录像编码格式，"video/avc"或"video/hevc"（默认，没有硬件HEVC编码器时自动使用AVC）
+     */
+    public static final String EXTRA_VIDEO_MIME = "video_mime";
+    /**
+     * int：分段录像，每段的秒数；int：保留的段数（0不限制，超过时删除最旧的段）
+     */
+    public static final String EXTRA_SEGMENT_SECONDS = "segment_seconds";
+    public static final String EXTRA_SEGMENT_COUNT = "segment_count";
+    /**
+     * int：事件录像，录像时只在内存里保留最近的秒数，长按录像按钮把它们和之后的画面写到文件，再长按结束
+     */
+    public static final String EXTRA_PRE_EVENT_SECONDS = "pre_event_seconds";
+    /**
+     * String：录像同时用MPEG-TS推流到"主机:端口"（比如监看电脑上的ffplay tcp://0.0.0.0:5000?listen）；
+     * boolean：用UDP发送（默认TCP）
+     */
+    public static final String EXTRA_STREAM_ADDRESS = "stream_address";
+    public static final String EXTRA_STREAM_UDP = "stream_udp";
+    /**
+     * int：录像同时写HLS（录像目录下的hls_时间/index.m3u8），并在这个端口提供录像目录的HTTP下载（0为任意端口）；
+     * String：URL前缀的访问口令，比如http://设备地址:端口/口令/hls_时间/index.m3u8
+     */
+    public static final String EXTRA_HLS_PORT = "hls_port";
+    public static final String EXTRA_HLS_TOKEN = "hls_token";
+    private static final long HLS_SEGMENT_MS = 2000;
+    private volatile MediaMuxerWrapper mMuxer;
     private MediaVideoEncoder mMediaVideoEncoder;
     private MediaAudioEncoder mMediaAudioEncoder;
     private ImageView mIvCamera,mIvSave;
     private CameraGLView cameraGLView;
+    private BitrateController mBitrateController;
+    /**
+     * 过热或写入跟不上时，下次录像使用的分辨率缩放比例
+     */
+    private volatile float mResolutionScale = 1.0f;
+    /**
+     * 预览中提前创建并prepare好的编码器（热备），点击录像时只需要启动muxer并开始送帧
+     */
+    private final Object mStandbyLock = new Object();
+    private MediaMuxerWrapper mStandbyMuxer;
+    private MediaVideoEncoder mStandbyVideoEncoder;
+    /**
+     * 正在准备热备编码器（准备期间不持有mStandbyLock），以及热备的代数（取消时加一，准备中的结果作废）
+     */
+    private boolean mStandbyPreparing;
+    private int mStandbyGeneration;
+    /**
+     * 当前设置给CameraGLView的编码器，只在它停止时清除（取消的热备编码器可能在新编码器准备好之后才停止）
+     */
+    private MediaVideoEncoder mViewEncoder;
+    private MediaAudioEncoder mStandbyAudioEncoder;
+    private volatile boolean mStandbyEnabled = true;
+    /**
+     * 冷启动（没有热备编码器）时在IO线程准备编码器，准备完成后开始录像。只在UI线程访问
+     */
+    private boolean mStartPending;
+    /**
+     * 点击录像到第一帧编码完成的耗时
+     */
+    private final RecordLatencyProbe mLatencyProbe = new RecordLatencyProbe();
+    /**
+     * 录像目录的容量管理，空间不足时录像开始前(以及每个分段开始前)删除最旧的录像
+     */
+    private StorageBudget mStorageBudget;
+    /**
+     * 调试选项指定的录像帧率，0表示使用编码器的默认值
+     */
+    private int mFrameRate;
+    /**
+     * 调试选项请求了相机直接输出到编码器，录像尺寸要和相机输出尺寸一致
+     */
+    private boolean mDirectOutput;
+    private String mVideoMimeType = MediaVideoEncoder.MIME_HEVC;
+    private int mSegmentSeconds, mSegmentCount;
+    private int mPreEventSeconds;
+    private String mStreamHost;
+    private int mStreamPort;
+    private boolean mStreamUdp;
+    private HlsServer mHlsServer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
+        mStorageBudget = new StorageBudget(new File(getBaseFolder()), 0, StorageBudget.DEFAULT_RESERVE_BYTES);
+        // 只在启动时扫描一次目录，之后由muxer增量更新
+        PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+            @Override
+            public void run() {
+                mStorageBudget.scan();
+            }
+        });
 
         cameraGLView = findViewById(R.id.cameraView);
+        applyDebugOptions(getIntent());
+        cameraGLView.setPreviewListener(new CameraGLView.PreviewListener() {
+            @Override
+            public void onPreviewStarted(int videoWidth, int videoHeight) {
+                // 预览尺寸变化时重新准备热备编码器
+                synchronized (mStandbyLock) {
+                    if ((mStandbyVideoEncoder != null)
+                            && ((mStandbyVideoEncoder.getWidth() != getRecordWidth())
+                            || (mStandbyVideoEncoder.getHeight() != getRecordHeight()))) {
+                        cancelStandby();
+                    }
+                }
+                prepareStandbyAsync();
+            }
+        });
         //cameraGLView.onResume();
         mIvCamera = findViewById(R.id.iv_startCamera);
         mIvSave = findViewById(R.id.iv_saveVideo);
@@ -35,8 +174,9 @@ public class CameraActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 if (mMuxer == null) {
-                    startRecording();
-                    mIvCamera.setBackgroundResource(R.mipmap.pause_video);
+                    if (!mStartPending) {
+                        startRecording();
+                    }
                 } else if (mMediaVideoEncoder != null && !mMediaVideoEncoder.getState()) {
                     mMediaVideoEncoder.pause();
                     mMediaAudioEncoder.pause();
@@ -49,6 +189,15 @@ public class CameraActivity extends AppCompatActivity {
             }
         });
 
+        mIvCamera.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if ((mPreEventSeconds <= 0) || (mMuxer == null)) return false;
+                toggleEvent(mMuxer);
+                return true;
+            }
+        });
+
         mIvSave.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -58,35 +207,422 @@ public class CameraActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * 读取调试选项，需要在预览开始（准备热备编码器）之前调用
+     */
+    private void applyDebugOptions(final Intent intent) {
+        if (intent.getBooleanExtra(EXTRA_SHARED_FRAME, false)) {
+            cameraGLView.setSharedFrameMode(true);
+            Log.i(TAG, "debug:shared frame mode");
+        }
+        if (intent.getBooleanExtra(EXTRA_CONTINUOUS_RENDER, false)) {
+            cameraGLView.setRenderWhenDirty(false);
+            Log.i(TAG, "debug:continuous render");
+        }
+        final boolean pip = intent.getBooleanExtra(EXTRA_PIP, false);
+        // 画中画是GL合成的画面，相机不能直接输出到编码器
+        mDirectOutput = !pip && intent.getBooleanExtra(EXTRA_DIRECT_OUTPUT, false);
+        if (pip) {
+            cameraGLView.setCaptureBackend(CameraGLView.CAPTURE_BACKEND_CAMERA2);
+            cameraGLView.setPictureInPicture(true);
+            Log.i(TAG, "debug:picture in picture");
+        } else if (intent.getBooleanExtra(EXTRA_CAMERA2, false) || mDirectOutput) {
+            cameraGLView.setCaptureBackend(CameraGLView.CAPTURE_BACKEND_CAMERA2);
+            cameraGLView.setDirectEncoderOutput(mDirectOutput);
+            Log.i(TAG, "debug:camera2 backend,direct output=" + mDirectOutput);
+        }
+        if (intent.getBooleanExtra(EXTRA_LIST_CODECS, false)) {
+            PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+                @Override
+                public void run() {
+                    // 等待后台加载或扫描完成
+                    final CodecCapabilityCache cache = CodecCapabilityCache.getInstance();
+                    for (final String mime : new String[] {
+                            MediaVideoEncoder.MIME_AVC, MediaVideoEncoder.MIME_HEVC, "audio/mp4a-latm" }) {
+                        for (final CodecCapabilityCache.CodecEntry entry : cache.getEncoders(mime)) {
+                            Log.i(TAG, "codec:" + entry);
+                        }
+                    }
+                }
+            });
+        }
+        final String mime = intent.getStringExtra(EXTRA_VIDEO_MIME);
+        if (MediaVideoEncoder.MIME_AVC.equals(mime) || MediaVideoEncoder.MIME_HEVC.equals(mime)) {
+            mVideoMimeType = mime;
+            Log.i(TAG, "debug:video " + mime);
+        } else if (mime != null) {
+            Log.w(TAG, "unknown video mime type:" + mime);
+        }
+        mSegmentSeconds = Math.max(0, intent.getIntExtra(EXTRA_SEGMENT_SECONDS, 0));
+        mSegmentCount = Math.max(0, intent.getIntExtra(EXTRA_SEGMENT_COUNT, 0));
+        if (mSegmentSeconds > 0) {
+            Log.i(TAG, "debug:segment " + mSegmentSeconds + "s,keep " + mSegmentCount);
+        }
+        mPreEventSeconds = Math.max(0, intent.getIntExtra(EXTRA_PRE_EVENT_SECONDS, 0));
+        if ((mPreEventSeconds > 0) && (mSegmentSeconds > 0)) {
+            Log.w(TAG, "pre-event buffer can not be used with segments");
+            mPreEventSeconds = 0;
+        }
+        if (mPreEventSeconds > 0) {
+            Log.i(TAG, "debug:pre-event " + mPreEventSeconds + "s");
+        }
+        final String address = intent.getStringExtra(EXTRA_STREAM_ADDRESS);
+        final int colon = address != null ? address.lastIndexOf(':') : -1;
+        if (colon > 0) {
+            try {
+                mStreamPort = Integer.parseInt(address.substring(colon + 1));
+                if ((mStreamPort <= 0) || (mStreamPort > 0xffff)) {
+                    throw new NumberFormatException("port out of range");
+                }
+                mStreamHost = address.substring(0, colon);
+                mStreamUdp = intent.getBooleanExtra(EXTRA_STREAM_UDP, false);
+                Log.i(TAG, "debug:stream to " + address + (mStreamUdp ? " udp" : " tcp"));
+            } catch (final NumberFormatException e) {
+                Log.w(TAG, "invalid stream address:" + address);
+            }
+        } else if (address != null) {
+            Log.w(TAG, "invalid stream address:" + address);
+        }
+        if (intent.hasExtra(EXTRA_HLS_PORT)) {
+            startHlsServer(intent.getIntExtra(EXTRA_HLS_PORT, 0), intent.getStringExtra(EXTRA_HLS_TOKEN));
+        }
+        mFrameRate = Math.max(0, intent.getIntExtra(EXTRA_FRAME_RATE, 0));
+        final boolean constantFrameRate = intent.getBooleanExtra(EXTRA_CONSTANT_FRAME_RATE, false);
+        if (constantFrameRate) {
+            cameraGLView.setFrameRatePolicy(FrameRateGovernor.POLICY_CONSTANT);
+        }
+        if ((mFrameRate > 0) || constantFrameRate) {
+            Log.i(TAG, "debug:frame rate " + mFrameRate + ",constant=" + constantFrameRate);
+        }
+    }
+
+    /**
+     * 相机直接输出到编码器时是相机输出尺寸（没有旋转，不能缩放），否则是预览尺寸按比例缩放
+     */
+    private int getRecordWidth() {
+        return mDirectOutput ? cameraGLView.getCaptureWidth()
+                : BitrateController.scaleSize(cameraGLView.getVideoWidth(), mResolutionScale);
+    }
+
+    private int getRecordHeight() {
+        return mDirectOutput ? cameraGLView.getCaptureHeight()
+                : BitrateController.scaleSize(cameraGLView.getVideoHeight(), mResolutionScale);
+    }
+
+    /**
+     * 在IO线程启动HTTP服务器，提供录像目录（包括正在写的HLS）的下载
+     */
+    private void startHlsServer(final int port, final String token) {
+        final HlsServer server = new HlsServer(new File(getBaseFolder()), port);
+        try {
+            server.setAccessToken(token);
+        } catch (final IllegalArgumentException e) {
+            Log.w(TAG, "invalid hls token:" + token);
+            return;
+        }
+        mHlsServer = server;
+        PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                    Log.i(TAG, "debug:hls server on port " + server.getPort());
+                } catch (final IOException e) {
+                    Log.w(TAG, "failed to start hls server:", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 开始写事件文件（从内存里最早的关键帧开始），正在写时结束它。在IO线程创建文件
+     */
+    private void toggleEvent(final MediaMuxerWrapper muxer) {
+        PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+            @Override
+            public void run() {
+                final String path = getPath(System.currentTimeMillis() + "_event.mp4");
+                try {
+                    if (muxer.triggerEvent(path)) {
+                        Log.i(TAG, "event:" + path);
+                    } else {
+                        muxer.finishEvent();
+                        Log.i(TAG, "event finished,dropped=" + muxer.getPreEventDroppedCount());
+                    }
+                } catch (final Exception e) {
+                    // 录像已经停止，或者文件创建失败
+                    Log.w(TAG, "triggerEvent:", e);
+                }
+            }
+        });
+    }
+
     private void stopRecord() {
+        // 还在准备编码器时取消，准备好的编码器作为热备留下
+        mStartPending = false;
+        if (mBitrateController != null) {
+            mBitrateController.stop();
+            mBitrateController = null;
+        }
         if (mMuxer != null) {
+            // 编码器停止后就取不到了
+            final FrameRateGovernor governor = cameraGLView.getFrameRateGovernor();
+            if (governor != null) {
+                Log.i(TAG, "frame rate:" + governor);
+            }
+            Log.i(TAG, "render:drawn=" + cameraGLView.getRenderedFrameCount()
+                    + ",redundant=" + cameraGLView.getRedundantFrameCount()
+                    + ",avoided=" + cameraGLView.getAvoidedFrameCount()
+                    + ",camera fps=" + cameraGLView.getSourceFps(CameraGLView.SOURCE_MAIN));
+            if (cameraGLView.isPictureInPicture()) {
+                Log.i(TAG, "pip:state=" + cameraGLView.getPictureInPictureState()
+                        + ",inset fps=" + cameraGLView.getSourceFps(CameraGLView.SOURCE_INSET));
+            }
             mMuxer.stopRecording();
             mMuxer = null;
+            PipelineScheduler.getInstance().logStats();
 
         }
     }
 
+    /**
+     * 有热备编码器时立即开始录像，否则在IO线程准备编码器（可能要等相机重新配置），
+     * 准备期间按钮显示为忙碌状态，UI线程不等待
+     */
     private void startRecording() {
+        final boolean warm;
+        synchronized (mStandbyLock) {
+            warm = mStandbyMuxer != null;
+        }
+        mLatencyProbe.markTap(warm);
+        if (warm) {
+            startFromStandby();
+            return;
+        }
+        mStartPending = true;
+        setBusy(true);
+        PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // 后台正在准备时等待它完成
+                    prepareStandby();
+                } catch (final Exception e) {
+                    Log.e(TAG, "prepareStandby:", e);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setBusy(false);
+                        if (mStartPending) {
+                            mStartPending = false;
+                            startFromStandby();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 取出热备编码器开始录像，只在UI线程调用
+     */
+    private void startFromStandby() {
+        try {
+            synchronized (mStandbyLock) {
+                if (mStandbyMuxer == null) {
+                    // 准备失败，或者准备过程中预览尺寸变化，热备被取消了
+                    throw new IOException("standby encoder is not ready");
+                }
+                mMuxer = mStandbyMuxer;
+                mMediaVideoEncoder = mStandbyVideoEncoder;
+                mMediaAudioEncoder = mStandbyAudioEncoder;
+                mStandbyMuxer = null;
+                mStandbyVideoEncoder = null;
+                mStandbyAudioEncoder = null;
+            }
+            mMuxer.setLatencyProbe(mLatencyProbe);
+            mMuxer.startRecording();
+            mIvCamera.setBackgroundResource(R.mipmap.pause_video);
+            Log.i(TAG, "video:" + mMediaVideoEncoder.getMimeType() + "," + mMediaVideoEncoder.getCodecName());
+            Log.i(TAG, "storage:" + mStorageBudget);
+            // 根据写入积压和温度调整码率，持续过载时下次录像降低分辨率
+            mBitrateController = new BitrateController(this, mMuxer, mMediaVideoEncoder, null,
+                    new BitrateController.Listener() {
+                        @Override
+                        public void onResolutionStepDown(float scale) {
+                            mResolutionScale = scale;
+                        }
+                    });
+            mBitrateController.start();
+        } catch (final IOException e) {
+            Log.e(TAG, "startRecording:", e);
+            mMuxer = null;
+            mIvCamera.setBackgroundResource(R.mipmap.start_video);
+        }
+    }
+
+    /**
+     * 准备编码器期间录像按钮不可用
+     */
+    private void setBusy(final boolean busy) {
+        mIvCamera.setEnabled(!busy);
+        mIvCamera.setAlpha(busy ? 0.5f : 1.0f);
+    }
+
+    /**
+     * 创建muxer和编码器并prepare（编码器线程、codec、输入surface和编码用EGL surface），
+     * 调用startRecording之前不会编码。
+     * prepare可能要等相机重新配置（最长几秒），所以mStandbyLock只在检查和替换热备状态时持有，
+     * 相机线程(onPreviewStarted)和UI线程不会因为它被阻塞。另一个线程正在准备时等待它完成。
+     */
+    private void prepareStandby() throws IOException {
+        final int generation;
+        synchronized (mStandbyLock) {
+            while (mStandbyPreparing) {
+                try {
+                    mStandbyLock.wait();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+            if (mStandbyMuxer != null) return;
+            mStandbyPreparing = true;
+            generation = mStandbyGeneration;
+        }
+        MediaMuxerWrapper muxer = null;
+        MediaVideoEncoder videoEncoder = null;
+        MediaAudioEncoder audioEncoder = null;
+        boolean installed = false;
         try {
             String savePath = getPath(
                     System.currentTimeMillis() + ".mp4");
-            mMuxer = new MediaMuxerWrapper(
+            muxer = new MediaMuxerWrapper(
                     savePath);    // if you record audio only, ".m4a" is also OK.
+            final MediaMuxerWrapper recording = muxer;
+            muxer.setStorageBudget(mStorageBudget, new MediaMuxerWrapper.StorageListener() {
+                @Override
+                public void onStorageFull(final String path) {
+                    // 删除旧录像后空间仍不足，muxer已经停止了编码器，这里只恢复UI
+                    Log.w(TAG, "storage full:" + path);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mMuxer == recording) {
+                                stopRecord();
+                                mIvCamera.setBackgroundResource(R.mipmap.start_video);
+                            }
+                        }
+                    });
+                }
+            });
+            if (mStreamHost != null) {
+                // 在IO线程解析地址，连接和重连在推流线程
+                muxer.setLiveStreamer(new LiveStreamer(
+                        mStreamUdp ? LiveStreamer.TRANSPORT_UDP : LiveStreamer.TRANSPORT_TCP,
+                        new InetSocketAddress(mStreamHost, mStreamPort)));
+            }
+            if (mHlsServer != null) {
+                final String name = new File(savePath).getName();
+                final File dir = new File(getBaseFolder(), "hls_" + name.substring(0, name.lastIndexOf('.')));
+                muxer.setHlsSegmenter(new HlsSegmenter(dir, HLS_SEGMENT_MS));
+                Log.i(TAG, "hls:" + dir.getName() + "/" + HlsSegmenter.PLAYLIST_NAME);
+            }
+            if (mSegmentSeconds > 0) {
+                muxer.setSegmentation(mSegmentSeconds * 1000L, mSegmentCount, 0,
+                        new MediaMuxerWrapper.SegmentListener() {
+                            @Override
+                            public void onSegmentFinished(final String path) {
+                                Log.i(TAG, "segment finished:" + path);
+                            }
+
+                            @Override
+                            public void onSegmentDeleted(final String path) {
+                                Log.i(TAG, "segment deleted:" + path);
+                            }
+                        });
+            }
             if (true) {
                 // for video capturing
-                mMediaVideoEncoder = new MediaVideoEncoder(mMuxer,
-                        mMediaEncoderListener, cameraGLView.getVideoWidth(),
-                        cameraGLView.getVideoHeight());
+                videoEncoder = new MediaVideoEncoder(muxer,
+                        mMediaEncoderListener,
+                        getRecordWidth(), getRecordHeight());
+                // 有硬件HEVC编码器时使用HEVC，否则自动使用AVC
+                videoEncoder.setPreferredMimeType(mVideoMimeType);
+                if (mFrameRate > 0) {
+                    videoEncoder.setFrameRate(mFrameRate);
+                }
+                // API 23以上用MediaCodec回调取编码输出，编码器线程不再轮询
+                videoEncoder.setAsyncMode(true);
             }
             if (true) {
                 // for audio capturing
-                mMediaAudioEncoder = new MediaAudioEncoder(mMuxer,
+                audioEncoder = new MediaAudioEncoder(muxer,
                         mMediaEncoderListener);
+                audioEncoder.setAsyncMode(true);
             }
-            mMuxer.prepare();
-            mMuxer.startRecording();
-        } catch (final IOException e) {
+            muxer.prepare();
+            if (mPreEventSeconds > 0) {
+                // 码率换算成字节，留一半余量
+                final long bitrate = videoEncoder.getBitrate() + audioEncoder.getBitrate();
+                muxer.setPreEventBuffer(mPreEventSeconds * 1000L,
+                        (int) Math.min(Integer.MAX_VALUE, bitrate / 8 * mPreEventSeconds * 3 / 2));
+            }
+            synchronized (mStandbyLock) {
+                if (mStandbyEnabled && (generation == mStandbyGeneration)) {
+                    mStandbyMuxer = muxer;
+                    mStandbyVideoEncoder = videoEncoder;
+                    mStandbyAudioEncoder = audioEncoder;
+                    installed = true;
+                }
+            }
+        } finally {
+            synchronized (mStandbyLock) {
+                mStandbyPreparing = false;
+                mStandbyLock.notifyAll();
+            }
+            if (!installed && (muxer != null)) {
+                // 失败，或者准备期间被取消（预览尺寸变化、退出）
+                muxer.cancel();
+            }
+        }
+    }
 
+    /**
+     * 在后台线程准备热备编码器，预览开始后以及每次录像结束后调用
+     */
+    private void prepareStandbyAsync() {
+        if (!mStandbyEnabled || (mMuxer != null)
+                || (cameraGLView.getVideoWidth() <= 0) || (cameraGLView.getVideoHeight() <= 0)) {
+            return;
+        }
+        PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mStandbyEnabled && (mMuxer == null)) {
+                        prepareStandby();
+                    }
+                } catch (final Exception e) {
+                    Log.w(TAG, "prepareStandby:", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 释放没有使用的热备编码器，会删除它的空文件
+     */
+    private void cancelStandby() {
+        synchronized (mStandbyLock) {
+            // 正在准备的热备完成后作废
+            mStandbyGeneration++;
+            if (mStandbyMuxer != null) {
+                mStandbyMuxer.cancel();
+                mStandbyMuxer = null;
+                mStandbyVideoEncoder = null;
+                mStandbyAudioEncoder = null;
+            }
         }
     }
 
@@ -95,14 +631,26 @@ public class CameraActivity extends AppCompatActivity {
                 @Override
                 public void onPrepared(final MediaEncoder encoder) {
                     if (encoder instanceof MediaVideoEncoder) {
-                        cameraGLView.setVideoEncoder((MediaVideoEncoder) encoder);
+                        final MediaVideoEncoder videoEncoder = (MediaVideoEncoder) encoder;
+                        synchronized (this) {
+                            mViewEncoder = videoEncoder;
+                            cameraGLView.setVideoEncoder(videoEncoder);
+                        }
                     }
                 }
 
                 @Override
                 public void onStopped(final MediaEncoder encoder) {
                     if (encoder instanceof MediaVideoEncoder) {
-                        cameraGLView.setVideoEncoder(null);
+                        synchronized (this) {
+                            // 已经换成了新的编码器时不能清除
+                            if (mViewEncoder == encoder) {
+                                mViewEncoder = null;
+                                cameraGLView.setVideoEncoder(null);
+                            }
+                        }
+                        // 为下一次录像准备热备编码器
+                        prepareStandbyAsync();
                     }
                 }
             };
@@ -134,4 +682,25 @@ public class CameraActivity extends AppCompatActivity {
         stopRecord();
         super.onBackPressed();
     }
+
+    @Override
+    protected void onDestroy() {
+        mStartPending = false;
+        mStandbyEnabled = false;
+        cancelStandby();
+        final HlsServer server = mHlsServer;
+        mHlsServer = null;
+        if (server != null) {
+            // 等待连接线程结束，不在UI线程做
+            PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+                @Override
+                public void run() {
+                    server.stop();
+                    Log.i(TAG, "hls server:requests=" + server.getRequestCount()
+                            + ",rejected=" + server.getRejectedCount() + ",sent=" + server.getSentBytes());
+                }
+            });
+        }
+        super.onDestroy();
+    }
 }
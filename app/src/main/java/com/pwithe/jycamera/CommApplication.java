@@ -3,6 +3,7 @@ package com.pwithe.jycamera;
 import android.app.Application;
 import android.content.Context;
 
+import com.pwithe.jycamera.record.CodecCapabilityCache;
 import com.pwithe.jycamera.utils.BitmapUtil;
 
 /**
@@ -19,6 +20,8 @@ public class CommApplication extends Application {
         super.onCreate();
         instance = this;
         bitmapUtil = BitmapUtil.getInstance();
+        // 后台加载编码器能力缓存，开始录像时不再扫描MediaCodecList
+        CodecCapabilityCache.init(this);
     }
 
     public static CommApplication getInstance() {
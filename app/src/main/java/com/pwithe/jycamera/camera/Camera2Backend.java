@@ -0,0 +1,585 @@
+package com.pwithe.jycamera.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Display;
+import android.view.Surface;
+import android.view.WindowManager;
+
+import com.pwithe.jycamera.record.PipelineScheduler;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Camera2采集后端
+ * 实现原理：预览SurfaceTexture、ImageReader和编码器输入surface作为同一个CameraCaptureSession的独立输出，
+ * 相机HAL直接把画面写到各个surface，不需要GL再拷贝一次；输出有变化时重新创建会话。
+ * 所有相机操作都在PipelineScheduler的采集线程上执行。
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class Camera2Backend implements CaptureBackend {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "Camera2Backend";
+
+	/**
+	 * 等待会话重新配置的最长时间
+	 */
+	private static final long CONFIGURE_TIMEOUT_MS = 2000;
+
+	/**
+	 * 相机状态的回调，在采集线程调用（用于同时打开两个相机的画中画）
+	 */
+	/*package*/ interface StateListener {
+		/**
+		 * 输出尺寸已经确定，相机正在打开
+		 */
+		void onCaptureStarted(Camera2Backend backend, int width, int height, int rotation);
+
+		void onCameraOpened(Camera2Backend backend);
+
+		/**
+		 * 打开失败、出错或者被断开（比如设备不能同时打开两个相机时被后打开的相机挤掉）
+		 */
+		void onCameraError(Camera2Backend backend, String reason);
+
+		/**
+		 * stopPreview之后相机设备已经完全关闭，可以打开下一个相机
+		 */
+		void onCameraClosed(Camera2Backend backend);
+	}
+
+	private final WeakReference<CameraGLView> mWeakParent;
+	private final int mFacing;
+	private final int mSource;
+	private final StateListener mListener;
+	private final Handler mHandler;
+	private final Object mSync = new Object();
+	private CameraDevice mCamera;
+	private CameraCaptureSession mSession;
+	private Surface mPreviewSurface;
+	private Surface mEncoderSurface;
+	private Surface mImageSurface;
+	private Range<Integer> mFpsRange;
+	private volatile int mCaptureWidth, mCaptureHeight;
+	/**
+	 * 正在等待配置结果的会话序号，和配置结果
+	 */
+	private int mSessionSeq;
+	private int mConfiguredSeq = -1;
+	private boolean mConfigureResult;
+	/**
+	 * 等待配置结果的回调，key是会话序号
+	 */
+	private final TreeMap<Integer, ConfigureCallback> mCallbacks = new TreeMap<Integer, ConfigureCallback>();
+	private boolean mIsClosed;
+	/**
+	 * 已经调用openCamera，还没有收到CameraDevice.StateCallback#onClosed，在相机线程访问
+	 */
+	private boolean mDeviceOpen;
+	private long mStartMs;
+
+	/**
+	 * @param facing CameraCharacteristics.LENS_FACING_BACK / LENS_FACING_FRONT
+	 */
+	Camera2Backend(final CameraGLView parent, final int facing) {
+		this(parent, facing, CameraGLView.SOURCE_MAIN, null);
+	}
+
+	/**
+	 * @param source   输出到哪个SurfaceTexture，CameraGLView.SOURCE_MAIN / SOURCE_INSET
+	 * @param listener 不为null时，输出尺寸通过listener通知，不直接通知CameraGLView
+	 */
+	Camera2Backend(final CameraGLView parent, final int facing, final int source, final StateListener listener) {
+		mWeakParent = new WeakReference<CameraGLView>(parent);
+		mFacing = facing;
+		mSource = source;
+		mListener = listener;
+		mHandler = PipelineScheduler.getInstance().getHandler(PipelineScheduler.STAGE_CAPTURE);
+	}
+
+	@Override
+	public void startPreview(final int width, final int height) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				openCamera(width, height);
+			}
+		});
+	}
+
+	@Override
+	public void stopPreview(final boolean needWait) {
+		synchronized (mSync) {
+			if (mIsClosed) return;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					closeCamera();
+					final List<ConfigureCallback> callbacks;
+					synchronized (mSync) {
+						mIsClosed = true;
+						callbacks = new ArrayList<ConfigureCallback>(mCallbacks.values());
+						mCallbacks.clear();
+						mSync.notifyAll();
+					}
+					for (final ConfigureCallback callback: callbacks) {
+						callback.onConfigured(false);
+					}
+					if (!mDeviceOpen) {
+						// 相机设备没有打开过，不会再有onClosed
+						notifyClosed();
+					}
+				}
+			});
+			if (needWait) {
+				try {
+					mSync.wait(CONFIGURE_TIMEOUT_MS);
+				} catch (final InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean supportsDirectOutput() {
+		return true;
+	}
+
+	/**
+	 * 重新配置会话并等待结果，不能在相机线程调用
+	 */
+	@Override
+	public boolean setEncoderSurface(final Surface surface) {
+		return reconfigure(new Runnable() {
+			@Override
+			public void run() {
+				mEncoderSurface = surface;
+			}
+		});
+	}
+
+	/**
+	 * 在相机线程重新配置会话，不等待结果
+	 */
+	@Override
+	public boolean setEncoderSurface(final Surface surface, final ConfigureCallback callback) {
+		return requestReconfigure(new Runnable() {
+			@Override
+			public void run() {
+				mEncoderSurface = surface;
+			}
+		}, callback) >= 0;
+	}
+
+	@Override
+	public boolean setImageSurface(final Surface surface) {
+		return reconfigure(new Runnable() {
+			@Override
+			public void run() {
+				mImageSurface = surface;
+			}
+		});
+	}
+
+	public int getSource() {
+		return mSource;
+	}
+
+	@Override
+	public int getCaptureWidth() {
+		return mCaptureWidth;
+	}
+
+	@Override
+	public int getCaptureHeight() {
+		return mCaptureHeight;
+	}
+
+	/**
+	 * 在相机线程更新输出并重新创建会话
+	 * @param callback 可以为null
+	 * @return 会话序号，已经停止预览时返回-1
+	 */
+	private int requestReconfigure(final Runnable update, final ConfigureCallback callback) {
+		synchronized (mSync) {
+			if (mIsClosed) return -1;
+			final int seq = ++mSessionSeq;
+			if (callback != null) {
+				mCallbacks.put(seq, callback);
+			}
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					update.run();
+					if (mCamera != null) {
+						createSession(seq);
+					} else {
+						// 相机还没打开，打开后会带上新的输出
+						onSessionResult(seq, true);
+					}
+				}
+			});
+			return seq;
+		}
+	}
+
+	private boolean reconfigure(final Runnable update) {
+		final int seq = requestReconfigure(update, null);
+		if (seq < 0) return false;
+		synchronized (mSync) {
+			final long limit = SystemClock.uptimeMillis() + CONFIGURE_TIMEOUT_MS;
+			while ((mConfiguredSeq < seq) && !mIsClosed) {
+				final long wait = limit - SystemClock.uptimeMillis();
+				if (wait <= 0) {
+					Log.w(TAG, "reconfigure timeout");
+					return false;
+				}
+				try {
+					mSync.wait(wait);
+				} catch (final InterruptedException e) {
+					return false;
+				}
+			}
+			return (mConfiguredSeq == seq) && mConfigureResult;
+		}
+	}
+
+	/**
+	 * @param seq 会话序号，负数表示内部重建的会话，没有调用方等待结果
+	 */
+	private void onSessionResult(final int seq, final boolean result) {
+		List<ConfigureCallback> callbacks = null;
+		synchronized (mSync) {
+			if ((seq >= 0) && (seq >= mConfiguredSeq)) {
+				mConfiguredSeq = seq;
+				mConfigureResult = result;
+				// 之前请求的输出也包含在这个会话里
+				final Map<Integer, ConfigureCallback> done = mCallbacks.headMap(seq, true);
+				if (!done.isEmpty()) {
+					callbacks = new ArrayList<ConfigureCallback>(done.values());
+					done.clear();
+				}
+			}
+			mSync.notifyAll();
+		}
+		if (callbacks != null) {
+			for (final ConfigureCallback callback: callbacks) {
+				callback.onConfigured(result);
+			}
+		}
+	}
+
+	/**
+	 * 打开相机，在相机线程执行
+	 */
+	private void openCamera(final int width, final int height) {
+		final CameraGLView parent = mWeakParent.get();
+		if ((parent == null) || (mCamera != null)) return;
+		synchronized (mSync) {
+			// 打开之前已经停止预览
+			if (mIsClosed) return;
+		}
+		mStartMs = SystemClock.elapsedRealtime();
+		final CameraManager manager = (CameraManager)parent.getContext().getSystemService(Context.CAMERA_SERVICE);
+		try {
+			final String cameraId = selectCamera(manager);
+			if (cameraId == null) {
+				Log.e(TAG, "no camera for facing " + mFacing);
+				notifyError("no camera");
+				return;
+			}
+			final CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+			final StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+			final Size size = getClosestSupportedSize(map.getOutputSizes(SurfaceTexture.class), width, height);
+			mCaptureWidth = size.getWidth();
+			mCaptureHeight = size.getHeight();
+			mFpsRange = selectFpsRange(characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+			Log.i(TAG, String.format("camera %s,size(%d,%d),fps:%s", cameraId, mCaptureWidth, mCaptureHeight, mFpsRange));
+			final SurfaceTexture st = parent.getSurfaceTexture(mSource);
+			if (st == null) return;
+			st.setDefaultBufferSize(mCaptureWidth, mCaptureHeight);
+			mPreviewSurface = new Surface(st);
+			final int rotation = getRotation(parent, characteristics);
+			if (mListener != null) {
+				mListener.onCaptureStarted(this, mCaptureWidth, mCaptureHeight, rotation);
+			} else {
+				parent.onCaptureStarted(mCaptureWidth, mCaptureHeight, rotation);
+			}
+			mDeviceOpen = true;
+			manager.openCamera(cameraId, mStateCallback, mHandler);
+		} catch (final CameraAccessException e) {
+			mDeviceOpen = false;
+			Log.e(TAG, "openCamera:", e);
+			notifyError("open:" + e.getReason());
+		} catch (final SecurityException e) {
+			mDeviceOpen = false;
+			Log.e(TAG, "openCamera:", e);
+			notifyError("open:" + e.getMessage());
+		} catch (final RuntimeException e) {
+			mDeviceOpen = false;
+			Log.e(TAG, "openCamera:", e);
+			notifyError("open:" + e.getMessage());
+		}
+	}
+
+	private void notifyError(final String reason) {
+		if (mListener != null) {
+			mListener.onCameraError(this, reason);
+		}
+	}
+
+	private void notifyClosed() {
+		if (mListener != null) {
+			mListener.onCameraClosed(this);
+		}
+	}
+
+	private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+		@Override
+		public void onOpened(final CameraDevice camera) {
+			if (DEBUG) Log.v(TAG, "onOpened:");
+			synchronized (mSync) {
+				if (mIsClosed) {
+					// 打开过程中已经停止预览（采集线程是共享的，不会随后端退出）
+					camera.close();
+					return;
+				}
+			}
+			mCamera = camera;
+			createSession(mSessionSeq);
+			if (mListener != null) {
+				mListener.onCameraOpened(Camera2Backend.this);
+			}
+		}
+
+		@Override
+		public void onDisconnected(final CameraDevice camera) {
+			Log.w(TAG, "onDisconnected:");
+			camera.close();
+			if (mCamera == camera) mCamera = null;
+			notifyError("disconnected");
+		}
+
+		@Override
+		public void onError(final CameraDevice camera, final int error) {
+			Log.e(TAG, "onError:" + error);
+			camera.close();
+			if (mCamera == camera) mCamera = null;
+			notifyError("error:" + error);
+		}
+
+		@Override
+		public void onClosed(final CameraDevice camera) {
+			if (DEBUG) Log.v(TAG, "onClosed:");
+			mDeviceOpen = false;
+			final boolean closed;
+			synchronized (mSync) {
+				closed = mIsClosed;
+			}
+			// 出错时关闭的相机等stopPreview之后再通知
+			if (closed) {
+				notifyClosed();
+			}
+		}
+	};
+
+	/**
+	 * 用当前所有输出创建会话，在相机线程执行
+	 */
+	private void createSession(final int seq) {
+		if ((mCamera == null) || (mPreviewSurface == null)) {
+			onSessionResult(seq, false);
+			return;
+		}
+		if (mSession != null) {
+			mSession.close();
+			mSession = null;
+		}
+		final List<Surface> outputs = new ArrayList<Surface>(3);
+		outputs.add(mPreviewSurface);
+		if (mEncoderSurface != null) outputs.add(mEncoderSurface);
+		if (mImageSurface != null) outputs.add(mImageSurface);
+		try {
+			mCamera.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+				@Override
+				public void onConfigured(final CameraCaptureSession session) {
+					if (mCamera == null) {
+						session.close();
+						onSessionResult(seq, false);
+						return;
+					}
+					mSession = session;
+					final boolean result = startRepeating(outputs);
+					if (mStartMs > 0) {
+						Log.i(TAG, "startup:" + (SystemClock.elapsedRealtime() - mStartMs) + "ms");
+						mStartMs = 0;
+					}
+					onSessionResult(seq, result);
+				}
+
+				@Override
+				public void onConfigureFailed(final CameraCaptureSession session) {
+					Log.w(TAG, "onConfigureFailed:outputs=" + outputs.size());
+					onSessionResult(seq, false);
+					if (outputs.size() > 1) {
+						// 附加输出不被支持，只保留预览输出
+						mEncoderSurface = mImageSurface = null;
+						createSession(-1);
+					}
+				}
+			}, mHandler);
+		} catch (final CameraAccessException e) {
+			Log.e(TAG, "createSession:", e);
+			onSessionResult(seq, false);
+		} catch (final IllegalArgumentException e) {
+			Log.e(TAG, "createSession:", e);
+			onSessionResult(seq, false);
+		}
+	}
+
+	private boolean startRepeating(final List<Surface> outputs) {
+		try {
+			final CaptureRequest.Builder builder = mCamera.createCaptureRequest(
+				mEncoderSurface != null ? CameraDevice.TEMPLATE_RECORD : CameraDevice.TEMPLATE_PREVIEW);
+			for (final Surface surface: outputs) {
+				builder.addTarget(surface);
+			}
+			builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+			if (mFpsRange != null) {
+				builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+			}
+			mSession.setRepeatingRequest(builder.build(), null, mHandler);
+			return true;
+		} catch (final CameraAccessException e) {
+			Log.e(TAG, "startRepeating:", e);
+		} catch (final IllegalStateException e) {
+			Log.e(TAG, "startRepeating:", e);
+		}
+		return false;
+	}
+
+	/**
+	 * 关闭相机，在相机线程执行
+	 */
+	private void closeCamera() {
+		if (DEBUG) Log.v(TAG, "closeCamera:");
+		if (mSession != null) {
+			mSession.close();
+			mSession = null;
+		}
+		if (mCamera != null) {
+			mCamera.close();
+			mCamera = null;
+		}
+		if (mPreviewSurface != null) {
+			mPreviewSurface.release();
+			mPreviewSurface = null;
+		}
+		mEncoderSurface = mImageSurface = null;
+		mCaptureWidth = mCaptureHeight = 0;
+	}
+
+	private String selectCamera(final CameraManager manager) throws CameraAccessException {
+		final String[] ids = manager.getCameraIdList();
+		for (final String id: ids) {
+			final Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+			if ((facing != null) && (facing == mFacing)) {
+				return id;
+			}
+		}
+		return ids.length > 0 ? ids[0] : null;
+	}
+
+	/**
+	 * @return 有没有指定朝向的相机
+	 */
+	/*package*/ static boolean hasCamera(final Context context, final int facing) {
+		final CameraManager manager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
+		try {
+			for (final String id: manager.getCameraIdList()) {
+				final Integer lensFacing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+				if ((lensFacing != null) && (lensFacing == facing)) {
+					return true;
+				}
+			}
+		} catch (final CameraAccessException e) {
+			Log.w(TAG, "hasCamera:", e);
+		}
+		return false;
+	}
+
+	/**
+	 * 选最高帧率的范围，上限相同时选下限高的（和旧接口选最后一个范围的效果一致）
+	 */
+	private static Range<Integer> selectFpsRange(final Range<Integer>[] ranges) {
+		if ((ranges == null) || (ranges.length == 0)) return null;
+		Range<Integer> result = ranges[0];
+		for (final Range<Integer> range: ranges) {
+			if ((range.getUpper() > result.getUpper())
+				|| (range.getUpper().equals(result.getUpper()) && (range.getLower() > result.getLower()))) {
+				result = range;
+			}
+		}
+		return result;
+	}
+
+	private static Size getClosestSupportedSize(final Size[] supportedSizes, final int requestedWidth, final int requestedHeight) {
+		return Collections.min(Arrays.asList(supportedSizes), new Comparator<Size>() {
+
+			private int diff(final Size size) {
+				return Math.abs(requestedWidth - size.getWidth()) + Math.abs(requestedHeight - size.getHeight());
+			}
+
+			@Override
+			public int compare(final Size lhs, final Size rhs) {
+				return diff(lhs) - diff(rhs);
+			}
+		});
+	}
+
+	/**
+	 * 与旧接口setDisplayOrientation相同的计算方法，用于决定预览宽高是否交换
+	 */
+	private static int getRotation(final CameraGLView parent, final CameraCharacteristics characteristics) {
+		final Display display = ((WindowManager)parent.getContext()
+			.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+		int degrees = 0;
+		switch (display.getRotation()) {
+			case Surface.ROTATION_0: degrees = 0; break;
+			case Surface.ROTATION_90: degrees = 90; break;
+			case Surface.ROTATION_180: degrees = 180; break;
+			case Surface.ROTATION_270: degrees = 270; break;
+		}
+		final Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+		final int sensor = orientation != null ? orientation : 0;
+		final Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+		if ((facing != null) && (facing == CameraCharacteristics.LENS_FACING_FRONT)) {
+			degrees = (sensor + degrees) % 360;
+			degrees = (360 - degrees) % 360;  // reverse
+		} else {
+			degrees = (sensor - degrees + 360) % 360;
+		}
+		return degrees;
+	}
+}
@@ -1,18 +1,18 @@
 package com.pwithe.jycamera.camera;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
 import android.opengl.EGL14;
 import android.opengl.GLES20;
-import android.opengl.GLException;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
-import android.os.Environment;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Display;
@@ -22,22 +22,22 @@ import android.view.WindowManager;
 
 import com.pwithe.jycamera.CommApplication;
 import com.pwithe.jycamera.R;
+import com.pwithe.jycamera.drawer.FillRateMeter;
 import com.pwithe.jycamera.drawer.GLDrawer2D;
+import com.pwithe.jycamera.drawer.PipDrawer;
+import com.pwithe.jycamera.drawer.SharedFrameTexture;
+import com.pwithe.jycamera.drawer.SnapshotReader;
 import com.pwithe.jycamera.drawer.TextureHelper;
+import com.pwithe.jycamera.drawer.TimestampWaterSign;
 import com.pwithe.jycamera.drawer.WaterSignSProgram;
 import com.pwithe.jycamera.drawer.WaterSignature;
-import com.pwithe.jycamera.record.MediaMuxerWrapper;
+import com.pwithe.jycamera.record.FrameRateGovernor;
 import com.pwithe.jycamera.record.MediaVideoEncoder;
+import com.pwithe.jycamera.record.PipelineScheduler;
 import com.pwithe.jycamera.utils.BitmapUtil;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.IntBuffer;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -59,12 +59,70 @@ public final class CameraGLView extends GLSurfaceView {
 	private static final int SCALE_KEEP_ASPECT = 2;
 	private static final int SCALE_CROP_CENTER = 3;
 
+	/**
+	 * 采集后端：旧的android.hardware.Camera接口 / Camera2（API>=21）
+	 */
+	public static final int CAPTURE_BACKEND_LEGACY = 0;
+	public static final int CAPTURE_BACKEND_CAMERA2 = 1;
+
+	/**
+	 * 画中画的画面来源：主画面 / 小画面
+	 */
+	public static final int SOURCE_MAIN = 0;
+	public static final int SOURCE_INSET = 1;
+	/**
+	 * 画中画状态：没有小画面 / 两个相机同时采集 / 设备不能同时打开两个相机，轮流采集
+	 */
+	public static final int PIP_OFF = 0;
+	public static final int PIP_CONCURRENT = 1;
+	public static final int PIP_SEQUENTIAL = 2;
+	/**
+	 * 小画面的宽（输出宽的比例）和边距（输出宽的比例），放在右上角
+	 */
+	private static final float INSET_SCALE = 0.3f;
+	private static final float INSET_MARGIN = 0.03f;
+	/**
+	 * 主画面超过这个时间没有新帧（轮流采集时主相机关闭期间），由小画面的新帧驱动录像
+	 */
+	private static final long MAIN_STALL_MS = 200;
+
+	/**
+	 * 按需渲染时，超过这个时间没有新帧就补画一次（水印等只有叠加层变化的情况）
+	 */
+	private static final long WATCHDOG_INTERVAL_MS = 500;
+
 	private final CameraSurfaceRenderer mRenderer;
 	private boolean mHasSurface;
-	private CameraHandler mCameraHandler = null;
+	private CaptureBackend mCaptureBackend = null;
+	private int mCaptureBackendType = CAPTURE_BACKEND_LEGACY;
+	/**
+	 * 请求相机直接输出到编码器（没有水印），mDirectEncoder是当前相机直接输出的编码器（包括正在等待会话配置的）
+	 */
+	private boolean mRequestDirectOutput;
+	private volatile MediaVideoEncoder mDirectEncoder;
 	private int mVideoWidth, mVideoHeight;
+	private volatile PreviewListener mPreviewListener;
 	private int mRotation;
 	private int mScaleMode = SCALE_STRETCH_FIT;
+	private int mFrameRatePolicy = FrameRateGovernor.POLICY_VARIABLE;
+	private boolean mRenderWhenDirty = true;
+	/**
+	 * 请求画中画（下次打开相机时生效），mPipState是实际状态
+	 */
+	private boolean mRequestPip;
+	private volatile int mPipState = PIP_OFF;
+	private int mInsetWidth, mInsetHeight;
+	/**
+	 * 小画面的区域{x, y, width, height}（输出宽高的比例），null表示还没有确定
+	 */
+	private volatile float[] mInsetRect;
+	/**
+	 * 渲染统计的开始时间和屏幕刷新率，用于估算按需渲染省掉的帧数
+	 */
+	private long mStatsStartMs;
+	private long mStatsStartDrawCount;
+	private long mStatsStartMainFrames, mStatsStartInsetFrames, mStatsStartRedundantDraws;
+	private float mRefreshRate = 60.0f;
 
 
 	public CameraGLView(final Context context) {
@@ -81,6 +139,89 @@ public final class CameraGLView extends GLSurfaceView {
 		mRenderer = new CameraSurfaceRenderer(this);
 		setEGLContextClientVersion(2);	// GLES 2.0, API >= 8
 		setRenderer(mRenderer);
+		// 只在相机有新帧或视口变化时绘制
+		setRenderMode(RENDERMODE_WHEN_DIRTY);
+		final Display display = ((WindowManager)context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+		if ((display != null) && (display.getRefreshRate() > 0)) {
+			mRefreshRate = display.getRefreshRate();
+		}
+	}
+
+	/**
+	 * 按需渲染时的看门狗：长时间没有相机帧时补画，让叠加层继续更新、拍照的PBO读取能完成
+	 */
+	private final Runnable mRenderWatchdog = new Runnable() {
+		@Override
+		public void run() {
+			if (mRenderWhenDirty
+				&& (SystemClock.uptimeMillis() - mRenderer.mLastDrawMs >= WATCHDOG_INTERVAL_MS)) {
+				requestRender();
+			}
+			postDelayed(this, WATCHDOG_INTERVAL_MS);
+		}
+	};
+
+	/**
+	 * 设置渲染方式
+	 * @param whenDirty true：只在相机有新帧、视口变化或看门狗超时时绘制（默认）
+	 *                  false：GLSurfaceView连续绘制
+	 */
+	public void setRenderWhenDirty(final boolean whenDirty) {
+		if (mRenderWhenDirty != whenDirty) {
+			mRenderWhenDirty = whenDirty;
+			setRenderMode(whenDirty ? RENDERMODE_WHEN_DIRTY : RENDERMODE_CONTINUOUSLY);
+			resetRenderStats();
+		}
+	}
+
+	public boolean isRenderWhenDirty() {
+		return mRenderWhenDirty;
+	}
+
+	/**
+	 * @return 统计开始后实际绘制的帧数
+	 */
+	public long getRenderedFrameCount() {
+		return mRenderer.mDrawCount - mStatsStartDrawCount;
+	}
+
+	/**
+	 * @return 没有新相机帧、重复绘制同一画面的帧数（连续绘制时就是浪费的帧）
+	 */
+	public long getRedundantFrameCount() {
+		return mRenderer.mRedundantDrawCount - mStatsStartRedundantDraws;
+	}
+
+	/**
+	 * @return 按需渲染相对于按屏幕刷新率连续绘制所省掉的帧数（估算值）
+	 */
+	public long getAvoidedFrameCount() {
+		if (!mRenderWhenDirty || (mStatsStartMs == 0)) return 0;
+		final long elapsed = SystemClock.uptimeMillis() - mStatsStartMs;
+		final long expected = (long)(elapsed * mRefreshRate / 1000);
+		return Math.max(0, expected - getRenderedFrameCount());
+	}
+
+	/**
+	 * @param source SOURCE_MAIN / SOURCE_INSET
+	 * @return 统计开始后这一路相机实际达到的平均帧率（轮流采集时包括相机关闭的时间）
+	 */
+	public float getSourceFps(final int source) {
+		final long elapsed = SystemClock.uptimeMillis() - mStatsStartMs;
+		if ((mStatsStartMs == 0) || (elapsed <= 0)) return 0;
+		final long frames = source == SOURCE_INSET
+			? mRenderer.mInsetFrameCount - mStatsStartInsetFrames
+			: mRenderer.mMainFrameCount - mStatsStartMainFrames;
+		return frames * 1000.0f / elapsed;
+	}
+
+	private void resetRenderStats() {
+		mStatsStartMs = SystemClock.uptimeMillis();
+		mStatsStartDrawCount = mRenderer.mDrawCount;
+		mStatsStartMainFrames = mRenderer.mMainFrameCount;
+		mStatsStartInsetFrames = mRenderer.mInsetFrameCount;
+		// 计数只在GL线程累加，这里只记起点，不从其他线程清零
+		mStatsStartRedundantDraws = mRenderer.mRedundantDrawCount;
 	}
 
 
@@ -89,20 +230,32 @@ public final class CameraGLView extends GLSurfaceView {
 		Log.v(TAG, "onResume:");
 		super.onResume();
 		if (mHasSurface) {
-			if (mCameraHandler == null) {
+			if (mCaptureBackend == null) {
 				Log.v(TAG, "surface already exist");
 				startPreview(getWidth(),  getHeight());
 			}
 		}
+		resetRenderStats();
+		removeCallbacks(mRenderWatchdog);
+		postDelayed(mRenderWatchdog, WATCHDOG_INTERVAL_MS);
 	}
 
 	@Override
 	public void onPause() {
 		Log.v(TAG, "onPause:");
-		if (mCameraHandler != null) {
+		removeCallbacks(mRenderWatchdog);
+		Log.i(TAG, String.format("render stats:rendered=%d,redundant=%d,avoided=%d",
+			getRenderedFrameCount(), getRedundantFrameCount(), getAvoidedFrameCount()));
+		if (mPipState != PIP_OFF) {
+			Log.i(TAG, String.format("source fps:main=%.1f,inset=%.1f,pip=%d",
+				getSourceFps(SOURCE_MAIN), getSourceFps(SOURCE_INSET), mPipState));
+		}
+		if (mCaptureBackend != null) {
 			// 停止预览
-			mCameraHandler.stopPreview(false);
+			mCaptureBackend.stopPreview(false);
+			mCaptureBackend = null;
 		}
+		mPipState = PIP_OFF;
 		super.onPause();
 	}
 
@@ -115,6 +268,7 @@ public final class CameraGLView extends GLSurfaceView {
 					mRenderer.updateViewport();
 				}
 			});
+			requestRender();
 		}
 	}
 
@@ -122,6 +276,20 @@ public final class CameraGLView extends GLSurfaceView {
 		return mScaleMode;
 	}
 
+	/**
+	 * 预览开始（视频尺寸确定）时的回调
+	 */
+	public interface PreviewListener {
+		/**
+		 * 在相机线程调用
+		 */
+		public void onPreviewStarted(int videoWidth, int videoHeight);
+	}
+
+	public void setPreviewListener(final PreviewListener listener) {
+		mPreviewListener = listener;
+	}
+
 	public void setVideoSize(final int width, final int height) {
 		if ((mRotation % 180) == 0) {
 			mVideoWidth = width;
@@ -131,12 +299,22 @@ public final class CameraGLView extends GLSurfaceView {
 			mVideoWidth = height;
 			mVideoHeight = width;
 		}
+		updateInsetRect();
 		queueEvent(new Runnable() {
 			@Override
 			public void run() {
 				mRenderer.updateViewport();
 			}
 		});
+		requestRender();
+		final PreviewListener listener = mPreviewListener;
+		if (listener != null) {
+			try {
+				listener.onPreviewStarted(mVideoWidth, mVideoHeight);
+			} catch (final Exception e) {
+				Log.w(TAG, "onPreviewStarted:", e);
+			}
+		}
 	}
 
 	public int getVideoWidth() {
@@ -148,18 +326,27 @@ public final class CameraGLView extends GLSurfaceView {
 	}
 
 	public SurfaceTexture getSurfaceTexture() {
-		Log.v(TAG, "getSurfaceTexture:");
-		return mRenderer != null ? mRenderer.mSTexture : null;
+		return getSurfaceTexture(SOURCE_MAIN);
+	}
+
+	/**
+	 * @param source SOURCE_MAIN / SOURCE_INSET
+	 */
+	public SurfaceTexture getSurfaceTexture(final int source) {
+		Log.v(TAG, "getSurfaceTexture:" + source);
+		if (mRenderer == null) return null;
+		return source == SOURCE_INSET ? mRenderer.mInsetSTexture : mRenderer.mSTexture;
 	}
 
 	@Override
 	public void surfaceDestroyed(final SurfaceHolder holder) {
 		Log.v(TAG, "surfaceDestroyed:");
-		if (mCameraHandler != null) {
+		if (mCaptureBackend != null) {
 			// 销毁surface
-			mCameraHandler.stopPreview(true);
+			mCaptureBackend.stopPreview(true);
 		}
-		mCameraHandler = null;
+		mCaptureBackend = null;
+		mPipState = PIP_OFF;
 		mHasSurface = false;
 		mRenderer.onSurfaceDestroyed();
 		super.surfaceDestroyed(holder);
@@ -167,14 +354,207 @@ public final class CameraGLView extends GLSurfaceView {
 
 	public void setVideoEncoder(final MediaVideoEncoder encoder) {
 //		Log.v(TAG, "setVideoEncoder:tex_id=" + mRenderer.hTex + ",encoder=" + encoder);
+		if ((mDirectEncoder != null) && (encoder == null)) {
+			mDirectEncoder = null;
+			final CaptureBackend backend = mCaptureBackend;
+			if (backend != null) {
+				// 编码器停止后会释放输入surface，要等相机不再写入
+				backend.setEncoderSurface(null);
+			}
+		}
+		// 不等待会话配置，失败时在onConfigured里改回GL绘制
+		final boolean requested = (encoder != null) && attachDirectOutput(encoder);
 		queueEvent(new Runnable() {
 			@Override
 			public void run() {
+				// 会话配置可能已经失败了
+				final boolean direct = requested && (mDirectEncoder == encoder);
 				synchronized (mRenderer) {
 					if (encoder != null) {
-						encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.hTex);
+						if (direct) {
+							// 相机直接写入编码器输入surface，不需要GL绘制
+						} else if (mRenderer.mIsSharedFrame) {
+							encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.mSharedFrame.getTexture(), true);
+						} else {
+							encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.hTex);
+						}
 					}
 					mRenderer.mVideoEncoder = encoder;
+					mRenderer.mIsDirectOutput = direct;
+					mRenderer.mGovernor = (encoder != null) && !direct
+						? new FrameRateGovernor(encoder.getFrameRate(), mFrameRatePolicy) : null;
+					if (encoder == null) {
+						mRenderer.applySharedFrameMode();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 尝试把编码器输入surface设为相机的直接输出，会话在相机线程异步重新配置
+	 * 需要采集后端支持多路输出、不是共享帧纹理模式，并且编码器尺寸和相机输出尺寸一致（相机不会缩放旋转）
+	 * 输入surface同时只能连接一个生产者，所以等待配置结果期间GL不能先送帧，编码器这段时间没有输入
+	 */
+	private boolean attachDirectOutput(final MediaVideoEncoder encoder) {
+		final CaptureBackend backend = mCaptureBackend;
+		if (!mRequestDirectOutput || (backend == null) || !backend.supportsDirectOutput()
+			|| mRenderer.mRequestSharedFrame || (encoder.getInputSurface() == null)) {
+			return false;
+		}
+		if ((encoder.getWidth() != backend.getCaptureWidth())
+			|| (encoder.getHeight() != backend.getCaptureHeight())) {
+			Log.w(TAG, String.format("direct output needs encoder size(%d,%d),but(%d,%d)",
+				backend.getCaptureWidth(), backend.getCaptureHeight(), encoder.getWidth(), encoder.getHeight()));
+			return false;
+		}
+		// 画面没有旋转，写到容器的方向信息里；没有输入帧之前muxer不会开始，失败时还可以改回
+		encoder.setOrientationHint(mRotation);
+		// 编码器拿到的是相机原始时间戳
+		encoder.setDirectInput(true);
+		mDirectEncoder = encoder;
+		final boolean requested = backend.setEncoderSurface(encoder.getInputSurface(),
+			new CaptureBackend.ConfigureCallback() {
+				@Override
+				public void onConfigured(final boolean success) {
+					if (!success) {
+						fallBackToGl(encoder);
+					}
+				}
+			});
+		if (!requested) {
+			Log.w(TAG, "direct output is not available, fall back to GL");
+			mDirectEncoder = null;
+			encoder.setDirectInput(false);
+			encoder.setOrientationHint(0);
+		}
+		return requested;
+	}
+
+	/**
+	 * 相机会话没有接受编码器输入surface，改成GL绘制送帧。在相机线程调用
+	 */
+	private void fallBackToGl(final MediaVideoEncoder encoder) {
+		// 已经换了编码器或者停止录像
+		if (mDirectEncoder != encoder) return;
+		Log.w(TAG, "direct output is not available, fall back to GL");
+		mDirectEncoder = null;
+		encoder.setDirectInput(false);
+		encoder.setOrientationHint(0);
+		queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mRenderer) {
+					if ((mRenderer.mVideoEncoder != encoder) || !mRenderer.mIsDirectOutput) return;
+					if (mRenderer.mIsSharedFrame) {
+						encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.mSharedFrame.getTexture(), true);
+					} else {
+						encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.hTex);
+					}
+					mRenderer.mIsDirectOutput = false;
+					mRenderer.mGovernor = new FrameRateGovernor(encoder.getFrameRate(), mFrameRatePolicy);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 设置采集后端，下次打开相机时生效
+	 * @param type CAPTURE_BACKEND_LEGACY或CAPTURE_BACKEND_CAMERA2（API<21时使用LEGACY）
+	 */
+	public void setCaptureBackend(final int type) {
+		mCaptureBackendType = type;
+	}
+
+	public int getCaptureBackend() {
+		return mCaptureBackendType;
+	}
+
+	/**
+	 * 录像时让相机直接输出到编码器输入surface（零拷贝，没有水印），下次设置编码器时生效。
+	 * 只有Camera2后端支持；编码器要用{@link #getCaptureWidth()}x{@link #getCaptureHeight()}创建，
+	 * 条件不满足时仍然用GL绘制送帧。
+	 */
+	public void setDirectEncoderOutput(final boolean enable) {
+		mRequestDirectOutput = enable;
+	}
+
+	/**
+	 * 设置额外的相机直接输出（比如ImageReader#getSurface()），null表示移除
+	 * @return false：当前采集后端不支持
+	 */
+	public boolean setImageOutput(final Surface surface) {
+		final CaptureBackend backend = mCaptureBackend;
+		return (backend != null) && backend.setImageSurface(surface);
+	}
+
+	/**
+	 * @return 相机输出的画面宽（没有旋转）
+	 */
+	public int getCaptureWidth() {
+		final CaptureBackend backend = mCaptureBackend;
+		return backend != null ? backend.getCaptureWidth() : 0;
+	}
+
+	/**
+	 * @return 相机输出的画面高（没有旋转）
+	 */
+	public int getCaptureHeight() {
+		final CaptureBackend backend = mCaptureBackend;
+		return backend != null ? backend.getCaptureHeight() : 0;
+	}
+
+	/**
+	 * 画中画：后置相机是主画面，前置相机作为小画面合成在右上角，预览和录像都是合成后的画面。
+	 * 下次打开相机时生效，需要Camera2后端；设备不能同时打开两个相机时轮流采集，见{@link DualCaptureBackend}。
+	 * 画中画时不能使用相机直接输出到编码器。
+	 */
+	public void setPictureInPicture(final boolean enable) {
+		mRequestPip = enable;
+	}
+
+	public boolean isPictureInPicture() {
+		return mRequestPip;
+	}
+
+	/**
+	 * @return PIP_OFF / PIP_CONCURRENT / PIP_SEQUENTIAL
+	 */
+	public int getPictureInPictureState() {
+		return mPipState;
+	}
+
+	/**
+	 * 设置送给编码器的帧率策略，下次设置编码器时生效
+	 * @param policy FrameRateGovernor.POLICY_CONSTANT(固定帧率，必要时重复帧)
+	 *               或FrameRateGovernor.POLICY_VARIABLE(可变帧率，只丢帧)
+	 */
+	public void setFrameRatePolicy(final int policy) {
+		mFrameRatePolicy = policy;
+	}
+
+	/**
+	 * @return 当前录像的帧率控制器（丢帧、重复帧统计），没有录像时返回null
+	 */
+	public FrameRateGovernor getFrameRateGovernor() {
+		return mRenderer.mGovernor;
+	}
+
+	/**
+	 * 共享帧纹理模式
+	 * 开启后相机画面只采样一次画到FBO纹理并在其中合成水印，预览、录像、拍照都从这张纹理贴图；
+	 * 关闭时预览和录像各自采样一次相机纹理，水印只画在录像上。
+	 * 录像过程中切换，会在录像结束后生效。
+	 */
+	public void setSharedFrameMode(final boolean enable) {
+		queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mRenderer) {
+					mRenderer.mRequestSharedFrame = enable;
+					if (mRenderer.mVideoEncoder == null) {
+						mRenderer.applySharedFrameMode();
+					}
 				}
 			}
 		});
@@ -183,12 +563,86 @@ public final class CameraGLView extends GLSurfaceView {
 //********************************************************************************
 //********************************************************************************
 	private synchronized void startPreview(final int width, final int height) {
-		if (mCameraHandler == null) {
-			final CameraThread thread = new CameraThread(this);
-			thread.start();
-			mCameraHandler = thread.getHandler();
+		if (mCaptureBackend == null) {
+			final boolean camera2 = (mCaptureBackendType == CAPTURE_BACKEND_CAMERA2)
+				&& (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+			if (camera2 && mRequestPip) {
+				mCaptureBackend = new DualCaptureBackend(this);
+			} else if (camera2) {
+				mCaptureBackend = new Camera2Backend(this, CameraCharacteristics.LENS_FACING_BACK);
+			} else {
+				if (mRequestPip) {
+					Log.w(TAG, "picture in picture needs camera2 backend");
+				}
+				final CameraThread thread = new CameraThread(this);
+				thread.start();
+				mCaptureBackend = thread.getHandler();
+			}
 		}
-		mCameraHandler.startPreview(1280, 720/*width, height*/);
+		mCaptureBackend.startPreview(1280, 720/*width, height*/);
+	}
+
+	/**
+	 * 采集后端打开相机后调用（相机线程）
+	 * @param width    相机输出宽（没有旋转）
+	 * @param height   相机输出高（没有旋转）
+	 * @param rotation 预览需要旋转的角度
+	 */
+	/*package*/ void onCaptureStarted(final int width, final int height, final int rotation) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				mRotation = rotation;
+				setVideoSize(width, height);
+			}
+		});
+	}
+
+	/**
+	 * 小画面的相机打开后调用（相机线程）
+	 * @param width    相机输出宽（没有旋转）
+	 * @param height   相机输出高（没有旋转）
+	 * @param rotation 需要旋转的角度
+	 */
+	/*package*/ void onInsetStarted(final int width, final int height, final int rotation) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				if ((rotation % 180) == 0) {
+					mInsetWidth = width;
+					mInsetHeight = height;
+				} else {
+					mInsetWidth = height;
+					mInsetHeight = width;
+				}
+				updateInsetRect();
+				requestRender();
+			}
+		});
+	}
+
+	/**
+	 * 画中画状态变化时由采集后端调用（相机线程）
+	 */
+	/*package*/ void onPipStateChanged(final int state) {
+		Log.i(TAG, "picture in picture:" + state);
+		mPipState = state;
+		requestRender();
+	}
+
+	/**
+	 * 按主画面和小画面的宽高比计算小画面的区域，宽度为输出的{@link #INSET_SCALE}，上边距和右边距像素数相同
+	 */
+	private void updateInsetRect() {
+		if ((mVideoWidth <= 0) || (mVideoHeight <= 0) || (mInsetWidth <= 0) || (mInsetHeight <= 0)) {
+			mInsetRect = null;
+			return;
+		}
+		final float aspect = mVideoWidth / (float)mVideoHeight;
+		final float width = INSET_SCALE;
+		final float height = width * aspect * mInsetHeight / mInsetWidth;
+		mInsetRect = new float[] {
+			1.0f - INSET_MARGIN - width, 1.0f - INSET_MARGIN * aspect - height, width, height };
 	}
 
 	/**
@@ -205,22 +659,52 @@ public final class CameraGLView extends GLSurfaceView {
 		private final float[] mStMatrix = new float[16];
 		private final float[] mMvpMatrix = new float[16];
 		private MediaVideoEncoder mVideoEncoder;
+		private volatile FrameRateGovernor mGovernor;
+		private boolean mIsDirectOutput;
 		private WaterSignature mWaterSign;
 		private BitmapUtil bitmapUtil;
 		private int mSignTexId;
+		private SnapshotReader mSnapshotReader;
+		/**
+		 * 共享帧纹理模式：mRequestSharedFrame是请求值，mIsSharedFrame是当前生效值（没有录像时才切换）
+		 */
+		private boolean mRequestSharedFrame;
+		private boolean mIsSharedFrame;
+		private final SharedFrameTexture mSharedFrame = new SharedFrameTexture();
+		/**
+		 * 画相机纹理到FBO（不做预览缩放）
+		 */
+		private GLDrawer2D mFrameDrawer;
+		/**
+		 * 把FBO纹理贴到预览画面
+		 */
+		private GLDrawer2D mBlitDrawer;
+		private TimestampWaterSign mTimeSign;
+		private final float[] mIdentityMatrix = new float[16];
+		/**
+		 * 画中画小画面的外部纹理，和主画面一样在GL线程更新，预览和编码器在各自的绘制中合成
+		 */
+		private SurfaceTexture mInsetSTexture;
+		private int hInsetTex;
+		private final float[] mInsetStMatrix = new float[16];
+		private PipDrawer mPipDrawer;
+		private boolean mHasInsetFrame;
 
 
 		public CameraSurfaceRenderer(final CameraGLView parent) {
 			Log.v(TAG, "CameraSurfaceRenderer:");
 			mWeakParent = new WeakReference<CameraGLView>(parent);
 			Matrix.setIdentityM(mMvpMatrix, 0);
-			mWaterSign = new WaterSignature();
+			Matrix.setIdentityM(mIdentityMatrix, 0);
 			bitmapUtil = CommApplication.getBitmapUtil();
+			mSnapshotReader = new SnapshotReader();
 		}
 
 		@Override
 		public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
 			Log.v(TAG, "onSurfaceCreated:");
+			// GLSurfaceView的渲染线程由系统创建，注册到GL阶段（线程结束后自动移除）
+			PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_GL, null);
 			// This renderer required OES_EGL_image_external extension
 			final String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);	// API >= 8
 			//判断系统是否支持OES_EGL_image_external
@@ -231,6 +715,10 @@ public final class CameraGLView extends GLSurfaceView {
 			// 通过textur ID创建SurfaceTexture
 			mSTexture = new SurfaceTexture(hTex);
 			mSTexture.setOnFrameAvailableListener(this);
+			hInsetTex = GLDrawer2D.initTex();
+			mInsetSTexture = new SurfaceTexture(hInsetTex);
+			mInsetSTexture.setOnFrameAvailableListener(this);
+			mHasInsetFrame = false;
 			// 使用黄色清除界面
 			GLES20.glClearColor(1.0f, 1.0f, 0.0f, 1.0f);
 			final CameraGLView parent = mWeakParent.get();
@@ -240,13 +728,53 @@ public final class CameraGLView extends GLSurfaceView {
 			// 为预览显示创建对象
 			mDrawer = new GLDrawer2D();
 			mDrawer.setMatrix(mMvpMatrix, 0);
-			//设置水印
-            if (mWaterSign == null) {
-                mWaterSign = new WaterSignature();
-            }
+			mPipDrawer = new PipDrawer();
+			//设置水印（需要GL上下文，所以在这里创建）
+			mWaterSign = new WaterSignature();
             //设置阴影
 			mWaterSign.setShaderProgram(new WaterSignSProgram());
 			mSignTexId = TextureHelper.loadTexture(CommApplication.getInstance(), R.mipmap.watermark);
+			if (mIsSharedFrame) {
+				createSharedFrameObjects();
+			}
+		}
+
+		/**
+		 * 切换共享帧纹理模式，必须在GL线程并且没有录像时调用
+		 */
+		private void applySharedFrameMode() {
+			if (mIsSharedFrame == mRequestSharedFrame) return;
+			mIsSharedFrame = mRequestSharedFrame;
+			Log.i(TAG, "shared frame mode:" + mIsSharedFrame);
+			if (mDrawer == null) return;	// 还没有GL上下文，在onSurfaceCreated中创建
+			if (mIsSharedFrame) {
+				createSharedFrameObjects();
+			} else {
+				releaseSharedFrameObjects();
+			}
+		}
+
+		private void createSharedFrameObjects() {
+			mFrameDrawer = new GLDrawer2D(true);
+			mBlitDrawer = new GLDrawer2D(false);
+			mBlitDrawer.setMatrix(mMvpMatrix, 0);
+			mTimeSign = new TimestampWaterSign();
+		}
+
+		private void releaseSharedFrameObjects() {
+			if (mFrameDrawer != null) {
+				mFrameDrawer.release();
+				mFrameDrawer = null;
+			}
+			if (mBlitDrawer != null) {
+				mBlitDrawer.release();
+				mBlitDrawer = null;
+			}
+			if (mTimeSign != null) {
+				mTimeSign.release();
+				mTimeSign = null;
+			}
+			mSharedFrame.release();
 		}
 
 		@Override
@@ -278,7 +806,21 @@ public final class CameraGLView extends GLSurfaceView {
 				mSTexture.release();
 				mSTexture = null;
 			}
+			if (mPipDrawer != null) {
+				mPipDrawer.release();
+				mPipDrawer = null;
+			}
+			if (mInsetSTexture != null) {
+				mInsetSTexture.release();
+				mInsetSTexture = null;
+			}
+			releaseSharedFrameObjects();
+			if (mSnapshotReader != null) {
+				mSnapshotReader.release();
+				mSnapshotReader = new SnapshotReader();
+			}
 			GLDrawer2D.deleteTex(hTex);
+			GLDrawer2D.deleteTex(hInsetTex);
 			WaterSignature.deleteTex(mSignTexId);
 			//回收bitmap
 			bitmapUtil.recyle();
@@ -340,11 +882,22 @@ public final class CameraGLView extends GLSurfaceView {
 				}
 				if (mDrawer != null)
 					mDrawer.setMatrix(mMvpMatrix, 0);
+				if (mBlitDrawer != null)
+					mBlitDrawer.setMatrix(mMvpMatrix, 0);
 			}
 		}
 
 		private volatile boolean requesrUpdateTex = false;
-		private boolean flip = true;
+		private volatile boolean requestUpdateInset = false;
+		/**
+		 * 渲染统计
+		 */
+		private volatile long mDrawCount;
+		private volatile long mMainFrameCount;
+		private volatile long mInsetFrameCount;
+		private long mLastMainFrameMs;
+		private volatile long mRedundantDrawCount;
+		private volatile long mLastDrawMs;
 		private int[] fTexture = new int[1];
 		/**
 		 * 绘图到glsurface
@@ -357,23 +910,49 @@ public final class CameraGLView extends GLSurfaceView {
 			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 			GLES20.glEnable(GLES20.GL_BLEND);
 			GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-			if (requesrUpdateTex) {
+			final boolean updated = requesrUpdateTex;
+			final boolean insetUpdated = requestUpdateInset;
+			mDrawCount++;
+			mLastDrawMs = SystemClock.uptimeMillis();
+			if (!updated && !insetUpdated) {
+				mRedundantDrawCount++;
+			}
+			if (updated) {
 				requesrUpdateTex = false;
+				mLastMainFrameMs = mLastDrawMs;
 				// 更新texture（来自相机）
 				mSTexture.updateTexImage();
 				// 获取texture矩阵
 				mSTexture.getTransformMatrix(mStMatrix);
 			}
+			if (insetUpdated) {
+				requestUpdateInset = false;
+				mInsetSTexture.updateTexImage();
+				mInsetSTexture.getTransformMatrix(mInsetStMatrix);
+				mHasInsetFrame = true;
+			}
 			// 绘制到预览屏幕
 			final CameraGLView parent = mWeakParent.get();
 			final int view_width = parent.getWidth();
 			final int view_height = parent.getHeight();
-			GLES20.glViewport(0, 0, view_width, view_height);
-			mDrawer.draw(hTex, mStMatrix);
-			if (isPhoto) {
-				isPhoto = false;
-				savePicture(view_width,view_height);
+			final boolean sharedFrame = mIsSharedFrame && (parent.mVideoWidth > 0) && (parent.mVideoHeight > 0);
+			// 没有打开的一路保持最后一帧，所以只要有过一帧就一直画
+			final float[] insetRect = mHasInsetFrame && (parent.mPipState != PIP_OFF) ? parent.mInsetRect : null;
+			if (sharedFrame) {
+				drawSharedFrame(parent.mVideoWidth, parent.mVideoHeight, insetRect);
+				GLES20.glViewport(0, 0, view_width, view_height);
+				mBlitDrawer.draw(mSharedFrame.getTexture(), mIdentityMatrix);
+				FillRateMeter.addTexture(view_width, view_height);
+			} else {
+				GLES20.glViewport(0, 0, view_width, view_height);
+				mDrawer.draw(hTex, mStMatrix);
+				FillRateMeter.addOes(view_width, view_height);
+				if (insetRect != null) {
+					mPipDrawer.draw(hInsetTex, mInsetStMatrix, insetRect, view_width, view_height);
+				}
+				mSnapshotReader.onFrameDrawn(view_width, view_height);
 			}
+			FillRateMeter.onFrame();
 			//画水印（非动态）
 //			GLES20.glViewport(20, 20, 288, 120);
 //			mWaterSign.drawFrame(mSignTexId);
@@ -381,108 +960,96 @@ public final class CameraGLView extends GLSurfaceView {
 			//画水印
 //			GLES20.glViewport(160, 300, 320, 60);
 //			mWaterSign.drawFrame(mWaterTexId);
-			flip = !flip;
-			if (flip) {	// ~30fps
+			// 录像由主画面的新帧驱动，主相机关闭期间（轮流采集）由小画面的新帧驱动
+			final boolean insetDrives = insetUpdated && (insetRect != null)
+				&& (mLastDrawMs - mLastMainFrameMs >= MAIN_STALL_MS);
+			if (updated || insetDrives) {
 				synchronized (this) {
-					if (mVideoEncoder != null) {
-						// 通知捕获线程相机帧可用。
-//						mVideoEncoder.frameAvailableSoon(mStMatrix);
-						mVideoEncoder.frameAvailableSoon(mStMatrix, mMvpMatrix);
+					if ((mVideoEncoder != null) && mIsDirectOutput && !mVideoEncoder.getState()) {
+						// 相机已经直接写入编码器，这里只唤醒编码器取数据
+						mVideoEncoder.frameAvailableSoon();
+					} else if ((mVideoEncoder != null) && (mGovernor != null) && !mVideoEncoder.getState()) {
+						// 共享帧纹理里已经合成了小画面；否则由编码器在绘制主画面的同一次绘制中合成
+						mVideoEncoder.setInsetFrame(!sharedFrame && (insetRect != null) ? hInsetTex : -1,
+							mInsetStMatrix, insetRect);
+						// 按相机帧时间戳决定送给编码器几次（0为丢弃），录像帧率不再取决于预览帧率
+						final long timestamp = updated ? mSTexture.getTimestamp() : mInsetSTexture.getTimestamp();
+						final int count = mGovernor.onFrame(timestamp);
+						for (int i = 0; i < count; i++) {
+							// 帧时间用相机采集时间，重复帧往前按间隔排开，最后一帧就是本帧时间
+							final long frameTime = timestamp - (count - 1 - i) * mGovernor.getIntervalNs();
+							// 通知捕获线程相机帧可用。
+//							mVideoEncoder.frameAvailableSoon(mStMatrix);
+							if (sharedFrame) {
+								mVideoEncoder.frameAvailableSoon(mSharedFrame.getTexture(), mIdentityMatrix, mMvpMatrix, frameTime);
+							} else {
+								mVideoEncoder.frameAvailableSoon(mStMatrix, mMvpMatrix, frameTime);
+							}
+						}
 					}
 				}
 			}
 		}
 
+		/**
+		 * 共享帧纹理模式：相机纹理只采样这一次，水印合成进去，拍照也从这里读取
+		 */
+		private void drawSharedFrame(final int width, final int height, final float[] insetRect) {
+			mSharedFrame.setup(width, height);
+			mSharedFrame.begin();
+			mFrameDrawer.draw(hTex, mStMatrix);
+			FillRateMeter.addOes(width, height);
+			if (insetRect != null) {
+				mPipDrawer.draw(hInsetTex, mInsetStMatrix, insetRect, width, height);
+			}
+			//画静态水印
+			GLES20.glViewport(20, 20, 100, 50);
+			mWaterSign.drawFrame(mSignTexId);
+			//添加时间水印
+			mTimeSign.draw(width, height, 160, 300);
+			FillRateMeter.addTexture(100, 50);
+			FillRateMeter.addTexture(TimestampWaterSign.getDrawWidth(), TimestampWaterSign.getDrawHeight());
+			mSnapshotReader.onFrameDrawn(width, height);
+			mSharedFrame.end();
+		}
+
 		@Override
 		public void onFrameAvailable(final SurfaceTexture st) {
-			requesrUpdateTex = true;
-//			final CameraGLView parent = mWeakParent.get();
-//			if (parent != null)
-//				parent.requestRender();
+			if (st == mInsetSTexture) {
+				mInsetFrameCount++;
+				requestUpdateInset = true;
+			} else {
+				mMainFrameCount++;
+				requesrUpdateTex = true;
+			}
+			final CameraGLView parent = mWeakParent.get();
+			if (parent != null)
+				parent.requestRender();
 		}
 		/**
-		 * 标记是否需要获取当前一帧图片
+		 * 请求获取当前一帧图片
 		 */
-		private boolean isPhoto = false;
-		public void setPhoto(boolean photo) {
-			isPhoto = photo;
+		public void takePicture() {
+			mSnapshotReader.request();
 		}
 	}
 
 	/**
 	 * 拍照方法
 	 * 实现原理：因为视频一直在绘制画面，拍照时我们只需在视频绘制的那一瞬间的画面保存下来。
-	 * 第一步、使用glReadPixels()方法读gl的屏幕像素点到内存；
-	 * 第二步、将数据转化成bitmap；
-	 * 第三步、将bitmap保存为图片。
-	 *
-	 * 缺点：虽然是可以边录制边拍照，但是在生成图片的一瞬间视频会有卡顿
+	 * 像素读取、转换和保存见{@link SnapshotReader}，GL线程不会因为压缩和写文件卡顿。
 	 */
 	public void takePicture() {
 		if (mRenderer != null) {
-			mRenderer.setPhoto(true);
-		}
-	}
-	public static void savePicture(int mWidth,int mHeight) {
-		Bitmap mBitmap = createBitmapFromGLSurface(mWidth,mHeight);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		mBitmap.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-		byte[] bitmapdata = bos.toByteArray();
-		ByteArrayInputStream fis = new ByteArrayInputStream(bitmapdata);
-		String path = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES, ".png").toString();
-		try {
-			File tmpFile = new File(path);
-			FileOutputStream fos = new FileOutputStream(tmpFile);
-			byte[] buf = new byte[1024];
-			int len;
-			while ((len = fis.read(buf)) > 0) {
-				fos.write(buf, 0, len);
-			}
-			fis.close();
-			fos.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	//将数据转化成Bitmap
-	private static Bitmap createBitmapFromGLSurface(int mWidth, int mHeight){
-		int w = mWidth;
-		int h = mHeight;
-		int bitmapBuffer[] = new int[(int) (w * h)];
-		int bitmapSource[] = new int[(int) (w * h)];
-		IntBuffer buffer = IntBuffer.wrap(bitmapBuffer);
-		buffer.position(0);
-		try {
-			GLES20.glReadPixels(0, 0, w, h, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
-			for (int i = 0; i < h; i++) {
-				for (int j = 0; j < w; j++) {
-					int pix = bitmapBuffer[i * w + j];
-					int pb = (pix >> 16) & 0xff;
-					int pr = (pix << 16) & 0x00ff0000;
-					int pix1 = (pix & 0xff00ff00) | pr | pb;
-					bitmapSource[(h - i - 1) * w + j] = pix1;
-				}
-			}
-		}catch (GLException e){
-			e.printStackTrace();
-			return null;
+			mRenderer.takePicture();
+			requestRender();
 		}
-		Bitmap inBitmap = null;
-		if (inBitmap == null || !inBitmap.isMutable()
-				|| inBitmap.getWidth() != w || inBitmap.getHeight() != h) {
-			inBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-		}
-		inBitmap.copyPixelsFromBuffer(buffer);
-		return Bitmap.createBitmap(bitmapSource, w, h, Bitmap.Config.ARGB_8888);
 	}
 
 	/**
 	 * 异步摄像机操作的处理程序类
 	 */
-	private static final class CameraHandler extends Handler {
+	private static final class CameraHandler extends Handler implements CaptureBackend {
 		private static final int MSG_PREVIEW_START = 1;
 		private static final int MSG_PREVIEW_STOP = 2;
 		private CameraThread mThread;
@@ -491,14 +1058,51 @@ public final class CameraGLView extends GLSurfaceView {
 			mThread = thread;
 		}
 
+		@Override
 		public void startPreview(final int width, final int height) {
 			sendMessage(obtainMessage(MSG_PREVIEW_START, width, height));
 		}
 
+		/**
+		 * 旧接口只能输出到一个SurfaceTexture
+		 */
+		@Override
+		public boolean supportsDirectOutput() {
+			return false;
+		}
+
+		@Override
+		public boolean setEncoderSurface(final Surface surface) {
+			return false;
+		}
+
+		@Override
+		public boolean setEncoderSurface(final Surface surface, final ConfigureCallback callback) {
+			return false;
+		}
+
+		@Override
+		public boolean setImageSurface(final Surface surface) {
+			return false;
+		}
+
+		@Override
+		public int getCaptureWidth() {
+			final CameraThread thread = mThread;
+			return thread != null ? thread.mPreviewWidth : 0;
+		}
+
+		@Override
+		public int getCaptureHeight() {
+			final CameraThread thread = mThread;
+			return thread != null ? thread.mPreviewHeight : 0;
+		}
+
 		/**
 		 * 请求停止相机预览
 		 * @param needWait 需要等待停止相机预览
 		 */
+		@Override
 		public void stopPreview(final boolean needWait) {
 			synchronized (this) {
 				sendEmptyMessage(MSG_PREVIEW_STOP);
@@ -545,6 +1149,7 @@ public final class CameraGLView extends GLSurfaceView {
     	private volatile boolean mIsRunning = false;
 		private Camera mCamera;
 		private boolean mIsFrontFace;
+		private volatile int mPreviewWidth, mPreviewHeight;
 
     	public CameraThread(final CameraGLView parent) {
 			super("Camera thread");
@@ -568,6 +1173,8 @@ public final class CameraGLView extends GLSurfaceView {
 		@Override
 		public void run() {
             Log.d(TAG, "Camera thread start");
+            // Camera的回调在打开它的Looper上执行，注册到采集阶段
+            PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_CAPTURE, null);
             Looper.prepare();
             synchronized (mReadyFence) {
                 mHandler = new CameraHandler(this);
@@ -576,6 +1183,7 @@ public final class CameraGLView extends GLSurfaceView {
             }
             Looper.loop();
             Log.d(TAG, "Camera thread finish");
+            PipelineScheduler.getInstance().unregisterCurrentThread();
             synchronized (mReadyFence) {
                 mHandler = null;
                 mIsRunning = false;
@@ -630,6 +1238,8 @@ public final class CameraGLView extends GLSurfaceView {
 					// 获取实际预览大小
 					final Camera.Size previewSize = mCamera.getParameters().getPreviewSize();
 					Log.i(TAG, String.format("previewSize(%d, %d)", previewSize.width, previewSize.height));
+					mPreviewWidth = previewSize.width;
+					mPreviewHeight = previewSize.height;
 					//通过保持相机预览的纵横比来调整视图大小。
 					// 这里不是UI线程，我们应该请求父视图执行。
 					parent.post(new Runnable() {
@@ -686,9 +1296,12 @@ public final class CameraGLView extends GLSurfaceView {
 		        mCamera.release();
 		        mCamera = null;
 			}
+			mPreviewWidth = mPreviewHeight = 0;
 			final CameraGLView parent = mWeakParent.get();
 			if (parent == null) return;
-			parent.mCameraHandler = null;
+			// onPause时已经置空，这时可能已经创建了新的后端
+			if (parent.mCaptureBackend == mHandler)
+				parent.mCaptureBackend = null;
 		}
 
 		/**
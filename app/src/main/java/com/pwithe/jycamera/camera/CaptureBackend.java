@@ -0,0 +1,69 @@
+package com.pwithe.jycamera.camera;
+
+import android.view.Surface;
+
+/**
+ * 相机采集后端
+ * CameraGLView只通过这个接口控制相机，相机本身在实现类自己的线程里打开和配置。
+ * 预览画面总是输出到CameraGLView的SurfaceTexture；支持多路输出的后端还可以把
+ * ImageReader和编码器输入surface作为同一个采集会话的独立输出（零拷贝）。
+ */
+interface CaptureBackend {
+	/**
+	 * 打开相机并开始预览
+	 * @param width  请求的预览宽
+	 * @param height 请求的预览高
+	 */
+	void startPreview(int width, int height);
+
+	/**
+	 * 停止预览并关闭相机
+	 * @param needWait 是否等待相机线程结束
+	 */
+	void stopPreview(boolean needWait);
+
+	/**
+	 * @return true：支持把编码器输入surface、ImageReader等作为相机的直接输出
+	 */
+	boolean supportsDirectOutput();
+
+	/**
+	 * 输出配置结果的回调，在后端的相机线程调用
+	 */
+	interface ConfigureCallback {
+		/**
+		 * @param success false：会话配置失败或者相机已经关闭
+		 */
+		void onConfigured(boolean success);
+	}
+
+	/**
+	 * 设置编码器输入surface作为相机的直接输出，null表示移除，等待会话重新配置的结果。
+	 * 相机画面不经过GL直接进入编码器，所以不会有水印，也不会旋转。
+	 * @return false：不支持或配置失败，调用方应该使用GL绘制的方式送帧
+	 */
+	boolean setEncoderSurface(Surface surface);
+
+	/**
+	 * 和{@link #setEncoderSurface(Surface)}相同，但是不等待会话重新配置，立即返回
+	 * @param callback 会话配置完成或失败后调用
+	 * @return false：不支持，这时不会调用callback
+	 */
+	boolean setEncoderSurface(Surface surface, ConfigureCallback callback);
+
+	/**
+	 * 设置额外的图像输出（比如ImageReader的surface），null表示移除
+	 * @return false：不支持
+	 */
+	boolean setImageSurface(Surface surface);
+
+	/**
+	 * @return 相机实际输出的画面宽（没有旋转），相机还没打开时返回0
+	 */
+	int getCaptureWidth();
+
+	/**
+	 * @return 相机实际输出的画面高（没有旋转），相机还没打开时返回0
+	 */
+	int getCaptureHeight();
+}
@@ -0,0 +1,296 @@
+package com.pwithe.jycamera.camera;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import com.pwithe.jycamera.record.PipelineScheduler;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * 画中画采集后端：后置相机是主画面，前置相机是小画面
+ * 实现原理：两个相机各自输出到CameraGLView的一个SurfaceTexture（两张外部纹理），
+ * 预览和编码器都在同一次绘制中把小画面合成到主画面上，录像只有一路视频。
+ * 先打开主相机，打开成功后再打开第二个相机。API 26还没有查询可以同时打开哪些相机的接口，只能实际打开试一下：
+ * 第二个相机打开失败，或者主相机因此被断开，就退化为轮流打开——主相机打开{@link #MAIN_HOLD_MS}，
+ * 再换成小画面的相机打开{@link #INSET_HOLD_MS}（都包括打开相机的时间），没有打开的一路保持最后一帧。
+ * 轮流打开时前一个相机完全关闭（onCameraClosed）后才打开下一个，否则下一个会因为相机还被占用而打开失败。
+ * 小画面需要GL合成，所以不支持相机直接输出到编码器和附加输出。
+ * 所有相机操作都在PipelineScheduler的采集线程上执行。
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class DualCaptureBackend implements CaptureBackend, Camera2Backend.StateListener {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "DualCaptureBackend";
+
+	/**
+	 * 小画面只占输出的一小块，请求较小的尺寸
+	 */
+	private static final int INSET_WIDTH = 640;
+	private static final int INSET_HEIGHT = 480;
+	/**
+	 * 轮流打开时每个相机保持打开的时间
+	 */
+	private static final long MAIN_HOLD_MS = 5000;
+	private static final long INSET_HOLD_MS = 1500;
+	/**
+	 * 等待前一个相机关闭的最长时间，超时后直接打开下一个
+	 */
+	private static final long CLOSE_TIMEOUT_MS = 1000;
+
+	private final WeakReference<CameraGLView> mWeakParent;
+	private final Handler mHandler;
+	private final Object mSync = new Object();
+	private Camera2Backend mMain;
+	private Camera2Backend mInset;
+	private int mRequestWidth, mRequestHeight;
+	private boolean mIsClosed;
+	private boolean mIsSequential;
+	/**
+	 * 已经把输出尺寸通知给CameraGLView（轮流打开时重新打开相机不再通知）
+	 */
+	private boolean mMainStarted, mInsetStarted;
+	/**
+	 * 主相机的输出尺寸，轮流打开时主相机关闭期间也保持
+	 */
+	private volatile int mCaptureWidth, mCaptureHeight;
+	/**
+	 * 正在关闭的相机数，和等它们关闭后再打开的相机
+	 */
+	private int mClosingCount;
+	private Camera2Backend mPendingStart;
+	private int mPendingWidth, mPendingHeight;
+
+	DualCaptureBackend(final CameraGLView parent) {
+		mWeakParent = new WeakReference<CameraGLView>(parent);
+		mHandler = PipelineScheduler.getInstance().getHandler(PipelineScheduler.STAGE_CAPTURE);
+	}
+
+	@Override
+	public void startPreview(final int width, final int height) {
+		final CameraGLView parent = mWeakParent.get();
+		if (parent == null) return;
+		synchronized (mSync) {
+			if (mIsClosed || (mMain != null)) return;
+			mRequestWidth = width;
+			mRequestHeight = height;
+			mMain = new Camera2Backend(parent, CameraCharacteristics.LENS_FACING_BACK, CameraGLView.SOURCE_MAIN, this);
+			mMain.startPreview(width, height);
+		}
+	}
+
+	@Override
+	public void stopPreview(final boolean needWait) {
+		final Camera2Backend main, inset;
+		synchronized (mSync) {
+			if (mIsClosed) return;
+			mIsClosed = true;
+			main = mMain;
+			inset = mInset;
+			mMain = mInset = null;
+			mPendingStart = null;
+		}
+		mHandler.removeCallbacks(mSwitchTask);
+		mHandler.removeCallbacks(mCloseTimeoutTask);
+		if (inset != null) {
+			inset.stopPreview(needWait);
+		}
+		if (main != null) {
+			main.stopPreview(needWait);
+		}
+	}
+
+	@Override
+	public boolean supportsDirectOutput() {
+		return false;
+	}
+
+	@Override
+	public boolean setEncoderSurface(final Surface surface) {
+		return false;
+	}
+
+	@Override
+	public boolean setEncoderSurface(final Surface surface, final ConfigureCallback callback) {
+		return false;
+	}
+
+	@Override
+	public boolean setImageSurface(final Surface surface) {
+		return false;
+	}
+
+	@Override
+	public int getCaptureWidth() {
+		return mCaptureWidth;
+	}
+
+	@Override
+	public int getCaptureHeight() {
+		return mCaptureHeight;
+	}
+
+	/**
+	 * @return true：两个相机不能同时打开，正在轮流打开
+	 */
+	public boolean isSequential() {
+		synchronized (mSync) {
+			return mIsSequential;
+		}
+	}
+
+//********************************************************************************
+// Camera2Backend.StateListener，都在采集线程调用
+//********************************************************************************
+	@Override
+	public void onCaptureStarted(final Camera2Backend backend, final int width, final int height, final int rotation) {
+		final CameraGLView parent = mWeakParent.get();
+		if (parent == null) return;
+		if (backend.getSource() == CameraGLView.SOURCE_MAIN) {
+			mCaptureWidth = width;
+			mCaptureHeight = height;
+			if (!mMainStarted) {
+				mMainStarted = true;
+				parent.onCaptureStarted(width, height, rotation);
+			}
+		} else if (!mInsetStarted) {
+			mInsetStarted = true;
+			parent.onInsetStarted(width, height, rotation);
+		}
+	}
+
+	@Override
+	public void onCameraOpened(final Camera2Backend backend) {
+		final CameraGLView parent = mWeakParent.get();
+		if (parent == null) return;
+		synchronized (mSync) {
+			if (mIsClosed || mIsSequential) return;
+			if ((backend == mMain) && (mInset == null)) {
+				if (!Camera2Backend.hasCamera(parent.getContext(), CameraCharacteristics.LENS_FACING_FRONT)) {
+					Log.w(TAG, "no front camera, picture in picture is not available");
+					return;
+				}
+				// 主相机打开后再打开第二个，失败时主相机仍然可用
+				mInset = new Camera2Backend(parent, CameraCharacteristics.LENS_FACING_FRONT, CameraGLView.SOURCE_INSET, this);
+				mInset.startPreview(INSET_WIDTH, INSET_HEIGHT);
+			} else if (backend == mInset) {
+				Log.i(TAG, "two cameras opened");
+				parent.onPipStateChanged(CameraGLView.PIP_CONCURRENT);
+			}
+		}
+	}
+
+	@Override
+	public void onCameraError(final Camera2Backend backend, final String reason) {
+		final CameraGLView parent = mWeakParent.get();
+		if (parent == null) return;
+		synchronized (mSync) {
+			if (mIsClosed || ((backend != mMain) && (backend != mInset))) return;
+			Log.w(TAG, "onCameraError:source=" + backend.getSource() + "," + reason);
+			// 轮流打开时，下次切换会重新打开；只有主相机时和单相机一样处理
+			if (mIsSequential || (mInset == null)) return;
+			Log.i(TAG, "two cameras can not be opened at the same time, switch sequentially");
+			mIsSequential = true;
+			closeCamera(mInset);
+			mInset = null;
+			if (backend == mMain) {
+				// 主相机被第二个相机挤掉了，两个都关闭后重新打开
+				closeCamera(mMain);
+				mMain = new Camera2Backend(parent, CameraCharacteristics.LENS_FACING_BACK, CameraGLView.SOURCE_MAIN, this);
+				startWhenClosed(mMain, mRequestWidth, mRequestHeight);
+			}
+			mHandler.postDelayed(mSwitchTask, MAIN_HOLD_MS);
+			parent.onPipStateChanged(CameraGLView.PIP_SEQUENTIAL);
+		}
+	}
+
+	@Override
+	public void onCameraClosed(final Camera2Backend backend) {
+		synchronized (mSync) {
+			if (mIsClosed || (mClosingCount <= 0)) return;
+			if (--mClosingCount == 0) {
+				startPending();
+			}
+		}
+	}
+
+	/**
+	 * 停止相机，onCameraClosed时减少计数，在mSync内调用
+	 */
+	private void closeCamera(final Camera2Backend backend) {
+		mClosingCount++;
+		backend.stopPreview(false);
+	}
+
+	/**
+	 * 正在关闭的相机都关闭后再打开，在mSync内调用
+	 */
+	private void startWhenClosed(final Camera2Backend backend, final int width, final int height) {
+		mPendingStart = backend;
+		mPendingWidth = width;
+		mPendingHeight = height;
+		if (mClosingCount == 0) {
+			startPending();
+		} else {
+			mHandler.postDelayed(mCloseTimeoutTask, CLOSE_TIMEOUT_MS);
+		}
+	}
+
+	/**
+	 * 在mSync内调用
+	 */
+	private void startPending() {
+		mHandler.removeCallbacks(mCloseTimeoutTask);
+		final Camera2Backend backend = mPendingStart;
+		mPendingStart = null;
+		if (backend != null) {
+			backend.startPreview(mPendingWidth, mPendingHeight);
+		}
+	}
+
+	private final Runnable mCloseTimeoutTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (mSync) {
+				if (mIsClosed) return;
+				Log.w(TAG, "camera close timeout, closing=" + mClosingCount);
+				mClosingCount = 0;
+				startPending();
+			}
+		}
+	};
+
+	/**
+	 * 轮流打开主相机和小画面的相机，前一个完全关闭后再打开下一个
+	 */
+	private final Runnable mSwitchTask = new Runnable() {
+		@Override
+		public void run() {
+			final CameraGLView parent = mWeakParent.get();
+			if (parent == null) return;
+			synchronized (mSync) {
+				if (mIsClosed) return;
+				if (mMain != null) {
+					closeCamera(mMain);
+					mMain = null;
+					mInset = new Camera2Backend(parent, CameraCharacteristics.LENS_FACING_FRONT, CameraGLView.SOURCE_INSET, DualCaptureBackend.this);
+					startWhenClosed(mInset, INSET_WIDTH, INSET_HEIGHT);
+					mHandler.postDelayed(this, INSET_HOLD_MS);
+				} else {
+					if (mInset != null) {
+						closeCamera(mInset);
+						mInset = null;
+					}
+					mMain = new Camera2Backend(parent, CameraCharacteristics.LENS_FACING_BACK, CameraGLView.SOURCE_MAIN, DualCaptureBackend.this);
+					startWhenClosed(mMain, mRequestWidth, mRequestHeight);
+					mHandler.postDelayed(this, MAIN_HOLD_MS);
+				}
+				if (DEBUG) Log.v(TAG, "switch:main=" + (mMain != null));
+			}
+		}
+	};
+}
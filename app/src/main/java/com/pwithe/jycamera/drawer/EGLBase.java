@@ -6,6 +6,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.os.Build;
 import android.util.Log;
@@ -60,6 +61,14 @@ public class EGLBase {	// API >= 17
 			mEgl.swap(mEglSurface);
 		}
 
+		/**
+		 * 设置下一次swap的帧时间（编码器用作presentationTimeUs）
+		 * @param nsecs
+		 */
+		public void setPresentationTime(final long nsecs) {
+			mEgl.setPresentationTime(mEglSurface, nsecs);
+		}
+
 		public EGLContext getContext() {
 			return mEgl.getContext();
 		}
@@ -194,6 +203,12 @@ public class EGLBase {	// API >= 17
         return EGL14.EGL_SUCCESS;
     }
 
+	private void setPresentationTime(final EGLSurface surface, final long nsecs) {
+		if (!EGLExt.eglPresentationTimeANDROID(mEglDisplay, surface, nsecs)) {	// API >= 18
+			Log.w(TAG, "setPresentationTime:err=" + EGL14.eglGetError());
+		}
+	}
+
     private EGLContext createContext(final EGLContext shared_context) {
 //		Log.v(TAG, "createContext:");
 
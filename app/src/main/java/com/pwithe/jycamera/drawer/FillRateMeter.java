@@ -0,0 +1,57 @@
+package com.pwithe.jycamera.drawer;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计每帧GPU填充的像素数，用于比较共享帧纹理模式与原来两次采样外部纹理的开销
+ * 外部纹理（OES）采样需要做YUV转换，比普通2D纹理贴图更耗，所以分开统计。
+ * 预览线程和编码线程都会累加，只在预览线程调用{@link #onFrame()}。
+ */
+public final class FillRateMeter {
+	private static final String TAG = "FillRateMeter";
+
+	private static final int REPORT_INTERVAL = 300;	// frames
+
+	private static final AtomicLong sOesPixels = new AtomicLong();
+	private static final AtomicLong sTexPixels = new AtomicLong();
+	private static int sFrames;
+	private static volatile String sLastReport;
+
+	private FillRateMeter() {
+	}
+
+	/**
+	 * 累加外部纹理采样的像素数
+	 */
+	public static void addOes(final int width, final int height) {
+		sOesPixels.addAndGet((long)width * height);
+	}
+
+	/**
+	 * 累加2D纹理（FBO纹理、水印）采样的像素数
+	 */
+	public static void addTexture(final int width, final int height) {
+		sTexPixels.addAndGet((long)width * height);
+	}
+
+	/**
+	 * 每帧预览结束时调用，每{@link #REPORT_INTERVAL}帧输出一次平均值
+	 */
+	public static void onFrame() {
+		if (++sFrames < REPORT_INTERVAL) return;
+		final long oes = sOesPixels.getAndSet(0) / sFrames;
+		final long tex = sTexPixels.getAndSet(0) / sFrames;
+		sFrames = 0;
+		sLastReport = String.format("fill/frame: oes=%.2fMpx, 2d=%.2fMpx", oes / 1e6f, tex / 1e6f);
+		Log.i(TAG, sLastReport);
+	}
+
+	/**
+	 * @return 最近一次的统计结果，还没有时返回null
+	 */
+	public static String getLastReport() {
+		return sLastReport;
+	}
+}
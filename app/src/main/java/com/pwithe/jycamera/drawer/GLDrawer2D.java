@@ -37,11 +37,22 @@ public class GLDrawer2D {
 		+ "void main() {\n"
 		+ "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
 		+ "}";
+	/**
+	 * 绘制普通2D纹理（例如FBO纹理）用的片元着色器
+	 */
+	private static final String fss_2d
+		= "precision mediump float;\n"
+		+ "uniform sampler2D sTexture;\n"
+		+ "varying highp vec2 vTextureCoord;\n"
+		+ "void main() {\n"
+		+ "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+		+ "}";
 	private static final float[] VERTICES = { 1.0f, 1.0f, -1.0f, 1.0f, 1.0f, -1.0f, -1.0f, -1.0f };
 	private static final float[] TEXCOORD = { 1.0f, 1.0f, 0.0f, 1.0f, 1.0f, 0.0f, 0.0f, 0.0f };
 
 	private final FloatBuffer pVertex;
 	private final FloatBuffer pTexCoord;
+	private final int mTexTarget;
 	private int hProgram;
     int maPositionLoc;
     int maTextureCoordLoc;
@@ -57,6 +68,16 @@ public class GLDrawer2D {
 	 * this should be called in GL context
 	 */
 	public GLDrawer2D() {
+		this(true);
+	}
+
+	/**
+	 * Constructor
+	 * this should be called in GL context
+	 * @param isOES true：绘制相机的外部纹理，false：绘制GL_TEXTURE_2D纹理
+	 */
+	public GLDrawer2D(final boolean isOES) {
+		mTexTarget = isOES ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
 		pVertex = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ)
 				.order(ByteOrder.nativeOrder()).asFloatBuffer();
 		pVertex.put(VERTICES);
@@ -66,7 +87,7 @@ public class GLDrawer2D {
 		pTexCoord.put(TEXCOORD);
 		pTexCoord.flip();
 
-		hProgram = loadShader(vss, fss);
+		hProgram = loadShader(vss, isOES ? fss : fss_2d);
 		GLES20.glUseProgram(hProgram);
         maPositionLoc = GLES20.glGetAttribLocation(hProgram, "aPosition");
         maTextureCoordLoc = GLES20.glGetAttribLocation(hProgram, "aTextureCoord");
@@ -103,7 +124,7 @@ public class GLDrawer2D {
 			GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, tex_matrix, 0);
         GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
 		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex_id);
+		GLES20.glBindTexture(mTexTarget, tex_id);
 //		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_NUM);
 //		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
 //        GLES20.glUseProgram(0);
@@ -125,7 +146,7 @@ public class GLDrawer2D {
 		// Done -- 解绑~
 		GLES20.glDisableVertexAttribArray(maPositionLoc);
 		GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+		GLES20.glBindTexture(mTexTarget, 0);
 		GLES20.glUseProgram(0);
 	}
 
@@ -0,0 +1,45 @@
+package com.pwithe.jycamera.drawer;
+
+import android.opengl.GLES20;
+
+/**
+ * 画中画的小画面
+ * 在当前画面上指定的区域再画一张相机外部纹理，和主画面在同一次绘制中完成（同一个EGL surface，一次swap）。
+ * 区域用画面宽高的比例表示{x, y, width, height}，原点在左下角（GL坐标），
+ * 所以预览、共享帧纹理和编码器不同尺寸的画面可以共用同一个区域。
+ * 所有方法都必须在GL线程调用。
+ */
+public class PipDrawer {
+
+	private final GLDrawer2D mDrawer;
+
+	/**
+	 * this should be called in GL context
+	 */
+	public PipDrawer() {
+		mDrawer = new GLDrawer2D(true);
+	}
+
+	/**
+	 * 画小画面，之后视口保持为小画面的区域
+	 * @param tex_id     外部纹理
+	 * @param tex_matrix SurfaceTexture#getTransformMatrix
+	 * @param rect       区域{x, y, width, height}（画面宽高的比例）
+	 * @param width      当前画面宽
+	 * @param height     当前画面高
+	 */
+	public void draw(final int tex_id, final float[] tex_matrix, final float[] rect, final int width, final int height) {
+		final int x = Math.round(rect[0] * width);
+		final int y = Math.round(rect[1] * height);
+		final int w = Math.round(rect[2] * width);
+		final int h = Math.round(rect[3] * height);
+		if ((w <= 0) || (h <= 0)) return;
+		GLES20.glViewport(x, y, w, h);
+		mDrawer.draw(tex_id, tex_matrix);
+		FillRateMeter.addOes(w, h);
+	}
+
+	public void release() {
+		mDrawer.release();
+	}
+}
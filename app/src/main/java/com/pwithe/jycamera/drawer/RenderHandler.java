@@ -10,10 +10,7 @@ import android.view.SurfaceHolder;
 
 import com.pwithe.jycamera.CommApplication;
 import com.pwithe.jycamera.R;
-import com.pwithe.jycamera.utils.BitmapUtil;
-
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import com.pwithe.jycamera.record.PipelineScheduler;
 
 /**
  *在线程中绘制整个预览页面
@@ -24,14 +21,29 @@ public final class RenderHandler implements Runnable {
 	private final Object mSync = new Object();
 	private EGLContext mShard_context;
 	private boolean mIsRecordable;
+	/**
+	 * true：纹理是已经合成好水印的共享帧纹理（GL_TEXTURE_2D），只需贴图
+	 */
+	private boolean mIsSharedFrame;
 	private Object mSurface;
 	private int mTexId = -1;
 	private float[] mMatrix = new float[32];
 
 	private boolean mRequestSetEglContext;
 	private boolean mRequestRelease;
+	/**
+	 * 等待绘制的请求数，每个请求对应mTimestamps中的一个帧时间（纳秒，-1表示不设置）
+	 */
 	private int mRequestDraw;
+	private final long[] mTimestamps = new long[8];
+	private int mTimestampHead;
 	private int mWidth, mHeight;
+	/**
+	 * 画中画的小画面（外部纹理），-1表示没有
+	 */
+	private int mInsetTexId = -1;
+	private final float[] mInsetMatrix = new float[16];
+	private final float[] mInsetRect = new float[4];
 
 	public static final RenderHandler createHandler(final String name) {
 		final RenderHandler handler = new RenderHandler();
@@ -46,6 +58,14 @@ public final class RenderHandler implements Runnable {
 	}
 
 	public final void setEglContext(final EGLContext shared_context, final int tex_id, final Object surface, final boolean isRecordable) {
+		setEglContext(shared_context, tex_id, surface, isRecordable, false);
+	}
+
+	/**
+	 * @param isSharedFrame true：tex_id是{@link SharedFrameTexture}的纹理，水印已经合成过
+	 */
+	public final void setEglContext(final EGLContext shared_context, final int tex_id, final Object surface,
+		final boolean isRecordable, final boolean isSharedFrame) {
 		if (!(surface instanceof Surface) && !(surface instanceof SurfaceTexture) && !(surface instanceof SurfaceHolder))
 			throw new RuntimeException("unsupported window type:" + surface);
 		synchronized (mSync) {
@@ -56,6 +76,7 @@ public final class RenderHandler implements Runnable {
 			mTexId = tex_id;
 			mSurface = surface;
 			mIsRecordable = isRecordable;
+			mIsSharedFrame = isSharedFrame;
 			mRequestSetEglContext = true;
 			Matrix.setIdentityM(mMatrix, 0);
 			Matrix.setIdentityM(mMatrix, 16);
@@ -83,13 +104,31 @@ public final class RenderHandler implements Runnable {
 		draw(mTexId, tex_matrix, mvp_matrix);
 	}
 
+	public final void draw(final float[] tex_matrix, final float[] mvp_matrix, final long timestampNs) {
+		draw(mTexId, tex_matrix, mvp_matrix, timestampNs);
+	}
+
 	public final void draw(final int tex_id, final float[] tex_matrix) {
 		draw(tex_id, tex_matrix, null);
 	}
 
 	public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix) {
+		draw(tex_id, tex_matrix, mvp_matrix, -1);
+	}
+
+	/**
+	 * @param timestampNs 这一帧的采集时间，通过eglPresentationTimeANDROID传给编码器，-1表示不设置
+	 */
+	public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix, final long timestampNs) {
 		synchronized (mSync) {
 			if (mRequestRelease) return;
+			if (mRequestDraw < mTimestamps.length) {
+				mTimestamps[(mTimestampHead + mRequestDraw) % mTimestamps.length] = timestampNs;
+				mRequestDraw++;
+			} else {
+				// 积压太多时合并到最后一个请求，帧时间也用最新的，保证每次swap的时间和画面一致
+				mTimestamps[(mTimestampHead + mRequestDraw - 1) % mTimestamps.length] = timestampNs;
+			}
 			mTexId = tex_id;
 			if ((tex_matrix != null) && (tex_matrix.length >= 16)) {
 				System.arraycopy(tex_matrix, 0, mMatrix, 0, 16);
@@ -101,7 +140,6 @@ public final class RenderHandler implements Runnable {
 			} else {
 				Matrix.setIdentityM(mMatrix, 16);
 			}
-			mRequestDraw++;
 			mSync.notifyAll();
 /*			try {
 				mSync.wait();
@@ -110,6 +148,28 @@ public final class RenderHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * 设置画中画的小画面，和下一次绘制的主画面合成在同一帧里
+	 * @param tex_id     小画面的外部纹理（和主画面纹理在同一个共享上下文），-1表示不画
+	 * @param tex_matrix 小画面的纹理矩阵
+	 * @param rect       区域{x, y, width, height}（画面宽高的比例，原点在左下角），见{@link PipDrawer}
+	 */
+	public final void setInset(final int tex_id, final float[] tex_matrix, final float[] rect) {
+		synchronized (mSync) {
+			if ((tex_id < 0) || (rect == null) || (rect.length < 4)) {
+				mInsetTexId = -1;
+				return;
+			}
+			mInsetTexId = tex_id;
+			if ((tex_matrix != null) && (tex_matrix.length >= 16)) {
+				System.arraycopy(tex_matrix, 0, mInsetMatrix, 0, 16);
+			} else {
+				Matrix.setIdentityM(mInsetMatrix, 0);
+			}
+			System.arraycopy(rect, 0, mInsetRect, 0, 4);
+		}
+	}
+
 	public boolean isValid() {
 		synchronized (mSync) {
 			return !(mSurface instanceof Surface) || ((Surface) mSurface).isValid();
@@ -134,22 +194,34 @@ public final class RenderHandler implements Runnable {
 	private EGLBase.EglSurface mInputSurface;
 	private GLDrawer2D mDrawer;
 	private WaterSignature mWaterSign;
-	private BitmapUtil bitmapUtil;
 	private int mSignTexId;
-	private int[] mWaterTexId = new int[12];
-	private int[] textureObjectIds = new int[1];
-	private final static SimpleDateFormat formatter   = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	private static Date date = null;
-	private String time = ""; //时间戳
+	private TimestampWaterSign mTimeSign;
+	private PipDrawer mPipDrawer;
 
 	@Override
 	public final void run() {
+		// 拥有自己的EGL上下文，不能和其他组件共用线程，注册到GL阶段统计CPU时间和积压
+		PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_GL,
+			new PipelineScheduler.QueueDepthSource() {
+				@Override
+				public int getQueueDepth() {
+					synchronized (mSync) {
+						return mRequestDraw;
+					}
+				}
+			});
 		synchronized (mSync) {
 			mRequestSetEglContext = mRequestRelease = false;
 			mRequestDraw = 0;
+			mTimestampHead = 0;
 			mSync.notifyAll();
 		}
 		boolean localRequestDraw;
+		long localTimestamp = -1;
+		// 小画面的状态在取绘制请求时复制，绘制期间setInset不影响这一帧
+		int localInsetTexId = -1;
+		final float[] localInsetMatrix = new float[16];
+		final float[] localInsetRect = new float[4];
 		for (; ; ) {
 			synchronized (mSync) {
 				if (mRequestRelease) break;
@@ -160,6 +232,13 @@ public final class RenderHandler implements Runnable {
 				localRequestDraw = mRequestDraw > 0;
 				if (localRequestDraw) {
 					mRequestDraw--;
+					localTimestamp = mTimestamps[mTimestampHead];
+					mTimestampHead = (mTimestampHead + 1) % mTimestamps.length;
+					localInsetTexId = mInsetTexId;
+					if (localInsetTexId >= 0) {
+						System.arraycopy(mInsetMatrix, 0, localInsetMatrix, 0, 16);
+						System.arraycopy(mInsetRect, 0, localInsetRect, 0, 4);
+					}
 //					mSync.notifyAll();
 				}
 			}
@@ -178,13 +257,29 @@ public final class RenderHandler implements Runnable {
 					mDrawer.setMatrix(mMatrix, 16);
 					// 绘制到预览屏幕
 					mDrawer.draw(mTexId, mMatrix);
-					//画静态水印
-					GLES20.glViewport(20, 20, 100, 50);
-					mWaterSign.drawFrame(mSignTexId);
-					//添加时间水印
-					date = new Date();
-					time = formatter.format(date);
-					drawWaterSign(time, 160, 300);
+					if (localInsetTexId >= 0) {
+						// 小画面在同一次绘制中合成，编码器只收到一帧
+						if (mPipDrawer == null) {
+							mPipDrawer = new PipDrawer();
+						}
+						mPipDrawer.draw(localInsetTexId, localInsetMatrix, localInsetRect, mWidth, mHeight);
+					}
+					if (mIsSharedFrame) {
+						// 水印已经在共享帧纹理里
+						FillRateMeter.addTexture(mWidth, mHeight);
+					} else {
+						FillRateMeter.addOes(mWidth, mHeight);
+						//画静态水印
+						GLES20.glViewport(20, 20, 100, 50);
+						mWaterSign.drawFrame(mSignTexId);
+						//添加时间水印
+						mTimeSign.draw(mWidth, mHeight, 160, 300);
+						FillRateMeter.addTexture(100, 50);
+						FillRateMeter.addTexture(TimestampWaterSign.getDrawWidth(), TimestampWaterSign.getDrawHeight());
+					}
+					if (localTimestamp >= 0) {
+						mInputSurface.setPresentationTime(localTimestamp);
+					}
 					mInputSurface.swap();
 				}
 			} else {
@@ -202,6 +297,7 @@ public final class RenderHandler implements Runnable {
 			internalRelease();
 			mSync.notifyAll();
 		}
+		PipelineScheduler.getInstance().unregisterCurrentThread();
 	}
 
 	private final void internalPrepare() {
@@ -212,30 +308,25 @@ public final class RenderHandler implements Runnable {
 
 		mInputSurface.makeCurrent();
 
-		//设置水印
-		mWaterSign = new WaterSignature();
-		mWaterSign.setShaderProgram(new WaterSignSProgram());
-		mSignTexId = TextureHelper.loadTexture(CommApplication.getInstance(), R.mipmap.watermark);
-		//初始化文字转图片所需的对象，避免多次生成新对象消耗过多内存
-//		if (bitmapUtil == null) {
-			bitmapUtil = CommApplication.getBitmapUtil();
-			//将字符图片与纹理绑定，返回纹理id
-			for (int i = 0; i < 12; i++) {
-				if (i == 10) {
-					mWaterTexId[i] = TextureHelper.loadTexture(bitmapUtil.textToBitmap("-"), textureObjectIds);
-				} else if (i == 11) {
-					mWaterTexId[i] = TextureHelper.loadTexture(bitmapUtil.textToBitmap(":"), textureObjectIds);
-				} else {
-					mWaterTexId[i] = TextureHelper.loadTexture(bitmapUtil.textToBitmap(i + ""), textureObjectIds);
-				}
-			}
-//		}
-		mDrawer = new GLDrawer2D();
+		if (!mIsSharedFrame) {
+			//设置水印
+			mWaterSign = new WaterSignature();
+			mWaterSign.setShaderProgram(new WaterSignSProgram());
+			mSignTexId = TextureHelper.loadTexture(CommApplication.getInstance(), R.mipmap.watermark);
+			//时间水印，所有字符共用一张图集纹理
+			mTimeSign = new TimestampWaterSign();
+		}
+		mDrawer = new GLDrawer2D(!mIsSharedFrame);
 		mSurface = null;
 		mSync.notifyAll();
 	}
 
 	private final void internalRelease() {
+		// 图集纹理需要在surface释放前（上下文仍是当前上下文时）删除
+		if (mTimeSign != null) {
+			mTimeSign.release();
+			mTimeSign = null;
+		}
 		if (mInputSurface != null) {
 			mInputSurface.release();
 			mInputSurface = null;
@@ -244,6 +335,10 @@ public final class RenderHandler implements Runnable {
 			mDrawer.release();
 			mDrawer = null;
 		}
+		if (mPipDrawer != null) {
+			mPipDrawer.release();
+			mPipDrawer = null;
+		}
 		if (mWaterSign != null) {
 			mWaterSign.release();
 			mWaterSign = null;
@@ -252,62 +347,6 @@ public final class RenderHandler implements Runnable {
 			mEgl.release();
 			mEgl = null;
 		}
-		if (date != null) {
-			date = null;
-		}
-	}
-
-	/**
-	 * 添加时间水印
-	 * 原理：将文字转成图片，使用OpenGL将图片画到视频上
-	 * 实现方法：将时间水印所需的文字转化为图片（避免每次实时转换导致大量内存被消耗），如：2019-09-05 16:52:18  共16张图片。
-	 * 每张图片绑定一个纹理；获取当前时间切出单个字符，使用OpenGL将对应的字符纹理画上去。
-	 *
-	 * @param time
-	 * @param x
-	 * @param y    位于屏幕的（x,y）坐标点
-	 */
-	private void drawWaterSign(String time, int x, int y) {
-		if ("".equals(time)) {
-			return;
-		}
-		//画水印
-		GLES20.glViewport(x, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(0, 1))]);
-		GLES20.glViewport(x + 15, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(1, 2))]);
-		GLES20.glViewport(x + 15 * 2, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(2, 3))]);
-		GLES20.glViewport(x + 15 * 3, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(3, 4))]);
-		GLES20.glViewport(x + 15 * 4, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[10]); // -
-		GLES20.glViewport(x + 15 * 5, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(5, 6))]);
-		GLES20.glViewport(x + 15 * 6, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(6, 7))]);
-		GLES20.glViewport(x + 15 * 7, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[10]); // -
-		GLES20.glViewport(x + 15 * 8, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(8, 9))]);
-		GLES20.glViewport(x + 15 * 9, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(9, 10))]);
-		GLES20.glViewport(x + 15 * 11, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(11, 12))]);
-		GLES20.glViewport(x + 15 * 12, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(12, 13))]);
-		GLES20.glViewport(x + 15 * 13, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[11]); // :
-		GLES20.glViewport(x + 15 * 14, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(14, 15))]);
-		GLES20.glViewport(x + 15 * 15, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(15, 16))]);
-		GLES20.glViewport(x + 15 * 16, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[11]); // :
-		GLES20.glViewport(x + 15 * 17, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(17, 18))]);
-		GLES20.glViewport(x + 15 * 18, y, 220, 60);
-		mWaterSign.drawFrame(mWaterTexId[Integer.parseInt(time.substring(18, 19))]);
 	}
 
 }
@@ -0,0 +1,84 @@
+package com.pwithe.jycamera.drawer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.pwithe.jycamera.utils.EasyGlUtils;
+
+/**
+ * 预览、录像、拍照共用的帧纹理
+ * 相机的外部纹理只采样一次画到FBO上的2D纹理，水印也在这里合成；
+ * 预览和编码线程之后只需各自把这张2D纹理贴一遍。
+ * 编码线程通过共享上下文异步读取纹理，所以轮流使用几张纹理，避免正在编码的那张被下一帧覆盖。
+ * 所有方法都必须在GL线程调用。
+ */
+public class SharedFrameTexture {
+	private static final String TAG = "SharedFrameTexture";
+
+	private static final int TEXTURE_NUM = 3;
+
+	private final int[] mFrameBuffer = new int[1];
+	private final int[] mTextures = new int[TEXTURE_NUM];
+	private int mWidth, mHeight;
+	private int mIndex;
+
+	/**
+	 * 按视频尺寸创建（或重建）FBO和纹理
+	 */
+	public void setup(final int width, final int height) {
+		if ((width == mWidth) && (height == mHeight)) return;
+		release();
+		Log.v(TAG, String.format("setup:(%d,%d)", width, height));
+		GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
+		EasyGlUtils.genTexturesWithParameter(TEXTURE_NUM, mTextures, 0, GLES20.GL_RGBA, width, height);
+		mWidth = width;
+		mHeight = height;
+		mIndex = 0;
+	}
+
+	public boolean isReady() {
+		return mWidth > 0;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * 切换到下一张纹理并开始向它绘制
+	 */
+	public void begin() {
+		mIndex = (mIndex + 1) % TEXTURE_NUM;
+		EasyGlUtils.bindFrameTexture(mFrameBuffer[0], mTextures[mIndex]);
+		GLES20.glViewport(0, 0, mWidth, mHeight);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+	}
+
+	/**
+	 * 结束绘制，切回默认帧缓冲
+	 * 提交命令，使共享上下文的编码线程能读到完整的一帧
+	 */
+	public void end() {
+		EasyGlUtils.unBindFrameBuffer();
+		GLES20.glFlush();
+	}
+
+	/**
+	 * @return 最近一次绘制完成的纹理
+	 */
+	public int getTexture() {
+		return mTextures[mIndex];
+	}
+
+	public void release() {
+		if (mWidth > 0) {
+			GLES20.glDeleteTextures(TEXTURE_NUM, mTextures, 0);
+			GLES20.glDeleteFramebuffers(1, mFrameBuffer, 0);
+			mWidth = mHeight = 0;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.pwithe.jycamera.drawer;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Environment;
+import android.util.Log;
+
+import com.pwithe.jycamera.record.MediaMuxerWrapper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 拍照时读取当前帧像素
+ * 实现原理：GLES3可用时，请求拍照的那一帧把glReadPixels发到PBO（异步，不等待GPU），
+ * 下一帧再映射PBO把像素拷贝到复用的直接缓冲区，GL线程最多只多占用一帧的拷贝时间；
+ * GLES3不可用时退回同步glReadPixels，但同样读到复用的缓冲区。
+ * glReadPixels读出的RGBA字节序与Bitmap.Config.ARGB_8888的内存布局一致，不需要逐像素交换通道，
+ * 只需上下翻转行；翻转、JPEG压缩和写文件都在后台线程完成。
+ */
+public class SnapshotReader {
+	private static final String TAG = "SnapshotReader";
+
+	private static final int PBO_NUM = 2;
+	private static final int BYTES_PER_PIXEL = 4;
+
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+	/**
+	 * 压缩完成后归还的缓冲区，避免每次拍照都分配w*h*4的内存
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> mBufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final int[] mPbo = new int[PBO_NUM];
+	private boolean mIsInitialized;
+	private boolean mUsePbo;
+	private int mPboWidth, mPboHeight;
+	private int mPboIndex;
+	/**
+	 * 已发起读取、等待下一帧映射的PBO序号，-1表示没有
+	 */
+	private int mPendingPbo = -1;
+	private volatile boolean mRequest;
+
+	/**
+	 * 请求拍照，在下一次{@link #onFrameDrawn(int, int)}时读取像素
+	 */
+	public void request() {
+		mRequest = true;
+	}
+
+	/**
+	 * 每一帧绘制完成后调用，必须在GL线程
+	 * @param width  当前绘制区域宽
+	 * @param height 当前绘制区域高
+	 */
+	public void onFrameDrawn(final int width, final int height) {
+		if (!mIsInitialized) {
+			mIsInitialized = true;
+			mUsePbo = isPboSupported();
+			Log.i(TAG, "use pbo:" + mUsePbo);
+		}
+		if (mPendingPbo >= 0) {
+			// 上一帧发起的读取已经完成，映射出来交给后台线程
+			finishPboRead();
+		}
+		if (!mRequest || (width <= 0) || (height <= 0)) return;
+		mRequest = false;
+		if (mUsePbo) {
+			startPboRead(width, height);
+		} else {
+			final ByteBuffer buffer = obtainBuffer(width * height * BYTES_PER_PIXEL);
+			GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+			submit(buffer, width, height);
+		}
+	}
+
+	/**
+	 * 释放PBO，必须在GL线程
+	 */
+	public void release() {
+		if (mPboWidth > 0) {
+			GLES20.glDeleteBuffers(PBO_NUM, mPbo, 0);
+			mPboWidth = mPboHeight = 0;
+		}
+		mPendingPbo = -1;
+		mExecutor.shutdown();
+		mBufferPool.clear();
+	}
+
+	/**
+	 * PBO需要GLES3，glReadPixels写入PBO偏移量的java接口需要API24
+	 */
+	private static boolean isPboSupported() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return false;
+		final String version = GLES20.glGetString(GLES20.GL_VERSION);
+		// 格式为 "OpenGL ES <major>.<minor> <vendor-specific>"
+		if ((version == null) || !version.startsWith("OpenGL ES ")) return false;
+		final char major = version.length() > 10 ? version.charAt(10) : '0';
+		return (major >= '3') && (major <= '9');
+	}
+
+	private void startPboRead(final int width, final int height) {
+		if ((mPboWidth != width) || (mPboHeight != height)) {
+			if (mPboWidth > 0) {
+				GLES20.glDeleteBuffers(PBO_NUM, mPbo, 0);
+			}
+			GLES20.glGenBuffers(PBO_NUM, mPbo, 0);
+			for (int i = 0; i < PBO_NUM; i++) {
+				GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[i]);
+				GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER,
+					width * height * BYTES_PER_PIXEL, null, GLES30.GL_STREAM_READ);
+			}
+			GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+			mPboWidth = width;
+			mPboHeight = height;
+		}
+		GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[mPboIndex]);
+		// 目标是PBO时立即返回，由GPU异步完成拷贝
+		GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+		GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+		mPendingPbo = mPboIndex;
+		mPboIndex = (mPboIndex + 1) % PBO_NUM;
+	}
+
+	private void finishPboRead() {
+		final int size = mPboWidth * mPboHeight * BYTES_PER_PIXEL;
+		GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[mPendingPbo]);
+		final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+			GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+		if (mapped != null) {
+			final ByteBuffer buffer = obtainBuffer(size);
+			buffer.put(mapped);
+			buffer.flip();
+			GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+			submit(buffer, mPboWidth, mPboHeight);
+		} else {
+			Log.w(TAG, "glMapBufferRange failed:0x" + Integer.toHexString(GLES20.glGetError()));
+		}
+		GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+		mPendingPbo = -1;
+	}
+
+	private ByteBuffer obtainBuffer(final int size) {
+		ByteBuffer buffer;
+		while ((buffer = mBufferPool.poll()) != null) {
+			if (buffer.capacity() >= size) {
+				buffer.clear();
+				buffer.limit(size);
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+
+	private void submit(final ByteBuffer buffer, final int width, final int height) {
+		if (mExecutor.isShutdown()) return;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					savePicture(buffer, width, height);
+				} finally {
+					mBufferPool.offer(buffer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 后台线程：翻转、转成bitmap并保存为jpeg
+	 */
+	private static void savePicture(final ByteBuffer buffer, final int width, final int height) {
+		flipRows(buffer, width * BYTES_PER_PIXEL, height);
+		final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		buffer.position(0);
+		bitmap.copyPixelsFromBuffer(buffer);
+		final File file = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES, ".jpg");
+		if (file == null) {
+			Log.w(TAG, "no permission to write picture");
+			bitmap.recycle();
+			return;
+		}
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(file));
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+			Log.i(TAG, "picture saved:" + file);
+		} catch (final IOException e) {
+			Log.e(TAG, "savePicture:", e);
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (final IOException e) {
+					// ignore
+				}
+			}
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * glReadPixels从左下角开始读，原地交换行使图像正向
+	 */
+	private static void flipRows(final ByteBuffer buffer, final int stride, final int height) {
+		final byte[] top = new byte[stride];
+		final byte[] bottom = new byte[stride];
+		for (int i = 0, j = height - 1; i < j; i++, j--) {
+			buffer.position(i * stride);
+			buffer.get(top);
+			buffer.position(j * stride);
+			buffer.get(bottom);
+			buffer.position(j * stride);
+			buffer.put(top);
+			buffer.position(i * stride);
+			buffer.put(bottom);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.pwithe.jycamera.drawer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import com.pwithe.jycamera.utils.GlUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Calendar;
+
+/**
+ * 时间水印（yyyy-MM-dd HH:mm:ss）
+ * 实现原理：把水印用到的字符一次性画到同一张图集纹理上，整串时间拼成一个顶点数组，一次glDrawArrays画完；
+ * 只有显示的秒数变化时才重新生成顶点数据，其余帧只提交一次绘制。
+ * 构造、绘制和释放都必须在GL线程调用。
+ */
+public class TimestampWaterSign {
+	private static final String TAG = "TimestampWaterSign";
+
+	private static final String vss
+		= "attribute vec4 aPosition;\n"
+		+ "attribute vec2 aTextureCoord;\n"
+		+ "varying vec2 vTextureCoord;\n"
+		+ "void main() {\n"
+		+ "	gl_Position = aPosition;\n"
+		+ "	vTextureCoord = aTextureCoord;\n"
+		+ "}\n";
+	private static final String fss
+		= "precision mediump float;\n"
+		+ "varying vec2 vTextureCoord;\n"
+		+ "uniform sampler2D sTexture;\n"
+		+ "void main() {\n"
+		+ "	gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+		+ "}\n";
+
+	/**
+	 * 图集里的字符，顺序即格子序号
+	 */
+	private static final String GLYPHS = "0123456789-: ";
+	private static final int GLYPH_DASH = 10;
+	private static final int GLYPH_COLON = 11;
+	private static final int GLYPH_SPACE = 12;
+	/**
+	 * 图集每个格子的大小，字体大小和基线与{@link com.pwithe.jycamera.utils.BitmapUtil}一致
+	 */
+	private static final int CELL_WIDTH = 32;
+	private static final int CELL_HEIGHT = 60;
+	private static final float TEXT_SIZE = 30;
+	private static final float TEXT_BASELINE = 40;
+	/**
+	 * 屏幕上的字符宽高和字间距（与原来逐字绘制时的显示效果一致）
+	 */
+	private static final int GLYPH_WIDTH = 22;
+	private static final int GLYPH_HEIGHT = 60;
+	private static final int GLYPH_ADVANCE = 15;
+
+	/** yyyy-MM-dd HH:mm:ss */
+	private static final int TEXT_LENGTH = 19;
+	private static final int FLOAT_SZ = Float.SIZE / 8;
+	/** 每个顶点：x, y, s, t */
+	private static final int FLOATS_PER_VERTEX = 4;
+	private static final int VERTICES_PER_GLYPH = 6;
+	private static final int STRIDE = FLOATS_PER_VERTEX * FLOAT_SZ;
+
+	private final FloatBuffer mVertices;
+	private final int[] mGlyphs = new int[TEXT_LENGTH];
+	private final Calendar mCalendar = Calendar.getInstance();
+	private int hProgram;
+	private int maPositionLoc;
+	private int maTextureCoordLoc;
+	private int msTextureLoc;
+	private int mTexId;
+	private int mVertexCount;
+	private long mShownSecond = -1;
+	private int mViewWidth, mViewHeight, mX, mY;
+
+	public TimestampWaterSign() {
+		mVertices = ByteBuffer.allocateDirect(TEXT_LENGTH * VERTICES_PER_GLYPH * STRIDE)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		hProgram = GLDrawer2D.loadShader(vss, fss);
+		maPositionLoc = GLES20.glGetAttribLocation(hProgram, "aPosition");
+		maTextureCoordLoc = GLES20.glGetAttribLocation(hProgram, "aTextureCoord");
+		msTextureLoc = GLES20.glGetUniformLocation(hProgram, "sTexture");
+		mTexId = loadAtlas();
+	}
+
+	/**
+	 * 绘制当前时间
+	 * @param view_width  绘制表面宽
+	 * @param view_height 绘制表面高
+	 * @param x
+	 * @param y           位于屏幕的（x,y）坐标点（左下角为原点）
+	 */
+	public void draw(final int view_width, final int view_height, final int x, final int y) {
+		if ((hProgram < 0) || (view_width <= 0) || (view_height <= 0)) return;
+		final long now = System.currentTimeMillis();
+		final long second = now / 1000;
+		if ((second != mShownSecond) || (view_width != mViewWidth) || (view_height != mViewHeight)
+			|| (x != mX) || (y != mY)) {
+			mShownSecond = second;
+			mViewWidth = view_width;
+			mViewHeight = view_height;
+			mX = x;
+			mY = y;
+			updateGlyphs(now);
+			buildVertices();
+		}
+		GLES20.glViewport(0, 0, view_width, view_height);
+		GLES20.glUseProgram(hProgram);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexId);
+		GLES20.glUniform1i(msTextureLoc, 0);
+		mVertices.position(0);
+		GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, STRIDE, mVertices);
+		GLES20.glEnableVertexAttribArray(maPositionLoc);
+		mVertices.position(2);
+		GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, STRIDE, mVertices);
+		GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertexCount);
+		GLES20.glDisableVertexAttribArray(maPositionLoc);
+		GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+		GLES20.glUseProgram(0);
+	}
+
+	/**
+	 * @return 整串时间在屏幕上的大致宽度（像素）
+	 */
+	public static int getDrawWidth() {
+		return GLYPH_ADVANCE * (TEXT_LENGTH - 1) + GLYPH_WIDTH;
+	}
+
+	public static int getDrawHeight() {
+		return GLYPH_HEIGHT;
+	}
+
+	/**
+	 * terminatinng, this should be called in GL context
+	 */
+	public void release() {
+		if (hProgram >= 0)
+			GLES20.glDeleteProgram(hProgram);
+		hProgram = -1;
+		if (mTexId > 0)
+			WaterSignature.deleteTex(mTexId);
+		mTexId = 0;
+	}
+
+	/**
+	 * 把时间拆成图集格子序号，不生成字符串
+	 */
+	private void updateGlyphs(final long now) {
+		mCalendar.setTimeInMillis(now);
+		int i = putNumber(mCalendar.get(Calendar.YEAR), 4, 0);
+		mGlyphs[i++] = GLYPH_DASH;
+		i = putNumber(mCalendar.get(Calendar.MONTH) + 1, 2, i);
+		mGlyphs[i++] = GLYPH_DASH;
+		i = putNumber(mCalendar.get(Calendar.DAY_OF_MONTH), 2, i);
+		mGlyphs[i++] = GLYPH_SPACE;
+		i = putNumber(mCalendar.get(Calendar.HOUR_OF_DAY), 2, i);
+		mGlyphs[i++] = GLYPH_COLON;
+		i = putNumber(mCalendar.get(Calendar.MINUTE), 2, i);
+		mGlyphs[i++] = GLYPH_COLON;
+		putNumber(mCalendar.get(Calendar.SECOND), 2, i);
+	}
+
+	private int putNumber(int value, final int digits, final int offset) {
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			mGlyphs[i] = value % 10;
+			value /= 10;
+		}
+		return offset + digits;
+	}
+
+	/**
+	 * 生成整串文字的顶点（两个三角形一个字符），坐标直接换算成NDC
+	 */
+	private void buildVertices() {
+		final float sx = 2.0f / mViewWidth;
+		final float sy = 2.0f / mViewHeight;
+		final float cellS = 1.0f / GLYPHS.length();
+		final float bottom = mY * sy - 1.0f;
+		final float top = (mY + GLYPH_HEIGHT) * sy - 1.0f;
+		mVertices.clear();
+		int count = 0;
+		for (int i = 0; i < TEXT_LENGTH; i++) {
+			final int glyph = mGlyphs[i];
+			if (glyph == GLYPH_SPACE) continue;
+			final float left = (mX + GLYPH_ADVANCE * i) * sx - 1.0f;
+			final float right = (mX + GLYPH_ADVANCE * i + GLYPH_WIDTH) * sx - 1.0f;
+			final float s0 = glyph * cellS;
+			final float s1 = s0 + cellS;
+			// bitmap第一行对应t=0，所以底边取t=1
+			putVertex(left, bottom, s0, 1.0f);
+			putVertex(right, bottom, s1, 1.0f);
+			putVertex(left, top, s0, 0.0f);
+			putVertex(left, top, s0, 0.0f);
+			putVertex(right, bottom, s1, 1.0f);
+			putVertex(right, top, s1, 0.0f);
+			count += VERTICES_PER_GLYPH;
+		}
+		mVertices.flip();
+		mVertexCount = count;
+	}
+
+	private void putVertex(final float x, final float y, final float s, final float t) {
+		mVertices.put(x).put(y).put(s).put(t);
+	}
+
+	/**
+	 * 把所有字符画到一张bitmap上并生成纹理
+	 * @return texture ID
+	 */
+	private static int loadAtlas() {
+		final Bitmap bitmap = Bitmap.createBitmap(CELL_WIDTH * GLYPHS.length(), CELL_HEIGHT, Bitmap.Config.ARGB_8888);
+		final Canvas canvas = new Canvas(bitmap);
+		final Paint paint = new Paint();
+		paint.setColor(Color.WHITE);
+		paint.setTypeface(Typeface.create("宋体", Typeface.BOLD));
+		paint.setTextSize(TEXT_SIZE);
+		paint.setAntiAlias(true);
+		for (int i = 0; i < GLYPHS.length(); i++) {
+			canvas.drawText(GLYPHS, i, i + 1, i * CELL_WIDTH, TEXT_BASELINE, paint);
+		}
+		final int[] tex = new int[1];
+		GLES20.glGenTextures(1, tex, 0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tex[0]);
+		// 图集宽度不是2的幂，不能用mipmap和重复模式
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+		GlUtil.checkGlError(TAG + ":loadAtlas");
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+		bitmap.recycle();
+		return tex[0];
+	}
+}
@@ -0,0 +1,217 @@
+package com.pwithe.jycamera.record;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Adjust video bitrate while recording.
+ * Every second(on the I/O stage thread of PipelineScheduler) this looks at the muxer write queue(backlog and dropped samples) and the thermal state,
+ * lowers the bitrate quickly when overloaded and raises it slowly when healthy.
+ * When the overload lasts long, a smaller resolution is recommended for the next recording/segment,
+ * because the encoder size can not be changed while recording.
+ */
+public class BitrateController {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "BitrateController";
+
+	/**
+	 * thermal state, same values as PowerManager#THERMAL_STATUS_XXX(API 29)
+	 */
+	public static final int THERMAL_NONE = 0;
+	public static final int THERMAL_LIGHT = 1;
+	public static final int THERMAL_MODERATE = 2;
+	public static final int THERMAL_SEVERE = 3;
+	public static final int THERMAL_CRITICAL = 4;
+
+	private static final long INTERVAL_MS = 1000;
+	/**
+	 * resolution steps relative to the original size
+	 */
+	private static final float[] RESOLUTION_SCALES = { 1.0f, 0.75f, 0.5f };
+
+	public interface Listener {
+		/**
+		 * called on the I/O stage thread when overload lasted for Policy#overloadSecondsForResolution
+		 * @param scale recommended scale of width and height for the next recording/segment
+		 */
+		public void onResolutionStepDown(float scale);
+	}
+
+	/**
+	 * floor/ceiling and thresholds
+	 */
+	public static class Policy {
+		/** lower limit of bitrate [bps] */
+		public int minBitrate = 1000000;
+		/** upper limit of bitrate [bps], 0 means the initial bitrate of the encoder */
+		public int maxBitrate = 0;
+		/** multiplier applied when overloaded */
+		public float stepDown = 0.8f;
+		/** multiplier applied after healthy for #healthySecondsForStepUp */
+		public float stepUp = 1.1f;
+		public int healthySecondsForStepUp = 5;
+		/** samples waiting in the muxer write queue regarded as backlog */
+		public int maxQueueDepth = 15;
+		/** maximum write latency within an interval regarded as backlog [usec] */
+		public long maxLatencyUs = 500000;
+		/** thermal state regarded as overload */
+		public int thermalThreshold = THERMAL_MODERATE;
+		/** consecutive overloaded seconds before recommending a smaller resolution */
+		public int overloadSecondsForResolution = 30;
+	}
+
+	private final MediaVideoEncoder mEncoder;
+	private final MediaMuxerWrapper mMuxer;
+	private final Context mContext;
+	private final Policy mPolicy;
+	private final Listener mListener;
+	private Handler mHandler;
+	private int mMaxBitrate;
+	private long mLastDropped;
+	private int mOverloadSeconds, mHealthySeconds;
+	private volatile int mThermalStatus;
+	private volatile int mResolutionStep;
+	private Method mGetThermalStatus;
+
+	public BitrateController(final Context context, final MediaMuxerWrapper muxer, final MediaVideoEncoder encoder,
+		final Policy policy, final Listener listener) {
+
+		mContext = context.getApplicationContext();
+		mMuxer = muxer;
+		mEncoder = encoder;
+		mPolicy = policy != null ? policy : new Policy();
+		mListener = listener;
+		if (Build.VERSION.SDK_INT >= 29) {
+			try {
+				mGetThermalStatus = PowerManager.class.getMethod("getCurrentThermalStatus");
+			} catch (final NoSuchMethodException e) {
+				mGetThermalStatus = null;
+			}
+		}
+	}
+
+	/**
+	 * start monitoring, should be called after the encoder is prepared
+	 */
+	public synchronized void start() {
+		if (mHandler != null) return;
+		mMaxBitrate = mPolicy.maxBitrate > 0 ? mPolicy.maxBitrate : mEncoder.getBitrate();
+		mLastDropped = mMuxer.getDroppedSampleCount();
+		mOverloadSeconds = mHealthySeconds = 0;
+		// evaluation is cheap, runs on the shared I/O stage thread
+		mHandler = PipelineScheduler.getInstance().getHandler(PipelineScheduler.STAGE_IO);
+		mHandler.postDelayed(mEvaluateTask, INTERVAL_MS);
+	}
+
+	public synchronized void stop() {
+		if (mHandler == null) return;
+		mHandler.removeCallbacks(mEvaluateTask);
+		mHandler = null;
+	}
+
+	public int getThermalStatus() {
+		return mThermalStatus;
+	}
+
+	/**
+	 * @return recommended scale of width and height for the next recording/segment
+	 */
+	public float getRecommendedScale() {
+		return RESOLUTION_SCALES[mResolutionStep];
+	}
+
+	/**
+	 * scale the size keeping it a multiple of 16(required by most encoders)
+	 */
+	public static int scaleSize(final int size, final float scale) {
+		final int result = ((int)(size * scale) + 8) / 16 * 16;
+		return Math.max(16, result);
+	}
+
+	private final Runnable mEvaluateTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				evaluate();
+			} catch (final Exception e) {
+				Log.w(TAG, "evaluate:", e);
+			}
+			synchronized (BitrateController.this) {
+				if (mHandler != null) {
+					mHandler.postDelayed(this, INTERVAL_MS);
+				}
+			}
+		}
+	};
+
+	private void evaluate() {
+		mThermalStatus = readThermalStatus();
+		final long dropped = mMuxer.getDroppedSampleCount();
+		final long newDropped = dropped - mLastDropped;
+		mLastDropped = dropped;
+		final int depth = mMuxer.getWriteQueueDepth();
+		// the average since the start hides a stall that began recently
+		final long latency = mMuxer.takeMaxWriteLatencyUs();
+		final boolean overloaded = (newDropped > 0) || (depth > mPolicy.maxQueueDepth)
+			|| (latency > mPolicy.maxLatencyUs) || (mThermalStatus >= mPolicy.thermalThreshold);
+		final int current = mEncoder.getBitrate();
+		int target = current;
+		if (overloaded) {
+			mHealthySeconds = 0;
+			mOverloadSeconds++;
+			target = Math.max(mPolicy.minBitrate, (int)(current * mPolicy.stepDown));
+			if ((mOverloadSeconds >= mPolicy.overloadSecondsForResolution)
+				&& (mResolutionStep < RESOLUTION_SCALES.length - 1)) {
+				mOverloadSeconds = 0;
+				mResolutionStep++;
+				Log.i(TAG, "recommend resolution scale:" + getRecommendedScale());
+				if (mListener != null) {
+					mListener.onResolutionStepDown(getRecommendedScale());
+				}
+			}
+		} else {
+			mOverloadSeconds = 0;
+			if (++mHealthySeconds >= mPolicy.healthySecondsForStepUp) {
+				mHealthySeconds = 0;
+				target = Math.min(mMaxBitrate, (int)(current * mPolicy.stepUp));
+			}
+		}
+		if (DEBUG) Log.v(TAG, String.format("dropped=%d,depth=%d,latency=%d,thermal=%d,bitrate=%d->%d",
+			newDropped, depth, latency, mThermalStatus, current, target));
+		if (target != current) {
+			mEncoder.setBitrate(target);
+		}
+	}
+
+	/**
+	 * PowerManager#getCurrentThermalStatus on API 29 and later(called by reflection
+	 * because this project compiles with older SDK), otherwise estimate from battery temperature
+	 */
+	private int readThermalStatus() {
+		if (mGetThermalStatus != null) {
+			try {
+				final PowerManager pm = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
+				return (Integer)mGetThermalStatus.invoke(pm);
+			} catch (final Exception e) {
+				mGetThermalStatus = null;
+			}
+		}
+		final Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null) return THERMAL_NONE;
+		// tenths of a degree Celsius
+		final int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+		if (temperature >= 480) return THERMAL_CRITICAL;
+		if (temperature >= 450) return THERMAL_SEVERE;
+		if (temperature >= 420) return THERMAL_MODERATE;
+		if (temperature >= 390) return THERMAL_LIGHT;
+		return THERMAL_NONE;
+	}
+}
@@ -0,0 +1,430 @@
+package com.pwithe.jycamera.record;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lossless trim and concatenation of recorded clips(e.g. segments of MediaMuxerWrapper#setSegmentation).
+ * Samples are copied from MediaExtractor to the muxer without decoding, so editing takes only the time
+ * to read and write the files. A trimmed clip starts at the video key frame at or before the requested start
+ * and ends at the requested end(frames after a key frame only refer to earlier frames, there are no B frames).
+ * Concatenated clips should have the same codec configuration, they are joined back to back.
+ * Jobs run one by one on a background thread, callbacks are called on that thread.
+ */
+public class ClipEditor {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "ClipEditor";
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	/**
+	 * progress is reported when it advanced this much
+	 */
+	private static final float PROGRESS_STEP = 0.01f;
+	private static final String KEY_ROTATION = "rotation-degrees";
+
+	/**
+	 * called on the editor thread
+	 */
+	public interface Callback {
+		/**
+		 * @param progress 0 to 1
+		 */
+		public void onProgress(String outputPath, float progress);
+		public void onFinished(String outputPath);
+		/**
+		 * the output file is deleted. e is CancellationException if the job was cancelled
+		 */
+		public void onError(String outputPath, Exception e);
+	}
+
+	/**
+	 * a range of a recorded file
+	 */
+	public static final class Clip {
+		public final String path;
+		public final long startUs;
+		public final long endUs;
+
+		/**
+		 * the whole file
+		 */
+		public Clip(final String path) {
+			this(path, 0, Long.MAX_VALUE);
+		}
+
+		/**
+		 * @param startUs moved back to the preceding video key frame
+		 * @param endUs   Long.MAX_VALUE for the end of the file
+		 */
+		public Clip(final String path, final long startUs, final long endUs) {
+			if ((startUs < 0) || (endUs <= startUs))
+				throw new IllegalArgumentException("invalid range:" + startUs + "-" + endUs);
+			this.path = path;
+			this.startUs = startUs;
+			this.endUs = endUs;
+		}
+	}
+
+	/**
+	 * an opened clip, the first video and audio tracks are used
+	 */
+	private static final class Source {
+		private final Clip clip;
+		private final MediaExtractor extractor = new MediaExtractor();
+		private int videoTrack = -1, audioTrack = -1;
+		private MediaFormat videoFormat, audioFormat;
+		private long durationUs;
+
+		private Source(final Clip clip) throws IOException {
+			this.clip = clip;
+			try {
+				extractor.setDataSource(clip.path);
+				for (int i = 0; i < extractor.getTrackCount(); i++) {
+					final MediaFormat format = extractor.getTrackFormat(i);
+					final String mime = format.getString(MediaFormat.KEY_MIME);
+					if ((videoTrack < 0) && (mime != null) && mime.startsWith("video/")) {
+						videoTrack = i;
+						videoFormat = format;
+					} else if ((audioTrack < 0) && (mime != null) && mime.startsWith("audio/")) {
+						audioTrack = i;
+						audioFormat = format;
+					} else {
+						continue;
+					}
+					if (format.containsKey(MediaFormat.KEY_DURATION)) {
+						durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+					}
+				}
+			} catch (final IOException e) {
+				extractor.release();
+				throw e;
+			}
+			if ((videoTrack < 0) && (audioTrack < 0)) {
+				extractor.release();
+				throw new IOException("no audio/video track:" + clip.path);
+			}
+		}
+
+		/**
+		 * @return duration of the range that will be copied
+		 */
+		private long getRangeUs() {
+			return Math.max(0, Math.min(clip.endUs, durationUs) - clip.startUs);
+		}
+
+		private void release() {
+			extractor.release();
+		}
+	}
+
+	private final ExecutorService mExecutor;
+	/**
+	 * incremented by #cancelAll, jobs submitted before that stop
+	 */
+	private final AtomicInteger mGeneration = new AtomicInteger();
+	private volatile boolean mFragmented;
+	/**
+	 * reused for every sample, only accessed on the editor thread
+	 */
+	private ByteBuffer mBuffer;
+
+	public ClipEditor() {
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(r, TAG);
+			}
+		});
+	}
+
+	/**
+	 * write FragmentedMp4Writer output(H.264/AAC only, otherwise MediaMuxer is used) instead of MediaMuxer
+	 */
+	public void setFragmented(final boolean fragmented) {
+		mFragmented = fragmented;
+	}
+
+	public void trim(final String inputPath, final long startUs, final long endUs,
+		final String outputPath, final Callback callback) {
+
+		edit(Collections.singletonList(new Clip(inputPath, startUs, endUs)), outputPath, callback);
+	}
+
+	/**
+	 * join whole files, e.g. segments of one recording in order
+	 */
+	public void concat(final List<String> inputPaths, final String outputPath, final Callback callback) {
+		final List<Clip> clips = new ArrayList<Clip>(inputPaths.size());
+		for (final String path: inputPaths) {
+			clips.add(new Clip(path));
+		}
+		edit(clips, outputPath, callback);
+	}
+
+	/**
+	 * join ranges of files into outputPath, queued after the jobs already submitted
+	 */
+	public void edit(final List<Clip> clips, final String outputPath, final Callback callback) {
+		if (clips.isEmpty())
+			throw new IllegalArgumentException("no clips");
+		final List<Clip> copy = new ArrayList<Clip>(clips);
+		final int generation = mGeneration.get();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_IO, null);
+				try {
+					process(copy, outputPath, callback, generation);
+				} finally {
+					PipelineScheduler.getInstance().unregisterCurrentThread();
+				}
+			}
+		});
+	}
+
+	/**
+	 * cancel the running job and the queued jobs
+	 */
+	public void cancelAll() {
+		mGeneration.incrementAndGet();
+	}
+
+	public void release() {
+		cancelAll();
+		mExecutor.shutdown();
+	}
+
+//********************************************************************************
+	private void process(final List<Clip> clips, final String outputPath,
+		final Callback callback, final int generation) {
+
+		final long startNs = System.nanoTime();
+		final List<Source> sources = new ArrayList<Source>(clips.size());
+		MuxerWriter.SampleMuxer muxer = null;
+		try {
+			long totalUs = 0;
+			for (final Clip clip: clips) {
+				final Source source = new Source(clip);
+				sources.add(source);
+				checkCompatible(sources.get(0), source);
+				totalUs += source.getRangeUs();
+			}
+			final Source first = sources.get(0);
+			final int[] outputTracks = new int[2];
+			muxer = createMuxer(outputPath, first, outputTracks);
+			long offsetUs = 0, doneUs = 0;
+			float reported = -PROGRESS_STEP;
+			for (final Source source: sources) {
+				final Clip clip = source.clip;
+				final MediaExtractor extractor = source.extractor;
+				final long baseUs = seekToStart(source);
+				final long endUs = Math.min(clip.endUs, source.durationUs > 0 ? source.durationUs : Long.MAX_VALUE);
+				// last output time and sample interval of video/audio
+				final long[] lastUs = { -1, -1 };
+				final long[] intervalUs = { 0, 0 };
+				final boolean[] isDone = { source.videoTrack < 0, source.audioTrack < 0 };
+				for (;;) {
+					if (generation != mGeneration.get())
+						throw new CancellationException("cancelled");
+					final int track = extractor.getSampleTrackIndex();
+					if ((track < 0) || (isDone[0] && isDone[1])) break;
+					final int ix = track == source.videoTrack ? 0 : 1;
+					final long timeUs = extractor.getSampleTime();
+					if (timeUs >= clip.endUs) {
+						isDone[ix] = true;
+					} else if (!isDone[ix] && (timeUs >= baseUs)) {
+						final int size = readSample(extractor);
+						final long ptsUs = timeUs - baseUs + offsetUs;
+						if (lastUs[ix] >= 0) {
+							intervalUs[ix] = ptsUs - lastUs[ix];
+						}
+						lastUs[ix] = ptsUs;
+						muxer.writeSampleData(outputTracks[ix], mBuffer, 0, size, ptsUs,
+							(extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0);
+						final float progress = totalUs > 0
+							? Math.min(1f, (doneUs + timeUs - baseUs) / (float)totalUs) : 0;
+						if (progress - reported >= PROGRESS_STEP) {
+							reported = progress;
+							callback.onProgress(outputPath, progress);
+						}
+					}
+					extractor.advance();
+				}
+				// the next clip starts after the last sample of this clip
+				for (int i = 0; i < 2; i++) {
+					if (lastUs[i] >= 0) {
+						offsetUs = Math.max(offsetUs, lastUs[i] + Math.max(intervalUs[i], 1));
+					}
+				}
+				doneUs += Math.max(0, endUs - baseUs);
+				if (DEBUG) Log.v(TAG, "clip done:" + clip.path + ",offset=" + offsetUs);
+			}
+			muxer.stop();
+			muxer.release();
+			muxer = null;
+			Log.i(TAG, "finished:" + outputPath + "," + new File(outputPath).length() + " bytes,"
+				+ (System.nanoTime() - startNs) / 1000000L + " ms");
+			callback.onProgress(outputPath, 1f);
+			callback.onFinished(outputPath);
+		} catch (final Exception e) {
+			Log.w(TAG, "failed:" + outputPath, e);
+			if (muxer != null) {
+				try {
+					muxer.release();
+				} catch (final Exception e1) {
+					// ignore
+				}
+			}
+			new File(outputPath).delete();
+			callback.onError(outputPath, e);
+		} finally {
+			for (final Source source: sources) {
+				source.release();
+			}
+		}
+	}
+
+	/**
+	 * select the tracks and move to the video key frame at or before the start
+	 * @return time of that key frame, the base of this clip
+	 */
+	private static long seekToStart(final Source source) {
+		final MediaExtractor extractor = source.extractor;
+		long baseUs = source.clip.startUs;
+		if (source.videoTrack >= 0) {
+			extractor.selectTrack(source.videoTrack);
+			extractor.seekTo(source.clip.startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+			final long keyUs = extractor.getSampleTime();
+			if (keyUs >= 0) {
+				baseUs = keyUs;
+			}
+		}
+		if (source.audioTrack >= 0) {
+			extractor.selectTrack(source.audioTrack);
+		}
+		// audio samples before the key frame are skipped
+		extractor.seekTo(baseUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+		return baseUs;
+	}
+
+	/**
+	 * read the current sample into mBuffer, grows it if the sample does not fit
+	 * @return size of the sample
+	 */
+	private int readSample(final MediaExtractor extractor) throws IOException {
+		for (;;) {
+			mBuffer.clear();
+			try {
+				final int size = extractor.readSampleData(mBuffer, 0);
+				if (size < 0)
+					throw new IOException("failed reading sample");
+				mBuffer.position(0);
+				mBuffer.limit(size);
+				return size;
+			} catch (final IllegalArgumentException e) {
+				// buffer too small
+				mBuffer = ByteBuffer.allocateDirect(mBuffer.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * @param outputTracks output track index of video and audio
+	 */
+	private MuxerWriter.SampleMuxer createMuxer(final String outputPath, final Source source,
+		final int[] outputTracks) throws IOException {
+
+		int bufferSize = DEFAULT_BUFFER_SIZE;
+		final MediaFormat[] formats = { source.videoFormat, source.audioFormat };
+		for (final MediaFormat format: formats) {
+			if ((format != null) && format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+				bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+			}
+		}
+		if ((mBuffer == null) || (mBuffer.capacity() < bufferSize)) {
+			mBuffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		final int rotation = (source.videoFormat != null) && source.videoFormat.containsKey(KEY_ROTATION)
+			? source.videoFormat.getInteger(KEY_ROTATION) : 0;
+		if (mFragmented) {
+			final FragmentedMp4Writer writer = new FragmentedMp4Writer(outputPath);
+			try {
+				writer.setOrientationHint(rotation);
+				for (int i = 0; i < 2; i++) {
+					if (formats[i] != null) {
+						outputTracks[i] = MediaMuxerWrapper.addFragmentedTrack(writer, formats[i]);
+					}
+				}
+				writer.start();
+				return MuxerWriter.wrap(writer);
+			} catch (final IllegalArgumentException e) {
+				Log.w(TAG, "use MediaMuxer:" + e.getMessage());
+				writer.release();
+			} catch (final IOException e) {
+				writer.release();
+				throw e;
+			}
+		}
+		final MediaMuxer muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		try {
+			muxer.setOrientationHint(rotation);
+			for (int i = 0; i < 2; i++) {
+				if (formats[i] != null) {
+					outputTracks[i] = muxer.addTrack(formats[i]);
+				}
+			}
+			muxer.start();
+		} catch (final RuntimeException e) {
+			muxer.release();
+			throw e;
+		}
+		return MediaMuxerWrapper.wrap(muxer);
+	}
+
+	/**
+	 * @throws IllegalArgumentException the clip can not be joined to the first clip without re-encoding
+	 */
+	private static void checkCompatible(final Source first, final Source source) {
+		if (first == source) return;
+		if (((first.videoFormat == null) != (source.videoFormat == null))
+			|| ((first.audioFormat == null) != (source.audioFormat == null)))
+			throw new IllegalArgumentException("different tracks:" + source.clip.path);
+		if ((first.videoFormat != null) && (!sameValue(first.videoFormat, source.videoFormat, MediaFormat.KEY_MIME)
+			|| !sameValue(first.videoFormat, source.videoFormat, MediaFormat.KEY_WIDTH)
+			|| !sameValue(first.videoFormat, source.videoFormat, MediaFormat.KEY_HEIGHT)
+			|| !sameValue(first.videoFormat, source.videoFormat, "csd-0")
+			|| !sameValue(first.videoFormat, source.videoFormat, "csd-1")))
+			throw new IllegalArgumentException("different video format:" + source.clip.path);
+		if ((first.audioFormat != null) && (!sameValue(first.audioFormat, source.audioFormat, MediaFormat.KEY_MIME)
+			|| !sameValue(first.audioFormat, source.audioFormat, MediaFormat.KEY_SAMPLE_RATE)
+			|| !sameValue(first.audioFormat, source.audioFormat, MediaFormat.KEY_CHANNEL_COUNT)
+			|| !sameValue(first.audioFormat, source.audioFormat, "csd-0")))
+			throw new IllegalArgumentException("different audio format:" + source.clip.path);
+	}
+
+	private static boolean sameValue(final MediaFormat a, final MediaFormat b, final String key) {
+		if (!a.containsKey(key) || !b.containsKey(key)) {
+			return a.containsKey(key) == b.containsKey(key);
+		}
+		if (key.startsWith("csd-")) {
+			return a.getByteBuffer(key).equals(b.getByteBuffer(key));
+		} else if (MediaFormat.KEY_MIME.equals(key)) {
+			return a.getString(key).equals(b.getString(key));
+		}
+		return a.getInteger(key) == b.getInteger(key);
+	}
+}
@@ -0,0 +1,417 @@
+package com.pwithe.jycamera.record;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of encoder capabilities.
+ * MediaCodecList is scanned only once per device and build(Build.FINGERPRINT),
+ * the result is saved to a small binary file and loaded on later launches,
+ * so starting a recording never touches MediaCodecList.
+ * Hardware encoders are listed before software ones.
+ */
+public final class CodecCapabilityCache {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "CodecCapabilityCache";
+
+	private static final String FILE_NAME = "codec_caps.bin";
+	private static final int MAGIC = 0x43434150;	// "CCAP"
+	private static final int VERSION = 1;
+	/**
+	 * maximum time to wait for the first probing
+	 */
+	private static final long INIT_TIMEOUT_MS = 3000;
+
+	/** bitrate modes, bit mask of 1 << MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_XXX */
+	public static final int BITRATE_MODE_CQ = 1;
+	public static final int BITRATE_MODE_VBR = 1 << 1;
+	public static final int BITRATE_MODE_CBR = 1 << 2;
+
+	/**
+	 * typical sizes checked by VideoCapabilities#isSizeSupported on probing
+	 */
+	private static final int[][] PROBE_SIZES = {
+		{ 640, 480 }, { 720, 480 }, { 1280, 720 }, { 1920, 1080 }, { 2560, 1440 }, { 3840, 2160 },
+	};
+
+	public static final class CodecEntry {
+		public final String name;
+		public final String mime;
+		public final boolean isHardware;
+		public final int[] colorFormats;
+		public final int[] profiles;
+		public final int[] levels;
+		/** 0 if unknown(API < 21) */
+		public final int maxWidth, maxHeight;
+		public final int widthAlignment, heightAlignment;
+		/** bitrate range [bps], 0 if unknown */
+		public final int minBitrate, maxBitrate;
+		/** bit mask of BITRATE_MODE_XXX, 0 if unknown */
+		public final int bitrateModes;
+		/** bit mask of supported PROBE_SIZES(landscape and portrait), -1 if unknown */
+		private final int probedSizes;
+
+		private CodecEntry(final String name, final String mime, final boolean isHardware,
+			final int[] colorFormats, final int[] profiles, final int[] levels,
+			final int maxWidth, final int maxHeight, final int widthAlignment, final int heightAlignment,
+			final int minBitrate, final int maxBitrate, final int bitrateModes, final int probedSizes) {
+
+			this.name = name;
+			this.mime = mime;
+			this.isHardware = isHardware;
+			this.colorFormats = colorFormats;
+			this.profiles = profiles;
+			this.levels = levels;
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.widthAlignment = widthAlignment;
+			this.heightAlignment = heightAlignment;
+			this.minBitrate = minBitrate;
+			this.maxBitrate = maxBitrate;
+			this.bitrateModes = bitrateModes;
+			this.probedSizes = probedSizes;
+		}
+
+		public boolean isSurfaceInputSupported() {
+			return hasColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+		}
+
+		public boolean hasColorFormat(final int colorFormat) {
+			for (final int format: colorFormats) {
+				if (format == colorFormat) return true;
+			}
+			return false;
+		}
+
+		public boolean hasProfile(final int profile) {
+			for (final int p: profiles) {
+				if (p == profile) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if the encoder can encode this size(as far as the cached capabilities tell)
+		 */
+		public boolean isSizeSupported(final int width, final int height) {
+			for (int i = 0; i < PROBE_SIZES.length; i++) {
+				final int w = PROBE_SIZES[i][0], h = PROBE_SIZES[i][1];
+				if ((probedSizes >= 0) && (((w == width) && (h == height)) || ((h == width) && (w == height)))) {
+					final int bit = (w == width) ? (1 << (i * 2)) : (1 << (i * 2 + 1));
+					return (probedSizes & bit) != 0;
+				}
+			}
+			if (maxWidth <= 0) return true;	// unknown
+			return (width <= Math.max(maxWidth, maxHeight)) && (height <= Math.max(maxWidth, maxHeight))
+				&& (width * height <= maxWidth * maxHeight)
+				&& (widthAlignment <= 0 || width % widthAlignment == 0)
+				&& (heightAlignment <= 0 || height % heightAlignment == 0);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s(%s,hw=%b,max=%dx%d,bitrate=%d-%d,modes=%d)",
+				name, mime, isHardware, maxWidth, maxHeight, minBitrate, maxBitrate, bitrateModes);
+		}
+	}
+
+	private static CodecCapabilityCache sInstance;
+	private static volatile boolean sInitStarted;
+	private static final CountDownLatch sReady = new CountDownLatch(1);
+
+	private final List<CodecEntry> mEncoders;
+
+	private CodecCapabilityCache(final List<CodecEntry> encoders) {
+		mEncoders = Collections.unmodifiableList(encoders);
+	}
+
+	/**
+	 * load the cache or probe codecs on a background thread,
+	 * should be called once from Application#onCreate
+	 */
+	public static void init(final Context context) {
+		final File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+		sInitStarted = true;
+		PipelineScheduler.getInstance().post(PipelineScheduler.STAGE_IO, new Runnable() {
+			@Override
+			public void run() {
+				setInstance(loadOrProbe(file));
+			}
+		});
+	}
+
+	/**
+	 * @return the registry, waits for #init to finish(and probes on the caller thread if #init was never called)
+	 */
+	public static CodecCapabilityCache getInstance() {
+		if (sInitStarted) {
+			try {
+				if (!sReady.await(INIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					Log.w(TAG, "init timeout");
+				}
+			} catch (final InterruptedException e) {
+				// fall through
+			}
+		}
+		synchronized (CodecCapabilityCache.class) {
+			if (sInstance == null) {
+				sInstance = new CodecCapabilityCache(probe());
+				sReady.countDown();
+			}
+			return sInstance;
+		}
+	}
+
+	private static synchronized void setInstance(final CodecCapabilityCache instance) {
+		if (sInstance == null) {
+			sInstance = instance;
+		}
+		sReady.countDown();
+	}
+
+	/**
+	 * @return all encoders of the MIME type, hardware encoders first
+	 */
+	public List<CodecEntry> getEncoders(final String mime) {
+		final List<CodecEntry> result = new ArrayList<CodecEntry>();
+		for (final CodecEntry entry: mEncoders) {
+			if (entry.mime.equalsIgnoreCase(mime)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param mime
+	 * @param surfaceInput true if the encoder should accept Surface input
+	 * @return the first(hardware preferred) encoder matched, null if nothing
+	 */
+	public CodecEntry findEncoder(final String mime, final boolean surfaceInput) {
+		return findEncoder(mime, surfaceInput, 0, 0);
+	}
+
+	/**
+	 * @param width  0 for any size
+	 * @param height 0 for any size
+	 * @return the first(hardware preferred) encoder matched, null if nothing
+	 */
+	public CodecEntry findEncoder(final String mime, final boolean surfaceInput, final int width, final int height) {
+		for (final CodecEntry entry: mEncoders) {
+			if (!entry.mime.equalsIgnoreCase(mime)) continue;
+			if (surfaceInput && !entry.isSurfaceInputSupported()) continue;
+			if ((width > 0) && (height > 0) && !entry.isSizeSupported(width, height)) continue;
+			return entry;
+		}
+		return null;
+	}
+
+//********************************************************************************
+//********************************************************************************
+	private static CodecCapabilityCache loadOrProbe(final File file) {
+		final long start = SystemClock.elapsedRealtime();
+		List<CodecEntry> encoders = null;
+		try {
+			encoders = load(file);
+		} catch (final IOException e) {
+			if (DEBUG) Log.v(TAG, "load:", e);
+		}
+		if (encoders != null) {
+			Log.i(TAG, "loaded " + encoders.size() + " encoders in " + (SystemClock.elapsedRealtime() - start) + "ms");
+		} else {
+			encoders = probe();
+			Log.i(TAG, "probed " + encoders.size() + " encoders in " + (SystemClock.elapsedRealtime() - start) + "ms");
+			try {
+				save(file, encoders);
+			} catch (final IOException e) {
+				Log.w(TAG, "save:", e);
+			}
+		}
+		return new CodecCapabilityCache(encoders);
+	}
+
+	/**
+	 * @return null if the file does not exist or was written by another build
+	 */
+	private static List<CodecEntry> load(final File file) throws IOException {
+		if (!file.exists()) return null;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+				|| !Build.FINGERPRINT.equals(in.readUTF())) {
+				return null;
+			}
+			final int n = in.readInt();
+			final List<CodecEntry> result = new ArrayList<CodecEntry>(n);
+			for (int i = 0; i < n; i++) {
+				result.add(new CodecEntry(in.readUTF(), in.readUTF(), in.readBoolean(),
+					readIntArray(in), readIntArray(in), readIntArray(in),
+					in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+					in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void save(final File file, final List<CodecEntry> encoders) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(Build.FINGERPRINT);
+			out.writeInt(encoders.size());
+			for (final CodecEntry entry: encoders) {
+				out.writeUTF(entry.name);
+				out.writeUTF(entry.mime);
+				out.writeBoolean(entry.isHardware);
+				writeIntArray(out, entry.colorFormats);
+				writeIntArray(out, entry.profiles);
+				writeIntArray(out, entry.levels);
+				out.writeInt(entry.maxWidth);
+				out.writeInt(entry.maxHeight);
+				out.writeInt(entry.widthAlignment);
+				out.writeInt(entry.heightAlignment);
+				out.writeInt(entry.minBitrate);
+				out.writeInt(entry.maxBitrate);
+				out.writeInt(entry.bitrateModes);
+				out.writeInt(entry.probedSizes);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("failed to rename " + tmp);
+		}
+	}
+
+	private static int[] readIntArray(final DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		if ((n < 0) || (n > 4096)) throw new IOException("broken array length:" + n);
+		final int[] result = new int[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = in.readInt();
+		}
+		return result;
+	}
+
+	private static void writeIntArray(final DataOutputStream out, final int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (final int value: values) {
+			out.writeInt(value);
+		}
+	}
+
+	/**
+	 * scan MediaCodecList, this is slow(tens to hundreds of msec)
+	 */
+	private static List<CodecEntry> probe() {
+		final List<CodecEntry> hardware = new ArrayList<CodecEntry>();
+		final List<CodecEntry> software = new ArrayList<CodecEntry>();
+		final int numCodecs = MediaCodecList.getCodecCount();
+		for (int i = 0; i < numCodecs; i++) {
+			final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+			if (!codecInfo.isEncoder()) continue;
+			for (final String type: codecInfo.getSupportedTypes()) {
+				try {
+					final CodecEntry entry = probe(codecInfo, type);
+					if (DEBUG) Log.v(TAG, "probe:" + entry);
+					(entry.isHardware ? hardware : software).add(entry);
+				} catch (final RuntimeException e) {
+					// some codecs throw for unusual types
+					Log.w(TAG, "probe:" + codecInfo.getName() + "/" + type, e);
+				}
+			}
+		}
+		hardware.addAll(software);
+		return hardware;
+	}
+
+	private static CodecEntry probe(final MediaCodecInfo codecInfo, final String type) {
+		final MediaCodecInfo.CodecCapabilities caps = codecInfo.getCapabilitiesForType(type);
+		final int n = caps.profileLevels != null ? caps.profileLevels.length : 0;
+		final int[] profiles = new int[n];
+		final int[] levels = new int[n];
+		for (int i = 0; i < n; i++) {
+			profiles[i] = caps.profileLevels[i].profile;
+			levels[i] = caps.profileLevels[i].level;
+		}
+		final int[] colorFormats = caps.colorFormats != null ? caps.colorFormats : new int[0];
+		final int[] details = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+			? probeDetails(caps) : new int[] { 0, 0, 0, 0, 0, 0, 0, -1 };
+		return new CodecEntry(codecInfo.getName(), type, isHardware(codecInfo.getName()),
+			colorFormats, profiles, levels,
+			details[0], details[1], details[2], details[3], details[4], details[5], details[6], details[7]);
+	}
+
+	/**
+	 * @return maxWidth, maxHeight, widthAlignment, heightAlignment, minBitrate, maxBitrate, bitrateModes, probedSizes
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static int[] probeDetails(final MediaCodecInfo.CodecCapabilities caps) {
+		final int[] result = new int[] { 0, 0, 0, 0, 0, 0, 0, -1 };
+		final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+		if (video != null) {
+			result[0] = video.getSupportedWidths().getUpper();
+			result[1] = video.getSupportedHeights().getUpper();
+			result[2] = video.getWidthAlignment();
+			result[3] = video.getHeightAlignment();
+			final Range<Integer> bitrate = video.getBitrateRange();
+			result[4] = bitrate.getLower();
+			result[5] = bitrate.getUpper();
+			int sizes = 0;
+			for (int i = 0; i < PROBE_SIZES.length; i++) {
+				final int w = PROBE_SIZES[i][0], h = PROBE_SIZES[i][1];
+				if (video.isSizeSupported(w, h)) sizes |= 1 << (i * 2);
+				if (video.isSizeSupported(h, w)) sizes |= 1 << (i * 2 + 1);
+			}
+			result[7] = sizes;
+		} else {
+			final MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+			if (audio != null) {
+				result[4] = audio.getBitrateRange().getLower();
+				result[5] = audio.getBitrateRange().getUpper();
+			}
+		}
+		final MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+		if (encoder != null) {
+			int modes = 0;
+			if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ)) modes |= BITRATE_MODE_CQ;
+			if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) modes |= BITRATE_MODE_VBR;
+			if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) modes |= BITRATE_MODE_CBR;
+			result[6] = modes;
+		}
+		return result;
+	}
+
+	/**
+	 * MediaCodecInfo#isHardwareAccelerated is API 29, so guess from the name
+	 */
+	private static boolean isHardware(final String name) {
+		final String lower = name.toLowerCase();
+		return !(lower.startsWith("omx.google.") || lower.startsWith("c2.android.")
+			|| lower.startsWith("omx.ffmpeg.") || lower.contains(".sw.") || lower.endsWith(".sw"));
+	}
+}
@@ -0,0 +1,17 @@
+package com.pwithe.jycamera.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver of encoded samples(H.264/HEVC/AAC packets) from MediaMuxerWrapper.
+ * The data is only valid during the call, implementations copy what they keep.
+ */
+/*package*/ interface EncodedPacketSink {
+	/**
+	 * @param byteBuf    data is [offset, offset + size), position and limit may be changed by this call
+	 * @param isKeyFrame MediaCodec#BUFFER_FLAG_SYNC_FRAME
+	 * @return false if the sample is dropped
+	 */
+	public boolean write(int trackIndex, ByteBuffer byteBuf, int offset, int size,
+		long presentationTimeUs, boolean isKeyFrame);
+}
@@ -0,0 +1,763 @@
+package com.pwithe.jycamera.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fragmented MP4(ISO BMFF with moof/mdat fragments) writer for H.264 and AAC, written in plain Java.
+ * The init segment(ftyp + moov without samples) is written on #start and every fragment is complete
+ * when it reaches the file, so the file stays playable up to the last fragment even if the process dies
+ * before #stop. A new fragment starts at the first video key frame after the fragment duration
+ * (or after the duration when there is no video track).
+ * The file is written through a FileChannel in block aligned writes from one large buffer,
+ * and the file is extended in large steps and trimmed on #stop.
+ * Not thread safe, all methods should be called from one thread(or synchronized by the caller).
+ */
+public class FragmentedMp4Writer {
+
+	public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+
+	/**
+	 * file offset of every write is a multiple of this
+	 */
+	private static final int ALIGNMENT = 4096;
+	private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+	private static final long PREALLOCATE_BYTES = 8 * 1024 * 1024L;
+	/**
+	 * a fragment is written regardless of key frames when its data exceeds this
+	 */
+	private static final int MAX_FRAGMENT_BYTES = 32 * 1024 * 1024;
+	private static final int INITIAL_SAMPLE_CAPACITY = 64;
+	private static final int INITIAL_DATA_CAPACITY = 256 * 1024;
+	private static final int HEADER_CAPACITY = 64 * 1024;
+
+	private static final int MOVIE_TIMESCALE = 1000;
+	private static final int VIDEO_TIMESCALE = 90000;
+	private static final long DEFAULT_VIDEO_DURATION_US = 33333L;
+	private static final int AAC_FRAME_SAMPLES = 1024;
+
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;			// sample_depends_on=2(I frame)
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;		// sample_depends_on=1, sample_is_non_sync_sample
+	private static final int TRUN_FLAGS = 0x000701;	// data offset, sample duration, size and flags present
+	private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+	private static final class Track {
+		private final int id;
+		private final boolean isVideo;
+		private final int timescale;
+		private final int width, height;
+		private final byte[] sps, pps;
+		private final int sampleRate, channelCount;
+		private final byte[] audioSpecificConfig;
+		// samples of the current fragment
+		private ByteBuffer data = ByteBuffer.allocate(INITIAL_DATA_CAPACITY);
+		private int sampleCount;
+		private int[] sizes = new int[INITIAL_SAMPLE_CAPACITY];
+		private boolean[] isSync = new boolean[INITIAL_SAMPLE_CAPACITY];
+		private long[] ptsUs = new long[INITIAL_SAMPLE_CAPACITY];
+		private long startPtsUs = -1;
+		private long lastDurationUs;
+
+		private Track(final int id, final int width, final int height, final byte[] sps, final byte[] pps) {
+			this.id = id;
+			isVideo = true;
+			timescale = VIDEO_TIMESCALE;
+			this.width = width;
+			this.height = height;
+			this.sps = sps;
+			this.pps = pps;
+			sampleRate = channelCount = 0;
+			audioSpecificConfig = null;
+			lastDurationUs = DEFAULT_VIDEO_DURATION_US;
+		}
+
+		private Track(final int id, final int sampleRate, final int channelCount, final byte[] audioSpecificConfig) {
+			this.id = id;
+			isVideo = false;
+			timescale = sampleRate;
+			width = height = 0;
+			sps = pps = null;
+			this.sampleRate = sampleRate;
+			this.channelCount = channelCount;
+			this.audioSpecificConfig = audioSpecificConfig;
+			lastDurationUs = AAC_FRAME_SAMPLES * 1000000L / sampleRate;
+		}
+
+		private long toTicks(final long us) {
+			return us * timescale / 1000000L;
+		}
+
+		private void ensureCapacity(final int bytes) {
+			if (data.remaining() < bytes) {
+				final ByteBuffer newData = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + bytes));
+				data.flip();
+				newData.put(data);
+				data = newData;
+			}
+			if (sampleCount == sizes.length) {
+				final int n = sampleCount * 2;
+				final int[] newSizes = new int[n];
+				final boolean[] newSync = new boolean[n];
+				final long[] newPts = new long[n];
+				System.arraycopy(sizes, 0, newSizes, 0, sampleCount);
+				System.arraycopy(isSync, 0, newSync, 0, sampleCount);
+				System.arraycopy(ptsUs, 0, newPts, 0, sampleCount);
+				sizes = newSizes;
+				isSync = newSync;
+				ptsUs = newPts;
+			}
+		}
+	}
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final ByteBuffer mOutput = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+	/**
+	 * file offset of mOutput[0], always aligned
+	 */
+	private long mOutputFilePos;
+	private long mAllocatedBytes;
+	private ByteBuffer mHeader = ByteBuffer.allocate(HEADER_CAPACITY);
+	private final Track[] mTracks = new Track[2];
+	private int mTrackCount;
+	private boolean mHasVideo;
+	private int mOrientationHint;
+	private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+	private boolean mSyncEachFragment = true;
+	private boolean mIsStarted, mIsStopped;
+	private long mFragmentStartUs = -1;
+	private int mPendingBytes;
+	private int mSequenceNumber;
+	private final int[] mDataOffsetPos = new int[2];
+
+	public FragmentedMp4Writer(final String path) throws IOException {
+		this(new File(path));
+	}
+
+	public FragmentedMp4Writer(final File file) throws IOException {
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+	}
+
+	/**
+	 * @param durationUs minimum duration of a fragment, should be called before #start
+	 */
+	public void setFragmentDuration(final long durationUs) {
+		if (durationUs <= 0)
+			throw new IllegalArgumentException("invalid fragment duration:" + durationUs);
+		mFragmentDurationUs = durationUs;
+	}
+
+	/**
+	 * @param sync true to flush each fragment to the storage device(FileChannel#force),
+	 * false to rely on the page cache(survives the process, not a power loss)
+	 */
+	public void setSyncEachFragment(final boolean sync) {
+		mSyncEachFragment = sync;
+	}
+
+	/**
+	 * @param degrees 0, 90, 180 or 270, should be called before #start
+	 */
+	public void setOrientationHint(final int degrees) {
+		if ((degrees != 0) && (degrees != 90) && (degrees != 180) && (degrees != 270))
+			throw new IllegalArgumentException("unsupported orientation:" + degrees);
+		if (mIsStarted)
+			throw new IllegalStateException("already started");
+		mOrientationHint = degrees;
+	}
+
+	/**
+	 * @param sps SPS NAL unit, with or without the start code(csd-0 of MediaFormat)
+	 * @param pps PPS NAL unit, with or without the start code(csd-1 of MediaFormat)
+	 * @return track index
+	 */
+	public int addAvcTrack(final int width, final int height, final ByteBuffer sps, final ByteBuffer pps) {
+		final byte[] spsNal = stripStartCode(sps);
+		if (spsNal.length < 4)
+			throw new IllegalArgumentException("invalid SPS");
+		return addTrack(new Track(mTrackCount + 1, width, height, spsNal, stripStartCode(pps)));
+	}
+
+	/**
+	 * @param audioSpecificConfig csd-0 of MediaFormat
+	 * @return track index
+	 */
+	public int addAacTrack(final int sampleRate, final int channelCount, final ByteBuffer audioSpecificConfig) {
+		if ((sampleRate <= 0) || (sampleRate > 0xffff) || (channelCount <= 0))
+			throw new IllegalArgumentException("unsupported audio format:" + sampleRate + "Hz," + channelCount + "ch");
+		return addTrack(new Track(mTrackCount + 1, sampleRate, channelCount, toArray(audioSpecificConfig)));
+	}
+
+	private int addTrack(final Track track) {
+		if (mIsStarted)
+			throw new IllegalStateException("already started");
+		if (mTrackCount >= mTracks.length)
+			throw new IllegalStateException("too many tracks");
+		mTracks[mTrackCount] = track;
+		mHasVideo |= track.isVideo;
+		return mTrackCount++;
+	}
+
+	public int getTrackCount() {
+		return mTrackCount;
+	}
+
+	/**
+	 * write the init segment
+	 */
+	public void start() throws IOException {
+		if (mIsStarted)
+			throw new IllegalStateException("already started");
+		if (mTrackCount == 0)
+			throw new IllegalStateException("no track");
+		mIsStarted = true;
+		final ByteBuffer b = mHeader;
+		b.clear();
+		writeFtyp(b);
+		writeMoov(b);
+		b.flip();
+		output(b);
+		flushOutput();
+	}
+
+	/**
+	 * @param offset start of the sample in buf(H.264 samples in Annex B byte stream)
+	 * @param isSync true for a key frame, ignored for audio
+	 */
+	public void writeSampleData(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isSync) throws IOException {
+
+		if (!mIsStarted || mIsStopped)
+			throw new IllegalStateException("not started");
+		if ((trackIndex < 0) || (trackIndex >= mTrackCount))
+			throw new IllegalArgumentException("invalid track index:" + trackIndex);
+		if (size <= 0) return;
+		final Track track = mTracks[trackIndex];
+		final boolean sync = isSync || !track.isVideo;
+		if (mFragmentStartUs >= 0) {
+			final boolean boundary = mHasVideo ? track.isVideo && sync : true;
+			if ((boundary && (presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs))
+				|| (mPendingBytes + size > MAX_FRAGMENT_BYTES)) {
+				writeFragment(trackIndex, presentationTimeUs);
+			}
+		}
+		if (mFragmentStartUs < 0) {
+			mFragmentStartUs = presentationTimeUs;
+		}
+		if (track.startPtsUs < 0) {
+			track.startPtsUs = presentationTimeUs;
+		}
+		// NAL units are length prefixed in MP4, at most 1 byte more per NAL unit than the 3 byte start code
+		track.ensureCapacity(track.isVideo ? size + size / 3 + 4 : size);
+		final int start = track.data.position();
+		if (track.isVideo) {
+			copyAnnexBAsLengthPrefixed(buf, offset, size, track.data);
+		} else {
+			buf.limit(offset + size);
+			buf.position(offset);
+			track.data.put(buf);
+		}
+		final int n = track.sampleCount++;
+		track.sizes[n] = track.data.position() - start;
+		track.isSync[n] = sync;
+		track.ptsUs[n] = presentationTimeUs;
+		mPendingBytes += track.sizes[n];
+	}
+
+	/**
+	 * write the last fragment and trim the preallocated space
+	 */
+	public void stop() throws IOException {
+		if (!mIsStarted || mIsStopped) return;
+		mIsStopped = true;
+		if (mPendingBytes > 0) {
+			writeFragment(-1, 0);
+		}
+		final long length = mOutputFilePos + mOutput.position();
+		flushOutput();
+		mFile.setLength(length);
+		if (mSyncEachFragment) {
+			mChannel.force(true);
+		}
+	}
+
+	public void release() {
+		try {
+			mFile.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * @return number of fragments written
+	 */
+	public int getFragmentCount() {
+		return mSequenceNumber;
+	}
+
+	/**
+	 * @return bytes written(or buffered to write) to the file
+	 */
+	public long getWrittenBytes() {
+		return mOutputFilePos + mOutput.position();
+	}
+
+//********************************************************************************
+	/**
+	 * @param nextTrack  track of the sample that starts the next fragment, -1 if none
+	 * @param nextPtsUs  presentation time of that sample, used for the duration of the last sample of its track
+	 */
+	private void writeFragment(final int nextTrack, final long nextPtsUs) throws IOException {
+		// size the header for all tracks before writing, the boxes are written through b
+		int headerBytes = 64;
+		for (int i = 0; i < mTrackCount; i++) {
+			headerBytes += mTracks[i].sampleCount * 12 + 256;
+		}
+		if (mHeader.capacity() < headerBytes) {
+			mHeader = ByteBuffer.allocate(Math.max(mHeader.capacity() * 2, headerBytes));
+		}
+		final ByteBuffer b = mHeader;
+		b.clear();
+		final int moof = beginBox(b, "moof");
+		final int mfhd = beginFullBox(b, "mfhd", 0, 0);
+		b.putInt(++mSequenceNumber);
+		endBox(b, mfhd);
+		for (int i = 0; i < mTrackCount; i++) {
+			final Track track = mTracks[i];
+			mDataOffsetPos[i] = -1;
+			if (track.sampleCount == 0) continue;
+			final int n = track.sampleCount;
+			final int traf = beginBox(b, "traf");
+			final int tfhd = beginFullBox(b, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+			b.putInt(track.id);
+			endBox(b, tfhd);
+			final int tfdt = beginFullBox(b, "tfdt", 1, 0);
+			final long baseTicks = track.toTicks(track.ptsUs[0] - track.startPtsUs);
+			b.putLong(baseTicks);
+			endBox(b, tfdt);
+			final int trun = beginFullBox(b, "trun", 0, TRUN_FLAGS);
+			b.putInt(n);
+			mDataOffsetPos[i] = b.position();
+			b.putInt(0);
+			long prevTicks = baseTicks;
+			for (int j = 0; j < n; j++) {
+				final long endUs;
+				if (j + 1 < n) {
+					endUs = track.ptsUs[j + 1];
+				} else if ((i == nextTrack) && (nextPtsUs > track.ptsUs[j])) {
+					endUs = nextPtsUs;
+				} else {
+					endUs = track.ptsUs[j] + track.lastDurationUs;
+				}
+				final long endTicks = track.toTicks(endUs - track.startPtsUs);
+				if (j + 1 == n) {
+					track.lastDurationUs = Math.max(1, endUs - track.ptsUs[j]);
+				} else if (endUs > track.ptsUs[j]) {
+					track.lastDurationUs = endUs - track.ptsUs[j];
+				}
+				b.putInt((int)Math.max(0, endTicks - prevTicks));
+				b.putInt(track.sizes[j]);
+				b.putInt(track.isSync[j] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+				prevTicks = Math.max(prevTicks, endTicks);
+			}
+			endBox(b, trun);
+			endBox(b, traf);
+		}
+		endBox(b, moof);
+		final int moofSize = b.position() - moof;
+		// mdat follows moof, data of tracks are in the order of the tracks
+		int dataOffset = moofSize + 8;
+		for (int i = 0; i < mTrackCount; i++) {
+			if (mDataOffsetPos[i] < 0) continue;
+			b.putInt(mDataOffsetPos[i], dataOffset);
+			dataOffset += mTracks[i].data.position();
+		}
+		b.putInt(8 + mPendingBytes);
+		putFourCC(b, "mdat");
+		b.flip();
+		output(b);
+		for (int i = 0; i < mTrackCount; i++) {
+			final Track track = mTracks[i];
+			if (track.sampleCount == 0) continue;
+			track.data.flip();
+			output(track.data);
+			track.data.clear();
+			track.sampleCount = 0;
+		}
+		mPendingBytes = 0;
+		mFragmentStartUs = -1;
+		// the fragment is complete in the file from here
+		flushOutput();
+		if (mSyncEachFragment) {
+			mChannel.force(false);
+		}
+	}
+
+	/**
+	 * copy to the output buffer, writes full buffers to the file
+	 */
+	private void output(final ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			if (!mOutput.hasRemaining()) {
+				flushOutput();
+			}
+			final int n = Math.min(src.remaining(), mOutput.remaining());
+			final int limit = src.limit();
+			src.limit(src.position() + n);
+			mOutput.put(src);
+			src.limit(limit);
+		}
+	}
+
+	/**
+	 * write the output buffer at its aligned file offset.
+	 * the last partial block stays in the buffer and is written again with the following data
+	 */
+	private void flushOutput() throws IOException {
+		final int length = mOutput.position();
+		if (length == 0) return;
+		final long end = mOutputFilePos + length;
+		if (end > mAllocatedBytes) {
+			// extend the file in large steps instead of at every write
+			mAllocatedBytes = (end + PREALLOCATE_BYTES - 1) / PREALLOCATE_BYTES * PREALLOCATE_BYTES;
+			mFile.setLength(mAllocatedBytes);
+		}
+		mOutput.flip();
+		long pos = mOutputFilePos;
+		while (mOutput.hasRemaining()) {
+			pos += mChannel.write(mOutput, pos);
+		}
+		final int aligned = length - length % ALIGNMENT;
+		mOutput.limit(length);
+		mOutput.position(aligned);
+		mOutput.compact();
+		mOutputFilePos += aligned;
+	}
+
+	/**
+	 * convert start code prefixed NAL units to 4 byte length prefixed ones.
+	 * the sample is copied as one NAL unit if it has no start code
+	 */
+	private static void copyAnnexBAsLengthPrefixed(final ByteBuffer src, final int offset, final int size,
+		final ByteBuffer dst) {
+
+		final int end = offset + size;
+		int start = findStartCode(src, offset, end);
+		if (start < 0) {
+			dst.putInt(size);
+			src.limit(end);
+			src.position(offset);
+			dst.put(src);
+			return;
+		}
+		while (start >= 0) {
+			src.limit(src.capacity());
+			final int nalStart = start + 3;
+			final int next = findStartCode(src, nalStart, end);
+			int nalEnd = next >= 0 ? next : end;
+			// zero bytes before the next start code(4 byte start code, trailing_zero_8bits)
+			while ((nalEnd > nalStart) && (src.get(nalEnd - 1) == 0)) {
+				nalEnd--;
+			}
+			if (nalEnd > nalStart) {
+				dst.putInt(nalEnd - nalStart);
+				src.position(nalStart);
+				src.limit(nalEnd);
+				dst.put(src);
+			}
+			start = next;
+		}
+	}
+
+	/**
+	 * @return offset of the next 00 00 01, -1 if not found
+	 */
+	private static int findStartCode(final ByteBuffer buf, final int from, final int end) {
+		for (int i = from; i + 2 < end; i++) {
+			if ((buf.get(i + 2) & 0xff) > 1) {
+				i += 2;
+			} else if ((buf.get(i) == 0) && (buf.get(i + 1) == 0) && (buf.get(i + 2) == 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] stripStartCode(final ByteBuffer nal) {
+		final byte[] bytes = toArray(nal);
+		int skip = 0;
+		if ((bytes.length >= 4) && (bytes[0] == 0) && (bytes[1] == 0) && (bytes[2] == 0) && (bytes[3] == 1)) {
+			skip = 4;
+		} else if ((bytes.length >= 3) && (bytes[0] == 0) && (bytes[1] == 0) && (bytes[2] == 1)) {
+			skip = 3;
+		}
+		final byte[] result = new byte[bytes.length - skip];
+		System.arraycopy(bytes, skip, result, 0, result.length);
+		return result;
+	}
+
+	private static byte[] toArray(final ByteBuffer buf) {
+		final ByteBuffer b = buf.duplicate();
+		final byte[] result = new byte[b.remaining()];
+		b.get(result);
+		return result;
+	}
+
+//********************************************************************************
+// boxes
+	private static int beginBox(final ByteBuffer b, final String type) {
+		final int start = b.position();
+		b.putInt(0);
+		putFourCC(b, type);
+		return start;
+	}
+
+	private static int beginFullBox(final ByteBuffer b, final String type, final int version, final int flags) {
+		final int start = beginBox(b, type);
+		b.putInt((version << 24) | flags);
+		return start;
+	}
+
+	private static void endBox(final ByteBuffer b, final int start) {
+		b.putInt(start, b.position() - start);
+	}
+
+	private static void putFourCC(final ByteBuffer b, final String type) {
+		for (int i = 0; i < 4; i++) {
+			b.put((byte)type.charAt(i));
+		}
+	}
+
+	private static void writeFtyp(final ByteBuffer b) {
+		final int ftyp = beginBox(b, "ftyp");
+		putFourCC(b, "isom");
+		b.putInt(0x200);
+		putFourCC(b, "isom");
+		putFourCC(b, "iso6");
+		putFourCC(b, "avc1");
+		putFourCC(b, "mp41");
+		endBox(b, ftyp);
+	}
+
+	private void writeMoov(final ByteBuffer b) {
+		final int moov = beginBox(b, "moov");
+		final int mvhd = beginFullBox(b, "mvhd", 0, 0);
+		b.putInt(0);	// creation_time
+		b.putInt(0);	// modification_time
+		b.putInt(MOVIE_TIMESCALE);
+		b.putInt(0);	// duration, unknown for fragmented file
+		b.putInt(0x00010000);	// rate 1.0
+		b.putShort((short)0x0100);	// volume 1.0
+		b.putShort((short)0);
+		b.putLong(0);
+		putMatrix(b, 0);
+		for (int i = 0; i < 6; i++) {
+			b.putInt(0);	// pre_defined
+		}
+		b.putInt(mTrackCount + 1);	// next_track_ID
+		endBox(b, mvhd);
+		for (int i = 0; i < mTrackCount; i++) {
+			writeTrak(b, mTracks[i]);
+		}
+		final int mvex = beginBox(b, "mvex");
+		for (int i = 0; i < mTrackCount; i++) {
+			final int trex = beginFullBox(b, "trex", 0, 0);
+			b.putInt(mTracks[i].id);
+			b.putInt(1);	// default_sample_description_index
+			b.putInt(0);	// default_sample_duration
+			b.putInt(0);	// default_sample_size
+			b.putInt(0);	// default_sample_flags
+			endBox(b, trex);
+		}
+		endBox(b, mvex);
+		endBox(b, moov);
+	}
+
+	private void writeTrak(final ByteBuffer b, final Track track) {
+		final int trak = beginBox(b, "trak");
+		final int tkhd = beginFullBox(b, "tkhd", 0, 0x000003);	// enabled, in movie
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(track.id);
+		b.putInt(0);
+		b.putInt(0);	// duration
+		b.putLong(0);
+		b.putShort((short)0);	// layer
+		b.putShort((short)0);	// alternate_group
+		b.putShort((short)(track.isVideo ? 0 : 0x0100));	// volume
+		b.putShort((short)0);
+		putMatrix(b, track.isVideo ? mOrientationHint : 0);
+		b.putInt(track.width << 16);
+		b.putInt(track.height << 16);
+		endBox(b, tkhd);
+		final int mdia = beginBox(b, "mdia");
+		final int mdhd = beginFullBox(b, "mdhd", 0, 0);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(track.timescale);
+		b.putInt(0);
+		b.putShort((short)0x55c4);	// "und"
+		b.putShort((short)0);
+		endBox(b, mdhd);
+		final int hdlr = beginFullBox(b, "hdlr", 0, 0);
+		b.putInt(0);
+		putFourCC(b, track.isVideo ? "vide" : "soun");
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0);
+		b.put((track.isVideo ? "VideoHandle" : "SoundHandle").getBytes());
+		b.put((byte)0);
+		endBox(b, hdlr);
+		final int minf = beginBox(b, "minf");
+		if (track.isVideo) {
+			final int vmhd = beginFullBox(b, "vmhd", 0, 1);
+			b.putLong(0);	// graphicsmode, opcolor
+			endBox(b, vmhd);
+		} else {
+			final int smhd = beginFullBox(b, "smhd", 0, 0);
+			b.putInt(0);	// balance
+			endBox(b, smhd);
+		}
+		final int dinf = beginBox(b, "dinf");
+		final int dref = beginFullBox(b, "dref", 0, 0);
+		b.putInt(1);
+		endBox(b, beginFullBox(b, "url ", 0, 1));	// data in the same file
+		endBox(b, dref);
+		endBox(b, dinf);
+		final int stbl = beginBox(b, "stbl");
+		final int stsd = beginFullBox(b, "stsd", 0, 0);
+		b.putInt(1);
+		if (track.isVideo) {
+			writeAvc1(b, track);
+		} else {
+			writeMp4a(b, track);
+		}
+		endBox(b, stsd);
+		// samples are in the fragments
+		final int stts = beginFullBox(b, "stts", 0, 0);
+		b.putInt(0);
+		endBox(b, stts);
+		final int stsc = beginFullBox(b, "stsc", 0, 0);
+		b.putInt(0);
+		endBox(b, stsc);
+		final int stsz = beginFullBox(b, "stsz", 0, 0);
+		b.putInt(0);
+		b.putInt(0);
+		endBox(b, stsz);
+		final int stco = beginFullBox(b, "stco", 0, 0);
+		b.putInt(0);
+		endBox(b, stco);
+		endBox(b, stbl);
+		endBox(b, minf);
+		endBox(b, mdia);
+		endBox(b, trak);
+	}
+
+	private static void writeAvc1(final ByteBuffer b, final Track track) {
+		final int avc1 = beginBox(b, "avc1");
+		b.putInt(0);
+		b.putShort((short)0);	// reserved
+		b.putShort((short)1);	// data_reference_index
+		b.putShort((short)0);
+		b.putShort((short)0);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0);
+		b.putShort((short)track.width);
+		b.putShort((short)track.height);
+		b.putInt(0x00480000);	// 72dpi
+		b.putInt(0x00480000);
+		b.putInt(0);
+		b.putShort((short)1);	// frame_count
+		b.put(new byte[32]);	// compressorname
+		b.putShort((short)0x0018);	// depth
+		b.putShort((short)-1);
+		final int avcC = beginBox(b, "avcC");
+		b.put((byte)1);	// configurationVersion
+		b.put(track.sps[1]);	// profile
+		b.put(track.sps[2]);	// profile compatibility
+		b.put(track.sps[3]);	// level
+		b.put((byte)0xff);	// 4 byte NAL unit length
+		b.put((byte)0xe1);	// 1 SPS
+		b.putShort((short)track.sps.length);
+		b.put(track.sps);
+		b.put((byte)1);	// 1 PPS
+		b.putShort((short)track.pps.length);
+		b.put(track.pps);
+		endBox(b, avcC);
+		endBox(b, avc1);
+	}
+
+	private static void writeMp4a(final ByteBuffer b, final Track track) {
+		final int mp4a = beginBox(b, "mp4a");
+		b.putInt(0);
+		b.putShort((short)0);
+		b.putShort((short)1);	// data_reference_index
+		b.putLong(0);
+		b.putShort((short)track.channelCount);
+		b.putShort((short)16);	// samplesize
+		b.putShort((short)0);
+		b.putShort((short)0);
+		b.putInt(track.sampleRate << 16);
+		final int esds = beginFullBox(b, "esds", 0, 0);
+		final int asc = track.audioSpecificConfig.length;
+		// ES_Descriptor
+		b.put((byte)0x03);
+		b.put((byte)(3 + 2 + 13 + 2 + asc + 3));
+		b.putShort((short)track.id);
+		b.put((byte)0);
+		// DecoderConfigDescriptor
+		b.put((byte)0x04);
+		b.put((byte)(13 + 2 + asc));
+		b.put((byte)0x40);	// MPEG-4 audio
+		b.put((byte)0x15);	// audio stream
+		b.put((byte)0);	// bufferSizeDB(24 bits)
+		b.putShort((short)0);
+		b.putInt(0);	// maxBitrate
+		b.putInt(0);	// avgBitrate
+		// DecoderSpecificInfo
+		b.put((byte)0x05);
+		b.put((byte)asc);
+		b.put(track.audioSpecificConfig);
+		// SLConfigDescriptor
+		b.put((byte)0x06);
+		b.put((byte)1);
+		b.put((byte)0x02);
+		endBox(b, esds);
+		endBox(b, mp4a);
+	}
+
+	/**
+	 * same transformation matrix as MediaMuxer#setOrientationHint
+	 */
+	private static void putMatrix(final ByteBuffer b, final int degrees) {
+		final int one = 0x00010000;
+		int a = one, bb = 0, c = 0, d = one;
+		switch (degrees) {
+		case 90:
+			a = 0; bb = one; c = -one; d = 0;
+			break;
+		case 180:
+			a = -one; d = -one;
+			break;
+		case 270:
+			a = 0; bb = -one; c = one; d = 0;
+			break;
+		}
+		b.putInt(a);
+		b.putInt(bb);
+		b.putInt(0);
+		b.putInt(c);
+		b.putInt(d);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0x40000000);
+	}
+}
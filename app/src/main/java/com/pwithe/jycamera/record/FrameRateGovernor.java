@@ -0,0 +1,141 @@
+package com.pwithe.jycamera.record;
+
+/**
+ * Decide how many times each camera frame should be submitted to the video encoder
+ * so that the recorded rate follows the configured target rate instead of the
+ * camera's preview fps range.
+ * Timestamps are SurfaceTexture#getTimestamp values in nanoseconds.
+ *
+ * POLICY_CONSTANT: every frame slot of the target rate is filled, frames are dropped
+ * when the camera is faster and duplicated when it is slower.
+ * POLICY_VARIABLE: frames are only dropped, never duplicated, so the rate is at most
+ * the target rate.
+ */
+public class FrameRateGovernor {
+	public static final int POLICY_CONSTANT = 0;
+	public static final int POLICY_VARIABLE = 1;
+
+	/**
+	 * maximum number of submissions for one camera frame in POLICY_CONSTANT
+	 */
+	private static final int MAX_REPEAT = 4;
+	/**
+	 * gap(in frame intervals) after which the schedule restarts instead of filling
+	 * slots, e.g. after pause/resume or a camera restart
+	 */
+	private static final int MAX_GAP_INTERVALS = 10;
+
+	private final int mPolicy;
+	private final int mFrameRate;
+	private final long mIntervalNs;
+	/**
+	 * timestamps within this distance before the next slot still fill it(absorbs jitter)
+	 */
+	private final long mToleranceNs;
+	private long mNextSlotNs = -1;
+	private long mLastTimestampNs = -1;
+	private long mFrames, mSubmitted, mDropped, mDuplicated;
+
+	public FrameRateGovernor(final int frameRate, final int policy) {
+		if (frameRate <= 0) throw new IllegalArgumentException("frameRate should be positive:" + frameRate);
+		if ((policy != POLICY_CONSTANT) && (policy != POLICY_VARIABLE))
+			throw new IllegalArgumentException("unknown policy:" + policy);
+		mFrameRate = frameRate;
+		mPolicy = policy;
+		mIntervalNs = 1000000000L / frameRate;
+		mToleranceNs = mIntervalNs / 4;
+	}
+
+	/**
+	 * @return output frame interval [nsec]
+	 */
+	public long getIntervalNs() {
+		return mIntervalNs;
+	}
+
+	public int getFrameRate() {
+		return mFrameRate;
+	}
+
+	public int getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * restart the frame schedule, counters are kept
+	 */
+	public synchronized void reset() {
+		mNextSlotNs = mLastTimestampNs = -1;
+	}
+
+	/**
+	 * @param timestampNs capture timestamp of the frame
+	 * @return how many times the frame should be submitted, 0 means drop the frame
+	 */
+	public synchronized int onFrame(final long timestampNs) {
+		mFrames++;
+		if ((mLastTimestampNs >= 0) && (timestampNs <= mLastTimestampNs)) {
+			// same or older frame, nothing new to encode
+			mDropped++;
+			return 0;
+		}
+		mLastTimestampNs = timestampNs;
+		if ((mNextSlotNs < 0) || (timestampNs - mNextSlotNs > MAX_GAP_INTERVALS * mIntervalNs)) {
+			mNextSlotNs = timestampNs + mIntervalNs;
+			mSubmitted++;
+			return 1;
+		}
+		if (timestampNs < mNextSlotNs - mToleranceNs) {
+			mDropped++;
+			return 0;
+		}
+		int count = 1;
+		if (mPolicy == POLICY_CONSTANT) {
+			// fill the slots we missed since the previous submitted frame
+			final long missed = (timestampNs - mNextSlotNs + mToleranceNs) / mIntervalNs;
+			count += (int)Math.min(missed, MAX_REPEAT - 1);
+			mDuplicated += count - 1;
+			mNextSlotNs += count * mIntervalNs;
+			if (timestampNs - mNextSlotNs > mIntervalNs) {
+				// too far behind even after repeating, skip the remaining slots
+				mNextSlotNs = timestampNs + mIntervalNs;
+			}
+		} else {
+			mNextSlotNs += mIntervalNs;
+			if (mNextSlotNs < timestampNs) {
+				// camera was slower than the target rate, don't try to catch up
+				mNextSlotNs = timestampNs + mIntervalNs;
+			}
+		}
+		mSubmitted += count;
+		return count;
+	}
+
+	/**
+	 * @return frames passed to #onFrame
+	 */
+	public synchronized long getFrameCount() {
+		return mFrames;
+	}
+
+	/**
+	 * @return submissions to the encoder including duplicates
+	 */
+	public synchronized long getSubmittedCount() {
+		return mSubmitted;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDropped;
+	}
+
+	public synchronized long getDuplicatedCount() {
+		return mDuplicated;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("FrameRateGovernor{fps=%d,policy=%s,frames=%d,submitted=%d,dropped=%d,duplicated=%d}",
+			mFrameRate, mPolicy == POLICY_CONSTANT ? "CFR" : "VFR", mFrames, mSubmitted, mDropped, mDuplicated);
+	}
+}
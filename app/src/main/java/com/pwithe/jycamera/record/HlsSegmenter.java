@@ -0,0 +1,449 @@
+package com.pwithe.jycamera.record;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write encoded packets as HLS, MPEG-TS segments and a playlist(index.m3u8) in a directory.
+ * Every segment starts at a video key frame(any frame when there is no video) after the target duration,
+ * MediaMuxerWrapper asks the encoder for the key frame shortly before(#isKeyFrameDue).
+ * #EXT-X-TARGETDURATION covers the worst case, a segment that waits for the next periodic key frame
+ * because the encoder ignored the request(target duration + key frame interval).
+ * The playlist lists finished segments only, so players can pull the recording in progress,
+ * and gets #EXT-X-ENDLIST on #stop. With a playlist size the oldest segments are deleted(live window).
+ * Packets are packetized on the encoder thread into pooled buffers and written by a writer thread.
+ */
+public class HlsSegmenter implements StreamOutput {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "HlsSegmenter";
+
+	public static final String PLAYLIST_NAME = "index.m3u8";
+	private static final String SEGMENT_NAME_FORMAT = "segment_%05d.ts";
+	/**
+	 * a key frame is requested this much before the target duration
+	 */
+	private static final long KEY_FRAME_LEAD_US = 100000L;
+	/**
+	 * KEY_I_FRAME_INTERVAL of MediaVideoEncoder
+	 */
+	public static final long DEFAULT_KEY_FRAME_INTERVAL_MS = 1000;
+	private static final int QUEUE_LIMIT_BYTES = 8 * 1024 * 1024;
+	private static final int POOL_SIZE = 16;
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+	private static final long PARK_NS = 10 * 1000000L;
+	/**
+	 * duration of the last frame of the last segment, the next frame is unknown
+	 */
+	private static final long LAST_FRAME_DURATION_US = 33333L;
+
+	private static final class Packet {
+		private ByteBuffer buffer;
+		/**
+		 * the packet starts a new segment
+		 */
+		private boolean isSegmentStart;
+		private long presentationTimeUs;
+	}
+
+	private static final class Segment {
+		private final String name;
+		private final double durationSec;
+
+		private Segment(final String name, final double durationSec) {
+			this.name = name;
+			this.durationSec = durationSec;
+		}
+	}
+
+	private final File mDir;
+	private final long mTargetDurationUs;
+	private long mKeyFrameIntervalUs = DEFAULT_KEY_FRAME_INTERVAL_MS * 1000L;
+	/**
+	 * #EXT-X-TARGETDURATION, fixed on #start, must not change while the playlist is updated(RFC 8216 4.3.3.1)
+	 */
+	private long mTargetDurationSec;
+	private int mPlaylistSize;
+	private int mVideoTrack = -1, mAudioTrack = -1;
+	private int mVideoStreamType;
+	private ByteBuffer[] mVideoConfig;
+	private ByteBuffer mAudioConfig;
+	private int mTrackCount;
+	private TsPacketizer mPacketizer;
+	private final ConcurrentLinkedQueue<Packet> mQueue = new ConcurrentLinkedQueue<Packet>();
+	private final ConcurrentLinkedQueue<Packet> mPool = new ConcurrentLinkedQueue<Packet>();
+	private final AtomicInteger mQueueDepth = new AtomicInteger();
+	private final AtomicLong mQueuedBytes = new AtomicLong();
+	private final AtomicLong mDroppedCount = new AtomicLong();
+	private Thread mWriterThread;
+	private volatile boolean mRequestStop;
+	// only accessed in #write
+	private long mSegmentStartUs = -1;
+	private boolean mDropUntilKeyFrame;
+	private volatile boolean mKeyFrameRequested;
+	private volatile long mRequestBaseUs = -1;
+	// only accessed on the writer thread
+	private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+	private int mMediaSequence;
+	private volatile int mSegmentCount;
+
+	/**
+	 * @param dir              directory of the segments and the playlist, created if not exists
+	 * @param targetDurationMs minimum duration of a segment
+	 */
+	public HlsSegmenter(final File dir, final long targetDurationMs) {
+		if (targetDurationMs <= 0)
+			throw new IllegalArgumentException("invalid target duration:" + targetDurationMs);
+		mDir = dir;
+		mTargetDurationUs = targetDurationMs * 1000L;
+	}
+
+	/**
+	 * @param intervalMs maximum interval of the key frames the video encoder makes without a request
+	 * (KEY_I_FRAME_INTERVAL), should be called before #start
+	 */
+	public synchronized void setKeyFrameInterval(final long intervalMs) {
+		if (mWriterThread != null)
+			throw new IllegalStateException("already started");
+		if (intervalMs <= 0)
+			throw new IllegalArgumentException("invalid key frame interval:" + intervalMs);
+		mKeyFrameIntervalUs = intervalMs * 1000L;
+	}
+
+	/**
+	 * @return value of #EXT-X-TARGETDURATION [sec], 0 before #start
+	 */
+	public synchronized long getPlaylistTargetDuration() {
+		return mTargetDurationSec;
+	}
+
+	/**
+	 * @param segments number of segments in the playlist, older ones are deleted. 0 keeps all(default)
+	 */
+	public void setPlaylistSize(final int segments) {
+		if (segments < 0)
+			throw new IllegalArgumentException("negative playlist size");
+		mPlaylistSize = segments;
+	}
+
+	public File getDirectory() {
+		return mDir;
+	}
+
+	public File getPlaylistFile() {
+		return new File(mDir, PLAYLIST_NAME);
+	}
+
+	/**
+	 * tracks should be added in the order of MediaMuxer#addTrack so that the track indices match
+	 * @param mime          "video/avc" or "video/hevc"
+	 * @param parameterSets csd-0(, csd-1) of the output format
+	 * @return track index
+	 */
+	@Override
+	public synchronized int addVideoTrack(final String mime, final ByteBuffer... parameterSets) {
+		if (mWriterThread != null)
+			throw new IllegalStateException("already started");
+		if (mVideoTrack >= 0)
+			throw new IllegalStateException("video track already added");
+		if (MediaVideoEncoder.MIME_AVC.equals(mime)) {
+			mVideoStreamType = TsPacketizer.STREAM_TYPE_H264;
+		} else if (MediaVideoEncoder.MIME_HEVC.equals(mime)) {
+			mVideoStreamType = TsPacketizer.STREAM_TYPE_HEVC;
+		} else {
+			throw new IllegalArgumentException("unsupported mime type:" + mime);
+		}
+		mVideoConfig = parameterSets;
+		mVideoTrack = mTrackCount++;
+		return mVideoTrack;
+	}
+
+	/**
+	 * @param audioSpecificConfig csd-0 of the AAC output format
+	 * @return track index
+	 */
+	@Override
+	public synchronized int addAudioTrack(final ByteBuffer audioSpecificConfig) {
+		if (mWriterThread != null)
+			throw new IllegalStateException("already started");
+		if (mAudioTrack >= 0)
+			throw new IllegalStateException("audio track already added");
+		mAudioConfig = audioSpecificConfig;
+		mAudioTrack = mTrackCount++;
+		return mAudioTrack;
+	}
+
+	public synchronized void start() throws IOException {
+		if (mWriterThread != null)
+			throw new IllegalStateException("already started");
+		if (!mDir.isDirectory() && !mDir.mkdirs())
+			throw new IOException("failed to create " + mDir);
+		// a segment is cut at the first key frame after the target duration(any frame without video),
+		// so it is shorter than the target duration plus one key frame interval
+		final long maxDurationUs = mTargetDurationUs + (mVideoTrack >= 0 ? mKeyFrameIntervalUs : 0);
+		mTargetDurationSec = (maxDurationUs + 999999) / 1000000;
+		mPacketizer = new TsPacketizer(mVideoTrack >= 0 ? mVideoStreamType : 0, mAudioTrack >= 0);
+		if (mVideoConfig != null) {
+			mPacketizer.setVideoConfig(mVideoConfig);
+		}
+		if (mAudioConfig != null) {
+			mPacketizer.setAudioConfig(mAudioConfig);
+		}
+		for (int i = 0; i < POOL_SIZE; i++) {
+			final Packet packet = new Packet();
+			packet.buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE);
+			mPool.offer(packet);
+		}
+		mWriterThread = new Thread(mWriterTask, TAG);
+		mWriterThread.start();
+	}
+
+	/**
+	 * write queued packets, finish the last segment and the playlist. returns immediately
+	 */
+	public void stop() {
+		mRequestStop = true;
+		final Thread thread = mWriterThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public void join(final long timeoutMs) throws InterruptedException {
+		final Thread thread = mWriterThread;
+		if (thread != null) {
+			thread.join(timeoutMs);
+		}
+	}
+
+	/**
+	 * @return true once for each segment when the video encoder should make a key frame for the next segment
+	 */
+	public boolean isKeyFrameDue(final long presentationTimeUs) {
+		final long base = mRequestBaseUs;
+		if ((base < 0) || mKeyFrameRequested
+			|| (presentationTimeUs - base < mTargetDurationUs - KEY_FRAME_LEAD_US)) return false;
+		mKeyFrameRequested = true;
+		return true;
+	}
+
+	/**
+	 * packetize and queue an encoded packet, never blocks
+	 * @param isKeyFrame ignored for audio
+	 * @return false if the packet is dropped
+	 */
+	@Override
+	public synchronized boolean write(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) {
+
+		if ((mWriterThread == null) || mRequestStop || (size <= 0)) return false;
+		final boolean isVideo = trackIndex == mVideoTrack;
+		if (!isVideo && (trackIndex != mAudioTrack)) return false;
+		final boolean canStartSegment = (mVideoTrack >= 0) ? isVideo && isKeyFrame : true;
+		if (mSegmentStartUs < 0 && !canStartSegment) {
+			// the first segment starts with a key frame
+			return false;
+		}
+		if (isVideo && mDropUntilKeyFrame) {
+			if (!isKeyFrame) {
+				mDroppedCount.incrementAndGet();
+				return false;
+			}
+			mDropUntilKeyFrame = false;
+		}
+		if (mQueuedBytes.get() >= QUEUE_LIMIT_BYTES) {
+			mDroppedCount.incrementAndGet();
+			mDropUntilKeyFrame = isVideo;
+			Platform.logW(TAG, "queue full, drop packet:track=" + trackIndex);
+			return false;
+		}
+		final boolean isSegmentStart = canStartSegment
+			&& ((mSegmentStartUs < 0) || (presentationTimeUs - mSegmentStartUs >= mTargetDurationUs));
+		if (isSegmentStart) {
+			mSegmentStartUs = presentationTimeUs;
+			mRequestBaseUs = presentationTimeUs;
+			mKeyFrameRequested = false;
+		}
+		final Packet packet = obtain(mPacketizer.getMaxOutputSize(size));
+		final ByteBuffer out = packet.buffer;
+		out.clear();
+		if (isVideo) {
+			mPacketizer.writeVideo(buf, offset, size, presentationTimeUs, isKeyFrame, out);
+		} else {
+			mPacketizer.writeAudio(buf, offset, size, presentationTimeUs, out);
+		}
+		out.flip();
+		packet.isSegmentStart = isSegmentStart;
+		packet.presentationTimeUs = presentationTimeUs;
+		mQueuedBytes.addAndGet(out.remaining());
+		mQueue.offer(packet);
+		mQueueDepth.incrementAndGet();
+		LockSupport.unpark(mWriterThread);
+		return true;
+	}
+
+	/**
+	 * @return number of finished segments
+	 */
+	public int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	public int getQueueDepth() {
+		return mQueueDepth.get();
+	}
+
+	private Packet obtain(final int size) {
+		Packet packet = mPool.poll();
+		if (packet == null) {
+			packet = new Packet();
+		}
+		if ((packet.buffer == null) || (packet.buffer.capacity() < size)) {
+			packet.buffer = ByteBuffer.allocateDirect(Math.max(size, MIN_BUFFER_SIZE));
+		}
+		return packet;
+	}
+
+	private final Runnable mWriterTask = new Runnable() {
+		@Override
+		public void run() {
+			Platform.registerIoThread(new PipelineScheduler.QueueDepthSource() {
+				@Override
+				public int getQueueDepth() {
+					return mQueueDepth.get();
+				}
+			});
+			FileChannel channel = null;
+			String name = null;
+			int index = 0;
+			long startUs = -1, lastUs = -1;
+			try {
+				for (;;) {
+					final Packet packet = mQueue.poll();
+					if (packet == null) {
+						if (mRequestStop) break;
+						LockSupport.parkNanos(this, PARK_NS);
+						continue;
+					}
+					final int bytes = packet.buffer.remaining();
+					try {
+						if (packet.isSegmentStart) {
+							if (channel != null) {
+								channel.close();
+								addSegment(name, packet.presentationTimeUs - startUs, false);
+							}
+							name = String.format(Locale.US, SEGMENT_NAME_FORMAT, index++);
+							channel = new FileOutputStream(new File(mDir, name)).getChannel();
+							startUs = packet.presentationTimeUs;
+						}
+						if (channel != null) {
+							while (packet.buffer.hasRemaining()) {
+								channel.write(packet.buffer);
+							}
+						}
+						if (packet.presentationTimeUs > lastUs) {
+							lastUs = packet.presentationTimeUs;
+						}
+					} catch (final IOException e) {
+						Platform.logE(TAG, "failed writing " + name, e);
+						close(channel);
+						channel = null;
+					}
+					mQueuedBytes.addAndGet(-bytes);
+					mQueueDepth.decrementAndGet();
+					mPool.offer(packet);
+				}
+				if (channel != null) {
+					channel.close();
+					channel = null;
+					addSegment(name, lastUs - startUs + LAST_FRAME_DURATION_US, true);
+				} else {
+					writePlaylist(true);
+				}
+			} catch (final IOException e) {
+				Platform.logE(TAG, "failed finishing " + name, e);
+			} finally {
+				close(channel);
+				mQueue.clear();
+				mPool.clear();
+				Platform.unregisterThread();
+			}
+			Platform.logI(TAG, "finished:segments=" + mSegmentCount + ",dropped=" + mDroppedCount.get());
+		}
+	};
+
+	/**
+	 * add a finished segment to the playlist, on the writer thread
+	 */
+	private void addSegment(final String name, final long durationUs, final boolean isLast) throws IOException {
+		final Segment segment = new Segment(name, durationUs / 1000000.0);
+		mSegments.addLast(segment);
+		mSegmentCount++;
+		if (Math.round(segment.durationSec) > mTargetDurationSec) {
+			// the encoder made no key frame for longer than its key frame interval
+			Platform.logW(TAG, "segment longer than the target duration:" + name + "," + segment.durationSec + "sec");
+		}
+		while ((mPlaylistSize > 0) && (mSegments.size() > mPlaylistSize)) {
+			final Segment oldest = mSegments.removeFirst();
+			mMediaSequence++;
+			if (!new File(mDir, oldest.name).delete()) {
+				Platform.logW(TAG, "failed to delete " + oldest.name);
+			}
+		}
+		writePlaylist(isLast);
+		if (DEBUG) Platform.logV(TAG, "segment:" + name + "," + segment.durationSec + "sec");
+	}
+
+	/**
+	 * write to a temporary file and rename so that a player never reads a partial playlist
+	 */
+	private void writePlaylist(final boolean isEnded) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("#EXTM3U\n");
+		sb.append("#EXT-X-VERSION:3\n");
+		sb.append("#EXT-X-TARGETDURATION:").append(mTargetDurationSec).append('\n');
+		sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mMediaSequence).append('\n');
+		if (mPlaylistSize == 0) {
+			// segments are only appended
+			sb.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+		}
+		for (final Segment segment: mSegments) {
+			sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationSec));
+			sb.append(segment.name).append('\n');
+		}
+		if (isEnded) {
+			sb.append("#EXT-X-ENDLIST\n");
+		}
+		final File tmp = new File(mDir, PLAYLIST_NAME + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(sb.toString().getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(getPlaylistFile()))
+			throw new IOException("failed to rename " + tmp);
+	}
+
+	private static void close(final FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
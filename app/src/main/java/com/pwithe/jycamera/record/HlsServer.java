@@ -0,0 +1,482 @@
+package com.pwithe.jycamera.record;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/1.1 server to pull HLS playlists, segments and recordings from a directory on the LAN.
+ * Supports GET/HEAD and single byte ranges, one request per connection.
+ * File bodies are sent with FileChannel#transferTo(sendfile), they are never copied to the Java heap.
+ * Client sockets are non-blocking and every read and write waits on a selector with a deadline,
+ * so a stalled client never holds a pool thread for long and #stop closes all connections.
+ * A connection that arrives while all pool threads are busy gets 503 instead of waiting in a queue.
+ * Access can be limited to one interface(#setBindAddress) and to URLs under a secret path(#setAccessToken).
+ */
+public class HlsServer {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "HlsServer";
+
+	private static final int MAX_CONNECTIONS = 4;
+	private static final int MAX_REQUEST_HEADER = 8 * 1024;
+	private static final long TRANSFER_CHUNK = 1024 * 1024;
+	/**
+	 * a client that sends nothing for this time is disconnected so that it does not hold a pool thread
+	 */
+	private static final int READ_TIMEOUT_MS = 10000;
+	/**
+	 * a client that accepts no data for this time is disconnected
+	 */
+	private static final int WRITE_TIMEOUT_MS = 10000;
+	private static final byte[] BUSY_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+		+ "Content-Length: 0\r\nRetry-After: 1\r\nConnection: close\r\n\r\n").getBytes();
+
+	private final File mRoot;
+	private final int mRequestedPort;
+	private InetAddress mBindAddress;
+	private volatile String mAccessToken;
+	private ServerSocketChannel mServer;
+	private ThreadPoolExecutor mExecutor;
+	private Thread mAcceptThread;
+	private volatile boolean mIsRunning;
+	/**
+	 * connections accepted and not closed yet, #stop closes them
+	 */
+	private final Set<SocketChannel> mClients
+		= Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mRejectedCount = new AtomicLong();
+	private final AtomicLong mSentBytes = new AtomicLong();
+
+	/**
+	 * @param root directory to serve(e.g. HlsSegmenter#getDirectory)
+	 * @param port 0 to use any free port(see #getPort)
+	 */
+	public HlsServer(final File root, final int port) {
+		mRoot = root;
+		mRequestedPort = port;
+	}
+
+	/**
+	 * listen only on this address(e.g. the Wi-Fi address or the loopback address), should be called before #start
+	 * @param address null for all interfaces
+	 */
+	public synchronized void setBindAddress(final InetAddress address) {
+		if (mIsRunning)
+			throw new IllegalStateException("already started");
+		mBindAddress = address;
+	}
+
+	/**
+	 * serve only the URLs under "/token/", others get 404.
+	 * players resolve the relative segment URIs of the playlist under the same path, so they need nothing else
+	 * @param token URL safe secret shared with the client(no '/'), null to serve the root directly
+	 */
+	public void setAccessToken(final String token) {
+		if ((token != null) && (token.isEmpty() || (token.indexOf('/') >= 0)))
+			throw new IllegalArgumentException("invalid access token");
+		mAccessToken = token;
+	}
+
+	public synchronized void start() throws IOException {
+		if (mIsRunning)
+			throw new IllegalStateException("already started");
+		mServer = ServerSocketChannel.open();
+		mServer.socket().setReuseAddress(true);
+		mServer.socket().bind(new InetSocketAddress(mBindAddress, mRequestedPort));
+		// no queue, a connection is rejected when all threads are busy
+		mExecutor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 0, TimeUnit.MILLISECONDS,
+			new SynchronousQueue<Runnable>());
+		mIsRunning = true;
+		mAcceptThread = new Thread(mAcceptTask, TAG);
+		mAcceptThread.start();
+		Platform.logI(TAG, "started:" + mServer.socket().getLocalSocketAddress() + ",root=" + mRoot);
+	}
+
+	/**
+	 * close the listening socket and all connections, waits for the pool threads for a while
+	 */
+	public synchronized void stop() {
+		if (!mIsRunning) return;
+		mIsRunning = false;
+		try {
+			mServer.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		for (final SocketChannel client: mClients) {
+			close(client);
+		}
+		// wakes up the threads waiting on their selector
+		mExecutor.shutdownNow();
+		try {
+			mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+			mAcceptThread.join(1000);
+		} catch (final InterruptedException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * @return listening port, -1 if not started
+	 */
+	public int getPort() {
+		final ServerSocketChannel server = mServer;
+		return server != null ? server.socket().getLocalPort() : -1;
+	}
+
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/**
+	 * @return connections answered with 503 because all pool threads were busy
+	 */
+	public long getRejectedCount() {
+		return mRejectedCount.get();
+	}
+
+	public long getSentBytes() {
+		return mSentBytes.get();
+	}
+
+	private final Runnable mAcceptTask = new Runnable() {
+		@Override
+		public void run() {
+			Platform.registerIoThread(null);
+			try {
+				while (mIsRunning) {
+					final SocketChannel client;
+					try {
+						client = mServer.accept();
+					} catch (final IOException e) {
+						if (mIsRunning) Platform.logW(TAG, "accept:", e);
+						break;
+					}
+					mClients.add(client);
+					if (!mIsRunning) {
+						// #stop may have closed the others already
+						close(client);
+						break;
+					}
+					try {
+						mExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								handle(client);
+							}
+						});
+					} catch (final RejectedExecutionException e) {
+						mRejectedCount.incrementAndGet();
+						reject(client);
+					}
+				}
+			} finally {
+				Platform.unregisterThread();
+			}
+		}
+	};
+
+	private void handle(final SocketChannel channel) {
+		mRequestCount.incrementAndGet();
+		Connection client = null;
+		try {
+			client = new Connection(channel);
+			final String header = readRequestHeader(client);
+			if (header == null) {
+				sendError(client, 400, "Bad Request");
+				return;
+			}
+			final String[] lines = header.split("\r\n");
+			final String[] request = lines[0].split(" ");
+			if (request.length != 3) {
+				sendError(client, 400, "Bad Request");
+				return;
+			}
+			final String method = request[0];
+			final boolean isHead = "HEAD".equals(method);
+			if (!isHead && !"GET".equals(method)) {
+				sendError(client, 405, "Method Not Allowed");
+				return;
+			}
+			String range = null;
+			for (int i = 1; i < lines.length; i++) {
+				final int colon = lines[i].indexOf(':');
+				if ((colon > 0) && lines[i].substring(0, colon).trim().equalsIgnoreCase("Range")) {
+					range = lines[i].substring(colon + 1).trim();
+				}
+			}
+			final String target = checkAccess(request[1]);
+			final File file = target != null ? resolve(target) : null;
+			if ((file == null) || !file.isFile()) {
+				sendError(client, 404, "Not Found");
+				return;
+			}
+			sendFile(client, file, range, isHead);
+		} catch (final IOException e) {
+			if (DEBUG) Platform.logV(TAG, "handle:" + e);
+		} finally {
+			if (client != null) {
+				client.closeSelector();
+			}
+			close(channel);
+			mClients.remove(channel);
+		}
+	}
+
+	/**
+	 * @return the target without the token, null if the token does not match
+	 */
+	private String checkAccess(final String target) throws IOException {
+		final String token = mAccessToken;
+		if (token == null) return target;
+		final int slash = target.indexOf('/', 1);
+		if (!target.startsWith("/") || (slash < 0)) return null;
+		// constant time, the token should not leak through the response time
+		return MessageDigest.isEqual(target.substring(1, slash).getBytes("UTF-8"), token.getBytes("UTF-8"))
+			? target.substring(slash) : null;
+	}
+
+	/**
+	 * @return null if the path is outside the root
+	 */
+	private File resolve(final String target) throws IOException {
+		String path = target;
+		final int query = path.indexOf('?');
+		if (query >= 0) {
+			path = path.substring(0, query);
+		}
+		if (!path.startsWith("/") || path.contains("..") || path.contains("\\") || path.contains("%")) return null;
+		final File file = new File(mRoot, path.substring(1));
+		final String root = mRoot.getCanonicalPath() + File.separator;
+		return file.getCanonicalPath().startsWith(root) ? file : null;
+	}
+
+	private void sendFile(final Connection client, final File file, final String range, final boolean isHead)
+		throws IOException {
+
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			// a file still being written is served up to its current size
+			final long length = channel.size();
+			long start = 0, end = length - 1;
+			boolean partial = false;
+			if ((range != null) && range.startsWith("bytes=") && (range.indexOf(',') < 0)) {
+				final String spec = range.substring(6);
+				final int dash = spec.indexOf('-');
+				try {
+					if (dash == 0) {
+						// suffix: the last N bytes
+						start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+					} else if (dash > 0) {
+						start = Long.parseLong(spec.substring(0, dash));
+						if (dash + 1 < spec.length()) {
+							end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+						}
+					}
+					partial = true;
+				} catch (final NumberFormatException e) {
+					// ignore the range
+				}
+				if (partial && ((start >= length) || (start > end))) {
+					sendHeader(client, 416, "Range Not Satisfiable", null, 0,
+						"Content-Range: bytes */" + length + "\r\n");
+					return;
+				}
+			}
+			final long count = end - start + 1;
+			sendHeader(client, partial ? 206 : 200, partial ? "Partial Content" : "OK", getContentType(file.getName()),
+				count, partial ? "Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n" : null);
+			if (isHead) return;
+			long pos = start;
+			while (pos <= end) {
+				final long n = client.transferFrom(channel, pos, Math.min(TRANSFER_CHUNK, end + 1 - pos));
+				if (n <= 0) break;
+				pos += n;
+				mSentBytes.addAndGet(n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @throws SocketTimeoutException the client sent nothing for READ_TIMEOUT_MS
+	 */
+	private static String readRequestHeader(final Connection client) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(MAX_REQUEST_HEADER);
+		while (buf.hasRemaining()) {
+			final int from = Math.max(3, buf.position());
+			if (client.read(buf) < 0) return null;
+			final byte[] b = buf.array();
+			for (int i = from; i < buf.position(); i++) {
+				if ((b[i - 3] == '\r') && (b[i - 2] == '\n') && (b[i - 1] == '\r') && (b[i] == '\n')) {
+					return new String(b, 0, i - 3, "US-ASCII");
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void sendError(final Connection client, final int status, final String reason) throws IOException {
+		final byte[] body = (status + " " + reason + "\n").getBytes("US-ASCII");
+		sendHeader(client, status, reason, "text/plain", body.length, null);
+		client.write(ByteBuffer.wrap(body));
+	}
+
+	private static void sendHeader(final Connection client, final int status, final String reason,
+		final String contentType, final long contentLength, final String extra) throws IOException {
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		if (contentType != null) {
+			sb.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		sb.append("Content-Length: ").append(contentLength).append("\r\n");
+		sb.append("Accept-Ranges: bytes\r\n");
+		// the playlist changes while recording
+		sb.append("Cache-Control: no-cache\r\n");
+		sb.append("Access-Control-Allow-Origin: *\r\n");
+		sb.append("Connection: close\r\n");
+		if (extra != null) {
+			sb.append(extra);
+		}
+		sb.append("\r\n");
+		client.write(ByteBuffer.wrap(sb.toString().getBytes("US-ASCII")));
+	}
+
+	private static String getContentType(final String name) {
+		final String lower = name.toLowerCase(Locale.US);
+		if (lower.endsWith(".m3u8")) return "application/vnd.apple.mpegurl";
+		if (lower.endsWith(".ts")) return "video/mp2t";
+		if (lower.endsWith(".mp4") || lower.endsWith(".m4s")) return "video/mp4";
+		return "application/octet-stream";
+	}
+
+	/**
+	 * answer 503 without blocking the accept thread, the response is dropped if the socket can not take it
+	 */
+	private void reject(final SocketChannel client) {
+		try {
+			client.configureBlocking(false);
+			client.write(ByteBuffer.wrap(BUSY_RESPONSE));
+			// closing with unread request bytes would reset the connection before the client reads the response
+			client.read(ByteBuffer.allocate(MAX_REQUEST_HEADER));
+			client.socket().shutdownOutput();
+		} catch (final IOException e) {
+			// ignore
+		} finally {
+			close(client);
+			mClients.remove(client);
+		}
+	}
+
+	private static void close(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * non-blocking client socket, reads and writes wait on its own selector until their deadline
+	 */
+	private static final class Connection {
+		private final SocketChannel mChannel;
+		private final Selector mSelector;
+		private final SelectionKey mKey;
+
+		private Connection(final SocketChannel channel) throws IOException {
+			mChannel = channel;
+			mSelector = Selector.open();
+			try {
+				channel.configureBlocking(false);
+				mKey = channel.register(mSelector, 0);
+			} catch (final IOException e) {
+				closeSelector();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return number of bytes read, -1 at the end of the stream
+		 * @throws SocketTimeoutException nothing arrived for READ_TIMEOUT_MS
+		 */
+		private int read(final ByteBuffer buf) throws IOException {
+			for (;;) {
+				final int n = mChannel.read(buf);
+				if (n != 0) return n;
+				await(SelectionKey.OP_READ, READ_TIMEOUT_MS);
+			}
+		}
+
+		/**
+		 * @throws SocketTimeoutException the client took nothing for WRITE_TIMEOUT_MS
+		 */
+		private void write(final ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				if (mChannel.write(buf) == 0) {
+					await(SelectionKey.OP_WRITE, WRITE_TIMEOUT_MS);
+				}
+			}
+		}
+
+		/**
+		 * @return number of bytes sent, 0 if the file ended before pos(it was truncated)
+		 * @throws SocketTimeoutException the client took nothing for WRITE_TIMEOUT_MS
+		 */
+		private long transferFrom(final FileChannel file, final long pos, final long count) throws IOException {
+			for (;;) {
+				final long n = file.transferTo(pos, count, mChannel);
+				if ((n > 0) || (pos >= file.size())) return n;
+				await(SelectionKey.OP_WRITE, WRITE_TIMEOUT_MS);
+			}
+		}
+
+		private void await(final int ops, final long timeoutMs) throws IOException {
+			final long deadlineNs = System.nanoTime() + timeoutMs * 1000000L;
+			mKey.interestOps(ops);
+			for (;;) {
+				final long remainingMs = (deadlineNs - System.nanoTime()) / 1000000L;
+				if (remainingMs <= 0)
+					throw new SocketTimeoutException("no progress for " + timeoutMs + "ms");
+				final int selected = mSelector.select(remainingMs);
+				mSelector.selectedKeys().clear();
+				if (selected > 0) return;
+				// #stop closed the socket and interrupted the pool thread
+				if (!mChannel.isOpen() || Thread.currentThread().isInterrupted())
+					throw new ClosedChannelException();
+			}
+		}
+
+		private void closeSelector() {
+			try {
+				mSelector.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
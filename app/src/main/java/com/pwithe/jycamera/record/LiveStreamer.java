@@ -0,0 +1,518 @@
+package com.pwithe.jycamera.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Send encoded packets in real time as MPEG-TS over TCP or UDP(e.g. to ffplay/VLC on a monitoring station).
+ * Receives the same packets as MediaMuxerWrapper#writeSampleData, packetizes them into a pooled direct buffer
+ * on the encoder thread(one copy) and a sender thread writes the buffers to the socket.
+ * When the network can not keep up the send queue grows, then
+ * non-reference video frames are dropped above half of the queue limit and
+ * all frames are dropped at the limit(video until the next key frame).
+ * After each (re)connection video is dropped until a key frame and #isKeyFrameDue asks for one,
+ * packets queued for the previous connection are discarded.
+ * TCP writes are non-blocking with a deadline, a receiver that takes nothing for WRITE_TIMEOUT_MS
+ * is treated as a lost connection.
+ */
+public class LiveStreamer implements StreamOutput {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "LiveStreamer";
+
+	public static final int TRANSPORT_TCP = 0;
+	public static final int TRANSPORT_UDP = 1;
+
+	public static final int DEFAULT_QUEUE_LIMIT_BYTES = 2 * 1024 * 1024;
+	/**
+	 * 7 TS packets fit in an ethernet frame
+	 */
+	private static final int UDP_PAYLOAD_SIZE = 7 * TsPacketizer.TS_PACKET_SIZE;
+	private static final int POOL_SIZE = 32;
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+	private static final long PARK_NS = 10 * 1000000L;
+	private static final long RECONNECT_INTERVAL_MS = 1000;
+	/**
+	 * the sender thread keeps discarding packets while connecting, so it should be short
+	 */
+	private static final int CONNECT_TIMEOUT_MS = 3000;
+	private static final long WRITE_TIMEOUT_MS = 5000;
+	/**
+	 * queued packets get this long to be sent after #stop
+	 */
+	private static final long STOP_TIMEOUT_MS = 1000;
+
+	private static final class Packet {
+		private ByteBuffer buffer;
+		private long enqueueNs;
+		/**
+		 * the connection the packet was queued for
+		 */
+		private int connection;
+	}
+
+	private final int mTransport;
+	private final InetSocketAddress mAddress;
+	private int mVideoTrack = -1, mAudioTrack = -1;
+	private int mVideoStreamType;
+	private ByteBuffer[] mVideoConfig;
+	private ByteBuffer mAudioConfig;
+	private int mTrackCount;
+	private TsPacketizer mPacketizer;
+	private int mQueueLimitBytes = DEFAULT_QUEUE_LIMIT_BYTES;
+	private final ConcurrentLinkedQueue<Packet> mQueue = new ConcurrentLinkedQueue<Packet>();
+	private final ConcurrentLinkedQueue<Packet> mPool = new ConcurrentLinkedQueue<Packet>();
+	private final AtomicInteger mQueueDepth = new AtomicInteger();
+	private final AtomicLong mQueuedBytes = new AtomicLong();
+	private boolean mDropUntilKeyFrame;
+	private boolean mKeyFrameDue;
+	/**
+	 * incremented by the sender thread on each connection
+	 */
+	private volatile int mConnection;
+	private int mQueuedConnection;
+	private Thread mSenderThread;
+	private volatile Selector mSelector;
+	private volatile boolean mRequestStop;
+	private volatile long mStopDeadlineNs;
+	// statistics
+	private volatile long mMaxQueuedBytes;
+	private volatile long mSentBytes;
+	private volatile long mSentPackets;
+	private volatile long mTotalLatencyNs;
+	private final AtomicLong mDroppedFrames = new AtomicLong();
+	private final AtomicLong mDroppedNonReferenceFrames = new AtomicLong();
+	private volatile boolean mIsConnected;
+
+	/**
+	 * @param transport TRANSPORT_TCP(connects to the address) or TRANSPORT_UDP(sends to the address)
+	 */
+	public LiveStreamer(final int transport, final InetSocketAddress address) {
+		if ((transport != TRANSPORT_TCP) && (transport != TRANSPORT_UDP))
+			throw new IllegalArgumentException("unknown transport:" + transport);
+		mTransport = transport;
+		mAddress = address;
+	}
+
+	/**
+	 * @param bytes maximum bytes waiting to be sent, should be set before #start
+	 */
+	public void setQueueLimit(final int bytes) {
+		if (bytes < MIN_BUFFER_SIZE)
+			throw new IllegalArgumentException("too small queue limit:" + bytes);
+		mQueueLimitBytes = bytes;
+	}
+
+	/**
+	 * tracks should be added in the order of MediaMuxer#addTrack so that the track indices match
+	 * @param mime           "video/avc" or "video/hevc"
+	 * @param parameterSets  csd-0(, csd-1) of the output format
+	 * @return track index
+	 */
+	@Override
+	public synchronized int addVideoTrack(final String mime, final ByteBuffer... parameterSets) {
+		if (mSenderThread != null)
+			throw new IllegalStateException("already started");
+		if (mVideoTrack >= 0)
+			throw new IllegalStateException("video track already added");
+		if (MediaVideoEncoder.MIME_AVC.equals(mime)) {
+			mVideoStreamType = TsPacketizer.STREAM_TYPE_H264;
+		} else if (MediaVideoEncoder.MIME_HEVC.equals(mime)) {
+			mVideoStreamType = TsPacketizer.STREAM_TYPE_HEVC;
+		} else {
+			throw new IllegalArgumentException("unsupported mime type:" + mime);
+		}
+		mVideoConfig = parameterSets;
+		mVideoTrack = mTrackCount++;
+		return mVideoTrack;
+	}
+
+	/**
+	 * @param audioSpecificConfig csd-0 of the AAC output format
+	 * @return track index
+	 */
+	@Override
+	public synchronized int addAudioTrack(final ByteBuffer audioSpecificConfig) {
+		if (mSenderThread != null)
+			throw new IllegalStateException("already started");
+		if (mAudioTrack >= 0)
+			throw new IllegalStateException("audio track already added");
+		mAudioConfig = audioSpecificConfig;
+		mAudioTrack = mTrackCount++;
+		return mAudioTrack;
+	}
+
+	/**
+	 * start the sender thread, the connection is made(and remade when lost) on the sender thread
+	 */
+	public synchronized void start() {
+		if (mSenderThread != null)
+			throw new IllegalStateException("already started");
+		mPacketizer = new TsPacketizer(mVideoTrack >= 0 ? mVideoStreamType : 0, mAudioTrack >= 0);
+		if (mVideoConfig != null) {
+			mPacketizer.setVideoConfig(mVideoConfig);
+		}
+		if (mAudioConfig != null) {
+			mPacketizer.setAudioConfig(mAudioConfig);
+		}
+		for (int i = 0; i < POOL_SIZE; i++) {
+			final Packet packet = new Packet();
+			packet.buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE);
+			mPool.offer(packet);
+		}
+		mSenderThread = new Thread(mSenderTask, TAG);
+		mSenderThread.start();
+	}
+
+	/**
+	 * stop after sending queued packets(for STOP_TIMEOUT_MS at most), returns immediately.
+	 * a write waiting for a stalled receiver gives up at the same time
+	 */
+	public void stop() {
+		mStopDeadlineNs = System.nanoTime() + STOP_TIMEOUT_MS * 1000000L;
+		mRequestStop = true;
+		final Thread thread = mSenderThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		final Selector selector = mSelector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * wait for the sender thread to finish after #stop
+	 */
+	public void join(final long timeoutMs) throws InterruptedException {
+		final Thread thread = mSenderThread;
+		if (thread != null) {
+			thread.join(timeoutMs);
+		}
+	}
+
+	/**
+	 * packetize and queue an encoded packet, never blocks.
+	 * video and audio encoder threads can call this at the same time
+	 * @param isKeyFrame ignored for audio
+	 * @return false if the packet is dropped
+	 */
+	@Override
+	public synchronized boolean write(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) {
+
+		if ((mSenderThread == null) || mRequestStop || (size <= 0)) return false;
+		final boolean isVideo = trackIndex == mVideoTrack;
+		if (!isVideo && (trackIndex != mAudioTrack)) return false;
+		final long queued = mQueuedBytes.get();
+		final int connection = mConnection;
+		if (connection != mQueuedConnection) {
+			// the receiver needs a key frame to start decoding
+			mQueuedConnection = connection;
+			mDropUntilKeyFrame = true;
+			mKeyFrameDue = true;
+		}
+		if (isVideo) {
+			if (mDropUntilKeyFrame && !isKeyFrame) {
+				mDroppedFrames.incrementAndGet();
+				return false;
+			}
+			if (queued >= mQueueLimitBytes) {
+				mDropUntilKeyFrame = true;
+				mDroppedFrames.incrementAndGet();
+				if (DEBUG) Platform.logV(TAG, "queue full, drop video until the next key frame");
+				return false;
+			}
+			mDropUntilKeyFrame = false;
+			if (isKeyFrame) {
+				mKeyFrameDue = false;
+			}
+			if ((queued >= mQueueLimitBytes / 2) && !isKeyFrame
+				&& isNonReference(buf, offset, size, mVideoStreamType == TsPacketizer.STREAM_TYPE_HEVC)) {
+				mDroppedFrames.incrementAndGet();
+				mDroppedNonReferenceFrames.incrementAndGet();
+				return false;
+			}
+		} else if (queued >= mQueueLimitBytes) {
+			mDroppedFrames.incrementAndGet();
+			return false;
+		}
+		final Packet packet = obtain(mPacketizer.getMaxOutputSize(size));
+		final ByteBuffer out = packet.buffer;
+		out.clear();
+		if (isVideo) {
+			mPacketizer.writeVideo(buf, offset, size, presentationTimeUs, isKeyFrame, out);
+		} else {
+			mPacketizer.writeAudio(buf, offset, size, presentationTimeUs, out);
+		}
+		out.flip();
+		packet.enqueueNs = System.nanoTime();
+		packet.connection = connection;
+		final long total = mQueuedBytes.addAndGet(out.remaining());
+		if (total > mMaxQueuedBytes) {
+			mMaxQueuedBytes = total;
+		}
+		mQueue.offer(packet);
+		mQueueDepth.incrementAndGet();
+		LockSupport.unpark(mSenderThread);
+		return true;
+	}
+
+	/**
+	 * whether the video encoder should make a key frame for a new connection, true only once per connection.
+	 * call after #write of a video packet
+	 */
+	public synchronized boolean isKeyFrameDue() {
+		final boolean result = mKeyFrameDue && mDropUntilKeyFrame;
+		mKeyFrameDue = false;
+		return result;
+	}
+
+//********************************************************************************
+// statistics
+	/**
+	 * @return number of packets(access units/audio frames) waiting to be sent
+	 */
+	public int getQueueDepth() {
+		return mQueueDepth.get();
+	}
+
+	public long getQueuedBytes() {
+		return mQueuedBytes.get();
+	}
+
+	public long getMaxQueuedBytes() {
+		return mMaxQueuedBytes;
+	}
+
+	public long getSentBytes() {
+		return mSentBytes;
+	}
+
+	/**
+	 * @return all frames dropped by congestion(including non-reference frames) or discarded while not connected
+	 */
+	public long getDroppedFrameCount() {
+		return mDroppedFrames.get();
+	}
+
+	public long getDroppedNonReferenceFrameCount() {
+		return mDroppedNonReferenceFrames.get();
+	}
+
+	/**
+	 * @return average time from queueing to the end of sending [usec]
+	 */
+	public long getAverageSendLatencyUs() {
+		final long n = mSentPackets;
+		return n > 0 ? mTotalLatencyNs / n / 1000L : 0;
+	}
+
+	public boolean isConnected() {
+		return mIsConnected;
+	}
+
+//********************************************************************************
+	/**
+	 * @return true if no NAL unit of the access unit is referenced by other frames
+	 */
+	/*package*/ static boolean isNonReference(final ByteBuffer buf, final int offset, final int size, final boolean isHevc) {
+		final int end = offset + size;
+		boolean hasSlice = false;
+		for (int i = offset; i + 3 < end; i++) {
+			if ((buf.get(i) != 0) || (buf.get(i + 1) != 0) || (buf.get(i + 2) != 1)) continue;
+			final int header = buf.get(i + 3) & 0xff;
+			if (isHevc) {
+				final int type = (header >> 1) & 0x3f;
+				if (type <= 31) {
+					// VCL, sub-layer non-reference pictures have even types up to RSV_VCL_N14
+					if (((type & 1) != 0) || (type > 14)) return false;
+					hasSlice = true;
+				}
+			} else {
+				final int type = header & 0x1f;
+				if ((type >= 1) && (type <= 5)) {
+					if ((header & 0x60) != 0) return false;	// nal_ref_idc
+					hasSlice = true;
+				}
+			}
+			i += 3;
+		}
+		return hasSlice;
+	}
+
+	private Packet obtain(final int size) {
+		Packet packet = mPool.poll();
+		if (packet == null) {
+			packet = new Packet();
+		}
+		if ((packet.buffer == null) || (packet.buffer.capacity() < size)) {
+			packet.buffer = ByteBuffer.allocateDirect(Math.max(size, MIN_BUFFER_SIZE));
+		}
+		return packet;
+	}
+
+	private final Runnable mSenderTask = new Runnable() {
+		@Override
+		public void run() {
+			Platform.registerIoThread(new PipelineScheduler.QueueDepthSource() {
+				@Override
+				public int getQueueDepth() {
+					return mQueueDepth.get();
+				}
+			});
+			SocketChannel tcp = null;
+			SelectionKey key = null;
+			DatagramChannel udp = null;
+			int connection = 0;
+			long nextConnectMs = 0;
+			try {
+				mSelector = Selector.open();
+				for (;;) {
+					if ((tcp == null) && (udp == null) && !mRequestStop
+						&& (System.currentTimeMillis() >= nextConnectMs)) {
+						try {
+							if (mTransport == TRANSPORT_TCP) {
+								final SocketChannel channel = SocketChannel.open();
+								try {
+									channel.socket().connect(mAddress, CONNECT_TIMEOUT_MS);
+									channel.socket().setTcpNoDelay(true);
+									channel.configureBlocking(false);
+									key = channel.register(mSelector, SelectionKey.OP_WRITE);
+								} catch (final IOException e) {
+									close(channel);
+									throw e;
+								}
+								tcp = channel;
+							} else {
+								udp = DatagramChannel.open();
+								udp.connect(mAddress);
+							}
+							connection = ++mConnection;
+							mIsConnected = true;
+							Platform.logI(TAG, "connected to " + mAddress);
+						} catch (final IOException e) {
+							Platform.logW(TAG, "failed to connect " + mAddress + ":" + e);
+							nextConnectMs = System.currentTimeMillis() + RECONNECT_INTERVAL_MS;
+						}
+					}
+					final Packet packet = mQueue.poll();
+					if (packet == null) {
+						if (mRequestStop) break;
+						LockSupport.parkNanos(this, PARK_NS);
+						continue;
+					}
+					final int bytes = packet.buffer.remaining();
+					boolean sent = false;
+					// packets are discarded while not connected and when queued for the previous connection
+					if (packet.connection == connection) {
+						try {
+							if (tcp != null) {
+								writeFully(tcp, key, packet.buffer);
+								sent = true;
+							} else if (udp != null) {
+								sendDatagrams(udp, packet.buffer);
+								sent = true;
+							}
+						} catch (final IOException e) {
+							Platform.logW(TAG, "connection lost:" + e);
+							mIsConnected = false;
+							close(tcp);
+							close(udp);
+							tcp = null;
+							key = null;
+							udp = null;
+							connection = 0;
+							nextConnectMs = System.currentTimeMillis() + RECONNECT_INTERVAL_MS;
+						}
+					}
+					if (sent) {
+						mSentBytes += bytes;
+						mSentPackets++;
+						mTotalLatencyNs += System.nanoTime() - packet.enqueueNs;
+					} else {
+						mDroppedFrames.incrementAndGet();
+					}
+					mQueuedBytes.addAndGet(-bytes);
+					mQueueDepth.decrementAndGet();
+					mPool.offer(packet);
+				}
+			} catch (final IOException e) {
+				Platform.logE(TAG, "failed to open selector", e);
+			} finally {
+				mIsConnected = false;
+				close(tcp);
+				close(udp);
+				closeSelector();
+				mQueue.clear();
+				mPool.clear();
+				Platform.unregisterThread();
+			}
+			Platform.logI(TAG, "finished:sent=" + mSentBytes + " bytes,dropped frames=" + mDroppedFrames.get()
+				+ ",max queued=" + mMaxQueuedBytes + " bytes");
+		}
+	};
+
+	/**
+	 * @throws SocketTimeoutException the receiver took nothing for WRITE_TIMEOUT_MS, or #stop timed out
+	 */
+	private void writeFully(final SocketChannel channel, final SelectionKey key, final ByteBuffer buf)
+		throws IOException {
+
+		while (buf.hasRemaining()) {
+			if (channel.write(buf) > 0) continue;
+			final long deadlineNs = System.nanoTime() + WRITE_TIMEOUT_MS * 1000000L;
+			for (;;) {
+				final long endNs = mRequestStop ? Math.min(deadlineNs, mStopDeadlineNs) : deadlineNs;
+				final long remainingMs = (endNs - System.nanoTime()) / 1000000L;
+				if (remainingMs <= 0)
+					throw new SocketTimeoutException(mRequestStop ? "stopped while the receiver stalls"
+						: "no progress for " + WRITE_TIMEOUT_MS + "ms");
+				final int selected = key.selector().select(remainingMs);
+				key.selector().selectedKeys().clear();
+				// 0 when #stop woke up the selector
+				if (selected > 0) break;
+			}
+		}
+	}
+
+	private static void sendDatagrams(final DatagramChannel channel, final ByteBuffer buf) throws IOException {
+		final int limit = buf.limit();
+		while (buf.position() < limit) {
+			buf.limit(Math.min(limit, buf.position() + UDP_PAYLOAD_SIZE));
+			channel.write(buf);
+			buf.limit(limit);
+		}
+	}
+
+	private void closeSelector() {
+		final Selector selector = mSelector;
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static void close(final Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -26,13 +26,13 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 public class MediaAudioEncoder extends MediaEncoder {
 	private static final boolean DEBUG = false;	// TODO set false on release
@@ -43,8 +43,33 @@ public class MediaAudioEncoder extends MediaEncoder {
     private static final int BIT_RATE = 64000;
 	public static final int SAMPLES_PER_FRAME = 1024;	// AAC, bytes/frame/channel
 	public static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+	private static final int BYTES_PER_SAMPLE = 2;	// 16bit PCM, mono
+	/**
+	 * one AAC frame(1024 samples), AudioRecord fills the codec input buffer up to this size
+	 */
+	private static final int AAC_FRAME_BYTES = SAMPLES_PER_FRAME * BYTES_PER_SAMPLE;
+	/**
+	 * wake up the encoder thread once for this number of frames(about 93msec)
+	 */
+	private static final int DRAIN_BATCH_FRAMES = 4;
+	private static final int DEFAULT_BUFFER_DEPTH_MS = 500;
+	private static final long PARK_NS = 5 * 1000000L;
+	/**
+	 * on stop, PCM left in the ring is fed to the codec within this time, the rest is dropped
+	 */
+	private static final long STOP_DRAIN_TIMEOUT_MS = 1000;
 
     private AudioThread mAudioThread = null;
+    private EncodeThread mEncodeThread = null;
+    /**
+     * PCM frames captured but not yet passed to the codec
+     */
+    private PcmRingBuffer mRingBuffer;
+    /**
+     * AudioThread finished, nothing is written to the ring any more
+     */
+    private volatile boolean mCaptureFinished;
+    private int mBufferDepthMs = DEFAULT_BUFFER_DEPTH_MS;
 
 	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
 		super(muxer, listener);
@@ -56,22 +81,26 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
+        final CodecCapabilityCache.CodecEntry audioCodecInfo
+        	= CodecCapabilityCache.getInstance().findEncoder(MIME_TYPE, false);
         if (audioCodecInfo == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo);
 
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
 		audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
 		audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+		// AudioRecord reads one AAC frame into each input buffer
+		audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, AAC_FRAME_BYTES);
 //		audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = MediaCodec.createByCodecName(audioCodecInfo.name);
+        setupCodecCallback();
         mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
@@ -89,14 +118,78 @@ public class MediaAudioEncoder extends MediaEncoder {
 		super.startRecording();
 		// create and execute audio capturing thread using internal mic
 		if (mAudioThread == null) {
+			final int frames = (int)((long)mBufferDepthMs * SAMPLE_RATE / 1000 / SAMPLES_PER_FRAME) + 1;
+			mRingBuffer = new PcmRingBuffer(AAC_FRAME_BYTES, frames);
+			mCaptureFinished = false;
+			mEncodeThread = new EncodeThread();
 	        mAudioThread = new AudioThread();
+			mEncodeThread.start();
 			mAudioThread.start();
 		}
 	}
 
+	/**
+	 * set how much audio can wait for the codec before the capture starts dropping it,
+	 * should be called before recording starts
+	 * @param depthMs [msec]
+	 */
+	public void setBufferDepthMs(final int depthMs) {
+		if (depthMs <= 0) throw new IllegalArgumentException("depthMs should be positive:" + depthMs);
+		mBufferDepthMs = depthMs;
+	}
+
+	/**
+	 * @return bitrate of the AAC encoder [bps]
+	 */
+	public int getBitrate() {
+		return BIT_RATE;
+	}
+
+	/**
+	 * @return number of captured frames dropped because the codec did not keep up
+	 */
+	public long getOverflowFrameCount() {
+		final PcmRingBuffer ring = mRingBuffer;
+		return ring != null ? ring.getOverflowFrames() : 0;
+	}
+
+	/**
+	 * EncodeThread feeds the PCM left in the ring and queues EOS after it,
+	 * so no input is queued after EOS. output is drained while waiting(synchronous mode)
+	 */
+	@Override
+	protected void signalEndOfInputStream() {
+		final EncodeThread thread = mEncodeThread;
+		if (thread == null) {
+			super.signalEndOfInputStream();
+			return;
+		}
+		LockSupport.unpark(thread);
+		while (thread.isAlive()) {
+			drain();
+			try {
+				thread.join(TIMEOUT_USEC / 1000);
+			} catch (final InterruptedException e) {
+				break;
+			}
+		}
+	}
+
 	@Override
     protected void release() {
+		// EncodeThread uses the codec, it exits when the codec stops or after EOS
+		final EncodeThread thread = mEncodeThread;
+		if (thread != null) {
+			mIsCapturing = false;
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				Log.w(TAG, "release:interrupted");
+			}
+		}
 		mAudioThread = null;
+		mEncodeThread = null;
 		super.release();
     }
 
@@ -110,12 +203,14 @@ public class MediaAudioEncoder extends MediaEncoder {
 
 	/**
 	 * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-	 * and write them to the MediaCodec encoder
+	 * and write them to the ring buffer
 	 */
     private class AudioThread extends Thread {
     	@Override
     	public void run() {
     		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+    		// blocking AudioRecord#read needs its own thread, registered for the statistics
+    		PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_CAPTURE, null);
     		try {
 				final int min_buffer_size = AudioRecord.getMinBufferSize(
 					SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
@@ -141,26 +236,46 @@ public class MediaAudioEncoder extends MediaEncoder {
 		            try {
 						if (mIsCapturing) {
 		    				if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-							final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
+							final PcmRingBuffer ring = mRingBuffer;
+							// discarded data while pausing or when the ring is full
+							final ByteBuffer scratch = ByteBuffer.allocateDirect(AAC_FRAME_BYTES);
 			                int readBytes;
+			                // capture time of the first sample and number of samples read after that,
+			                // presentationTimeUs is derived from the sample count instead of the time of reading
+			                long anchorNs = -1;
+			                long samples = 0;
 			                audioRecord.startRecording();
 			                try {
 					    		for (; mIsCapturing && !mRequestStop && !mIsEOS;) {
-					    			// read audio data from internal mic
-									if (!isPause){
-
-										buf.clear();
-										readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
-										if (readBytes > 0) {
-											// set audio data to encoder
-											buf.position(readBytes);
-											buf.flip();
-											encode(buf, readBytes, getPTSUs());
-											frameAvailableSoon();
-										}
+									if (isPause) {
+										// keep reading so that old data is not encoded after resume
+										scratch.clear();
+										audioRecord.read(scratch, AAC_FRAME_BYTES);
+										// re-anchor after resume, pause offset is applied by #toRecordingTimeNs
+										anchorNs = -1;
+										continue;
+									}
+					    			// read audio data from internal mic into the ring, never waits for the codec
+									final ByteBuffer slot = ring.acquireWrite();
+									// AudioRecord writes from the start address of the direct buffer
+									readBytes = audioRecord.read(slot != null ? slot : scratch, AAC_FRAME_BYTES);
+									if (readBytes <= 0) continue;
+									final int readSamples = readBytes / BYTES_PER_SAMPLE;
+									if (anchorNs < 0) {
+										// the data just read was captured before now
+										anchorNs = System.nanoTime() - samplesToNs(readSamples);
+										samples = 0;
+									}
+									final long ptsUs = toRecordingTimeNs(anchorNs + samplesToNs(samples)) / 1000L;
+									// dropped samples also advance the clock so that later timestamps stay correct
+									samples += readSamples;
+									if (slot != null) {
+										ring.commitWrite(readBytes, ptsUs);
+										LockSupport.unpark(mEncodeThread);
+									} else {
+										ring.recordOverflow(readBytes);
 									}
 					    		}
-			    				//frameAvailableSoon();
 			                } finally {
 								Log.e(TAG,"audio end");
 			                	audioRecord.stop();
@@ -175,38 +290,98 @@ public class MediaAudioEncoder extends MediaEncoder {
     		} catch (final Exception e) {
     			Log.e(TAG, "AudioThread#run", e);
     		}
+			mCaptureFinished = true;
+			PipelineScheduler.getInstance().unregisterCurrentThread();
 			if (DEBUG) Log.v(TAG, "AudioThread:finished");
     	}
     }
 
-    /**
-     * select the first codec that match a specific MIME type
-     * @param mimeType
-     * @return
-     */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-    	if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
-    	MediaCodecInfo result = null;
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {	// skipp decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-            	if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                	if (result == null) {
-                		result = codecInfo;
-               			break LOOP;
-                	}
-                }
-            }
-        }
-   		return result;
-    }
+	/**
+	 * Thread to feed PCM data in the ring buffer to the MediaCodec encoder,
+	 * this may wait for codec input buffers without stalling AudioThread.
+	 * on stop it feeds everything captured before the stop, then queues EOS itself
+	 */
+	private class EncodeThread extends Thread {
+		private EncodeThread() {
+			super("AudioEncodeThread");
+		}
+
+		@Override
+		public void run() {
+			final PcmRingBuffer ring = mRingBuffer;
+			PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_CODEC,
+				new PipelineScheduler.QueueDepthSource() {
+					@Override
+					public int getQueueDepth() {
+						return ring.size();
+					}
+				});
+			int pendingFrames = 0;
+			long stopLimitMs = 0;
+			try {
+				for (; mIsCapturing && !mIsEOS;) {
+					if (mRequestStop) {
+						if (stopLimitMs == 0) {
+							stopLimitMs = System.currentTimeMillis() + STOP_DRAIN_TIMEOUT_MS;
+						} else if (System.currentTimeMillis() > stopLimitMs) {
+							Log.w(TAG, "EncodeThread:drop " + ring.size() + " frames on stop");
+							break;
+						}
+					}
+					final ByteBuffer src = ring.peekRead();
+					if (src == null) {
+						if (mRequestStop && mCaptureFinished) {
+							// everything captured is queued
+							break;
+						}
+						if (pendingFrames > 0) {
+							pendingFrames = 0;
+							frameAvailableSoon();
+						}
+						LockSupport.parkNanos(this, PARK_NS);
+						continue;
+					}
+					final int index = dequeueInputBuffer();
+					if (index < 0) continue;
+					final ByteBuffer inputBuffer = getInputBuffer(index);
+					// a frame is split only if the codec input buffer is smaller than KEY_MAX_INPUT_SIZE
+					final long ptsUs = ring.peekPresentationTimeUs()
+						+ samplesToNs(src.position() / BYTES_PER_SAMPLE) / 1000L;
+					final int length = Math.min(src.remaining(), inputBuffer.remaining());
+					final int limit = src.limit();
+					src.limit(src.position() + length);
+					inputBuffer.put(src);
+					src.limit(limit);
+					if (!src.hasRemaining()) {
+						ring.releaseRead();
+					}
+					queueInputBuffer(index, length, ptsUs);
+					if (++pendingFrames >= DRAIN_BATCH_FRAMES) {
+						pendingFrames = 0;
+						frameAvailableSoon();
+					}
+				}
+				if (pendingFrames > 0) {
+					frameAvailableSoon();
+				}
+				if (mRequestStop && mIsCapturing && !mIsEOS) {
+					// after the last input from this thread
+					encode(null, 0, getPTSUs());
+				}
+			} catch (final Exception e) {
+				Log.e(TAG, "EncodeThread#run", e);
+			}
+			if (ring.getOverflowFrames() > 0) {
+				Log.w(TAG, String.format("audio overflow:%d frames(%d ms),max fill=%d/%d",
+					ring.getOverflowFrames(), samplesToNs(ring.getOverflowBytes() / BYTES_PER_SAMPLE) / 1000000L,
+					ring.getMaxFill(), ring.capacity()));
+			}
+			PipelineScheduler.getInstance().unregisterCurrentThread();
+		}
+	}
+
+	private static long samplesToNs(final long samples) {
+		return samples * 1000000000L / SAMPLE_RATE;
+	}
 
 }
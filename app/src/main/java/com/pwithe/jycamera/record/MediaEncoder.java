@@ -22,13 +22,19 @@ package com.pwithe.jycamera.record;
  * All files in the folder are under this Apache License, Version 2.0.
 */
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public abstract class MediaEncoder implements Runnable {
 	private static final boolean DEBUG = false;	// TODO set false on release
@@ -37,6 +43,10 @@ public abstract class MediaEncoder implements Runnable {
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
+	/**
+	 * maximum time to wait for EOS from the codec in asynchronous mode
+	 */
+	private static final long EOS_TIMEOUT_MS = 1000;
 
 	public interface MediaEncoderListener {
 		public void onPrepared(MediaEncoder encoder);
@@ -63,7 +73,11 @@ public abstract class MediaEncoder implements Runnable {
     /**
      * Flag the indicate the muxer is running
      */
-    protected boolean mMuxerStarted;
+    protected volatile boolean mMuxerStarted;
+    /**
+     * Flag that indicate the codec failed(asynchronous mode), no more output and no EOS come
+     */
+    private volatile boolean mHasCodecError;
 
     /**
      * pause
@@ -89,6 +103,21 @@ public abstract class MediaEncoder implements Runnable {
 
     protected final MediaEncoderListener mListener;
 
+    /**
+     * request/actual asynchronous(MediaCodec#setCallback) mode
+     */
+    private boolean mRequestAsync;
+    protected boolean mIsAsync;
+    /**
+     * input buffer indices notified by MediaCodec in asynchronous mode
+     */
+    private final LinkedBlockingQueue<Integer> mInputIndices = new LinkedBlockingQueue<Integer>();
+    /**
+     * output buffers held until the muxer starts(or recording resumes),
+     * only accessed on the callback thread
+     */
+    private final ArrayDeque<PendingOutput> mPendingOutputs = new ArrayDeque<PendingOutput>();
+
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
     	if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
     	if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
@@ -118,6 +147,10 @@ public abstract class MediaEncoder implements Runnable {
 		isPause = false;
 		oncePauseTime = System.nanoTime() - oncePauseTime;
 		pauseDelayTime += oncePauseTime;
+		if (mIsAsync) {
+			// write output buffers held while pausing
+			getCallbackHandler().post(mFlushTask);
+		}
 	}
 
     public String getOutputPath() {
@@ -135,18 +168,48 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop || isPause) {
                 return false;
             }
-            mRequestDrain++;
-            mSync.notifyAll();
+            if (!mIsAsync) {
+            	// in asynchronous mode output buffers come through the callback,
+            	// no need to wake up the encoder thread
+	            mRequestDrain++;
+	            mSync.notifyAll();
+            }
         }
         return true;
     }
 
+    /**
+     * use MediaCodec#setCallback instead of polling dequeueInputBuffer/dequeueOutputBuffer.
+     * should be called before #prepare. this is ignored on API < 23,
+     * because MediaCodec#setCallback(Callback, Handler) is needed to run on the shared callback thread.
+     * @param async
+     */
+    public void setAsyncMode(final boolean async) {
+    	mRequestAsync = async;
+    }
+
+    /**
+     * @return true if this encoder actually runs in asynchronous mode
+     */
+    public boolean isAsyncMode() {
+    	return mIsAsync;
+    }
+
     /**
      * encoding loop on private thread
      */
 	@Override
 	public void run() {
 //		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+        PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_CODEC,
+        	new PipelineScheduler.QueueDepthSource() {
+        		@Override
+        		public int getQueueDepth() {
+        			synchronized (mSync) {
+        				return mRequestDrain;
+        			}
+        		}
+        	});
         synchronized (mSync) {
             mRequestStop = false;
     		mRequestDrain = 0;
@@ -163,11 +226,13 @@ public abstract class MediaEncoder implements Runnable {
         			mRequestDrain--;
         	}
 	        if (localRequestStop) {
-	           	drain();
-	           	// request stop recording
-	           	signalEndOfInputStream();
-	           	// process output data again for EOS signale
-	           	drain();
+	        	if (mIsCapturing && !mHasCodecError) {
+		           	drain();
+		           	// request stop recording
+		           	signalEndOfInputStream();
+		           	// process output data again for EOS signale
+		           	drain();
+	        	}
 	           	// release all related objects
 	           	release();
 	           	break;
@@ -185,6 +250,7 @@ public abstract class MediaEncoder implements Runnable {
         	}
         } // end of while
 		if (DEBUG) Log.d(TAG, "Encoder thread exiting");
+		PipelineScheduler.getInstance().unregisterCurrentThread();
         synchronized (mSync) {
         	mRequestStop = true;
             mIsCapturing = false;
@@ -226,6 +292,20 @@ public abstract class MediaEncoder implements Runnable {
 		}
 	}
 
+	/**
+	 * release the encoder prepared but never started(warm standby)
+	 */
+	/*package*/ void cancel() {
+		if (DEBUG) Log.v(TAG, "cancel");
+		synchronized (mSync) {
+			if (mIsCapturing || mRequestStop) {
+				return;
+			}
+			mRequestStop = true;
+			mSync.notifyAll();
+		}
+	}
+
 //********************************************************************************
 //********************************************************************************
     /**
@@ -259,6 +339,15 @@ public abstract class MediaEncoder implements Runnable {
        		}
         }
         mBufferInfo = null;
+        if (mIsAsync) {
+        	mInputIndices.clear();
+        	getCallbackHandler().post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mPendingOutputs.clear();
+        		}
+        	});
+        }
     }
 
     protected void signalEndOfInputStream() {
@@ -278,6 +367,10 @@ public abstract class MediaEncoder implements Runnable {
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
     	if (!mIsCapturing) return;
 		if (isPause) return;
+		if (mIsAsync) {
+			encodeAsync(buffer, length, presentationTimeUs);
+			return;
+		}
         final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
         while (mIsCapturing) {
 	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
@@ -308,11 +401,65 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * dequeue an input buffer of the codec so that the caller fills it directly(without intermediate copy),
+     * the buffer should be returned by #queueInputBuffer.
+     * this waits at most TIMEOUT_USEC, the caller decides whether to try again(e.g. to feed remaining input on stopping)
+     * @return index of the input buffer, -1 if no buffer is free now or the codec is stopped
+     */
+    protected int dequeueInputBuffer() {
+    	if (!mIsCapturing) return -1;
+    	if (mIsAsync) {
+    		final Integer index;
+    		try {
+    			index = mInputIndices.poll(TIMEOUT_USEC, TimeUnit.MICROSECONDS);
+    		} catch (final InterruptedException e) {
+    			return -1;
+    		}
+    		return index != null ? index : -1;
+    	}
+    	final int index = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+    	return index >= 0 ? index : -1;
+    }
+
+    /**
+     * @return the input buffer of the index(cleared), returned by #dequeueInputBuffer
+     */
+    @SuppressWarnings("deprecation")
+    protected ByteBuffer getInputBuffer(final int index) {
+    	final ByteBuffer result;
+    	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+    		result = getInputBufferV21(index);
+    	} else {
+    		result = mMediaCodec.getInputBuffers()[index];
+    	}
+    	result.clear();
+    	return result;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getInputBufferV21(final int index) {
+    	return mMediaCodec.getInputBuffer(index);
+    }
+
+    /**
+     * @param length bytes written from the start of the buffer, 0 to return the buffer without data
+     */
+    protected void queueInputBuffer(final int index, final int length, final long presentationTimeUs) {
+    	mMediaCodec.queueInputBuffer(index, 0, length, presentationTimeUs, 0);
+    }
+
     /**
      * drain encoded data and write them to muxer
      */
     protected void drain() {
     	if (mMediaCodec == null) return;
+		if (mIsAsync) {
+			// output buffers are processed on the callback thread,
+			// just wait for EOS when stopping
+			if (mIsEOS) awaitEndOfStream();
+			return;
+		}
 		if (isPause)return;
         ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
         int encoderStatus, count = 0;
@@ -386,11 +533,10 @@ LOOP:	while (mIsCapturing) {
                     	// muxer is not ready...this will prrograming failure.
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
+                    // write encoded data to muxer, presentationTimeUs is the capture time set on input
+                   	mBufferInfo.presentationTimeUs = nextOutputPTSUs(mBufferInfo.presentationTimeUs);
                    	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
                    	//Log.e(TAG,"thread -->"+Thread.currentThread().getName()+"-- id-->"+Thread.currentThread().getId());
-					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
                 // return buffer to encoder
                 mMediaCodec.releaseOutputBuffer(encoderStatus, false);
@@ -404,24 +550,280 @@ LOOP:	while (mIsCapturing) {
         }
     }
 
+//********************************************************************************
+//********************************************************************************
+	/**
+	 * @return handler of the codec stage thread shared by all encoders for MediaCodec callbacks
+	 */
+	private static Handler getCallbackHandler() {
+		return PipelineScheduler.getInstance().getHandler(PipelineScheduler.STAGE_CODEC);
+	}
+
+	/**
+	 * should be called by sub class after creating MediaCodec and before MediaCodec#configure
+	 */
+	protected void setupCodecCallback() {
+		mIsAsync = mRequestAsync && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+		if (mIsAsync) {
+			setCallback();
+		}
+		if (DEBUG) Log.v(TAG, "setupCodecCallback:async=" + mIsAsync);
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private void setCallback() {
+		mInputIndices.clear();
+		mMediaCodec.setCallback(new CodecCallback(), getCallbackHandler());
+	}
+
+	/**
+	 * called by the muxer when all tracks are added and it starts
+	 */
+	/*package*/ void onMuxerStarted() {
+		if (mIsAsync) {
+			getCallbackHandler().post(mFlushTask);
+		}
+	}
+
+	private static final class PendingOutput {
+		private final int index;
+		private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+		private PendingOutput(final int index, final MediaCodec.BufferInfo info) {
+			this.index = index;
+			this.info.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private final class CodecCallback extends MediaCodec.Callback {
+		@Override
+		public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+			mInputIndices.offer(index);
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+			try {
+				if (!mPendingOutputs.isEmpty() || !canWriteOutput()) {
+					// keep the order, write them when the muxer starts or recording resumes
+					mPendingOutputs.add(new PendingOutput(index, info));
+				} else {
+					writeOutput(codec, index, info);
+				}
+			} catch (final IllegalStateException e) {
+				// codec is already released
+				Log.w(TAG, "onOutputBufferAvailable:", e);
+			}
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+			if (DEBUG) Log.v(TAG, "onOutputFormatChanged:" + format);
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (muxer == null) {
+				Log.w(TAG, "muxer is unexpectedly null");
+				return;
+			}
+			if (mMuxerStarted) {	// second time request is error
+				Log.e(TAG, "format changed twice");
+				return;
+			}
+			mTrackIndex = muxer.addTrack(format);
+			mMuxerStarted = true;
+			if (muxer.start()) {
+				flushPendingOutputs();
+			}
+			// otherwise the muxer calls #onMuxerStarted later, never block the shared thread here
+		}
+
+		@Override
+		public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+			if (e.isTransient()) {
+				// resources are temporarily short, the codec keeps running
+				Log.w(TAG, "onError:transient " + e.getDiagnosticInfo());
+				return;
+			}
+			// a recoverable codec could be stopped, configured and started again,
+			// but the muxer track keeps its format, so this recording ends either way
+			Log.e(TAG, "onError:recoverable=" + e.isRecoverable(), e);
+			onCodecError();
+		}
+	}
+
+	/**
+	 * stop recording through the same path as the user does, so the file is finalized and
+	 * the listener and the muxer are notified. The codec sends no EOS any more, so it is not waited for.
+	 */
+	private void onCodecError() {
+		synchronized (mSync) {
+			mHasCodecError = true;
+			mSync.notifyAll();
+		}
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if (muxer != null) {
+			// the other encoder stops too, the muxer finishes after both stopped
+			muxer.stopRecording();
+		}
+		// the muxer may not hold this encoder any more
+		stopRecording();
+	}
+
+	private final Runnable mFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flushPendingOutputs();
+			} catch (final IllegalStateException e) {
+				// codec is already released
+				mPendingOutputs.clear();
+			}
+		}
+	};
+
+	private boolean canWriteOutput() {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		return mMuxerStarted && (muxer != null) && muxer.isStarted() && !isPause;
+	}
+
+	/**
+	 * write held output buffers, should be called on the callback thread
+	 */
+	private void flushPendingOutputs() {
+		final MediaCodec codec = mMediaCodec;
+		if (codec == null) {
+			mPendingOutputs.clear();
+			return;
+		}
+		while (!mPendingOutputs.isEmpty() && canWriteOutput()) {
+			final PendingOutput output = mPendingOutputs.poll();
+			writeOutput(codec, output.index, output.info);
+		}
+	}
+
+	/**
+	 * write one output buffer to the muxer and return it to the codec(callback thread)
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void writeOutput(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			// the format is already passed to the muxer by onOutputFormatChanged
+			info.size = 0;
+		}
+		if ((info.size != 0) && (muxer != null)) {
+			final ByteBuffer encodedData = codec.getOutputBuffer(index);
+			info.presentationTimeUs = nextOutputPTSUs(info.presentationTimeUs);
+			muxer.writeSampleData(mTrackIndex, encodedData, info);
+		}
+		codec.releaseOutputBuffer(index, false);
+		if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			synchronized (mSync) {
+				mIsCapturing = false;
+				mSync.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * queue input data using the buffer index notified by the callback,
+	 * blocks only while the codec has no free input buffer
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void encodeAsync(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		while (mIsCapturing) {
+			final Integer index;
+			try {
+				// timeout only to check mIsCapturing again
+				index = mInputIndices.poll(TIMEOUT_USEC, TimeUnit.MICROSECONDS);
+			} catch (final InterruptedException e) {
+				return;
+			}
+			if (index == null) continue;
+			final ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(index);
+			inputBuffer.clear();
+			if (buffer != null) {
+				inputBuffer.put(buffer);
+			}
+			if (length <= 0) {
+				// send EOS
+				mIsEOS = true;
+				if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+				mMediaCodec.queueInputBuffer(index, 0, 0,
+					presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+			} else {
+				mMediaCodec.queueInputBuffer(index, 0, length,
+					presentationTimeUs, 0);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * wait until the callback thread writes EOS
+	 */
+	private void awaitEndOfStream() {
+		synchronized (mSync) {
+			final long limit = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+			while (mIsCapturing && !mHasCodecError) {
+				final long wait = limit - System.currentTimeMillis();
+				if (wait <= 0) {
+					Log.w(TAG, "timeout waiting EOS");
+					break;
+				}
+				try {
+					mSync.wait(wait);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
     /**
      * previous presentationTimeUs for writing
      */
-	private long prevOutputPTSUs = 0;
+	private long prevOutputPTSUs = -1;
 	/**
-	 * get next encoding presentationTimeUs
+	 * get current time on the recording timeline(pause excluded)
 	 * @return
 	 */
     protected long getPTSUs() {
-		//long result = System.nanoTime() / 1000L;
-		long result = System.nanoTime() ;
-		// presentationTimeUs should be monotonic
-		// otherwise muxer fail to write
-		long time = (result - baseTimeStamp - pauseDelayTime) / 1000;
-		if (time < prevOutputPTSUs){
-			return  prevOutputPTSUs;
-		}
-		return time;
+		return toRecordingTimeNs(System.nanoTime()) / 1000;
     }
 
+	/**
+	 * convert capture time(System.nanoTime base) to the recording timeline.
+	 * pause offset at the time of calling is applied,
+	 * so this should be called when the sample is captured/submitted.
+	 * @param captureTimeNs
+	 * @return
+	 */
+	protected long toRecordingTimeNs(final long captureTimeNs) {
+		return captureTimeNs - baseTimeStamp - pauseDelayTime;
+	}
+
+	/**
+	 * convert presentationTimeUs of encoded data if the input was not stamped by #toRecordingTimeNs
+	 * @param presentationTimeUs presentationTimeUs from the codec
+	 * @return
+	 */
+	protected long adjustOutputPTSUs(final long presentationTimeUs) {
+		return presentationTimeUs;
+	}
+
+	/**
+	 * presentationTimeUs should be strictly increasing otherwise muxer fail to write.
+	 * the timestamps come from capture time, so this only corrects rare jitter by 1usec
+	 * instead of collapsing them onto the previous value.
+	 */
+	private long nextOutputPTSUs(final long presentationTimeUs) {
+		long result = adjustOutputPTSUs(presentationTimeUs);
+		if (result <= prevOutputPTSUs) {
+			result = prevOutputPTSUs + 1;
+		}
+		prevOutputPTSUs = result;
+		return result;
+	}
+
 }
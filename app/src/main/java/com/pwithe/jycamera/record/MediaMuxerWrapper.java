@@ -33,6 +33,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 
@@ -43,11 +44,105 @@ public class MediaMuxerWrapper {
 	private static final String DIR_NAME = "AVRecSample";
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
+	/**
+	 * a key frame is requested this time before the segment boundary,
+	 * and the first key frame after that starts the new segment
+	 */
+	private static final long SEGMENT_LEAD_US = 100000L;
+	/**
+	 * space made by StorageBudget when recording to one file starts
+	 */
+	private static final long STORAGE_LOOKAHEAD_US = 60 * 1000000L;
+
+	/**
+	 * container format of the output file
+	 */
+	public static final int FORMAT_MPEG_4 = 0;
+	/**
+	 * fragmented MPEG-4 written by FragmentedMp4Writer, playable up to the last fragment
+	 * even if recording is not stopped normally. H.264 and AAC only, falls back to FORMAT_MPEG_4 for other codecs
+	 */
+	public static final int FORMAT_FRAGMENTED_MPEG_4 = 1;
+
+	/**
+	 * called on the writer thread
+	 */
+	public interface SegmentListener {
+		public void onSegmentFinished(String path);
+		public void onSegmentDeleted(String path);
+	}
+
+	/**
+	 * called on the writer thread
+	 */
+	public interface StorageListener {
+		/**
+		 * StorageBudget could not make space for the recording(or its next segment),
+		 * the recording is being stopped. path is the file that was not started
+		 */
+		public void onStorageFull(String path);
+	}
+
 	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
+	private MediaMuxer mMediaMuxer;	// API >= 18
+	/**
+	 * used instead of mMediaMuxer for FORMAT_FRAGMENTED_MPEG_4
+	 */
+	private FragmentedMp4Writer mFragmentedWriter;
+	private long mFragmentDurationUs = FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US;
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
-	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	private volatile MediaEncoder mVideoEncoder, mAudioEncoder;
+	/**
+	 * writes samples on its own thread after the muxer started
+	 */
+	private volatile MuxerWriter mWriter;
+	private final boolean[] mIsVideoTrack = new boolean[2];
+	private int mTrackCount;
+	private volatile String mVideoMimeType;
+	private volatile RecordLatencyProbe mLatencyProbe;
+	/**
+	 * segmented(loop) recording, disabled when mSegmentDurationUs is 0
+	 */
+	private long mSegmentDurationUs;
+	private int mMaxSegmentCount;
+	private long mMaxSegmentBytes;
+	private SegmentListener mSegmentListener;
+	private final MediaFormat[] mTrackFormats = new MediaFormat[2];
+	private int mOrientationHint;
+	private volatile long mSegmentStartUs = -1;
+	private volatile boolean mKeyFrameRequested;
+	private volatile String mSegmentPath;
+	private int mSegmentIndex;
+	/**
+	 * finished segments, oldest first, only accessed on the writer thread
+	 */
+	private final ArrayDeque<File> mSegments = new ArrayDeque<File>();
+	/**
+	 * pre-event recording, packets are kept in memory and written to a file only on #triggerEvent
+	 */
+	private PreEventBuffer mPreEventBuffer;
+	/**
+	 * destination of encoded packets, MuxerWriter or PreEventBuffer
+	 */
+	private volatile EncodedPacketSink mSink;
+	/**
+	 * sends the same packets to the network in addition to the file
+	 */
+	private volatile LiveStreamer mLiveStreamer;
+	/**
+	 * writes the same packets as HLS segments in addition to the file
+	 */
+	private volatile HlsSegmenter mHlsSegmenter;
+	/**
+	 * tracks the recording directory and deletes old recordings before a file(segment) starts
+	 */
+	private volatile StorageBudget mStorageBudget;
+	private volatile StorageListener mStorageListener;
+	/**
+	 * the writer refused to start for lack of space, #getOutputPath has no samples
+	 */
+	private volatile boolean mIsRefused;
 
 	/**
 	 * Constructor
@@ -55,6 +150,13 @@ public class MediaMuxerWrapper {
 	 * @throws IOException
 	 */
 	public MediaMuxerWrapper(String ext) throws IOException {
+		this(ext, FORMAT_MPEG_4);
+	}
+
+	/**
+	 * @param format FORMAT_MPEG_4 or FORMAT_FRAGMENTED_MPEG_4
+	 */
+	public MediaMuxerWrapper(String ext, final int format) throws IOException {
 		if (TextUtils.isEmpty(ext)) ext = ".mp4";
 		try {
 
@@ -63,7 +165,12 @@ public class MediaMuxerWrapper {
 		} catch (final NullPointerException e) {
 			throw new RuntimeException("This app has no permission of writing external storage");
 		}
-		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		if (format == FORMAT_FRAGMENTED_MPEG_4) {
+			mFragmentedWriter = createFragmentedWriter(mOutputPath);
+		} else {
+			mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		}
+		mSegmentPath = mOutputPath;
 		mEncoderCount = mStatredCount = 0;
 		mIsStarted = false;
 	}
@@ -74,6 +181,152 @@ public class MediaMuxerWrapper {
 		return mOutputPath;
 	}
 
+	/**
+	 * split the recording into files of this duration, should be called before recording starts.
+	 * the first segment is written to #getOutputPath, later ones to the same name with "_001", "_002"...
+	 * the switch happens at a requested key frame, the encoders keep running.
+	 * @param durationMs 0 to write one file
+	 * @param maxCount   maximum number of segments kept, older ones are deleted(0: unlimited)
+	 * @param maxBytes   maximum total size of segments kept(0: unlimited)
+	 */
+	public synchronized void setSegmentation(final long durationMs, final int maxCount, final long maxBytes,
+		final SegmentListener listener) {
+
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		if ((durationMs < 0) || (maxCount < 0) || (maxBytes < 0))
+			throw new IllegalArgumentException("negative segment parameter");
+		if ((durationMs > 0) && (mPreEventBuffer != null))
+			throw new IllegalStateException("pre-event buffer is enabled");
+		mSegmentDurationUs = durationMs * 1000L;
+		mMaxSegmentCount = maxCount;
+		mMaxSegmentBytes = maxBytes;
+		mSegmentListener = listener;
+	}
+
+	/**
+	 * keep only the last encoded packets in memory instead of writing #getOutputPath,
+	 * a file is written from #triggerEvent to #finishEvent(or the end of recording).
+	 * should be called before recording starts, the buffer is allocated here.
+	 * @param durationMs    time kept before the trigger
+	 * @param capacityBytes memory for the packets, e.g. (video + audio bitrate) / 8 * duration * 1.5
+	 */
+	public synchronized void setPreEventBuffer(final long durationMs, final int capacityBytes) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		if (mSegmentDurationUs > 0)
+			throw new IllegalStateException("segmentation is enabled");
+		mPreEventBuffer = new PreEventBuffer(durationMs, capacityBytes);
+	}
+
+	/**
+	 * write the buffered packets from the oldest key frame to a new file,
+	 * packets encoded later are appended until #finishEvent
+	 * @return false if an event is already being written
+	 */
+	public synchronized boolean triggerEvent(final String path) throws IOException {
+		if ((mPreEventBuffer == null) || !mIsStarted)
+			throw new IllegalStateException("pre-event recording is not running");
+		if (mPreEventBuffer.isEventRunning()) return false;
+		final MediaMuxer muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		try {
+			muxer.setOrientationHint(mOrientationHint);
+			for (int i = 0; i < mTrackCount; i++) {
+				muxer.addTrack(mTrackFormats[i]);
+			}
+			muxer.start();
+		} catch (final RuntimeException e) {
+			muxer.release();
+			throw e;
+		}
+		if (DEBUG) Log.v(TAG, "triggerEvent:" + path);
+		return mPreEventBuffer.startEvent(wrap(muxer));
+	}
+
+	/**
+	 * close the file of the current event, pre-event buffering continues
+	 */
+	public synchronized void finishEvent() {
+		if (mPreEventBuffer != null)
+			mPreEventBuffer.stopEvent();
+	}
+
+	/**
+	 * send encoded packets also to the streamer(not started yet), should be called before recording starts.
+	 * the tracks are added to the streamer and it is started and stopped with the muxer
+	 */
+	public synchronized void setLiveStreamer(final LiveStreamer streamer) {
+		if (mIsStarted || (mTrackCount > 0))
+			throw new IllegalStateException("muxer already started");
+		mLiveStreamer = streamer;
+	}
+
+	/**
+	 * write encoded packets also as HLS(not started yet), should be called before recording starts.
+	 * the tracks are added to the segmenter and it is started and stopped with the muxer,
+	 * key frames are requested from the video encoder at the segment duration
+	 */
+	public synchronized void setHlsSegmenter(final HlsSegmenter segmenter) {
+		if (mIsStarted || (mTrackCount > 0))
+			throw new IllegalStateException("muxer already started");
+		mHlsSegmenter = segmenter;
+	}
+
+	/**
+	 * report the files of this recording to the budget and make space for them(deleting the oldest recordings)
+	 * before the recording and each segment start. should be called before recording starts
+	 */
+	public void setStorageBudget(final StorageBudget budget) {
+		setStorageBudget(budget, null);
+	}
+
+	/**
+	 * @param listener notified when there is no space even after deleting the oldest recordings,
+	 * the recording stops without starting the file(or the next segment) then
+	 */
+	public synchronized void setStorageBudget(final StorageBudget budget, final StorageListener listener) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		mStorageBudget = budget;
+		mStorageListener = listener;
+	}
+
+	/**
+	 * @return packets dropped by the pre-event buffer for lack of space
+	 */
+	public long getPreEventDroppedCount() {
+		final PreEventBuffer buffer = mPreEventBuffer;
+		return buffer != null ? buffer.getDroppedCount() : 0;
+	}
+
+	/**
+	 * @return true if the output is fragmented MPEG-4(may change to false when a track is not supported)
+	 */
+	public synchronized boolean isFragmented() {
+		return mFragmentedWriter != null;
+	}
+
+	/**
+	 * @param durationMs minimum duration of a fragment of FORMAT_FRAGMENTED_MPEG_4,
+	 * longer fragments have less overhead, shorter ones lose less on a crash
+	 */
+	public synchronized void setFragmentDurationMs(final long durationMs) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		if (durationMs <= 0)
+			throw new IllegalArgumentException("invalid fragment duration:" + durationMs);
+		mFragmentDurationUs = durationMs * 1000L;
+		if (mFragmentedWriter != null)
+			mFragmentedWriter.setFragmentDuration(mFragmentDurationUs);
+	}
+
+	/**
+	 * @return path of the file written now
+	 */
+	public String getCurrentSegmentPath() {
+		return mSegmentPath;
+	}
+
 	public void prepare() throws IOException {
 		if (mVideoEncoder != null)
 			mVideoEncoder.prepare();
@@ -88,19 +341,70 @@ public class MediaMuxerWrapper {
 			mAudioEncoder.startRecording();
 	}
 
+	/**
+	 * also called on the writer thread when the storage is full
+	 */
 	public void stopRecording() {
-		if (mVideoEncoder != null)
-			mVideoEncoder.stopRecording();
+		final MediaEncoder videoEncoder = mVideoEncoder;
+		final MediaEncoder audioEncoder = mAudioEncoder;
 		mVideoEncoder = null;
-		if (mAudioEncoder != null)
-			mAudioEncoder.stopRecording();
 		mAudioEncoder = null;
+		if (videoEncoder != null)
+			videoEncoder.stopRecording();
+		if (audioEncoder != null)
+			audioEncoder.stopRecording();
+	}
+
+	/**
+	 * set rotation of video track, should be called before the muxer starts
+	 * @param degrees 0, 90, 180 or 270
+	 */
+	public synchronized void setOrientationHint(final int degrees) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		if (mFragmentedWriter != null) {
+			mFragmentedWriter.setOrientationHint(degrees);
+		} else {
+			mMediaMuxer.setOrientationHint(degrees);
+		}
+		mOrientationHint = degrees;
 	}
 
 	public synchronized boolean isStarted() {
 		return mIsStarted;
 	}
 
+	/**
+	 * release the encoders and the muxer that were prepared but never started(warm standby),
+	 * the empty output file is deleted
+	 */
+	public synchronized void cancel() {
+		if (mIsStarted || (mStatredCount > 0))
+			throw new IllegalStateException("muxer already started");
+		if (mVideoEncoder != null)
+			mVideoEncoder.cancel();
+		mVideoEncoder = null;
+		if (mAudioEncoder != null)
+			mAudioEncoder.cancel();
+		mAudioEncoder = null;
+		mEncoderCount = 0;
+		try {
+			releaseOutput();
+		} catch (final Exception e) {
+			Log.w(TAG, "cancel:", e);
+		}
+		if (!new File(mOutputPath).delete()) {
+			Log.w(TAG, "failed to delete " + mOutputPath);
+		}
+	}
+
+	/**
+	 * @param probe receives the muxer start and the first video sample, null to clear
+	 */
+	public void setLatencyProbe(final RecordLatencyProbe probe) {
+		mLatencyProbe = probe;
+	}
+
 //**********************************************************************
 //**********************************************************************
 	/**
@@ -129,9 +433,58 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "start:");
 		mStatredCount++;
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-			mMediaMuxer.start();
+			final boolean[] isVideoTrack = new boolean[mTrackCount];
+			System.arraycopy(mIsVideoTrack, 0, isVideoTrack, 0, mTrackCount);
+			if (mPreEventBuffer != null) {
+				// nothing is written to the output path until an event
+				releaseOutput();
+				if (!new File(mOutputPath).delete()) {
+					Log.w(TAG, "failed to delete " + mOutputPath);
+				}
+				mPreEventBuffer.setTracks(isVideoTrack);
+				mSink = mPreEventBuffer;
+			} else {
+				final MuxerWriter.SampleMuxer muxer;
+				if (mFragmentedWriter != null) {
+					try {
+						mFragmentedWriter.start();
+					} catch (final IOException e) {
+						throw new IllegalStateException("failed writing " + mOutputPath, e);
+					}
+					muxer = MuxerWriter.wrap(mFragmentedWriter);
+				} else {
+					mMediaMuxer.start();
+					muxer = wrap(mMediaMuxer);
+				}
+				mWriter = new MuxerWriter(muxer, isVideoTrack,
+					mSegmentDurationUs > 0 ? mSegmentController : null);
+				if (mStorageBudget != null) {
+					// deleting old recordings may take a while, never on the encoder thread
+					mWriter.setCallback(mWriterCallback);
+				}
+				mWriter.start();
+				mSink = mWriter;
+			}
 			mIsStarted = true;
 			notifyAll();
+			if (mLiveStreamer != null)
+				mLiveStreamer.start();
+			if (mHlsSegmenter != null) {
+				try {
+					mHlsSegmenter.start();
+				} catch (final IOException e) {
+					Log.w(TAG, "HLS disabled:", e);
+					mHlsSegmenter = null;
+				}
+			}
+			final RecordLatencyProbe probe = mLatencyProbe;
+			if (probe != null)
+				probe.markMuxerStarted();
+			// encoders in asynchronous mode hold their output until this
+			if (mVideoEncoder != null)
+				mVideoEncoder.onMuxerStarted();
+			if (mAudioEncoder != null)
+				mAudioEncoder.onMuxerStarted();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
 		}
 		return mIsStarted;
@@ -144,10 +497,22 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
 		mStatredCount--;
 		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-			mMediaMuxer.stop();
-			mMediaMuxer.release();
+			// the writer thread writes remaining samples, then stops and releases MediaMuxer
+			mSink = null;
+			if (mLiveStreamer != null)
+				mLiveStreamer.stop();
+			if (mHlsSegmenter != null)
+				mHlsSegmenter.stop();
+			if (mWriter != null) {
+				mWriter.stop();
+			} else if (mPreEventBuffer != null) {
+				// the event writer writes packets received until now
+				mPreEventBuffer.stopEvent();
+			} else {
+				releaseOutput();
+			}
 			mIsStarted = false;
-			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
+			if (DEBUG) Log.v(TAG,  "MediaMuxer stopping:");
 		}
 	}
 
@@ -159,26 +524,448 @@ public class MediaMuxerWrapper {
 	/*package*/ synchronized int addTrack(final MediaFormat format) {
 		if (mIsStarted)
 			throw new IllegalStateException("muxer already started");
-		final int trackIx = mMediaMuxer.addTrack(format);
+		int trackIx = -1;
+		if (mFragmentedWriter != null) {
+			try {
+				trackIx = addFragmentedTrack(mFragmentedWriter, format);
+			} catch (final RuntimeException e) {
+				Log.w(TAG, "fragmented MPEG-4 is not available, use MediaMuxer:" + e);
+				fallbackToMediaMuxer();
+			}
+		}
+		if (trackIx < 0) {
+			trackIx = mMediaMuxer.addTrack(format);
+		}
+		if (trackIx < mIsVideoTrack.length) {
+			final String mime = format.getString(MediaFormat.KEY_MIME);
+			mIsVideoTrack[trackIx] = (mime != null) && mime.startsWith("video/");
+			// the same format is added to the muxer of each segment
+			mTrackFormats[trackIx] = format;
+			if (mIsVideoTrack[trackIx]) {
+				mVideoMimeType = mime;
+			}
+		}
+		mTrackCount = Math.max(mTrackCount, trackIx + 1);
+		if ((mLiveStreamer != null) && !addOutputTrack(mLiveStreamer, trackIx, format)) {
+			Log.w(TAG, "live streaming disabled");
+			mLiveStreamer = null;
+		}
+		if ((mHlsSegmenter != null) && !addOutputTrack(mHlsSegmenter, trackIx, format)) {
+			Log.w(TAG, "HLS disabled");
+			mHlsSegmenter = null;
+		}
 		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
 		return trackIx;
 	}
 
 	/**
-	 * write encoded data to muxer
+	 * write encoded data to muxer.
+	 * this only copies the data and never waits for disk I/O
 	 * @param trackIndex
 	 * @param byteBuf
 	 * @param bufferInfo
 	 */
-	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			if (trackIndex == 0){
-				if (DEBUG) Log.e(TAG,"video -->"+bufferInfo.presentationTimeUs);
-			}else{
+	/*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final EncodedPacketSink sink = mSink;
+		if (sink == null) {
+			Log.w(TAG, "writeSampleData:muxer is not started");
+			return;
+		}
+		if (DEBUG) Log.v(TAG, "track" + trackIndex + " -->" + bufferInfo.presentationTimeUs);
+		final int offset = bufferInfo.offset;
+		final int size = bufferInfo.size;
+		final long ptsUs = bufferInfo.presentationTimeUs;
+		final boolean isKeyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+		final RecordLatencyProbe probe = mLatencyProbe;
+		final boolean isVideo = (trackIndex >= 0) && (trackIndex < mTrackCount) && mIsVideoTrack[trackIndex];
+		if ((probe != null) && isVideo) {
+			probe.markFirstVideoFrame();
+		}
+		if (isVideo && (mSegmentDurationUs > 0)) {
+			requestKeyFrameIfNeeded(ptsUs);
+		}
+		sink.write(trackIndex, byteBuf, offset, size, ptsUs, isKeyFrame);
+		final LiveStreamer streamer = mLiveStreamer;
+		if (streamer != null) {
+			streamer.write(trackIndex, byteBuf, offset, size, ptsUs, isKeyFrame);
+			// a new connection waits for a key frame
+			if (isVideo && streamer.isKeyFrameDue()) {
+				requestVideoKeyFrame();
+			}
+		}
+		final HlsSegmenter segmenter = mHlsSegmenter;
+		if (segmenter != null) {
+			if (isVideo && segmenter.isKeyFrameDue(ptsUs)) {
+				requestVideoKeyFrame();
+			}
+			segmenter.write(trackIndex, byteBuf, offset, size, ptsUs, isKeyFrame);
+		}
+	}
+
+	/**
+	 * ask the video encoder for a key frame shortly before the segment boundary
+	 */
+	private void requestKeyFrameIfNeeded(final long presentationTimeUs) {
+		final long start = mSegmentStartUs;
+		if ((start < 0) || mKeyFrameRequested
+			|| (presentationTimeUs - start < mSegmentDurationUs - SEGMENT_LEAD_US)) return;
+		mKeyFrameRequested = requestVideoKeyFrame();
+	}
 
-				if (DEBUG) Log.e(TAG,"audio -->"+bufferInfo.presentationTimeUs);
+	private final StorageBudget.BitrateSource mBitrateSource = new StorageBudget.BitrateSource() {
+		@Override
+		public int getBitrate() {
+			int bitrate = 0;
+			final MediaEncoder video = mVideoEncoder;
+			if (video instanceof MediaVideoEncoder) {
+				bitrate += ((MediaVideoEncoder)video).getBitrate();
 			}
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			final MediaEncoder audio = mAudioEncoder;
+			if (audio instanceof MediaAudioEncoder) {
+				bitrate += ((MediaAudioEncoder)audio).getBitrate();
+			}
+			return bitrate;
+		}
+	};
+
+	private final MuxerWriter.Callback mWriterCallback = new MuxerWriter.Callback() {
+		@Override
+		public boolean onWriterStarted() {
+			final StorageBudget budget = mStorageBudget;
+			if (budget != null) {
+				budget.onRecordingStarted(mOutputPath, mBitrateSource);
+				if (!budget.ensureSpace(budget.getBytesFor(
+					mSegmentDurationUs > 0 ? mSegmentDurationUs : STORAGE_LOOKAHEAD_US))) {
+
+					mIsRefused = true;
+					onStorageFull(mOutputPath);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void onWriterFinished() {
+			if (mIsRefused && !new File(mOutputPath).delete()) {
+				Log.w(TAG, "failed to delete " + mOutputPath);
+			}
+			// after the index is written(and the fragmented file is trimmed), so the size is final
+			final StorageBudget budget = mStorageBudget;
+			if (budget != null) {
+				budget.onRecordingStopped();
+			}
+		}
+	};
+
+	/**
+	 * @param muxer started MediaMuxer, samples are written with a BufferInfo owned by the returned object
+	 */
+	/*package*/ static MuxerWriter.SampleMuxer wrap(final MediaMuxer muxer) {
+		return new MuxerWriter.SampleMuxer() {
+			private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+			@Override
+			public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final int offset, final int size,
+				final long presentationTimeUs, final boolean isKeyFrame) {
+
+				mInfo.set(offset, size, presentationTimeUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+				muxer.writeSampleData(trackIndex, byteBuf, mInfo);
+			}
+
+			@Override
+			public void stop() {
+				muxer.stop();
+			}
+
+			@Override
+			public void release() {
+				muxer.release();
+			}
+		};
+	}
+
+	/**
+	 * notify the listener and stop the encoders, the writer stops by itself. on the writer thread
+	 */
+	private void onStorageFull(final String path) {
+		Log.w(TAG, "storage full, stop recording:" + path);
+		final StorageListener listener = mStorageListener;
+		if (listener != null) {
+			try {
+				listener.onStorageFull(path);
+			} catch (final Exception e) {
+				Log.w(TAG, "onStorageFull:", e);
+			}
+		}
+		stopRecording();
+	}
+
+	private boolean requestVideoKeyFrame() {
+		final MediaEncoder encoder = mVideoEncoder;
+		if (encoder instanceof MediaVideoEncoder) {
+			((MediaVideoEncoder)encoder).requestKeyFrame();
+			return true;
+		}
+		return false;
+	}
+
+	private final MuxerWriter.SegmentController mSegmentController = new MuxerWriter.SegmentController() {
+		@Override
+		public boolean shouldRollover(final int trackIndex, final long presentationTimeUs, final boolean isKeyFrame) {
+			// segments start at a video key frame(or any audio frame when recording audio only)
+			final boolean hasVideo = hasVideoTrack();
+			if (hasVideo ? !mIsVideoTrack[trackIndex] : (trackIndex != 0)) return false;
+			if (mSegmentStartUs < 0) {
+				mSegmentStartUs = presentationTimeUs;
+				return false;
+			}
+			if ((presentationTimeUs - mSegmentStartUs < mSegmentDurationUs - SEGMENT_LEAD_US)
+				|| (hasVideo && !isKeyFrame)) {
+				return false;
+			}
+			mSegmentStartUs = presentationTimeUs;
+			mKeyFrameRequested = false;
+			return true;
+		}
+
+		@Override
+		public void onSegmentFinished() {
+			final File file = new File(mSegmentPath);
+			Log.i(TAG, "segment finished:" + file + "," + file.length() + " bytes");
+			final SegmentListener listener = mSegmentListener;
+			if (listener != null) {
+				try {
+					listener.onSegmentFinished(file.getPath());
+				} catch (final Exception e) {
+					Log.w(TAG, "onSegmentFinished:", e);
+				}
+			}
+			mSegments.addLast(file);
+			final StorageBudget budget = mStorageBudget;
+			if (budget != null) {
+				budget.addFile(file.getPath());
+			}
+		}
+
+		@Override
+		public MuxerWriter.SampleMuxer createNextMuxer() throws IOException {
+			rotateSegments();
+			final String path = getSegmentPath(++mSegmentIndex);
+			final StorageBudget budget = mStorageBudget;
+			if (budget != null) {
+				budget.onSegmentStarted(path);
+				if (!budget.ensureSpace(budget.getBytesFor(mSegmentDurationUs))) {
+					// the finished segments are complete files, the recording ends with them
+					onStorageFull(path);
+					throw new IOException("not enough space for " + path);
+				}
+			}
+			final MuxerWriter.SampleMuxer result;
+			if (mFragmentedWriter != null) {
+				final FragmentedMp4Writer writer = createFragmentedWriter(path);
+				try {
+					writer.setOrientationHint(mOrientationHint);
+					for (int i = 0; i < mTrackCount; i++) {
+						addFragmentedTrack(writer, mTrackFormats[i]);
+					}
+					writer.start();
+				} catch (final IOException e) {
+					writer.release();
+					throw e;
+				} catch (final RuntimeException e) {
+					writer.release();
+					throw e;
+				}
+				result = MuxerWriter.wrap(writer);
+			} else {
+				final MediaMuxer muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+				try {
+					muxer.setOrientationHint(mOrientationHint);
+					for (int i = 0; i < mTrackCount; i++) {
+						muxer.addTrack(mTrackFormats[i]);
+					}
+					muxer.start();
+				} catch (final RuntimeException e) {
+					muxer.release();
+					throw e;
+				}
+				result = wrap(muxer);
+			}
+			mSegmentPath = path;
+			if (DEBUG) Log.v(TAG, "segment started:" + path);
+			return result;
+		}
+	};
+
+	/**
+	 * @return false if the track is not supported by the output, recording to the file continues without it
+	 */
+	private static boolean addOutputTrack(final StreamOutput output, final int trackIx, final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		try {
+			final int outputIx;
+			if ((mime != null) && mime.startsWith("video/")) {
+				outputIx = output.addVideoTrack(mime, format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+			} else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+				outputIx = output.addAudioTrack(format.getByteBuffer("csd-0"));
+			} else {
+				throw new IllegalArgumentException("unsupported mime type:" + mime);
+			}
+			if (outputIx != trackIx)
+				throw new IllegalStateException("track index mismatch:" + outputIx + "/" + trackIx);
+			return true;
+		} catch (final RuntimeException e) {
+			Log.w(TAG, "addOutputTrack:" + e);
+			return false;
+		}
+	}
+
+	private FragmentedMp4Writer createFragmentedWriter(final String path) throws IOException {
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer(path);
+		writer.setFragmentDuration(mFragmentDurationUs);
+		return writer;
+	}
+
+	/**
+	 * @throws IllegalArgumentException the codec is not supported by FragmentedMp4Writer
+	 */
+	/*package*/ static int addFragmentedTrack(final FragmentedMp4Writer writer, final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if (MediaVideoEncoder.MIME_AVC.equals(mime)) {
+			return writer.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+				format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+		} else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+			return writer.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+				format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), format.getByteBuffer("csd-0"));
+		}
+		throw new IllegalArgumentException("unsupported mime type:" + mime);
+	}
+
+	/**
+	 * switch to MediaMuxer before start, tracks already added are added again
+	 */
+	private void fallbackToMediaMuxer() {
+		mFragmentedWriter.release();
+		mFragmentedWriter = null;
+		try {
+			mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		} catch (final IOException e) {
+			throw new IllegalStateException("failed creating MediaMuxer", e);
+		}
+		mMediaMuxer.setOrientationHint(mOrientationHint);
+		for (int i = 0; i < mTrackCount; i++) {
+			mMediaMuxer.addTrack(mTrackFormats[i]);
+		}
+	}
+
+	private void releaseOutput() {
+		if (mFragmentedWriter != null) {
+			mFragmentedWriter.release();
+		} else {
+			mMediaMuxer.release();
+		}
+	}
+
+	private boolean hasVideoTrack() {
+		for (int i = 0; i < mTrackCount; i++) {
+			if (mIsVideoTrack[i]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * delete the oldest segments while over the budget, leaving room for the segment about to start
+	 */
+	private void rotateSegments() {
+		long total = 0;
+		for (final File file: mSegments) {
+			total += file.length();
+		}
+		while (!mSegments.isEmpty()
+			&& (((mMaxSegmentCount > 0) && (mSegments.size() >= mMaxSegmentCount))
+				|| ((mMaxSegmentBytes > 0) && (total > mMaxSegmentBytes)))) {
+
+			final File oldest = mSegments.removeFirst();
+			total -= oldest.length();
+			// StorageBudget may have deleted it already
+			if (oldest.exists() && !oldest.delete()) {
+				Log.w(TAG, "failed to delete segment:" + oldest);
+			}
+			final StorageBudget budget = mStorageBudget;
+			if (budget != null) {
+				budget.removeFile(oldest.getPath());
+			}
+			Log.i(TAG, "segment deleted:" + oldest);
+			final SegmentListener listener = mSegmentListener;
+			if (listener != null) {
+				try {
+					listener.onSegmentDeleted(oldest.getPath());
+				} catch (final Exception e) {
+					Log.w(TAG, "onSegmentDeleted:", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return "name_001.mp4" for "name.mp4"
+	 */
+	private String getSegmentPath(final int index) {
+		final int dot = mOutputPath.lastIndexOf('.');
+		final int slash = mOutputPath.lastIndexOf('/');
+		final String suffix = String.format(Locale.US, "_%03d", index);
+		if (dot > slash) {
+			return mOutputPath.substring(0, dot) + suffix + mOutputPath.substring(dot);
+		}
+		return mOutputPath + suffix;
+	}
+
+	/**
+	 * @return MIME type of the video track(video/avc or video/hevc), null before the track is added
+	 */
+	public String getVideoMimeType() {
+		return mVideoMimeType;
+	}
+
+	/**
+	 * @return number of samples waiting to be written
+	 */
+	public int getWriteQueueDepth() {
+		final MuxerWriter writer = mWriter;
+		return writer != null ? writer.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @return number of samples dropped because the write queue was full
+	 */
+	public long getDroppedSampleCount() {
+		final MuxerWriter writer = mWriter;
+		return writer != null ? writer.getDroppedCount() : 0;
+	}
+
+	/**
+	 * @return average time from the encoder output to the end of writing [usec]
+	 */
+	public long getAverageWriteLatencyUs() {
+		final MuxerWriter writer = mWriter;
+		return writer != null ? writer.getAverageLatencyUs() : 0;
+	}
+
+	/**
+	 * @return maximum time from the encoder output to the end of writing [usec]
+	 */
+	public long getMaxWriteLatencyUs() {
+		final MuxerWriter writer = mWriter;
+		return writer != null ? writer.getMaxLatencyUs() : 0;
+	}
+
+	/**
+	 * @return maximum time from the encoder output to the end of writing since the last call [usec]
+	 */
+	public long takeMaxWriteLatencyUs() {
+		final MuxerWriter writer = mWriter;
+		return writer != null ? writer.takeMaxLatencyUs() : 0;
 	}
 
 //**********************************************************************
@@ -24,9 +24,12 @@ package com.pwithe.jycamera.record;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.annotation.TargetApi;
 import android.opengl.EGLContext;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -39,15 +42,39 @@ public class MediaVideoEncoder extends MediaEncoder {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "MediaVideoEncoder";
 
-	private static final String MIME_TYPE = "video/avc";
+	public static final String MIME_AVC = "video/avc";
+	public static final String MIME_HEVC = "video/hevc";	// MediaMuxer supports HEVC on API >= 24
 	// parameters for recording
     private static final int FRAME_RATE = 25;
     private static final float BPP = 0.25f;
+    /**
+     * HEVC reaches the same quality as AVC with about 60% of the bitrate
+     */
+    private static final float HEVC_BITRATE_RATIO = 0.6f;
+    /**
+     * camera timestamp is regarded as System.nanoTime base when it is within this range from now
+     */
+    private static final long CLOCK_TOLERANCE_NS = 1000000000L;
 
     private final int mWidth;
     private final int mHeight;
+    private int mFrameRate = FRAME_RATE;
+    private String mPreferredMimeType = MIME_AVC;
+    /**
+     * MIME type and name of the codec actually used, set on #prepare
+     */
+    private volatile String mMimeType = MIME_AVC;
+    private volatile String mCodecName;
+    /**
+     * current bitrate, 0 means calculated by #calcBitRate on #prepare
+     */
+    private volatile int mBitRate;
     private RenderHandler mRenderHandler;
     private Surface mSurface;
+    /**
+     * true: the camera writes to the input Surface directly, so presentationTimeUs is the raw camera timestamp
+     */
+    private volatile boolean mIsDirectInput;
 
 	public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int width, final int height) {
 		super(muxer, listener);
@@ -66,12 +93,45 @@ public class MediaVideoEncoder extends MediaEncoder {
 	}
 
 	public boolean frameAvailableSoon(final float[] tex_matrix, final float[] mvp_matrix) {
+		return frameAvailableSoon(tex_matrix, mvp_matrix, System.nanoTime());
+	}
+
+	/**
+	 * @param timestampNs capture time of this frame(SurfaceTexture#getTimestamp)
+	 */
+	public boolean frameAvailableSoon(final float[] tex_matrix, final float[] mvp_matrix, final long timestampNs) {
 		boolean result;
 		if (result = super.frameAvailableSoon())
-			mRenderHandler.draw(tex_matrix, mvp_matrix);
+			mRenderHandler.draw(tex_matrix, mvp_matrix, toPresentationTimeNs(timestampNs));
 		return result;
 	}
 
+	/**
+	 * @param tex_id 本帧要编码的纹理（共享帧纹理模式下每帧会变化）
+	 */
+	public boolean frameAvailableSoon(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix) {
+		return frameAvailableSoon(tex_id, tex_matrix, mvp_matrix, System.nanoTime());
+	}
+
+	/**
+	 * @param tex_id      本帧要编码的纹理（共享帧纹理模式下每帧会变化）
+	 * @param timestampNs capture time of this frame(SurfaceTexture#getTimestamp)
+	 */
+	public boolean frameAvailableSoon(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix, final long timestampNs) {
+		boolean result;
+		if (result = super.frameAvailableSoon())
+			mRenderHandler.draw(tex_id, tex_matrix, mvp_matrix, toPresentationTimeNs(timestampNs));
+		return result;
+	}
+
+	/**
+	 * 画中画的小画面，在下一次frameAvailableSoon的帧里合成，见{@link RenderHandler#setInset}
+	 * @param tex_id -1表示不画
+	 */
+	public void setInsetFrame(final int tex_id, final float[] tex_matrix, final float[] rect) {
+		mRenderHandler.setInset(tex_id, tex_matrix, rect);
+	}
+
 	@Override
 	public boolean frameAvailableSoon() {
 		boolean result;
@@ -86,22 +146,41 @@ public class MediaVideoEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
+        final CodecCapabilityCache cache = CodecCapabilityCache.getInstance();
+        CodecCapabilityCache.CodecEntry videoCodecInfo = null;
+        if (MIME_HEVC.equals(mPreferredMimeType)) {
+        	videoCodecInfo = selectHevcCodec(cache);
+        }
+        boolean isHevc = videoCodecInfo != null;
+        if (videoCodecInfo == null) {
+        	// hardware encoder with Surface input is preferred, capabilities are cached per device/build
+        	videoCodecInfo = cache.findEncoder(MIME_AVC, true, mWidth, mHeight);
+        	if (videoCodecInfo == null) {
+        		videoCodecInfo = cache.findEncoder(MIME_AVC, true);
+        	}
+        }
         if (videoCodecInfo == null) {
-            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_AVC);
             return;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);	// API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-		if (DEBUG) Log.i(TAG, "format: " + format);
+		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        final boolean userBitRate = mBitRate > 0;
+        try {
+        	configure(videoCodecInfo, isHevc, userBitRate);
+        } catch (final Exception e) {
+        	if (!isHevc) throw e instanceof IOException ? (IOException)e : new IOException(e);
+        	// some HEVC encoders report capabilities they can not configure, fall back to AVC
+        	Log.w(TAG, "failed to configure " + videoCodecInfo.name + ", fall back to " + MIME_AVC, e);
+        	releaseCodec();
+        	if (!userBitRate) mBitRate = 0;
+        	videoCodecInfo = cache.findEncoder(MIME_AVC, true);
+        	if (videoCodecInfo == null) {
+        		Log.e(TAG, "Unable to find an appropriate codec for " + MIME_AVC);
+        		return;
+        	}
+        	configure(videoCodecInfo, false, userBitRate);
+        }
         // get Surface for encoder input
         // this method only can call between #configure and #start
         mSurface = mMediaCodec.createInputSurface();	// API >= 18
@@ -116,11 +195,227 @@ public class MediaVideoEncoder extends MediaEncoder {
         }
 	}
 
+	/**
+	 * HEVC is used only when a hardware encoder accepts Surface input at this size
+	 * and MediaMuxer can write it(API >= 24)
+	 */
+	private CodecCapabilityCache.CodecEntry selectHevcCodec(final CodecCapabilityCache cache) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+			Log.i(TAG, "HEVC needs API >= 24, use " + MIME_AVC);
+			return null;
+		}
+		for (final CodecCapabilityCache.CodecEntry entry: cache.getEncoders(MIME_HEVC)) {
+			if (entry.isHardware && entry.isSurfaceInputSupported() && entry.isSizeSupported(mWidth, mHeight)) {
+				return entry;
+			}
+		}
+		Log.i(TAG, "no hardware HEVC encoder for " + mWidth + "x" + mHeight + ", use " + MIME_AVC);
+		return null;
+	}
+
+	private void configure(final CodecCapabilityCache.CodecEntry codecInfo,
+		final boolean isHevc, final boolean userBitRate) throws IOException {
+
+		final String mime = isHevc ? MIME_HEVC : MIME_AVC;
+        final MediaFormat format = MediaFormat.createVideoFormat(mime, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);	// API >= 18
+        if (!userBitRate) {
+        	mBitRate = calcBitRate(isHevc);
+        }
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		if (DEBUG) Log.i(TAG, "format: " + format);
+
+        mMediaCodec = MediaCodec.createByCodecName(codecInfo.name);
+        setupCodecCallback();
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMimeType = mime;
+        mCodecName = codecInfo.name;
+        Log.i(TAG, "video codec:" + mime + "(" + codecInfo.name + ")");
+	}
+
+	private void releaseCodec() {
+		if (mMediaCodec != null) {
+			try {
+				mMediaCodec.release();
+			} catch (final Exception e) {
+				Log.w(TAG, "releaseCodec:", e);
+			}
+			mMediaCodec = null;
+		}
+	}
+
 	public void setEglContext(final EGLContext shared_context, final int tex_id) {
 		mRenderHandler.setEglContext(shared_context, tex_id, mSurface, true);
 	}
 
+	/**
+	 * @param isSharedFrame true：tex_id是已经合成水印的2D纹理
+	 */
+	public void setEglContext(final EGLContext shared_context, final int tex_id, final boolean isSharedFrame) {
+		mRenderHandler.setEglContext(shared_context, tex_id, mSurface, true, isSharedFrame);
+	}
+
+
+
+	/**
+	 * set target frame rate, should be called before #prepare
+	 * @param frameRate
+	 */
+	public void setFrameRate(final int frameRate) {
+		if (frameRate <= 0) throw new IllegalArgumentException("frameRate should be positive:" + frameRate);
+		mFrameRate = frameRate;
+	}
 
+	/**
+	 * select the video codec, should be called before #prepare.
+	 * MIME_HEVC falls back to MIME_AVC when no suitable hardware HEVC encoder is available
+	 * @param mimeType MIME_AVC or MIME_HEVC
+	 */
+	public void setPreferredMimeType(final String mimeType) {
+		if (!MIME_AVC.equals(mimeType) && !MIME_HEVC.equals(mimeType))
+			throw new IllegalArgumentException("unsupported video codec:" + mimeType);
+		mPreferredMimeType = mimeType;
+	}
+
+	/**
+	 * @return MIME type actually used(MIME_AVC or MIME_HEVC), valid after #prepare
+	 */
+	public String getMimeType() {
+		return mMimeType;
+	}
+
+	/**
+	 * @return name of the encoder actually used, null before #prepare
+	 */
+	public String getCodecName() {
+		return mCodecName;
+	}
+
+	/**
+	 * @return target frame rate written to the encoder(and the container)
+	 */
+	public int getFrameRate() {
+		return mFrameRate;
+	}
+
+	/**
+	 * set bitrate. before #prepare this sets the initial bitrate,
+	 * while encoding this changes the bitrate of the running codec(API >= 19)
+	 * @param bitrate [bps]
+	 */
+	public void setBitrate(final int bitrate) {
+		if (bitrate <= 0) throw new IllegalArgumentException("bitrate should be positive:" + bitrate);
+		final MediaCodec codec = mMediaCodec;
+		if (codec == null) {
+			mBitRate = bitrate;
+		} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			try {
+				updateBitrate(codec, bitrate);
+				mBitRate = bitrate;
+				Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, "setBitrate:", e);
+			}
+		}
+	}
+
+	/**
+	 * ask the running codec to emit a key frame as soon as possible(API >= 19)
+	 */
+	public void requestKeyFrame() {
+		final MediaCodec codec = mMediaCodec;
+		if ((codec != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+			try {
+				requestSyncFrame(codec);
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, "requestKeyFrame:", e);
+			}
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static void requestSyncFrame(final MediaCodec codec) {
+		final Bundle params = new Bundle();
+		params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+		codec.setParameters(params);
+	}
+
+	/**
+	 * @return current bitrate [bps], 0 before #prepare unless #setBitrate is called
+	 */
+	public int getBitrate() {
+		return mBitRate;
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static void updateBitrate(final MediaCodec codec, final int bitrate) {
+		final Bundle params = new Bundle();
+		params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+		codec.setParameters(params);
+	}
+
+	/**
+	 * @return encoder input Surface, only available after #prepare
+	 */
+	public Surface getInputSurface() {
+		return mSurface;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * set rotation of recorded frames(written to the container), should be called before the muxer starts
+	 * @param degrees 0, 90, 180 or 270
+	 */
+	public void setOrientationHint(final int degrees) {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if (muxer != null) {
+			muxer.setOrientationHint(degrees);
+		}
+	}
+
+	/**
+	 * @param directInput true if the camera writes to the input Surface directly(without RenderHandler)
+	 */
+	public void setDirectInput(final boolean directInput) {
+		mIsDirectInput = directInput;
+	}
+
+	@Override
+	protected long adjustOutputPTSUs(final long presentationTimeUs) {
+		if (mIsDirectInput) {
+			// raw camera timestamp, pause offset at the time of output is applied
+			return toRecordingTimeNs(toMonotonicNs(presentationTimeUs * 1000L)) / 1000L;
+		}
+		return presentationTimeUs;
+	}
+
+	/**
+	 * convert camera timestamp to the time passed to eglPresentationTimeANDROID
+	 */
+	private long toPresentationTimeNs(final long timestampNs) {
+		return Math.max(0, toRecordingTimeNs(toMonotonicNs(timestampNs)));
+	}
+
+	/**
+	 * camera timestamp is usually CLOCK_MONOTONIC(same as System.nanoTime),
+	 * but some devices use CLOCK_BOOTTIME(same as SystemClock#elapsedRealtimeNanos)
+	 */
+	private static long toMonotonicNs(final long timestampNs) {
+		final long now = System.nanoTime();
+		if (Math.abs(now - timestampNs) < CLOCK_TOLERANCE_NS) return timestampNs;
+		final long boot = SystemClock.elapsedRealtimeNanos();	// API >= 17
+		if (Math.abs(boot - timestampNs) < CLOCK_TOLERANCE_NS) return timestampNs - boot + now;
+		return timestampNs;
+	}
 
 	public boolean getState(){
 		return isPause;
@@ -129,106 +424,25 @@ public class MediaVideoEncoder extends MediaEncoder {
 	@Override
     protected void release() {
 		if (DEBUG) Log.i(TAG, "release:");
-		if (mSurface != null) {
-			mSurface.release();
-			mSurface = null;
-		}
 		if (mRenderHandler != null) {
 			mRenderHandler.release();
 			mRenderHandler = null;
 		}
+		// the camera may write to the input Surface directly,
+		// so release it after listener#onStopped detached it from the camera
 		super.release();
+		if (mSurface != null) {
+			mSurface.release();
+			mSurface = null;
+		}
 	}
 
-	private int calcBitRate() {
-		final int bitrate = (int)(BPP * FRAME_RATE * mWidth * mHeight);
+	private int calcBitRate(final boolean isHevc) {
+		final int bitrate = (int)(BPP * mFrameRate * mWidth * mHeight * (isHevc ? HEVC_BITRATE_RATIO : 1.0f));
 		Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
 		return bitrate;
 	}
 
-    /**
-     * select the first codec that match a specific MIME type
-     * @param mimeType
-     * @return null if no codec matched
-     */
-    protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
-    	if (DEBUG) Log.v(TAG, "selectVideoCodec:");
-
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {	// skipp decoder
-                continue;
-            }
-            // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                	if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-            		final int format = selectColorFormat(codecInfo, mimeType);
-                	if (format > 0) {
-                		return codecInfo;
-                	}
-                }
-            }
-        }
-        return null;
-    }
-
-    /**
-     * select color format available on specific codec and we can use.
-     * @return 0 if no colorFormat is matched
-     */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
-		if (DEBUG) Log.i(TAG, "selectColorFormat: ");
-    	int result = 0;
-    	final MediaCodecInfo.CodecCapabilities caps;
-    	try {
-    		Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-    		caps = codecInfo.getCapabilitiesForType(mimeType);
-    	} finally {
-    		Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-    	}
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-        	colorFormat = caps.colorFormats[i];
-            if (isRecognizedViewoFormat(colorFormat)) {
-            	if (result == 0)
-            		result = colorFormat;
-                break;
-            }
-        }
-        if (result == 0)
-        	Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
-        return result;
-    }
-
-	/**
-	 * color formats that we can use in this class
-	 */
-    protected static int[] recognizedFormats;
-	static {
-		recognizedFormats = new int[] {
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-        	MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface,
-		};
-	}
-
-    private static final boolean isRecognizedViewoFormat(final int colorFormat) {
-		if (DEBUG) Log.i(TAG, "isRecognizedViewoFormat:colorFormat=" + colorFormat);
-    	final int n = recognizedFormats != null ? recognizedFormats.length : 0;
-    	for (int i = 0; i < n; i++) {
-    		if (recognizedFormats[i] == colorFormat) {
-    			return true;
-    		}
-    	}
-    	return false;
-    }
-
     @Override
     protected void signalEndOfInputStream() {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
@@ -0,0 +1,807 @@
+package com.pwithe.jycamera.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads the box structure of a recorded MP4(MediaMuxer or FragmentedMp4Writer) and reports the timing
+ * of each track: frame count, PTS order, achieved fps, frame gaps, sync sample interval and bitrate per second.
+ * Top level boxes are walked with positional reads and only moov/moof are memory mapped,
+ * sample data in mdat is never read, so a large file is analyzed in a few milliseconds.
+ * Plain Java without Android dependencies, used by the unit tests and from the command line(#main)
+ * as a regression check of recordings.
+ */
+public class Mp4Analyzer {
+
+	/**
+	 * an interval longer than this times the median interval is counted as a gap(dropped frames)
+	 */
+	private static final float GAP_FACTOR = 1.5f;
+	private static final int INITIAL_SAMPLE_CAPACITY = 1024;
+	private static final int HEADER_SIZE = 16;
+	private static final int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+	private static final int MOOV = fourCC("moov");
+	private static final int MOOF = fourCC("moof");
+	private static final int TRAK = fourCC("trak");
+	private static final int MDIA = fourCC("mdia");
+	private static final int MINF = fourCC("minf");
+	private static final int STBL = fourCC("stbl");
+	private static final int MVEX = fourCC("mvex");
+	private static final int TRAF = fourCC("traf");
+	private static final int TKHD = fourCC("tkhd");
+	private static final int MDHD = fourCC("mdhd");
+	private static final int HDLR = fourCC("hdlr");
+	private static final int STSD = fourCC("stsd");
+	private static final int STTS = fourCC("stts");
+	private static final int CTTS = fourCC("ctts");
+	private static final int STSS = fourCC("stss");
+	private static final int STSZ = fourCC("stsz");
+	private static final int TREX = fourCC("trex");
+	private static final int TFHD = fourCC("tfhd");
+	private static final int TFDT = fourCC("tfdt");
+	private static final int TRUN = fourCC("trun");
+	private static final int VIDE = fourCC("vide");
+	private static final int SOUN = fourCC("soun");
+
+	/**
+	 * samples and statistics of one track
+	 */
+	public static final class Track {
+		private int mId;
+		private int mHandler;
+		private String mFormat = "";
+		private int mTimescale;
+		// samples in decode order
+		private int mSampleCount;
+		private long[] mDecodeTicks = new long[INITIAL_SAMPLE_CAPACITY];
+		private int[] mOffsetTicks = new int[INITIAL_SAMPLE_CAPACITY];
+		private int[] mSizes = new int[INITIAL_SAMPLE_CAPACITY];
+		private boolean[] mIsSync = new boolean[INITIAL_SAMPLE_CAPACITY];
+		private long mEndTicks;
+		// sample table of a non-fragmented file, merged on the end of trak
+		private int[] mSttsDurations;
+		private int[] mCttsOffsets;
+		private int[] mStssNumbers;
+		private int[] mStszSizes;
+		// defaults from trex
+		private int mDefaultDuration, mDefaultSize, mDefaultFlags;
+		// statistics
+		private long mTotalBytes;
+		private long mFirstPtsUs, mDurationUs;
+		private int mNonMonotonicPtsCount;
+		private int mNonIncreasingDtsCount;
+		private long mMedianIntervalUs, mMaxIntervalUs;
+		private int mGapCount;
+		private int mSyncCount;
+		private long mMaxSyncIntervalUs;
+		private int[] mBitrateBps = new int[0];
+
+		private Track() {
+		}
+
+		public int getId() {
+			return mId;
+		}
+
+		public boolean isVideo() {
+			return mHandler == VIDE;
+		}
+
+		public boolean isAudio() {
+			return mHandler == SOUN;
+		}
+
+		/**
+		 * @return sample entry type such as "avc1", "hvc1", "mp4a"
+		 */
+		public String getFormat() {
+			return mFormat;
+		}
+
+		public int getTimescale() {
+			return mTimescale;
+		}
+
+		public int getSampleCount() {
+			return mSampleCount;
+		}
+
+		public long getTotalBytes() {
+			return mTotalBytes;
+		}
+
+		public long getFirstPtsUs() {
+			return mFirstPtsUs;
+		}
+
+		/**
+		 * @return from the first sample to the end of the last sample
+		 */
+		public long getDurationUs() {
+			return mDurationUs;
+		}
+
+		/**
+		 * @return samples per second over the duration
+		 */
+		public float getFps() {
+			return mDurationUs > 0 ? mSampleCount * 1000000f / mDurationUs : 0;
+		}
+
+		/**
+		 * @return average bits per second over the duration
+		 */
+		public long getAverageBitrate() {
+			return mDurationUs > 0 ? mTotalBytes * 8000000L / mDurationUs : 0;
+		}
+
+		/**
+		 * @return bits of the samples whose PTS is in each second from the first sample
+		 */
+		public int[] getBitratePerSecond() {
+			return mBitrateBps.clone();
+		}
+
+		/**
+		 * @return samples whose PTS is not later than that of the previous sample in decode order,
+		 * the encoders of this app make no B frames so this should be 0
+		 */
+		public int getNonMonotonicPtsCount() {
+			return mNonMonotonicPtsCount;
+		}
+
+		/**
+		 * @return samples whose decode time is not later than that of the previous sample
+		 */
+		public int getNonIncreasingDtsCount() {
+			return mNonIncreasingDtsCount;
+		}
+
+		public long getMedianIntervalUs() {
+			return mMedianIntervalUs;
+		}
+
+		public long getMaxIntervalUs() {
+			return mMaxIntervalUs;
+		}
+
+		/**
+		 * @return intervals longer than 1.5 times the median interval, i.e. places where frames were dropped
+		 */
+		public int getGapCount() {
+			return mGapCount;
+		}
+
+		public int getSyncSampleCount() {
+			return mSyncCount;
+		}
+
+		/**
+		 * @return whether the first sample can be decoded without others
+		 */
+		public boolean isFirstSampleSync() {
+			return (mSampleCount > 0) && mIsSync[0];
+		}
+
+		/**
+		 * @return longest PTS interval between sync samples(or from the last one to the end), 0 without samples
+		 */
+		public long getMaxSyncIntervalUs() {
+			return mMaxSyncIntervalUs;
+		}
+
+		public long getPtsUs(final int index) {
+			return toUs(mDecodeTicks[index] + mOffsetTicks[index]);
+		}
+
+		public int getSampleSize(final int index) {
+			return mSizes[index];
+		}
+
+		public boolean isSyncSample(final int index) {
+			return mIsSync[index];
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"track %d(%s):%d samples,%.3f sec,%.2f fps,%d kbps,max interval=%d ms,gaps=%d,"
+				+ "sync=%d(max interval %d ms),non-monotonic pts=%d",
+				mId, mFormat, mSampleCount, mDurationUs / 1000000.0, getFps(), getAverageBitrate() / 1000,
+				mMaxIntervalUs / 1000, mGapCount, mSyncCount, mMaxSyncIntervalUs / 1000, mNonMonotonicPtsCount);
+		}
+
+		private long toUs(final long ticks) {
+			return mTimescale > 0 ? ticks * 1000000L / mTimescale : 0;
+		}
+
+		private void addSample(final long decodeTicks, final int duration, final int offset,
+			final int size, final boolean isSync) {
+
+			if (mSampleCount == mSizes.length) {
+				final int capacity = mSampleCount * 2;
+				mDecodeTicks = Arrays.copyOf(mDecodeTicks, capacity);
+				mOffsetTicks = Arrays.copyOf(mOffsetTicks, capacity);
+				mSizes = Arrays.copyOf(mSizes, capacity);
+				mIsSync = Arrays.copyOf(mIsSync, capacity);
+			}
+			mDecodeTicks[mSampleCount] = decodeTicks;
+			mOffsetTicks[mSampleCount] = offset;
+			mSizes[mSampleCount] = size;
+			mIsSync[mSampleCount] = isSync;
+			mSampleCount++;
+			mEndTicks = decodeTicks + duration;
+		}
+
+		/**
+		 * add the samples of the sample table(stts, ctts, stss, stsz)
+		 */
+		private void mergeSampleTable(final List<String> problems) {
+			if (mStszSizes == null) return;
+			final int n = mStszSizes.length;
+			if ((mSttsDurations == null) || (mSttsDurations.length != n)) {
+				problems.add("track " + mId + ":stts does not cover stsz(" + n + " samples)");
+				return;
+			}
+			if ((mCttsOffsets != null) && (mCttsOffsets.length != n)) {
+				problems.add("track " + mId + ":ctts does not cover stsz(" + n + " samples)");
+				mCttsOffsets = null;
+			}
+			// no stss means all samples are sync samples
+			final boolean[] isSync = new boolean[n];
+			if (mStssNumbers == null) {
+				Arrays.fill(isSync, true);
+			} else {
+				for (final int number: mStssNumbers) {
+					if ((number >= 1) && (number <= n)) {
+						isSync[number - 1] = true;
+					} else {
+						problems.add("track " + mId + ":invalid stss entry " + number);
+					}
+				}
+			}
+			long decodeTicks = 0;
+			for (int i = 0; i < n; i++) {
+				addSample(decodeTicks, mSttsDurations[i], mCttsOffsets != null ? mCttsOffsets[i] : 0,
+					mStszSizes[i], isSync[i]);
+				decodeTicks += mSttsDurations[i];
+			}
+			mSttsDurations = mCttsOffsets = mStssNumbers = mStszSizes = null;
+		}
+
+		private void computeStatistics() {
+			final int n = mSampleCount;
+			if (n == 0) return;
+			mFirstPtsUs = getPtsUs(0);
+			mDurationUs = toUs(mEndTicks) - toUs(mDecodeTicks[0]);
+			final long[] intervals = new long[Math.max(0, n - 1)];
+			long prevPts = mFirstPtsUs;
+			long lastSyncPts = -1;
+			for (int i = 0; i < n; i++) {
+				final long pts = getPtsUs(i);
+				mTotalBytes += mSizes[i];
+				if (i > 0) {
+					if (pts <= prevPts) mNonMonotonicPtsCount++;
+					if (mDecodeTicks[i] <= mDecodeTicks[i - 1]) mNonIncreasingDtsCount++;
+					intervals[i - 1] = toUs(mDecodeTicks[i]) - toUs(mDecodeTicks[i - 1]);
+				}
+				if (mIsSync[i]) {
+					mSyncCount++;
+					if (lastSyncPts >= 0) {
+						mMaxSyncIntervalUs = Math.max(mMaxSyncIntervalUs, pts - lastSyncPts);
+					}
+					lastSyncPts = pts;
+				}
+				prevPts = pts;
+			}
+			final long endUs = mFirstPtsUs + mDurationUs;
+			mMaxSyncIntervalUs = Math.max(mMaxSyncIntervalUs, endUs - (lastSyncPts >= 0 ? lastSyncPts : mFirstPtsUs));
+			if (intervals.length > 0) {
+				final long[] sorted = intervals.clone();
+				Arrays.sort(sorted);
+				mMedianIntervalUs = sorted[sorted.length / 2];
+				mMaxIntervalUs = sorted[sorted.length - 1];
+				for (final long interval: intervals) {
+					if (interval > mMedianIntervalUs * GAP_FACTOR) mGapCount++;
+				}
+			}
+			final long[] bits = new long[(int)((Math.max(mDurationUs, 1) + 999999) / 1000000L) + 1];
+			int last = 0;
+			for (int i = 0; i < n; i++) {
+				final int second = (int)Math.max(0, Math.min(bits.length - 1, (getPtsUs(i) - mFirstPtsUs) / 1000000L));
+				bits[second] += mSizes[i] * 8L;
+				last = Math.max(last, second);
+			}
+			mBitrateBps = new int[last + 1];
+			for (int i = 0; i <= last; i++) {
+				mBitrateBps[i] = (int)Math.min(Integer.MAX_VALUE, bits[i]);
+			}
+		}
+	}
+
+	/**
+	 * result of #analyze
+	 */
+	public static final class Report {
+		private final File mFile;
+		private final List<Track> mTracks = new ArrayList<Track>();
+		private final List<String> mProblems = new ArrayList<String>();
+		private int mFragmentCount;
+		private boolean mIsTruncated;
+
+		private Report(final File file) {
+			mFile = file;
+		}
+
+		public File getFile() {
+			return mFile;
+		}
+
+		public List<Track> getTracks() {
+			return Collections.unmodifiableList(mTracks);
+		}
+
+		/**
+		 * @return the first video track, null if none
+		 */
+		public Track getVideoTrack() {
+			for (final Track track: mTracks) {
+				if (track.isVideo()) return track;
+			}
+			return null;
+		}
+
+		/**
+		 * @return the first audio track, null if none
+		 */
+		public Track getAudioTrack() {
+			for (final Track track: mTracks) {
+				if (track.isAudio()) return track;
+			}
+			return null;
+		}
+
+		public boolean isFragmented() {
+			return mFragmentCount > 0;
+		}
+
+		public int getFragmentCount() {
+			return mFragmentCount;
+		}
+
+		/**
+		 * @return true if the last box is cut off(e.g. the recording process died),
+		 * the samples before it are still reported
+		 */
+		public boolean isTruncated() {
+			return mIsTruncated;
+		}
+
+		/**
+		 * @return structural problems found while parsing
+		 */
+		public List<String> getProblems() {
+			return Collections.unmodifiableList(mProblems);
+		}
+
+		/**
+		 * @return first audio PTS minus first video PTS, 0 unless both tracks exist
+		 */
+		public long getAvStartOffsetUs() {
+			final Track video = getVideoTrack();
+			final Track audio = getAudioTrack();
+			return (video != null) && (audio != null) && (video.mSampleCount > 0) && (audio.mSampleCount > 0)
+				? audio.mFirstPtsUs - video.mFirstPtsUs : 0;
+		}
+
+		/**
+		 * @return end of audio minus end of video, grows with A/V drift over the recording
+		 */
+		public long getAvEndOffsetUs() {
+			final Track video = getVideoTrack();
+			final Track audio = getAudioTrack();
+			return (video != null) && (audio != null) && (video.mSampleCount > 0) && (audio.mSampleCount > 0)
+				? (audio.mFirstPtsUs + audio.mDurationUs) - (video.mFirstPtsUs + video.mDurationUs) : 0;
+		}
+
+		/**
+		 * check the recording against limits, for regression checks of the encoding pipeline
+		 * @param minFps            minimum fps of the video track, 0 to skip
+		 * @param maxSyncIntervalUs maximum interval of video sync samples, 0 to skip
+		 * @param maxAvOffsetUs     maximum A/V offset at the start and at the end, 0 to skip
+		 * @return failures, empty if the recording passes
+		 */
+		public List<String> verify(final float minFps, final long maxSyncIntervalUs, final long maxAvOffsetUs) {
+			final List<String> failures = new ArrayList<String>(mProblems);
+			if (mTracks.isEmpty()) {
+				failures.add("no tracks");
+			}
+			for (final Track track: mTracks) {
+				if (track.mSampleCount == 0) {
+					failures.add("track " + track.mId + ":no samples");
+					continue;
+				}
+				if (track.mNonIncreasingDtsCount > 0) {
+					failures.add("track " + track.mId + ":" + track.mNonIncreasingDtsCount + " non-increasing DTS");
+				}
+				if (track.mNonMonotonicPtsCount > 0) {
+					failures.add("track " + track.mId + ":" + track.mNonMonotonicPtsCount + " non-monotonic PTS");
+				}
+			}
+			final Track video = getVideoTrack();
+			if ((video != null) && (video.mSampleCount > 0)) {
+				if (!video.isFirstSampleSync()) {
+					failures.add("video does not start with a sync sample");
+				}
+				if ((minFps > 0) && (video.getFps() < minFps)) {
+					failures.add(String.format(Locale.US, "video fps %.2f < %.2f", video.getFps(), minFps));
+				}
+				if ((maxSyncIntervalUs > 0) && (video.mMaxSyncIntervalUs > maxSyncIntervalUs)) {
+					failures.add("sync sample interval " + video.mMaxSyncIntervalUs + "us > " + maxSyncIntervalUs + "us");
+				}
+			}
+			if (maxAvOffsetUs > 0) {
+				if (Math.abs(getAvStartOffsetUs()) > maxAvOffsetUs) {
+					failures.add("A/V offset at start " + getAvStartOffsetUs() + "us");
+				}
+				if (Math.abs(getAvEndOffsetUs()) > maxAvOffsetUs) {
+					failures.add("A/V offset at end " + getAvEndOffsetUs() + "us");
+				}
+			}
+			return failures;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(mFile.getName()).append(':').append(mFile.length()).append(" bytes");
+			if (isFragmented()) {
+				sb.append(',').append(mFragmentCount).append(" fragments");
+			}
+			if (mIsTruncated) {
+				sb.append(",truncated");
+			}
+			sb.append(",A/V offset start=").append(getAvStartOffsetUs() / 1000)
+				.append(" ms,end=").append(getAvEndOffsetUs() / 1000).append(" ms");
+			for (final Track track: mTracks) {
+				sb.append("\n  ").append(track);
+			}
+			for (final String problem: mProblems) {
+				sb.append("\n  problem:").append(problem);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * usage: Mp4Analyzer file [minFps [maxSyncIntervalMs [maxAvOffsetMs]]]
+	 * prints the report and exits with 1 if the recording does not pass
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: Mp4Analyzer file [minFps [maxSyncIntervalMs [maxAvOffsetMs]]]");
+			System.exit(2);
+		}
+		final Report report = analyze(new File(args[0]));
+		System.out.println(report);
+		final List<String> failures = report.verify(
+			args.length > 1 ? Float.parseFloat(args[1]) : 0,
+			args.length > 2 ? Long.parseLong(args[2]) * 1000L : 0,
+			args.length > 3 ? Long.parseLong(args[3]) * 1000L : 0);
+		for (final String failure: failures) {
+			System.out.println("FAIL:" + failure);
+		}
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	public static Report analyze(final File file) throws IOException {
+		final Report report = new Report(file);
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long fileSize = channel.size();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			long pos = 0;
+			while (pos + 8 <= fileSize) {
+				header.clear();
+				if (fileSize - pos < HEADER_SIZE) {
+					header.limit((int)(fileSize - pos));
+				}
+				while (header.hasRemaining()) {
+					if (channel.read(header, pos + header.position()) < 0)
+						throw new IOException("unexpected end of file");
+				}
+				long size = header.getInt(0) & 0xffffffffL;
+				final int type = header.getInt(4);
+				int headerSize = 8;
+				if (size == 1) {
+					if (header.limit() < HEADER_SIZE) {
+						report.mIsTruncated = true;
+						break;
+					}
+					size = header.getLong(8);
+					headerSize = 16;
+				} else if (size == 0) {
+					if (type == 0) {
+						// zero filled(preallocated) space of a writer that did not finish
+						report.mIsTruncated = true;
+						break;
+					}
+					// extends to the end of file
+					size = fileSize - pos;
+				}
+				if ((size < headerSize) || (pos + size > fileSize)) {
+					report.mIsTruncated = true;
+					break;
+				}
+				if ((type == MOOV) || (type == MOOF)) {
+					if (size > Integer.MAX_VALUE)
+						throw new IOException("too large " + toString(type) + ":" + size);
+					final ByteBuffer box = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+					if (type == MOOV) {
+						parseContainer(box, headerSize, (int)size, report, null, null);
+					} else if (report.mTracks.isEmpty()) {
+						report.mProblems.add("moof before moov at " + pos);
+					} else {
+						report.mFragmentCount++;
+						parseContainer(box, headerSize, (int)size, report, null, null);
+					}
+				}
+				pos += size;
+			}
+			if (pos + 8 > fileSize && pos < fileSize) {
+				report.mIsTruncated = true;
+			}
+		} finally {
+			raf.close();
+		}
+		if (report.mIsTruncated) {
+			report.mProblems.add("truncated");
+		}
+		for (final Track track: report.mTracks) {
+			track.computeStatistics();
+		}
+		return report;
+	}
+
+//********************************************************************************
+	/**
+	 * state of a traf while parsing it
+	 */
+	private static final class Fragment {
+		private Track track;
+		private long baseDecodeTicks = -1;
+		private int defaultDuration, defaultSize, defaultFlags;
+	}
+
+	/**
+	 * walk the child boxes in [start, end) of b
+	 * @param track    track of the enclosing trak, null outside
+	 * @param fragment state of the enclosing traf, null outside
+	 */
+	private static void parseContainer(final ByteBuffer b, final int start, final int end,
+		final Report report, final Track track, final Fragment fragment) {
+
+		int pos = start;
+		while (pos + 8 <= end) {
+			long size = b.getInt(pos) & 0xffffffffL;
+			final int type = b.getInt(pos + 4);
+			int headerSize = 8;
+			if (size == 1) {
+				size = b.getLong(pos + 8);
+				headerSize = 16;
+			} else if (size == 0) {
+				size = end - pos;
+			}
+			if ((size < headerSize) || (pos + size > end)) {
+				report.mProblems.add("invalid " + toString(type) + " box size " + size);
+				return;
+			}
+			final int boxEnd = (int)(pos + size);
+			final int body = pos + headerSize;
+			try {
+				if (type == TRAK) {
+					final Track child = new Track();
+					parseContainer(b, body, boxEnd, report, child, null);
+					child.mergeSampleTable(report.mProblems);
+					report.mTracks.add(child);
+				} else if (type == TRAF) {
+					final Fragment child = new Fragment();
+					parseContainer(b, body, boxEnd, report, null, child);
+				} else if ((type == MDIA) || (type == MINF) || (type == STBL) || (type == MVEX)) {
+					parseContainer(b, body, boxEnd, report, track, fragment);
+				} else if (track != null) {
+					parseTrackBox(b, type, body, track);
+				} else if (type == TREX) {
+					parseTrex(b, body, report);
+				} else if (fragment != null) {
+					parseFragmentBox(b, type, body, fragment, report);
+				}
+			} catch (final IndexOutOfBoundsException e) {
+				report.mProblems.add("malformed " + toString(type) + " box");
+			}
+			pos = boxEnd;
+		}
+	}
+
+	/**
+	 * boxes in trak, offsets are absolute in b, body is after the box header
+	 */
+	private static void parseTrackBox(final ByteBuffer b, final int type, final int body, final Track track) {
+		final int version = b.get(body) & 0xff;
+		if (type == TKHD) {
+			track.mId = b.getInt(body + (version == 1 ? 20 : 12));
+		} else if (type == MDHD) {
+			track.mTimescale = b.getInt(body + (version == 1 ? 20 : 12));
+		} else if (type == HDLR) {
+			track.mHandler = b.getInt(body + 8);
+		} else if (type == STSD) {
+			if (b.getInt(body + 4) > 0) {
+				track.mFormat = toString(b.getInt(body + 12));
+			}
+		} else if (type == STTS) {
+			final int entries = b.getInt(body + 4);
+			int n = 0;
+			for (int i = 0; i < entries; i++) {
+				n += b.getInt(body + 8 + i * 8);
+			}
+			final int[] durations = new int[n];
+			int ix = 0;
+			for (int i = 0; i < entries; i++) {
+				final int count = b.getInt(body + 8 + i * 8);
+				final int delta = b.getInt(body + 12 + i * 8);
+				Arrays.fill(durations, ix, ix + count, delta);
+				ix += count;
+			}
+			track.mSttsDurations = durations;
+		} else if (type == CTTS) {
+			final int entries = b.getInt(body + 4);
+			int n = 0;
+			for (int i = 0; i < entries; i++) {
+				n += b.getInt(body + 8 + i * 8);
+			}
+			final int[] offsets = new int[n];
+			int ix = 0;
+			for (int i = 0; i < entries; i++) {
+				final int count = b.getInt(body + 8 + i * 8);
+				// version 0 is unsigned in the spec but written signed by most muxers
+				final int offset = b.getInt(body + 12 + i * 8);
+				Arrays.fill(offsets, ix, ix + count, offset);
+				ix += count;
+			}
+			track.mCttsOffsets = offsets;
+		} else if (type == STSS) {
+			final int entries = b.getInt(body + 4);
+			final int[] numbers = new int[entries];
+			for (int i = 0; i < entries; i++) {
+				numbers[i] = b.getInt(body + 8 + i * 4);
+			}
+			track.mStssNumbers = numbers;
+		} else if (type == STSZ) {
+			final int sampleSize = b.getInt(body + 4);
+			final int n = b.getInt(body + 8);
+			final int[] sizes = new int[n];
+			if (sampleSize != 0) {
+				Arrays.fill(sizes, sampleSize);
+			} else {
+				for (int i = 0; i < n; i++) {
+					sizes[i] = b.getInt(body + 12 + i * 4);
+				}
+			}
+			track.mStszSizes = sizes;
+		}
+	}
+
+	private static void parseTrex(final ByteBuffer b, final int body, final Report report) {
+		final Track track = findTrack(report, b.getInt(body + 4));
+		if (track != null) {
+			track.mDefaultDuration = b.getInt(body + 12);
+			track.mDefaultSize = b.getInt(body + 16);
+			track.mDefaultFlags = b.getInt(body + 20);
+		}
+	}
+
+	/**
+	 * boxes in traf
+	 */
+	private static void parseFragmentBox(final ByteBuffer b, final int type, final int body,
+		final Fragment fragment, final Report report) {
+
+		final int version = b.get(body) & 0xff;
+		final int flags = b.getInt(body) & 0xffffff;
+		if (type == TFHD) {
+			final int id = b.getInt(body + 4);
+			fragment.track = findTrack(report, id);
+			if (fragment.track == null) {
+				report.mProblems.add("tfhd of unknown track " + id);
+				return;
+			}
+			fragment.defaultDuration = fragment.track.mDefaultDuration;
+			fragment.defaultSize = fragment.track.mDefaultSize;
+			fragment.defaultFlags = fragment.track.mDefaultFlags;
+			int pos = body + 8;
+			if ((flags & 0x000001) != 0) pos += 8;	// base_data_offset
+			if ((flags & 0x000002) != 0) pos += 4;	// sample_description_index
+			if ((flags & 0x000008) != 0) {
+				fragment.defaultDuration = b.getInt(pos);
+				pos += 4;
+			}
+			if ((flags & 0x000010) != 0) {
+				fragment.defaultSize = b.getInt(pos);
+				pos += 4;
+			}
+			if ((flags & 0x000020) != 0) {
+				fragment.defaultFlags = b.getInt(pos);
+			}
+		} else if (type == TFDT) {
+			fragment.baseDecodeTicks = version == 1 ? b.getLong(body + 4) : b.getInt(body + 4) & 0xffffffffL;
+		} else if ((type == TRUN) && (fragment.track != null)) {
+			final Track track = fragment.track;
+			final int n = b.getInt(body + 4);
+			int pos = body + 8;
+			if ((flags & 0x000001) != 0) pos += 4;	// data_offset
+			int firstFlags = -1;
+			if ((flags & 0x000004) != 0) {
+				firstFlags = b.getInt(pos);
+				pos += 4;
+			}
+			// without tfdt the fragment continues from the end of the previous one
+			long decodeTicks = fragment.baseDecodeTicks >= 0 ? fragment.baseDecodeTicks : track.mEndTicks;
+			for (int i = 0; i < n; i++) {
+				int duration = fragment.defaultDuration, size = fragment.defaultSize, sampleFlags = fragment.defaultFlags;
+				int offset = 0;
+				if ((flags & 0x000100) != 0) {
+					duration = b.getInt(pos);
+					pos += 4;
+				}
+				if ((flags & 0x000200) != 0) {
+					size = b.getInt(pos);
+					pos += 4;
+				}
+				if ((flags & 0x000400) != 0) {
+					sampleFlags = b.getInt(pos);
+					pos += 4;
+				} else if ((i == 0) && (firstFlags >= 0)) {
+					sampleFlags = firstFlags;
+				}
+				if ((flags & 0x000800) != 0) {
+					offset = b.getInt(pos);
+					pos += 4;
+				}
+				track.addSample(decodeTicks, duration, offset, size, (sampleFlags & SAMPLE_IS_NON_SYNC) == 0);
+				decodeTicks += duration;
+			}
+			// a following trun of the same traf continues from here
+			fragment.baseDecodeTicks = decodeTicks;
+		}
+	}
+
+	private static Track findTrack(final Report report, final int id) {
+		for (final Track track: report.mTracks) {
+			if (track.mId == id) return track;
+		}
+		return null;
+	}
+
+	private static int fourCC(final String type) {
+		return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+	}
+
+	private static String toString(final int fourCC) {
+		final char[] chars = new char[4];
+		for (int i = 0; i < 4; i++) {
+			final int c = (fourCC >>> (24 - i * 8)) & 0xff;
+			chars[i] = (c >= 0x20) && (c < 0x7f) ? (char)c : '?';
+		}
+		return new String(chars);
+	}
+}
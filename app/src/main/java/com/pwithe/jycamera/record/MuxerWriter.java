@@ -0,0 +1,499 @@
+package com.pwithe.jycamera.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write encoded samples to MediaMuxer(or FragmentedMp4Writer) on a dedicated thread.
+ * Encoder threads only copy the sample into a pooled direct buffer and enqueue it,
+ * so a slow write(e.g. SD card stall) never blocks draining the codec.
+ * Samples are written in presentation time order across tracks.
+ * When the queue of a track is full the sample is dropped(and counted),
+ * video samples are dropped until the next key frame so that the stream stays decodable.
+ * With a SegmentController the writer switches to a new muxer(file) at a sample the controller selects,
+ * the encoders never notice it.
+ */
+/*package*/ final class MuxerWriter implements Runnable, EncodedPacketSink {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "MuxerWriter";
+
+	/**
+	 * maximum number of samples queued for each track
+	 */
+	private static final int QUEUE_CAPACITY = 90;
+	/**
+	 * a sample is written without waiting for the other tracks after this time
+	 */
+	private static final long INTERLEAVE_WAIT_NS = 200 * 1000000L;
+	private static final long PARK_NS = 10 * 1000000L;
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+	private static final class Sample {
+		private ByteBuffer buffer;
+		private long presentationTimeUs;
+		private boolean isKeyFrame;
+		private long enqueueNs;
+	}
+
+	/**
+	 * destination file of samples, all methods are called on the writer thread.
+	 * MediaMuxer is adapted by MediaMuxerWrapper#wrap
+	 */
+	/*package*/ interface SampleMuxer {
+		/**
+		 * @param byteBuf data is [offset, offset + size)
+		 */
+		public void writeSampleData(int trackIndex, ByteBuffer byteBuf, int offset, int size,
+			long presentationTimeUs, boolean isKeyFrame) throws IOException;
+		public void stop() throws IOException;
+		public void release();
+	}
+
+	/**
+	 * @param writer started FragmentedMp4Writer
+	 */
+	/*package*/ static SampleMuxer wrap(final FragmentedMp4Writer writer) {
+		return new SampleMuxer() {
+			@Override
+			public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final int offset, final int size,
+				final long presentationTimeUs, final boolean isKeyFrame) throws IOException {
+
+				writer.writeSampleData(trackIndex, byteBuf, offset, size, presentationTimeUs, isKeyFrame);
+			}
+
+			@Override
+			public void stop() throws IOException {
+				writer.stop();
+			}
+
+			@Override
+			public void release() {
+				writer.release();
+			}
+		};
+	}
+
+	/**
+	 * decides where a new segment starts and creates its muxer, all methods are called on the writer thread
+	 */
+	/*package*/ interface SegmentController {
+		/**
+		 * @return true if the sample should be the first sample of a new segment
+		 */
+		public boolean shouldRollover(int trackIndex, long presentationTimeUs, boolean isKeyFrame);
+		/**
+		 * called after the muxer of the current segment is stopped and released
+		 */
+		public void onSegmentFinished();
+		/**
+		 * @return started muxer of the next segment with the same tracks(same track indices).
+		 * when this throws, the writer stops and drops the remaining samples
+		 */
+		public SampleMuxer createNextMuxer() throws IOException;
+	}
+
+	/**
+	 * all methods are called on the writer thread
+	 */
+	/*package*/ interface Callback {
+		/**
+		 * called once before the first sample is written, samples are queued meanwhile
+		 * @return false to stop without writing any sample(e.g. no storage space)
+		 */
+		public boolean onWriterStarted();
+		/**
+		 * called after the last muxer is stopped and released, the file is complete
+		 */
+		public void onWriterFinished();
+	}
+
+	private SampleMuxer mMuxer;
+	private final SegmentController mSegmentController;
+	private volatile Callback mCallback;
+	private final int mTrackNum;
+	private final boolean[] mIsVideoTrack;
+	private final ConcurrentLinkedQueue<Sample>[] mQueues;
+	private final AtomicInteger[] mQueueSize;
+	private final boolean[] mDropUntilKeyFrame;
+	private final ConcurrentLinkedQueue<Sample> mPool = new ConcurrentLinkedQueue<Sample>();
+	/**
+	 * number of samples in mPool, ConcurrentLinkedQueue#size is O(n)
+	 */
+	private final AtomicInteger mPoolSize = new AtomicInteger();
+	private final Thread mThread;
+	private volatile boolean mRequestStop;
+	/**
+	 * the writer stops without writing the queued samples
+	 */
+	private volatile boolean mIsAborted;
+	private volatile boolean mIsReleased;
+	// statistics
+	private final AtomicLong mDroppedCount = new AtomicLong();
+	private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+	private volatile long mWrittenCount;
+	private volatile long mTotalLatencyNs;
+	private volatile long mMaxLatencyNs;
+	/**
+	 * maximum latency since the last #takeMaxLatencyUs
+	 */
+	private final AtomicLong mWindowMaxLatencyNs = new AtomicLong();
+	private volatile long mMaxWriteNs;
+
+	/**
+	 * @param muxer        started muxer, this writer stops and releases it
+	 * @param isVideoTrack whether each track(index of MediaMuxer#addTrack) is video
+	 * @param controller   null if the whole recording is written to one file
+	 */
+	@SuppressWarnings("unchecked")
+	public MuxerWriter(final SampleMuxer muxer, final boolean[] isVideoTrack, final SegmentController controller) {
+		mMuxer = muxer;
+		mSegmentController = controller;
+		mTrackNum = isVideoTrack.length;
+		mIsVideoTrack = isVideoTrack.clone();
+		mQueues = new ConcurrentLinkedQueue[mTrackNum];
+		mQueueSize = new AtomicInteger[mTrackNum];
+		mDropUntilKeyFrame = new boolean[mTrackNum];
+		for (int i = 0; i < mTrackNum; i++) {
+			mQueues[i] = new ConcurrentLinkedQueue<Sample>();
+			mQueueSize[i] = new AtomicInteger();
+		}
+		mThread = new Thread(this, TAG);
+	}
+
+	/**
+	 * should be called before #start
+	 */
+	public void setCallback(final Callback callback) {
+		mCallback = callback;
+	}
+
+	public void start() {
+		mThread.start();
+	}
+
+	/**
+	 * copy encoded data and pass it to the writer thread, never blocks.
+	 * each track should be written from one thread(its encoder thread).
+	 * @return false if the sample is dropped
+	 */
+	@Override
+	public boolean write(final int trackIndex, final ByteBuffer byteBuf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) {
+
+		if (mRequestStop || (trackIndex < 0) || (trackIndex >= mTrackNum)) return false;
+		if (mDropUntilKeyFrame[trackIndex]) {
+			if (!isKeyFrame) {
+				mDroppedCount.incrementAndGet();
+				return false;
+			}
+			mDropUntilKeyFrame[trackIndex] = false;
+		}
+		final int depth = mQueueSize[trackIndex].get();
+		if (depth >= QUEUE_CAPACITY) {
+			mDroppedCount.incrementAndGet();
+			// later video frames refer to this one, audio frames are independent
+			mDropUntilKeyFrame[trackIndex] = mIsVideoTrack[trackIndex];
+			Platform.logW(TAG, "queue full, drop sample:track=" + trackIndex);
+			return false;
+		}
+		final Sample sample = obtain(size);
+		final ByteBuffer dst = sample.buffer;
+		dst.clear();
+		byteBuf.limit(offset + size);
+		byteBuf.position(offset);
+		dst.put(byteBuf);
+		dst.flip();
+		sample.presentationTimeUs = presentationTimeUs;
+		sample.isKeyFrame = isKeyFrame;
+		sample.enqueueNs = System.nanoTime();
+		mQueues[trackIndex].offer(sample);
+		final int newDepth = mQueueSize[trackIndex].incrementAndGet();
+		// encoder threads of the tracks update it concurrently
+		for (;;) {
+			final int max = mMaxQueueDepth.get();
+			if ((newDepth <= max) || mMaxQueueDepth.compareAndSet(max, newDepth)) break;
+		}
+		LockSupport.unpark(mThread);
+		return true;
+	}
+
+	/**
+	 * write all queued samples, then stop and release the muxer on the writer thread.
+	 * this returns immediately.
+	 */
+	public void stop() {
+		mRequestStop = true;
+		LockSupport.unpark(mThread);
+	}
+
+	/**
+	 * @return true if the writer stopped before all samples were written(#Callback or #SegmentController failed)
+	 */
+	public boolean isAborted() {
+		return mIsAborted;
+	}
+
+	public boolean isReleased() {
+		return mIsReleased;
+	}
+
+	/**
+	 * @return number of samples waiting to be written
+	 */
+	public int getQueueDepth() {
+		int result = 0;
+		for (int i = 0; i < mTrackNum; i++) {
+			result += mQueueSize[i].get();
+		}
+		return result;
+	}
+
+	public int getMaxQueueDepth() {
+		return mMaxQueueDepth.get();
+	}
+
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	public long getWrittenCount() {
+		return mWrittenCount;
+	}
+
+	/**
+	 * @return average time from enqueue to the end of MediaMuxer#writeSampleData [usec]
+	 */
+	public long getAverageLatencyUs() {
+		final long n = mWrittenCount;
+		return n > 0 ? mTotalLatencyNs / n / 1000 : 0;
+	}
+
+	public long getMaxLatencyUs() {
+		return mMaxLatencyNs / 1000;
+	}
+
+	/**
+	 * @return maximum time from enqueue to the end of MediaMuxer#writeSampleData since the last call [usec],
+	 * the next call measures from now
+	 */
+	public long takeMaxLatencyUs() {
+		return mWindowMaxLatencyNs.getAndSet(0) / 1000;
+	}
+
+	/**
+	 * @return maximum duration of one MediaMuxer#writeSampleData call [usec]
+	 */
+	public long getMaxWriteUs() {
+		return mMaxWriteNs / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MuxerWriter(written=%d,dropped=%d,depth=%d/%d,latency=%d/%d us,write max=%d us)",
+			mWrittenCount, getDroppedCount(), getQueueDepth(), getMaxQueueDepth(),
+			getAverageLatencyUs(), getMaxLatencyUs(), getMaxWriteUs());
+	}
+
+	@Override
+	public void run() {
+		if (DEBUG) Platform.logV(TAG, "writer thread start");
+		// parks between samples, so it keeps its own thread and registers to the I/O stage
+		Platform.registerIoThread(new PipelineScheduler.QueueDepthSource() {
+			@Override
+			public int getQueueDepth() {
+				return MuxerWriter.this.getQueueDepth();
+			}
+		});
+		final Callback callback = mCallback;
+		if (callback != null) {
+			boolean started = true;
+			try {
+				started = callback.onWriterStarted();
+			} catch (final Exception e) {
+				Platform.logW(TAG, "onWriterStarted:", e);
+			}
+			if (!started) {
+				Platform.logW(TAG, "refused to start, nothing is written");
+				abort();
+			}
+		}
+		try {
+			for (;;) {
+				if (mIsAborted) break;
+				final boolean stopping = mRequestStop;
+				final int track = selectTrack(stopping);
+				if (track >= 0) {
+					writeSample(track);
+				} else if (stopping) {
+					break;
+				} else {
+					LockSupport.parkNanos(this, PARK_NS);
+				}
+			}
+		} catch (final Exception e) {
+			Platform.logE(TAG, "writer thread:", e);
+		} finally {
+			releaseMuxer();
+			if (callback != null) {
+				try {
+					callback.onWriterFinished();
+				} catch (final Exception e) {
+					Platform.logW(TAG, "onWriterFinished:", e);
+				}
+			}
+			Platform.unregisterThread();
+		}
+		Platform.logI(TAG, "finished:" + this);
+	}
+
+	/**
+	 * select the track whose head sample has the smallest presentation time.
+	 * wait for samples of the other tracks unless stopping or the head waited too long.
+	 * @return -1 if nothing should be written now
+	 */
+	private int selectTrack(final boolean stopping) {
+		int result = -1;
+		long minPts = Long.MAX_VALUE;
+		boolean allReady = true;
+		long oldestNs = Long.MAX_VALUE;
+		for (int i = 0; i < mTrackNum; i++) {
+			final Sample head = mQueues[i].peek();
+			if (head == null) {
+				allReady = false;
+				continue;
+			}
+			if (head.presentationTimeUs < minPts) {
+				minPts = head.presentationTimeUs;
+				result = i;
+			}
+			if (head.enqueueNs < oldestNs) {
+				oldestNs = head.enqueueNs;
+			}
+		}
+		if ((result >= 0) && !allReady && !stopping
+			&& (System.nanoTime() - oldestNs < INTERLEAVE_WAIT_NS)) {
+			// other track may have an earlier sample soon
+			return -1;
+		}
+		return result;
+	}
+
+	private void writeSample(final int track) {
+		final Sample sample = mQueues[track].poll();
+		mQueueSize[track].decrementAndGet();
+		if ((mSegmentController != null)
+			&& mSegmentController.shouldRollover(track, sample.presentationTimeUs, sample.isKeyFrame)) {
+			rollover();
+		}
+		if (mMuxer == null) {
+			// creating the muxer of the segment failed, the writer is stopping
+			mDroppedCount.incrementAndGet();
+			recycle(sample);
+			return;
+		}
+		final long startNs = System.nanoTime();
+		try {
+			final ByteBuffer buf = sample.buffer;
+			mMuxer.writeSampleData(track, buf, 0, buf.limit(), sample.presentationTimeUs, sample.isKeyFrame);
+		} catch (final Exception e) {
+			Platform.logE(TAG, "writeSampleData:", e);
+		}
+		final long endNs = System.nanoTime();
+		final long latency = endNs - sample.enqueueNs;
+		mTotalLatencyNs += latency;
+		mWrittenCount++;
+		if (latency > mMaxLatencyNs) mMaxLatencyNs = latency;
+		// the reader resets the window concurrently
+		for (;;) {
+			final long max = mWindowMaxLatencyNs.get();
+			if ((latency <= max) || mWindowMaxLatencyNs.compareAndSet(max, latency)) break;
+		}
+		if (endNs - startNs > mMaxWriteNs) mMaxWriteNs = endNs - startNs;
+		recycle(sample);
+	}
+
+	/**
+	 * finish the current segment and continue writing to the next one
+	 */
+	private void rollover() {
+		final long startNs = System.nanoTime();
+		stopMuxer();
+		mSegmentController.onSegmentFinished();
+		try {
+			mMuxer = mSegmentController.createNextMuxer();
+		} catch (final Exception e) {
+			Platform.logE(TAG, "failed creating next segment, stop writing", e);
+			mMuxer = null;
+			abort();
+		}
+		if (DEBUG) Platform.logV(TAG, "rollover:" + (System.nanoTime() - startNs) / 1000 + " us");
+	}
+
+	/**
+	 * stop accepting samples and exit the writer loop, on the writer thread
+	 */
+	private void abort() {
+		mIsAborted = true;
+		mRequestStop = true;
+	}
+
+	private void stopMuxer() {
+		if (mMuxer == null) return;
+		try {
+			mMuxer.stop();
+		} catch (final Exception e) {
+			Platform.logE(TAG, "failed stopping muxer", e);
+		}
+		try {
+			mMuxer.release();
+		} catch (final Exception e) {
+			Platform.logE(TAG, "failed releasing muxer", e);
+		}
+		mMuxer = null;
+	}
+
+	private void releaseMuxer() {
+		final boolean hadMuxer = mMuxer != null;
+		stopMuxer();
+		if (hadMuxer && (mSegmentController != null)) {
+			mSegmentController.onSegmentFinished();
+		}
+		if (mIsAborted) {
+			mDroppedCount.addAndGet(getQueueDepth());
+		}
+		for (int i = 0; i < mTrackNum; i++) {
+			mQueues[i].clear();
+			mQueueSize[i].set(0);
+		}
+		mPool.clear();
+		mPoolSize.set(0);
+		mIsReleased = true;
+		if (DEBUG) Platform.logV(TAG, "MediaMuxer stopped:");
+	}
+
+	private Sample obtain(final int size) {
+		Sample sample = mPool.poll();
+		if (sample == null) {
+			sample = new Sample();
+		} else {
+			mPoolSize.decrementAndGet();
+		}
+		if ((sample.buffer == null) || (sample.buffer.capacity() < size)) {
+			sample.buffer = ByteBuffer.allocateDirect(Math.max(size, MIN_BUFFER_SIZE))
+				.order(ByteOrder.nativeOrder());
+		}
+		return sample;
+	}
+
+	private void recycle(final Sample sample) {
+		if (mPoolSize.get() < QUEUE_CAPACITY * mTrackNum) {
+			mPoolSize.incrementAndGet();
+			mPool.offer(sample);
+		}
+	}
+}
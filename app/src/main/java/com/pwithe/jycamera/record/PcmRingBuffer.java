@@ -0,0 +1,126 @@
+package com.pwithe.jycamera.record;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of PCM frames.
+ * All slots are slices of one direct buffer allocated up front, so AudioRecord can read into a slot directly
+ * and neither side ever allocates or blocks. When the ring is full the producer drops the frame
+ * and counts it instead of waiting for the consumer.
+ */
+/*package*/ final class PcmRingBuffer {
+	private final ByteBuffer[] mSlots;
+	private final long[] mPtsUs;
+	private final int mSlotNum;
+	/**
+	 * number of frames written(only updated by the producer) / read(only updated by the consumer)
+	 */
+	private final AtomicLong mHead = new AtomicLong();
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mOverflowFrames = new AtomicLong();
+	private final AtomicLong mOverflowBytes = new AtomicLong();
+	private volatile int mMaxFill;
+
+	/**
+	 * @param slotBytes maximum bytes of one frame
+	 * @param slotNum   number of frames
+	 */
+	public PcmRingBuffer(final int slotBytes, final int slotNum) {
+		if ((slotBytes <= 0) || (slotNum <= 0))
+			throw new IllegalArgumentException("invalid size:" + slotBytes + "x" + slotNum);
+		mSlotNum = slotNum;
+		mSlots = new ByteBuffer[slotNum];
+		mPtsUs = new long[slotNum];
+		final ByteBuffer backing = ByteBuffer.allocateDirect(slotBytes * slotNum).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < slotNum; i++) {
+			backing.limit((i + 1) * slotBytes);
+			backing.position(i * slotBytes);
+			mSlots[i] = backing.slice().order(ByteOrder.nativeOrder());
+		}
+	}
+
+//********************************************************************************
+// producer
+	/**
+	 * @return cleared buffer of the next free slot, null if the ring is full(call #recordOverflow then)
+	 */
+	public ByteBuffer acquireWrite() {
+		final long head = mHead.get();
+		if (head - mTail.get() >= mSlotNum) return null;
+		final ByteBuffer slot = mSlots[(int)(head % mSlotNum)];
+		slot.clear();
+		return slot;
+	}
+
+	/**
+	 * publish the slot returned by #acquireWrite
+	 * @param size bytes written from the start of the slot
+	 * @param presentationTimeUs time of the first sample
+	 */
+	public void commitWrite(final int size, final long presentationTimeUs) {
+		final long head = mHead.get();
+		final int ix = (int)(head % mSlotNum);
+		final ByteBuffer slot = mSlots[ix];
+		slot.position(0);
+		slot.limit(size);
+		mPtsUs[ix] = presentationTimeUs;
+		// ordered store publishes the slot contents written above
+		mHead.lazySet(head + 1);
+		final int fill = (int)(head + 1 - mTail.get());
+		if (fill > mMaxFill) mMaxFill = fill;
+	}
+
+	public void recordOverflow(final int bytes) {
+		mOverflowFrames.incrementAndGet();
+		mOverflowBytes.addAndGet(bytes);
+	}
+
+//********************************************************************************
+// consumer
+	/**
+	 * @return the oldest frame, null if empty. the position advances as the consumer reads it,
+	 * call #releaseRead when it has no remaining data
+	 */
+	public ByteBuffer peekRead() {
+		final long tail = mTail.get();
+		if (tail >= mHead.get()) return null;
+		return mSlots[(int)(tail % mSlotNum)];
+	}
+
+	/**
+	 * @return presentation time of the first sample of the frame returned by #peekRead
+	 */
+	public long peekPresentationTimeUs() {
+		return mPtsUs[(int)(mTail.get() % mSlotNum)];
+	}
+
+	public void releaseRead() {
+		mTail.lazySet(mTail.get() + 1);
+	}
+
+//********************************************************************************
+	/**
+	 * @return number of frames waiting for the consumer
+	 */
+	public int size() {
+		return (int)(mHead.get() - mTail.get());
+	}
+
+	public int capacity() {
+		return mSlotNum;
+	}
+
+	public int getMaxFill() {
+		return mMaxFill;
+	}
+
+	public long getOverflowFrames() {
+		return mOverflowFrames.get();
+	}
+
+	public long getOverflowBytes() {
+		return mOverflowBytes.get();
+	}
+}
@@ -0,0 +1,396 @@
+package com.pwithe.jycamera.record;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Owner of the shared pipeline threads.
+ * There is one looper thread for each stage(capture, GL, codec and I/O) with a tuned priority,
+ * components post their work to the stage handler instead of starting their own HandlerThread.
+ * Components that still need a dedicated thread(blocking loops, EGL context owners)
+ * register the thread to the stage so that it gets the stage priority and is counted in the statistics.
+ * Statistics of each stage: CPU time of its threads(from /proc/self/task), queue depth and dispatch lag.
+ */
+public final class PipelineScheduler {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "PipelineScheduler";
+
+	public static final int STAGE_CAPTURE = 0;
+	public static final int STAGE_GL = 1;
+	public static final int STAGE_CODEC = 2;
+	public static final int STAGE_IO = 3;
+	private static final int STAGE_NUM = 4;
+
+	private static final String[] STAGE_NAMES = { "Pipeline-Capture", "Pipeline-GL", "Pipeline-Codec", "Pipeline-IO" };
+	/**
+	 * capture and GL feed the display/encoder every frame, codec should keep up with them,
+	 * I/O(muxer writing, monitoring) can wait
+	 */
+	private static final int[] STAGE_PRIORITIES = {
+		Process.THREAD_PRIORITY_DISPLAY,
+		Process.THREAD_PRIORITY_DISPLAY,
+		Process.THREAD_PRIORITY_FOREGROUND,
+		Process.THREAD_PRIORITY_DEFAULT,
+	};
+
+	/**
+	 * provides the number of pending work items of a registered thread
+	 */
+	public interface QueueDepthSource {
+		public int getQueueDepth();
+	}
+
+	private static final class RegisteredThread {
+		private final int tid;
+		private final String name;
+		private final QueueDepthSource source;
+
+		private RegisteredThread(final int tid, final String name, final QueueDepthSource source) {
+			this.tid = tid;
+			this.name = name;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Handler of a stage looper, counts messages that are due but not dispatched yet
+	 * and the delay from their due time to dispatching.
+	 */
+	private static final class StageHandler extends Handler {
+		private final Set<Message> mDue = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		private volatile long mDispatchCount;
+		private volatile long mTotalLagMs;
+		private volatile long mMaxLagMs;
+		private volatile long mTotalRunNs;
+
+		private StageHandler(final Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public boolean sendMessageAtTime(final Message msg, final long uptimeMillis) {
+			final boolean due = uptimeMillis <= SystemClock.uptimeMillis();
+			if (due) {
+				synchronized (mDue) {
+					mDue.add(msg);
+				}
+			}
+			final boolean result = super.sendMessageAtTime(msg, uptimeMillis);
+			if (due && !result) {
+				synchronized (mDue) {
+					mDue.remove(msg);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void dispatchMessage(final Message msg) {
+			synchronized (mDue) {
+				mDue.remove(msg);
+			}
+			final long lag = SystemClock.uptimeMillis() - msg.getWhen();
+			final long start = System.nanoTime();
+			super.dispatchMessage(msg);
+			mTotalRunNs += System.nanoTime() - start;
+			mTotalLagMs += lag;
+			if (lag > mMaxLagMs) mMaxLagMs = lag;
+			mDispatchCount++;
+		}
+
+		private int getQueueDepth() {
+			synchronized (mDue) {
+				return mDue.size();
+			}
+		}
+
+		/**
+		 * the looper is idle only when no message is due,
+		 * this drops messages removed by Handler#removeCallbacks(can not be tracked)
+		 */
+		private void onIdle() {
+			synchronized (mDue) {
+				mDue.clear();
+			}
+		}
+	}
+
+	private static final class Stage {
+		private final int index;
+		private HandlerThread thread;
+		private StageHandler handler;
+		private final List<RegisteredThread> registered = new ArrayList<RegisteredThread>();
+		/**
+		 * CPU time of registered threads already finished [nsec]
+		 */
+		private long retiredCpuNs;
+
+		private Stage(final int index) {
+			this.index = index;
+		}
+	}
+
+	private static PipelineScheduler sInstance;
+
+	private final Stage[] mStages = new Stage[STAGE_NUM];
+	private final long mNsPerTick;
+
+	public static synchronized PipelineScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new PipelineScheduler();
+		}
+		return sInstance;
+	}
+
+	private PipelineScheduler() {
+		for (int i = 0; i < STAGE_NUM; i++) {
+			mStages[i] = new Stage(i);
+		}
+		long ticks = 100;	// USER_HZ of almost all Android kernels
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			ticks = getClockTicks();
+		}
+		mNsPerTick = 1000000000L / (ticks > 0 ? ticks : 100);
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static long getClockTicks() {
+		return Os.sysconf(OsConstants._SC_CLK_TCK);
+	}
+
+	/**
+	 * @return shared handler of the stage, its thread is started on first use and never quits
+	 */
+	public Handler getHandler(final int stage) {
+		final Stage s = getStage(stage);
+		synchronized (s) {
+			if (s.handler == null) {
+				s.thread = new HandlerThread(STAGE_NAMES[stage], STAGE_PRIORITIES[stage]);
+				s.thread.start();
+				final StageHandler handler = new StageHandler(s.thread.getLooper());
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+							@Override
+							public boolean queueIdle() {
+								handler.onIdle();
+								return true;
+							}
+						});
+					}
+				});
+				s.handler = handler;
+			}
+			return s.handler;
+		}
+	}
+
+	public Looper getLooper(final int stage) {
+		return getHandler(stage).getLooper();
+	}
+
+	public boolean post(final int stage, final Runnable task) {
+		return getHandler(stage).post(task);
+	}
+
+	public boolean postDelayed(final int stage, final Runnable task, final long delayMs) {
+		return getHandler(stage).postDelayed(task, delayMs);
+	}
+
+	/**
+	 * register the current thread to the stage.
+	 * the priority of the thread is raised to the stage priority(never lowered)
+	 * @param source pending work of this thread, can be null
+	 */
+	public void registerCurrentThread(final int stage, final QueueDepthSource source) {
+		final Stage s = getStage(stage);
+		final int tid = Process.myTid();
+		try {
+			if (Process.getThreadPriority(tid) > STAGE_PRIORITIES[stage]) {
+				Process.setThreadPriority(STAGE_PRIORITIES[stage]);
+			}
+		} catch (final Exception e) {
+			Log.w(TAG, "failed to set priority:", e);
+		}
+		synchronized (s) {
+			for (final RegisteredThread t: s.registered) {
+				if (t.tid == tid) return;
+			}
+			s.registered.add(new RegisteredThread(tid, Thread.currentThread().getName(), source));
+		}
+		if (DEBUG) Log.v(TAG, "register:" + Thread.currentThread().getName() + " to " + STAGE_NAMES[stage]);
+	}
+
+	/**
+	 * should be called on the registered thread just before it finishes
+	 */
+	public void unregisterCurrentThread() {
+		final int tid = Process.myTid();
+		final long cpuNs = readCpuTimeNs(tid);
+		for (final Stage s: mStages) {
+			synchronized (s) {
+				for (int i = s.registered.size() - 1; i >= 0; i--) {
+					if (s.registered.get(i).tid == tid) {
+						s.registered.remove(i);
+						if (cpuNs > 0) s.retiredCpuNs += cpuNs;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return total CPU time of the stage thread and registered threads [msec]
+	 */
+	public long getCpuTimeMs(final int stage) {
+		final Stage s = getStage(stage);
+		long result;
+		final List<RegisteredThread> threads;
+		synchronized (s) {
+			result = s.retiredCpuNs;
+			threads = new ArrayList<RegisteredThread>(s.registered);
+			if (s.thread != null) {
+				result += Math.max(0, readCpuTimeNs(s.thread.getThreadId()));
+			}
+		}
+		for (final RegisteredThread t: threads) {
+			final long ns = readCpuTimeNs(t.tid);
+			if (ns >= 0) {
+				result += ns;
+			} else {
+				// finished without unregistering(e.g. GLSurfaceView thread)
+				synchronized (s) {
+					s.registered.remove(t);
+				}
+			}
+		}
+		return result / 1000000L;
+	}
+
+	/**
+	 * @return work items waiting on the stage looper and registered threads
+	 */
+	public int getQueueDepth(final int stage) {
+		final Stage s = getStage(stage);
+		int result = 0;
+		final List<RegisteredThread> threads;
+		synchronized (s) {
+			if (s.handler != null) {
+				result = s.handler.getQueueDepth();
+			}
+			threads = new ArrayList<RegisteredThread>(s.registered);
+		}
+		for (final RegisteredThread t: threads) {
+			if (t.source != null) {
+				try {
+					result += t.source.getQueueDepth();
+				} catch (final Exception e) {
+					// ignore
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return average delay from due time to dispatching on the stage looper [msec]
+	 */
+	public long getAverageDispatchLagMs(final int stage) {
+		final Stage s = getStage(stage);
+		final StageHandler handler;
+		synchronized (s) {
+			handler = s.handler;
+		}
+		if (handler == null) return 0;
+		final long n = handler.mDispatchCount;
+		return n > 0 ? handler.mTotalLagMs / n : 0;
+	}
+
+	/**
+	 * @return statistics of all stages
+	 */
+	public String dump() {
+		final StringBuilder sb = new StringBuilder();
+		for (final Stage s: mStages) {
+			final StageHandler handler;
+			final List<String> names = new ArrayList<String>();
+			synchronized (s) {
+				handler = s.handler;
+				for (final RegisteredThread t: s.registered) {
+					names.add(t.name + "(" + t.tid + ")");
+				}
+			}
+			sb.append(STAGE_NAMES[s.index])
+				.append(":cpu=").append(getCpuTimeMs(s.index)).append("ms")
+				.append(",depth=").append(getQueueDepth(s.index));
+			if (handler != null) {
+				final long n = handler.mDispatchCount;
+				sb.append(",tasks=").append(n)
+					.append(",lag avg/max=").append(n > 0 ? handler.mTotalLagMs / n : 0)
+					.append("/").append(handler.mMaxLagMs).append("ms")
+					.append(",run=").append(handler.mTotalRunNs / 1000000L).append("ms");
+			}
+			sb.append(",threads=").append(names).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public void logStats() {
+		Log.i(TAG, dump());
+	}
+
+	private Stage getStage(final int stage) {
+		if ((stage < 0) || (stage >= STAGE_NUM))
+			throw new IllegalArgumentException("unknown stage:" + stage);
+		return mStages[stage];
+	}
+
+	/**
+	 * @return utime + stime of the thread [nsec], -1 if the thread does not exist
+	 */
+	private long readCpuTimeNs(final int tid) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/self/task/" + tid + "/stat"));
+			final String line = reader.readLine();
+			if (line == null) return -1;
+			// the thread name(2nd field) may contain spaces, so parse after the last ')'
+			final String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+			// fields[0] is the 3rd field(state), utime and stime are the 14th and 15th
+			final long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+			return ticks * mNsPerTick;
+		} catch (final IOException e) {
+			return -1;
+		} catch (final RuntimeException e) {
+			return -1;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+}
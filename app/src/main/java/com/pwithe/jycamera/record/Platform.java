@@ -0,0 +1,88 @@
+package com.pwithe.jycamera.record;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logging, clock and thread registration for the packetizing/queueing classes
+ * (MuxerWriter, PreEventBuffer, LiveStreamer, HlsSegmenter, HlsServer, StorageBudget).
+ * On the device these go to android.util.Log, SystemClock and PipelineScheduler,
+ * on the development machine(JVM unit tests) to System.err and System.nanoTime,
+ * so those classes never touch android.* directly and run without the mockable android.jar defaults.
+ */
+/*package*/ final class Platform {
+	/**
+	 * ART reports "Dalvik" too
+	 */
+	private static final boolean IS_ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+	private static final long START_NS = System.nanoTime();
+
+	private Platform() {
+	}
+
+	/*package*/ static void logV(final String tag, final String msg) {
+		if (IS_ANDROID) {
+			Log.v(tag, msg);
+		} else {
+			print("V", tag, msg, null);
+		}
+	}
+
+	/*package*/ static void logI(final String tag, final String msg) {
+		if (IS_ANDROID) {
+			Log.i(tag, msg);
+		} else {
+			print("I", tag, msg, null);
+		}
+	}
+
+	/*package*/ static void logW(final String tag, final String msg) {
+		logW(tag, msg, null);
+	}
+
+	/*package*/ static void logW(final String tag, final String msg, final Throwable tr) {
+		if (IS_ANDROID) {
+			Log.w(tag, msg, tr);
+		} else {
+			print("W", tag, msg, tr);
+		}
+	}
+
+	/*package*/ static void logE(final String tag, final String msg, final Throwable tr) {
+		if (IS_ANDROID) {
+			Log.e(tag, msg, tr);
+		} else {
+			print("E", tag, msg, tr);
+		}
+	}
+
+	/**
+	 * @return milliseconds since boot(since class loading on the JVM), counts in deep sleep
+	 */
+	/*package*/ static long elapsedRealtime() {
+		return IS_ANDROID ? SystemClock.elapsedRealtime() : (System.nanoTime() - START_NS) / 1000000L;
+	}
+
+	/**
+	 * register the current(dedicated) thread to the I/O stage of PipelineScheduler
+	 * @param source null if the thread has no queue
+	 */
+	/*package*/ static void registerIoThread(final PipelineScheduler.QueueDepthSource source) {
+		if (IS_ANDROID) {
+			PipelineScheduler.getInstance().registerCurrentThread(PipelineScheduler.STAGE_IO, source);
+		}
+	}
+
+	/*package*/ static void unregisterThread() {
+		if (IS_ANDROID) {
+			PipelineScheduler.getInstance().unregisterCurrentThread();
+		}
+	}
+
+	private static void print(final String level, final String tag, final String msg, final Throwable tr) {
+		System.err.println(level + "/" + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+	}
+}
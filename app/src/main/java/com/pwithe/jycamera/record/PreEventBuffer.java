@@ -0,0 +1,341 @@
+package com.pwithe.jycamera.record;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer of encoded packets for pre-event(incident) recording.
+ * Packets are copied into one direct buffer allocated up front and their attributes into primitive arrays,
+ * so keeping the last seconds costs no allocation per packet.
+ * The oldest GOP(a video key frame and everything up to the next one) is dropped as a whole
+ * when the buffer covers more than the requested duration or runs out of space.
+ * On an event the buffered packets are written to a new file from the oldest key frame
+ * on a writer thread, then live packets follow through the same ring until the event is finished.
+ */
+/*package*/ final class PreEventBuffer implements EncodedPacketSink {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "PreEventBuffer";
+
+	/**
+	 * upper estimate of packets per second(60fps video + 44.1kHz AAC)
+	 */
+	private static final int PACKETS_PER_SECOND = 120;
+	private static final long PARK_NS = 10 * 1000000L;
+
+	private final ByteBuffer mData;
+	private final int mCapacity;
+	private final int mMaxPackets;
+	private final long mDurationUs;
+	private final int[] mTracks;
+	private final int[] mOffsets;
+	private final int[] mSizes;
+	private final boolean[] mIsKeyFrame;
+	private final long[] mPtsUs;
+	private final boolean[] mIsVideo;
+	private boolean[] mIsVideoTrack;
+	private boolean mHasVideo;
+	/**
+	 * sequence numbers of the oldest packet and the next packet, packets are [mTail, mHead)
+	 */
+	private long mTail, mHead;
+	private int mWritePos;
+	private boolean mDropUntilKeyFrame;
+	private long mDroppedCount;
+	/**
+	 * writer of the current event, kept until its thread exits(also while draining after #stopEvent)
+	 */
+	private EventWriter mEventWriter;
+
+	/**
+	 * @param durationMs    time kept before an event
+	 * @param capacityBytes size of the data buffer, should hold durationMs of video and audio with margin
+	 */
+	public PreEventBuffer(final long durationMs, final int capacityBytes) {
+		if ((durationMs <= 0) || (capacityBytes <= 0))
+			throw new IllegalArgumentException("invalid pre-event buffer:" + durationMs + "ms," + capacityBytes + "bytes");
+		mDurationUs = durationMs * 1000L;
+		mCapacity = capacityBytes;
+		mData = ByteBuffer.allocateDirect(capacityBytes);
+		mMaxPackets = (int)((durationMs / 1000 + 2) * PACKETS_PER_SECOND);
+		mTracks = new int[mMaxPackets];
+		mOffsets = new int[mMaxPackets];
+		mSizes = new int[mMaxPackets];
+		mIsKeyFrame = new boolean[mMaxPackets];
+		mPtsUs = new long[mMaxPackets];
+		mIsVideo = new boolean[mMaxPackets];
+	}
+
+	/**
+	 * @param isVideoTrack whether each track(index of MediaMuxer#addTrack) is video, set before the first packet
+	 */
+	public synchronized void setTracks(final boolean[] isVideoTrack) {
+		mIsVideoTrack = isVideoTrack.clone();
+		mHasVideo = false;
+		for (final boolean isVideo: isVideoTrack) {
+			mHasVideo |= isVideo;
+		}
+	}
+
+	@Override
+	public synchronized boolean write(final int trackIndex, final ByteBuffer byteBuf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) {
+
+		if (size <= 0) return true;
+		final boolean isVideo = (mIsVideoTrack != null) && (trackIndex >= 0)
+			&& (trackIndex < mIsVideoTrack.length) && mIsVideoTrack[trackIndex];
+		if (isVideo && mDropUntilKeyFrame) {
+			if (!isKeyFrame) {
+				mDroppedCount++;
+				return false;
+			}
+			mDropUntilKeyFrame = false;
+		}
+		if (mHasVideo && (mHead == mTail) && !(isVideo && isKeyFrame)) {
+			// the buffer always starts with a key frame
+			return false;
+		}
+		if (isVideo && isKeyFrame) {
+			trimByDuration(presentationTimeUs);
+		} else if (!mHasVideo) {
+			trimByDuration(presentationTimeUs);
+		}
+		int pos;
+		for (;;) {
+			pos = (mHead - mTail < mMaxPackets) ? findSpace(size) : -1;
+			if (pos >= 0) break;
+			if (!evictGop()) {
+				// too large, or the event writer has not written the rest yet
+				mDroppedCount++;
+				// following video frames refer to this one
+				mDropUntilKeyFrame = isVideo;
+				Platform.logW(TAG, "no space, drop packet:track=" + trackIndex + ",size=" + size);
+				return false;
+			}
+		}
+		byteBuf.limit(offset + size);
+		byteBuf.position(offset);
+		mData.clear();
+		mData.position(pos);
+		mData.put(byteBuf);
+		final int ix = (int)(mHead % mMaxPackets);
+		mTracks[ix] = trackIndex;
+		mOffsets[ix] = pos;
+		mSizes[ix] = size;
+		mIsKeyFrame[ix] = isKeyFrame;
+		mPtsUs[ix] = presentationTimeUs;
+		mIsVideo[ix] = isVideo;
+		mHead++;
+		mWritePos = pos + size;
+		if (mEventWriter != null) {
+			LockSupport.unpark(mEventWriter);
+		}
+		return true;
+	}
+
+	/**
+	 * write buffered packets to the muxer from the oldest key frame, then live packets until #stopEvent.
+	 * the muxer should be started with the same tracks, it is stopped and released by the writer thread.
+	 * @return false if an event is already running or the previous one is still being written
+	 */
+	public synchronized boolean startEvent(final MuxerWriter.SampleMuxer muxer) {
+		if (mEventWriter != null) return false;
+		long readSeq = mTail;
+		if (mHasVideo) {
+			while ((readSeq < mHead) && !isKeyFrame(readSeq)) {
+				readSeq++;
+			}
+		}
+		if (DEBUG) Platform.logV(TAG, "startEvent:buffered packets=" + (mHead - readSeq));
+		mEventWriter = new EventWriter(muxer, readSeq);
+		mEventWriter.start();
+		return true;
+	}
+
+	/**
+	 * finish the event after writing packets received until now, returns immediately.
+	 * the writer keeps its packets in the ring until it has written them,
+	 * a new event can not start until then(#isEventRunning)
+	 */
+	public synchronized void stopEvent() {
+		if ((mEventWriter != null) && !mEventWriter.isStopRequested()) {
+			mEventWriter.requestStop(mHead);
+		}
+	}
+
+	/**
+	 * @return true while an event is written, including the packets left after #stopEvent
+	 */
+	public synchronized boolean isEventRunning() {
+		return mEventWriter != null;
+	}
+
+	/**
+	 * @return packets dropped because of the buffer space
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * @return time covered by the buffered packets [usec]
+	 */
+	public synchronized long getBufferedDurationUs() {
+		if (mHead == mTail) return 0;
+		return mPtsUs[(int)((mHead - 1) % mMaxPackets)] - mPtsUs[(int)(mTail % mMaxPackets)];
+	}
+
+	/**
+	 * drop the oldest GOPs while the second GOP still covers the duration
+	 */
+	private void trimByDuration(final long newestPtsUs) {
+		for (;;) {
+			long next = mTail + 1;
+			if (mHasVideo) {
+				while ((next < mHead) && !isKeyFrame(next)) {
+					next++;
+				}
+			}
+			if ((next >= mHead) || (next > getEvictLimit())
+				|| (newestPtsUs - mPtsUs[(int)(next % mMaxPackets)] < mDurationUs)) {
+				return;
+			}
+			mTail = next;
+		}
+	}
+
+	/**
+	 * drop the oldest GOP(or the oldest packet if there is no video track)
+	 * @return false if nothing can be dropped
+	 */
+	private boolean evictGop() {
+		final long limit = getEvictLimit();
+		if (mTail >= limit) return false;
+		mTail++;
+		if (mHasVideo) {
+			while ((mTail < limit) && !isKeyFrame(mTail)) {
+				mTail++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * packets not written by the event writer yet must be kept
+	 */
+	private long getEvictLimit() {
+		return mEventWriter != null ? mEventWriter.mReadSeq : mHead;
+	}
+
+	private boolean isKeyFrame(final long seq) {
+		final int ix = (int)(seq % mMaxPackets);
+		return mIsVideo[ix] && mIsKeyFrame[ix];
+	}
+
+	/**
+	 * @return offset to write the packet, -1 if there is no contiguous space
+	 */
+	private int findSpace(final int size) {
+		if (mHead == mTail) {
+			mWritePos = 0;
+			return size <= mCapacity ? 0 : -1;
+		}
+		final int tailOffset = mOffsets[(int)(mTail % mMaxPackets)];
+		if (mWritePos > tailOffset) {
+			// used region is [tailOffset, mWritePos)
+			if (mCapacity - mWritePos >= size) return mWritePos;
+			return size <= tailOffset ? 0 : -1;
+		} else if (mWritePos < tailOffset) {
+			// wrapped, used region is [tailOffset, end) and [0, mWritePos)
+			return tailOffset - mWritePos >= size ? mWritePos : -1;
+		}
+		// full
+		return -1;
+	}
+
+	/**
+	 * writes packets from the ring to the muxer of the event, reading the shared buffer without copying
+	 */
+	private final class EventWriter extends Thread {
+		private final MuxerWriter.SampleMuxer mMuxer;
+		private final ByteBuffer mView = mData.duplicate();
+		/**
+		 * next packet this writer writes, packets after this are never evicted. guarded by PreEventBuffer.this
+		 */
+		private long mReadSeq;
+		private volatile long mStopSeq = Long.MAX_VALUE;
+
+		private EventWriter(final MuxerWriter.SampleMuxer muxer, final long readSeq) {
+			super("PreEventWriter");
+			mMuxer = muxer;
+			mReadSeq = readSeq;
+		}
+
+		private void requestStop(final long stopSeq) {
+			mStopSeq = stopSeq;
+			LockSupport.unpark(this);
+		}
+
+		private boolean isStopRequested() {
+			return mStopSeq != Long.MAX_VALUE;
+		}
+
+		@Override
+		public void run() {
+			Platform.registerIoThread(null);
+			long written = 0;
+			try {
+				for (;;) {
+					final int track;
+					final long seq;
+					int offset = 0, size = 0;
+					long ptsUs = 0;
+					boolean isKeyFrame = false;
+					synchronized (PreEventBuffer.this) {
+						seq = mReadSeq;
+						if ((seq >= mStopSeq) || (seq >= mHead)) {
+							track = -1;
+						} else {
+							final int ix = (int)(seq % mMaxPackets);
+							track = mTracks[ix];
+							offset = mOffsets[ix];
+							size = mSizes[ix];
+							ptsUs = mPtsUs[ix];
+							isKeyFrame = mIsKeyFrame[ix];
+						}
+					}
+					if (track >= 0) {
+						// the packet is not evicted until mReadSeq passes it
+						mView.limit(offset + size);
+						mView.position(offset);
+						mMuxer.writeSampleData(track, mView, offset, size, ptsUs, isKeyFrame);
+						written++;
+						synchronized (PreEventBuffer.this) {
+							mReadSeq = seq + 1;
+						}
+					} else if (seq >= mStopSeq) {
+						break;
+					} else {
+						LockSupport.parkNanos(this, PARK_NS);
+					}
+				}
+			} catch (final Exception e) {
+				Platform.logE(TAG, "EventWriter:", e);
+			} finally {
+				try {
+					mMuxer.stop();
+				} catch (final Exception e) {
+					Platform.logE(TAG, "failed stopping muxer", e);
+				}
+				mMuxer.release();
+				synchronized (PreEventBuffer.this) {
+					// the packets are released for eviction and the next event can start
+					if (mEventWriter == this) {
+						mEventWriter = null;
+					}
+				}
+				Platform.unregisterThread();
+			}
+			Platform.logI(TAG, "event finished:written=" + written + " packets");
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.pwithe.jycamera.record;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measure the latency from the record button tap to the first encoded video frame.
+ * #markTap is called by the UI, the muxer marks its start and the first video sample
+ * handed to the writer thread.
+ */
+public class RecordLatencyProbe {
+	private static final String TAG = "RecordLatencyProbe";
+
+	public interface Listener {
+		/**
+		 * called on the encoder thread when the first video frame of the recording is encoded
+		 */
+		public void onFirstFrame(RecordLatencyProbe probe);
+	}
+
+	private final Listener mListener;
+	private volatile long mTapNs = -1;
+	private volatile long mMuxerStartNs = -1;
+	private volatile long mFirstFrameNs = -1;
+	private volatile boolean mIsWarm;
+	private final AtomicBoolean mFirstFrameMarked = new AtomicBoolean();
+
+	public RecordLatencyProbe() {
+		this(null);
+	}
+
+	public RecordLatencyProbe(final Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * start a new measurement
+	 * @param warm true if the encoders were prepared before the tap(warm standby)
+	 */
+	public void markTap(final boolean warm) {
+		mIsWarm = warm;
+		mMuxerStartNs = mFirstFrameNs = -1;
+		mFirstFrameMarked.set(false);
+		mTapNs = System.nanoTime();
+	}
+
+	/*package*/ void markMuxerStarted() {
+		if (mTapNs >= 0) {
+			mMuxerStartNs = System.nanoTime();
+		}
+	}
+
+	/*package*/ void markFirstVideoFrame() {
+		if ((mTapNs < 0) || !mFirstFrameMarked.compareAndSet(false, true)) return;
+		mFirstFrameNs = System.nanoTime();
+		Log.i(TAG, toString());
+		if (mListener != null) {
+			try {
+				mListener.onFirstFrame(this);
+			} catch (final Exception e) {
+				Log.w(TAG, "onFirstFrame:", e);
+			}
+		}
+	}
+
+	public boolean isWarm() {
+		return mIsWarm;
+	}
+
+	/**
+	 * @return tap to muxer start [msec], -1 if not yet
+	 */
+	public long getMuxerStartLatencyMs() {
+		final long t = mMuxerStartNs;
+		return t >= 0 ? (t - mTapNs) / 1000000L : -1;
+	}
+
+	/**
+	 * @return tap to the first encoded video frame [msec], -1 if not yet
+	 */
+	public long getFirstFrameLatencyMs() {
+		final long t = mFirstFrameNs;
+		return t >= 0 ? (t - mTapNs) / 1000000L : -1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RecordLatency(%s,muxer started=%d ms,first frame=%d ms)",
+			mIsWarm ? "warm" : "cold", getMuxerStartLatencyMs(), getFirstFrameLatencyMs());
+	}
+}
@@ -0,0 +1,399 @@
+package com.pwithe.jycamera.record;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Disk budget of the recording directory. The directory is listed once(#scan),
+ * after that finished, deleted and started files are reported by MediaMuxerWrapper(or the app),
+ * so the size of the recordings is known without listing the directory again.
+ * Before a recording or a segment starts the oldest files that are not protected are deleted
+ * until the free space(minus a reserve) and the quota allow the next segment.
+ * The remaining recording time is estimated from the bitrate of the running encoders.
+ * The getters only read cached values(the free space is refreshed at most once a second),
+ * so the UI can poll them on every frame.
+ */
+public class StorageBudget {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "StorageBudget";
+
+	/**
+	 * free space kept on the volume for the system and other apps
+	 */
+	public static final long DEFAULT_RESERVE_BYTES = 200 * 1024 * 1024L;
+	private static final long REFRESH_INTERVAL_MS = 1000;
+	/**
+	 * file size over the codec bitrates(container and index)
+	 */
+	private static final float CONTAINER_OVERHEAD = 1.02f;
+	private static final String[] RECORDING_EXTENSIONS = { ".mp4", ".m4a", ".ts" };
+
+	/**
+	 * called on the thread that deleted the file(the muxer writer thread while recording)
+	 */
+	public interface Listener {
+		public void onFileEvicted(String path);
+	}
+
+	/**
+	 * current bitrate of the encoders
+	 */
+	/*package*/ interface BitrateSource {
+		public int getBitrate();
+	}
+
+	private static final class Entry {
+		private final String path;
+		private final long lastModified;
+		private final long length;
+
+		private Entry(final File file) {
+			path = file.getPath();
+			lastModified = file.lastModified();
+			length = file.length();
+		}
+	}
+
+	/**
+	 * oldest first
+	 */
+	private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare(final Entry a, final Entry b) {
+			if (a.lastModified != b.lastModified) {
+				return a.lastModified < b.lastModified ? -1 : 1;
+			}
+			return a.path.compareTo(b.path);
+		}
+	};
+
+	private final File mDir;
+	private final long mQuotaBytes;
+	private final long mReserveBytes;
+	private final TreeSet<Entry> mFiles = new TreeSet<Entry>(OLDEST_FIRST);
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private final HashSet<String> mProtected = new HashSet<String>();
+	private long mIndexedBytes;
+	private long mProtectedBytes;
+	private boolean mIsScanned;
+	private String mActivePath;
+	private BitrateSource mBitrateSource;
+	private Listener mListener;
+	// cached for polling
+	private volatile int mBitrate;
+	private volatile long mFreeBytes;
+	private volatile long mUsedBytes;
+	private volatile long mEvictableBytes;
+	private volatile long mRefreshedMs = -REFRESH_INTERVAL_MS;
+
+	/**
+	 * @param dir          recording directory
+	 * @param quotaBytes   maximum total size of the recordings in dir, 0 for no quota(only the free space)
+	 * @param reserveBytes free space that is never used for recordings
+	 */
+	public StorageBudget(final File dir, final long quotaBytes, final long reserveBytes) {
+		if ((quotaBytes < 0) || (reserveBytes < 0))
+			throw new IllegalArgumentException("negative size");
+		mDir = dir;
+		mQuotaBytes = quotaBytes;
+		mReserveBytes = reserveBytes;
+	}
+
+	public File getDirectory() {
+		return mDir;
+	}
+
+	public synchronized void setListener(final Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * list the recordings already in the directory, only the first call lists it.
+	 * should be called on a background thread
+	 */
+	public synchronized void scan() {
+		if (mIsScanned) return;
+		mIsScanned = true;
+		final File[] files = mDir.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (isRecording(file.getName()) && file.isFile()) {
+					add(file);
+				}
+			}
+		}
+		refresh();
+		Platform.logI(TAG, "scanned:" + mDir + "," + mFiles.size() + " files," + mIndexedBytes + " bytes");
+	}
+
+	/**
+	 * a protected file is never deleted by #ensureSpace(e.g. event clips the user marked)
+	 */
+	public synchronized void protect(final String path) {
+		if (mProtected.add(path)) {
+			final Entry entry = mEntries.get(path);
+			if (entry != null) {
+				mProtectedBytes += entry.length;
+			}
+			refresh();
+		}
+	}
+
+	public synchronized void unprotect(final String path) {
+		if (mProtected.remove(path)) {
+			final Entry entry = mEntries.get(path);
+			if (entry != null) {
+				mProtectedBytes -= entry.length;
+			}
+			refresh();
+		}
+	}
+
+	/**
+	 * a file was written(or replaced) in the directory
+	 */
+	public synchronized void addFile(final String path) {
+		final File file = new File(path);
+		if (file.isFile()) {
+			add(file);
+		}
+		refresh();
+	}
+
+	/**
+	 * a file was deleted from the directory by others
+	 */
+	public synchronized void removeFile(final String path) {
+		remove(path);
+		refresh();
+	}
+
+	/**
+	 * delete the oldest files that are not protected until bytes can be written
+	 * within the quota and the free space
+	 * @return false if there is not enough space even after deleting all the files allowed
+	 */
+	public synchronized boolean ensureSpace(final long bytes) {
+		refresh();
+		while (getAvailableBytes() < bytes) {
+			final Entry oldest = findEvictable();
+			if (oldest == null) {
+				Platform.logW(TAG, "not enough space for " + bytes + " bytes:available=" + getAvailableBytes());
+				return false;
+			}
+			final File file = new File(oldest.path);
+			if (file.exists() && !file.delete()) {
+				Platform.logW(TAG, "failed to delete " + oldest.path);
+				// never try it again
+				mProtected.add(oldest.path);
+				mProtectedBytes += oldest.length;
+				continue;
+			}
+			remove(oldest.path);
+			Platform.logI(TAG, "evicted:" + oldest.path + "," + oldest.length + " bytes");
+			final Listener listener = mListener;
+			if (listener != null) {
+				try {
+					listener.onFileEvicted(oldest.path);
+				} catch (final Exception e) {
+					Platform.logW(TAG, "onFileEvicted:", e);
+				}
+			}
+			refresh();
+		}
+		return true;
+	}
+
+	/**
+	 * @return size of a recording of the duration at the current bitrate, 0 if the bitrate is unknown
+	 */
+	public long getBytesFor(final long durationUs) {
+		return (long)(getBitrate() / 8.0 * durationUs / 1000000.0 * CONTAINER_OVERHEAD);
+	}
+
+//********************************************************************************
+	/**
+	 * @return bitrate of the running(or the last) recording [bps], 0 if unknown
+	 */
+	public int getBitrate() {
+		refreshIfStale();
+		return mBitrate;
+	}
+
+	/**
+	 * @return free space of the volume
+	 */
+	public long getFreeBytes() {
+		refreshIfStale();
+		return mFreeBytes;
+	}
+
+	/**
+	 * @return size of the recordings in the directory including the file being written
+	 */
+	public long getUsedBytes() {
+		refreshIfStale();
+		return mUsedBytes;
+	}
+
+	/**
+	 * @return size of the recordings #ensureSpace can delete
+	 */
+	public long getEvictableBytes() {
+		refreshIfStale();
+		return mEvictableBytes;
+	}
+
+	/**
+	 * @return bytes that can be written without deleting recordings
+	 */
+	public long getAvailableBytes() {
+		refreshIfStale();
+		long available = mFreeBytes - mReserveBytes;
+		if (mQuotaBytes > 0) {
+			available = Math.min(available, mQuotaBytes - mUsedBytes);
+		}
+		return Math.max(0, available);
+	}
+
+	/**
+	 * @return recording time until the storage is full without deleting recordings [ms], -1 if the bitrate is unknown
+	 */
+	public long getRemainingTimeMs() {
+		return toTimeMs(getAvailableBytes());
+	}
+
+	/**
+	 * @return recording time including the space of the recordings that can be deleted [ms],
+	 * -1 if the bitrate is unknown
+	 */
+	public long getRemainingTimeWithEvictionMs() {
+		return toTimeMs(getAvailableBytes() + getEvictableBytes());
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "StorageBudget(%s):free=%d MB,used=%d MB,evictable=%d MB,remaining=%d sec",
+			mDir, getFreeBytes() >> 20, getUsedBytes() >> 20, getEvictableBytes() >> 20, getRemainingTimeMs() / 1000);
+	}
+
+//********************************************************************************
+	/**
+	 * recording to path started, the file is never deleted while written
+	 */
+	/*package*/ synchronized void onRecordingStarted(final String path, final BitrateSource source) {
+		mActivePath = path;
+		mBitrateSource = source;
+		refresh();
+	}
+
+	/**
+	 * the next segment file started, the previous one should be added by #addFile
+	 */
+	/*package*/ synchronized void onSegmentStarted(final String path) {
+		mActivePath = path;
+		refresh();
+	}
+
+	/**
+	 * the muxer finished writing the last file of the recording, its final size is added.
+	 * the bitrate of the recording is kept for the estimation of the next one
+	 */
+	/*package*/ synchronized void onRecordingStopped() {
+		refresh();
+		mBitrateSource = null;
+		if (mActivePath != null) {
+			final String path = mActivePath;
+			mActivePath = null;
+			addFile(path);
+		}
+	}
+
+	private void add(final File file) {
+		remove(file.getPath());
+		final Entry entry = new Entry(file);
+		mFiles.add(entry);
+		mEntries.put(entry.path, entry);
+		mIndexedBytes += entry.length;
+		if (mProtected.contains(entry.path)) {
+			mProtectedBytes += entry.length;
+		}
+	}
+
+	private void remove(final String path) {
+		final Entry entry = mEntries.remove(path);
+		if (entry != null) {
+			mFiles.remove(entry);
+			mIndexedBytes -= entry.length;
+			if (mProtected.contains(path)) {
+				mProtectedBytes -= entry.length;
+			}
+		}
+	}
+
+	private Entry findEvictable() {
+		for (final Entry entry: mFiles) {
+			if (!mProtected.contains(entry.path) && !entry.path.equals(mActivePath)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void refreshIfStale() {
+		if (Platform.elapsedRealtime() - mRefreshedMs >= REFRESH_INTERVAL_MS) {
+			synchronized (this) {
+				refresh();
+			}
+		}
+	}
+
+	/**
+	 * update the cached values, holding the lock
+	 */
+	private void refresh() {
+		mRefreshedMs = Platform.elapsedRealtime();
+		mFreeBytes = mDir.getUsableSpace();
+		long activeBytes = 0;
+		long activeIndexed = 0;
+		if (mActivePath != null) {
+			activeBytes = new File(mActivePath).length();
+			final Entry entry = mEntries.get(mActivePath);
+			if (entry != null) {
+				activeIndexed = entry.length;
+			}
+		}
+		mUsedBytes = mIndexedBytes - activeIndexed + activeBytes;
+		long evictable = mIndexedBytes - mProtectedBytes;
+		if ((activeIndexed > 0) && !mProtected.contains(mActivePath)) {
+			evictable -= activeIndexed;
+		}
+		mEvictableBytes = Math.max(0, evictable);
+		final BitrateSource source = mBitrateSource;
+		if (source != null) {
+			final int bitrate = source.getBitrate();
+			if (bitrate > 0) {
+				mBitrate = bitrate;
+			}
+		}
+		if (DEBUG) Platform.logV(TAG, "refresh:free=" + mFreeBytes + ",used=" + mUsedBytes + ",evictable=" + mEvictableBytes);
+	}
+
+	private long toTimeMs(final long bytes) {
+		final int bitrate = getBitrate();
+		if (bitrate <= 0) return -1;
+		return (long)(bytes * 8000.0 / (bitrate * CONTAINER_OVERHEAD));
+	}
+
+	private static boolean isRecording(final String name) {
+		final String lower = name.toLowerCase(Locale.US);
+		for (final String ext: RECORDING_EXTENSIONS) {
+			if (lower.endsWith(ext)) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,22 @@
+package com.pwithe.jycamera.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packet sink that packetizes the samples by itself(LiveStreamer, HlsSegmenter),
+ * it needs the codec configuration of each track before it starts.
+ */
+/*package*/ interface StreamOutput extends EncodedPacketSink {
+	/**
+	 * @param mime          "video/avc" or "video/hevc"
+	 * @param parameterSets csd-0(, csd-1) of the output format
+	 * @return track index, tracks should be added in the order of MediaMuxer#addTrack
+	 */
+	public int addVideoTrack(String mime, ByteBuffer... parameterSets);
+
+	/**
+	 * @param audioSpecificConfig csd-0 of the AAC output format
+	 * @return track index
+	 */
+	public int addAudioTrack(ByteBuffer audioSpecificConfig);
+}
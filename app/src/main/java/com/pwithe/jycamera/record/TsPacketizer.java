@@ -0,0 +1,356 @@
+package com.pwithe.jycamera.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packetize encoded H.264/HEVC access units(Annex B) and raw AAC frames into MPEG-2 transport stream packets.
+ * One program with a video and/or an audio elementary stream. PAT/PMT are sent before every key frame
+ * and the parameter sets(csd) are inserted before key frames so that a receiver can join at any key frame.
+ * Packets are written directly into the caller's buffer from the encoder output, there is no intermediate copy.
+ * Not thread safe.
+ */
+public class TsPacketizer {
+	public static final int TS_PACKET_SIZE = 188;
+
+	public static final int STREAM_TYPE_AAC = 0x0f;		// ADTS
+	public static final int STREAM_TYPE_H264 = 0x1b;
+	public static final int STREAM_TYPE_HEVC = 0x24;
+
+	/*package*/ static final int PID_PAT = 0x0000;
+	/*package*/ static final int PID_PMT = 0x1000;
+	/*package*/ static final int PID_VIDEO = 0x0100;
+	/*package*/ static final int PID_AUDIO = 0x0101;
+
+	private static final int STREAM_ID_VIDEO = 0xe0;
+	private static final int STREAM_ID_AUDIO = 0xc0;
+	private static final int TS_PAYLOAD_SIZE = TS_PACKET_SIZE - 4;
+	/**
+	 * PTS starts from this so that PCR(= PTS - PCR_DELAY) never gets negative [90kHz]
+	 */
+	private static final long PTS_OFFSET = 90000L;
+	private static final long PCR_DELAY = 9000L;
+	private static final int ADTS_HEADER_SIZE = 7;
+	private static final byte[] AUD_H264 = { 0, 0, 0, 1, 0x09, (byte)0xf0 };
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 24;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+			}
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	private final int mVideoStreamType;
+	private final boolean mHasVideo, mHasAudio;
+	private byte[] mVideoConfig = new byte[0];
+	private int mAacProfile, mAacFrequencyIndex, mAacChannelConfig;
+	private final byte[] mPrefix;
+	private int mPrefixLength;
+	private int mPatCounter, mPmtCounter, mVideoCounter, mAudioCounter;
+	private long mFirstPtsUs = -1;
+	private boolean mTablesSent;
+
+	/**
+	 * @param videoStreamType STREAM_TYPE_H264, STREAM_TYPE_HEVC or 0 if there is no video
+	 * @param hasAudio        true if there is an AAC stream
+	 */
+	public TsPacketizer(final int videoStreamType, final boolean hasAudio) {
+		if ((videoStreamType != 0) && (videoStreamType != STREAM_TYPE_H264) && (videoStreamType != STREAM_TYPE_HEVC))
+			throw new IllegalArgumentException("unsupported stream type:" + videoStreamType);
+		if ((videoStreamType == 0) && !hasAudio)
+			throw new IllegalArgumentException("no stream");
+		mVideoStreamType = videoStreamType;
+		mHasVideo = videoStreamType != 0;
+		mHasAudio = hasAudio;
+		mPrefix = new byte[64];
+	}
+
+	/**
+	 * @param parameterSets csd-0(and csd-1) of the video MediaFormat with start codes, sent before each key frame
+	 */
+	public void setVideoConfig(final ByteBuffer... parameterSets) {
+		int length = 0;
+		for (final ByteBuffer buf: parameterSets) {
+			if (buf != null) length += buf.remaining();
+		}
+		final byte[] config = new byte[length];
+		int pos = 0;
+		for (final ByteBuffer buf: parameterSets) {
+			if (buf == null) continue;
+			final int n = buf.remaining();
+			buf.duplicate().get(config, pos, n);
+			pos += n;
+		}
+		mVideoConfig = config;
+	}
+
+	/**
+	 * @param audioSpecificConfig csd-0 of the AAC MediaFormat, used for ADTS headers
+	 */
+	public void setAudioConfig(final ByteBuffer audioSpecificConfig) {
+		final ByteBuffer asc = audioSpecificConfig.duplicate();
+		if (asc.remaining() < 2)
+			throw new IllegalArgumentException("invalid AudioSpecificConfig");
+		final int b0 = asc.get() & 0xff;
+		final int b1 = asc.get() & 0xff;
+		final int objectType = b0 >> 3;
+		mAacProfile = Math.max(0, objectType - 1);
+		mAacFrequencyIndex = ((b0 & 0x07) << 1) | (b1 >> 7);
+		mAacChannelConfig = (b1 >> 3) & 0x0f;
+	}
+
+	/**
+	 * @param payloadSize size of an access unit or an AAC frame
+	 * @return maximum bytes #writeVideo/#writeAudio write for it
+	 */
+	public int getMaxOutputSize(final int payloadSize) {
+		final int pesSize = payloadSize + 32 + AUD_H264.length + mVideoConfig.length;
+		// PAT + PMT + packets with adaptation fields(PCR)
+		return (2 + pesSize / (TS_PAYLOAD_SIZE - 8) + 2) * TS_PACKET_SIZE;
+	}
+
+	/**
+	 * @param src        access unit in Annex B byte stream
+	 * @param isKeyFrame PAT/PMT and parameter sets are written before key frames
+	 * @param out        receives TS packets, needs #getMaxOutputSize bytes remaining
+	 * @return bytes written
+	 */
+	public int writeVideo(final ByteBuffer src, final int offset, final int size, final long presentationTimeUs,
+		final boolean isKeyFrame, final ByteBuffer out) {
+
+		if (!mHasVideo)
+			throw new IllegalStateException("no video stream");
+		final int start = out.position();
+		if (isKeyFrame || !mTablesSent) {
+			writeTables(out);
+		}
+		final long pts = toPts(presentationTimeUs);
+		final int headerSize = buildPesHeader(STREAM_ID_VIDEO, 0, pts);
+		if (mVideoStreamType == STREAM_TYPE_H264) {
+			System.arraycopy(AUD_H264, 0, mPrefix, headerSize, AUD_H264.length);
+			mPrefixLength = headerSize + AUD_H264.length;
+		} else {
+			mPrefixLength = headerSize;
+		}
+		final byte[] config = isKeyFrame ? mVideoConfig : null;
+		mVideoCounter = writePes(out, PID_VIDEO, mVideoCounter, config, src, offset, size,
+			true, pts - PCR_DELAY, isKeyFrame);
+		return out.position() - start;
+	}
+
+	/**
+	 * @param src raw AAC frame(without ADTS header)
+	 * @param out receives TS packets, needs #getMaxOutputSize bytes remaining
+	 * @return bytes written
+	 */
+	public int writeAudio(final ByteBuffer src, final int offset, final int size, final long presentationTimeUs,
+		final ByteBuffer out) {
+
+		if (!mHasAudio)
+			throw new IllegalStateException("no audio stream");
+		final int start = out.position();
+		if (!mTablesSent) {
+			writeTables(out);
+		}
+		final long pts = toPts(presentationTimeUs);
+		final int headerSize = buildPesHeader(STREAM_ID_AUDIO, ADTS_HEADER_SIZE + size, pts);
+		// ADTS header
+		final int frameLength = ADTS_HEADER_SIZE + size;
+		final byte[] p = mPrefix;
+		int i = headerSize;
+		p[i++] = (byte)0xff;
+		p[i++] = (byte)0xf1;	// MPEG-4, no CRC
+		p[i++] = (byte)((mAacProfile << 6) | (mAacFrequencyIndex << 2) | (mAacChannelConfig >> 2));
+		p[i++] = (byte)(((mAacChannelConfig & 0x03) << 6) | (frameLength >> 11));
+		p[i++] = (byte)(frameLength >> 3);
+		p[i++] = (byte)(((frameLength & 0x07) << 5) | 0x1f);
+		p[i++] = (byte)0xfc;
+		mPrefixLength = i;
+		// PCR is carried by the audio stream only when there is no video
+		mAudioCounter = writePes(out, PID_AUDIO, mAudioCounter, null, src, offset, size,
+			!mHasVideo, pts - PCR_DELAY, true);
+		return out.position() - start;
+	}
+
+	private long toPts(final long presentationTimeUs) {
+		if (mFirstPtsUs < 0) {
+			mFirstPtsUs = presentationTimeUs;
+		}
+		return ((presentationTimeUs - mFirstPtsUs) * 9 / 100 + PTS_OFFSET) & 0x1ffffffffL;
+	}
+
+	/**
+	 * @param pesPayloadSize 0 for unbounded(video)
+	 * @return size of the header written at the start of mPrefix
+	 */
+	private int buildPesHeader(final int streamId, final int pesPayloadSize, final long pts) {
+		final byte[] p = mPrefix;
+		final int pesLength = pesPayloadSize > 0 ? pesPayloadSize + 8 : 0;
+		p[0] = 0;
+		p[1] = 0;
+		p[2] = 1;
+		p[3] = (byte)streamId;
+		p[4] = (byte)(pesLength > 0xffff ? 0 : pesLength >> 8);
+		p[5] = (byte)(pesLength > 0xffff ? 0 : pesLength);
+		p[6] = (byte)0x80;	// marker bits
+		p[7] = (byte)0x80;	// PTS only
+		p[8] = 5;	// header data length
+		p[9] = (byte)(0x21 | ((pts >> 29) & 0x0e));
+		p[10] = (byte)(pts >> 22);
+		p[11] = (byte)(((pts >> 14) & 0xfe) | 1);
+		p[12] = (byte)(pts >> 7);
+		p[13] = (byte)(((pts << 1) & 0xfe) | 1);
+		return 14;
+	}
+
+	/**
+	 * split mPrefix + config + src into TS packets
+	 * @return next continuity counter
+	 */
+	private int writePes(final ByteBuffer out, final int pid, int counter, final byte[] config,
+		final ByteBuffer src, final int offset, final int size,
+		final boolean withPcr, final long pcrBase, final boolean randomAccess) {
+
+		final int configLength = config != null ? config.length : 0;
+		final int total = mPrefixLength + configLength + size;
+		int written = 0;
+		boolean first = true;
+		while (written < total) {
+			final boolean pcr = first && withPcr;
+			// adaptation_field_length + flags (+ PCR)
+			int adaptation = first && (pcr || randomAccess) ? (pcr ? 8 : 2) : 0;
+			final int remaining = total - written;
+			final int payload = Math.min(remaining, TS_PAYLOAD_SIZE - adaptation);
+			adaptation = TS_PAYLOAD_SIZE - payload;	// stuffing the last packet
+			out.put((byte)0x47);
+			out.put((byte)((first ? 0x40 : 0) | (pid >> 8)));
+			out.put((byte)pid);
+			out.put((byte)((adaptation > 0 ? 0x30 : 0x10) | counter));
+			counter = (counter + 1) & 0x0f;
+			if (adaptation > 0) {
+				out.put((byte)(adaptation - 1));
+				if (adaptation > 1) {
+					int flags = 0;
+					if (first && randomAccess) flags |= 0x40;
+					if (pcr) flags |= 0x10;
+					out.put((byte)flags);
+					int used = 2;
+					if (pcr && (adaptation >= 8)) {
+						out.put((byte)(pcrBase >> 25));
+						out.put((byte)(pcrBase >> 17));
+						out.put((byte)(pcrBase >> 9));
+						out.put((byte)(pcrBase >> 1));
+						out.put((byte)(((pcrBase & 1) << 7) | 0x7e));
+						out.put((byte)0);
+						used = 8;
+					}
+					for (int i = used; i < adaptation; i++) {
+						out.put((byte)0xff);
+					}
+				}
+			}
+			// payload from the prefix, the parameter sets and the source in this order
+			int n = payload;
+			int pos = written;
+			if (pos < mPrefixLength) {
+				final int m = Math.min(n, mPrefixLength - pos);
+				out.put(mPrefix, pos, m);
+				n -= m;
+				pos += m;
+			}
+			if ((n > 0) && (pos < mPrefixLength + configLength)) {
+				final int m = Math.min(n, mPrefixLength + configLength - pos);
+				out.put(config, pos - mPrefixLength, m);
+				n -= m;
+				pos += m;
+			}
+			if (n > 0) {
+				final int srcPos = offset + pos - mPrefixLength - configLength;
+				src.limit(src.capacity());
+				src.position(srcPos);
+				src.limit(srcPos + n);
+				out.put(src);
+			}
+			written += payload;
+			first = false;
+		}
+		return counter;
+	}
+
+	private void writeTables(final ByteBuffer out) {
+		// PAT
+		int start = beginSection(out, PID_PAT, mPatCounter);
+		mPatCounter = (mPatCounter + 1) & 0x0f;
+		out.put((byte)0x00);	// table_id
+		out.put((byte)0xb0);
+		out.put((byte)13);	// section_length
+		out.putShort((short)1);	// transport_stream_id
+		out.put((byte)0xc1);	// version 0, current
+		out.put((byte)0);
+		out.put((byte)0);
+		out.putShort((short)1);	// program_number
+		out.putShort((short)(0xe000 | PID_PMT));
+		endSection(out, start);
+		// PMT
+		start = beginSection(out, PID_PMT, mPmtCounter);
+		mPmtCounter = (mPmtCounter + 1) & 0x0f;
+		final int streams = (mHasVideo ? 1 : 0) + (mHasAudio ? 1 : 0);
+		out.put((byte)0x02);
+		out.put((byte)0xb0);
+		out.put((byte)(13 + 5 * streams));
+		out.putShort((short)1);	// program_number
+		out.put((byte)0xc1);
+		out.put((byte)0);
+		out.put((byte)0);
+		out.putShort((short)(0xe000 | (mHasVideo ? PID_VIDEO : PID_AUDIO)));	// PCR_PID
+		out.putShort((short)0xf000);	// program_info_length
+		if (mHasVideo) {
+			out.put((byte)mVideoStreamType);
+			out.putShort((short)(0xe000 | PID_VIDEO));
+			out.putShort((short)0xf000);
+		}
+		if (mHasAudio) {
+			out.put((byte)STREAM_TYPE_AAC);
+			out.putShort((short)(0xe000 | PID_AUDIO));
+			out.putShort((short)0xf000);
+		}
+		endSection(out, start);
+		mTablesSent = true;
+	}
+
+	/**
+	 * @return position of the section(table_id)
+	 */
+	private static int beginSection(final ByteBuffer out, final int pid, final int counter) {
+		out.put((byte)0x47);
+		out.put((byte)(0x40 | (pid >> 8)));
+		out.put((byte)pid);
+		out.put((byte)(0x10 | counter));
+		out.put((byte)0);	// pointer_field
+		return out.position();
+	}
+
+	/**
+	 * append CRC_32 and fill the rest of the packet
+	 */
+	private static void endSection(final ByteBuffer out, final int sectionStart) {
+		out.putInt(crc32(out, sectionStart, out.position()));
+		final int packetEnd = sectionStart - 5 + TS_PACKET_SIZE;
+		while (out.position() < packetEnd) {
+			out.put((byte)0xff);
+		}
+	}
+
+	/**
+	 * CRC-32/MPEG-2 used by PSI sections
+	 */
+	/*package*/ static int crc32(final ByteBuffer buf, final int start, final int end) {
+		int crc = 0xffffffff;
+		for (int i = start; i < end; i++) {
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ buf.get(i)) & 0xff];
+		}
+		return crc;
+	}
+}
@@ -0,0 +1,257 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FragmentedMp4Writer with synthetic H.264/AAC packets, runs on the development machine.
+ */
+public class FragmentedMp4WriterTest {
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f, (byte)0xda, 0x01, 0x40, 0x16, (byte)0xe8 };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+	private static final byte[] ASC = { 0x12, 0x10 };	// AAC-LC 44100Hz mono
+	private static final int FPS = 30;
+	private static final long AAC_FRAME_US = 1024 * 1000000L / 44100;
+
+	private File mFile;
+
+	@Before
+	public void setUp() throws Exception {
+		mFile = File.createTempFile("fmp4", ".mp4");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mFile.delete();
+	}
+
+	@Test
+	public void writesFragmentAtEachKeyFrameAfterDuration() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		// 3 seconds, key frame every second
+		writeAv(writer, 0, 90, FPS, 4000);
+		writer.stop();
+		writer.release();
+
+		final List<Box> boxes = readBoxes(mFile);
+		assertEquals(8, boxes.size());
+		assertEquals("ftyp", boxes.get(0).type);
+		assertEquals("moov", boxes.get(1).type);
+		for (int i = 2; i < boxes.size(); i += 2) {
+			assertEquals("moof", boxes.get(i).type);
+			assertEquals("mdat", boxes.get(i + 1).type);
+		}
+		assertEquals(3, writer.getFragmentCount());
+		final Box last = boxes.get(boxes.size() - 1);
+		assertEquals("preallocated space should be trimmed", mFile.length(), last.offset + last.size);
+
+		// first fragment: 30 video frames starting with a key frame
+		final ByteBuffer file = readFile(mFile);
+		final int trun = find(file, "trun", boxes.get(2).offset, boxes.get(2).size);
+		assertTrue(trun > 0);
+		assertEquals(30, file.getInt(trun + 12));
+		final int dataOffset = file.getInt(trun + 16);
+		assertEquals(boxes.get(3).offset + 8, boxes.get(2).offset + dataOffset);
+		final int firstSampleFlags = file.getInt(trun + 28);
+		assertEquals(0x02000000, firstSampleFlags);
+	}
+
+	@Test
+	public void convertsAnnexBToLengthPrefixed() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		final byte[] nal1 = { 0x65, 1, 2, 3, 0 };	// trailing zero is not a part of the NAL unit
+		final byte[] nal2 = { 0x06, 9, 8 };
+		final ByteBuffer frame = ByteBuffer.allocateDirect(64);
+		frame.position(5);	// sample does not start at 0
+		frame.put(new byte[] { 0, 0, 0, 1 }).put(nal1).put(new byte[] { 0, 0, 0, 1 }).put(nal2, 1, 2);
+		frame.put(new byte[] { 0, 0, 1 }).put(nal2);
+		final int size = frame.position() - 5;
+		writer.writeSampleData(0, frame, 5, size, 0, true);
+		writer.stop();
+		writer.release();
+
+		final List<Box> boxes = readBoxes(mFile);
+		final Box mdat = boxes.get(boxes.size() - 1);
+		assertEquals("mdat", mdat.type);
+		final ByteBuffer file = readFile(mFile);
+		file.position((int)mdat.offset + 8);
+		assertEquals(4, file.getInt());
+		assertEquals(0x65, file.get());
+		file.position(file.position() + 3);
+		assertEquals(2, file.getInt());
+		file.position(file.position() + 2);
+		assertEquals(3, file.getInt());
+		assertEquals(0x06, file.get());
+		assertEquals(mdat.offset + mdat.size, file.position() + 2);
+	}
+
+	@Test
+	public void completeFragmentsSurviveWithoutStop() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		writer.setSyncEachFragment(false);
+		// 2.5 seconds, the last half second is still in memory
+		writeAv(writer, 0, 75, FPS, 4000);
+		// process died here, #stop is never called
+		writer.release();
+
+		final List<Box> boxes = readBoxes(mFile);
+		int fragments = 0;
+		for (final Box box: boxes) {
+			if ("moof".equals(box.type)) fragments++;
+		}
+		assertEquals(2, fragments);
+		assertEquals("mdat", boxes.get(boxes.size() - 1).type);
+	}
+
+	@Test
+	public void audioOnlyFragmentsByDuration() throws Exception {
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+		writer.addAacTrack(44100, 1, ByteBuffer.wrap(ASC));
+		writer.setFragmentDuration(500000L);
+		writer.start();
+		final ByteBuffer aac = ByteBuffer.allocateDirect(400);
+		for (int i = 0; i < 44; i++) {	// about 1 second
+			writer.writeSampleData(0, aac, 0, 400, i * AAC_FRAME_US, false);
+		}
+		writer.stop();
+		writer.release();
+		assertEquals(2, writer.getFragmentCount());
+	}
+
+	@Test
+	public void writesFragmentLargerThanInitialHeader() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		writer.setSyncEachFragment(false);
+		writer.setFragmentDuration(300 * 1000000L);
+		// 200 seconds in one fragment: 6000 video and about 8600 audio samples, the trun boxes exceed 64KB
+		final int frames = 6000;
+		writeAv(writer, 0, frames, frames, 100);
+		writer.stop();
+		writer.release();
+		assertEquals(1, writer.getFragmentCount());
+		final Mp4Analyzer.Report report = Mp4Analyzer.analyze(mFile);
+		assertEquals(frames, report.getVideoTrack().getSampleCount());
+	}
+
+	@Test
+	public void benchmarkThroughput() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		writer.setSyncEachFragment(false);
+		// 60 seconds of 8Mbps 30fps video
+		final int frames = 1800;
+		final long startNs = System.nanoTime();
+		writeAv(writer, 0, frames, FPS, 8000000 / 8 / FPS);
+		writer.stop();
+		final long elapsedNs = System.nanoTime() - startNs;
+		writer.release();
+		final double mb = mFile.length() / (1024.0 * 1024.0);
+		System.out.println(String.format("FragmentedMp4Writer:%.1f MB in %d ms, %.1f MB/s, %d fragments",
+			mb, elapsedNs / 1000000L, mb * 1e9 / elapsedNs, writer.getFragmentCount()));
+		assertEquals(60, writer.getFragmentCount());
+		// the written file should play as recorded
+		final Mp4Analyzer.Report report = Mp4Analyzer.analyze(mFile);
+		final List<String> failures = report.verify(FPS - 0.5f, 1100000L, 50000L);
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(frames, report.getVideoTrack().getSampleCount());
+	}
+
+//********************************************************************************
+	private FragmentedMp4Writer createWriter() throws Exception {
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+		assertEquals(0, writer.addAvcTrack(1280, 720, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		assertEquals(1, writer.addAacTrack(44100, 1, ByteBuffer.wrap(ASC)));
+		writer.setOrientationHint(90);
+		writer.start();
+		return writer;
+	}
+
+	/**
+	 * write video frames and the audio frames between them like the encoders do
+	 */
+	/*package*/ static void writeAv(final FragmentedMp4Writer writer, final int firstFrame, final int frames,
+		final int gop, final int frameBytes) throws Exception {
+
+		final ByteBuffer video = ByteBuffer.allocateDirect(frameBytes);
+		final ByteBuffer audio = ByteBuffer.allocateDirect(400);
+		long audioPts = firstFrame * 1000000L / FPS;
+		for (int i = firstFrame; i < firstFrame + frames; i++) {
+			final boolean key = i % gop == 0;
+			video.clear();
+			video.put(new byte[] { 0, 0, 0, 1, (byte)(key ? 0x65 : 0x41) });
+			while (video.hasRemaining()) {
+				video.put((byte)0x5a);
+			}
+			final long pts = i * 1000000L / FPS;
+			writer.writeSampleData(0, video, 0, frameBytes, pts, key);
+			while (audioPts < (i + 1) * 1000000L / FPS) {
+				writer.writeSampleData(1, audio, 0, audio.capacity(), audioPts, false);
+				audioPts += AAC_FRAME_US;
+			}
+		}
+	}
+
+	private static final class Box {
+		private final String type;
+		private final long offset, size;
+
+		private Box(final String type, final long offset, final long size) {
+			this.type = type;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @return top level boxes, stops at the end of the file or at the zero filled preallocated space
+	 */
+	private static List<Box> readBoxes(final File file) throws Exception {
+		final ByteBuffer b = readFile(file);
+		final List<Box> result = new ArrayList<Box>();
+		int pos = 0;
+		while (pos + 8 <= b.limit()) {
+			final int size = b.getInt(pos);
+			if (size < 8) break;
+			assertTrue("box exceeds the file", pos + size <= b.limit());
+			final byte[] type = new byte[4];
+			for (int i = 0; i < 4; i++) {
+				type[i] = b.get(pos + 4 + i);
+			}
+			result.add(new Box(new String(type, "US-ASCII"), pos, size));
+			pos += size;
+		}
+		return result;
+	}
+
+	private static ByteBuffer readFile(final File file) throws Exception {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final byte[] bytes = new byte[(int)raf.length()];
+			raf.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return offset of the first box of the type inside the range(searched by the type bytes)
+	 */
+	private static int find(final ByteBuffer b, final String type, final long from, final long size) {
+		for (int i = (int)from + 4; i + 4 <= from + size; i++) {
+			if ((b.get(i) == type.charAt(0)) && (b.get(i + 1) == type.charAt(1))
+				&& (b.get(i + 2) == type.charAt(2)) && (b.get(i + 3) == type.charAt(3))) {
+				return i - 4;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,238 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * HlsSegmenter with synthetic H.264/AAC packets, runs on the development machine.
+ */
+public class HlsSegmenterTest {
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+	private static final byte[] ASC = { 0x12, 0x10 };
+	private static final int FPS = 30;
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("hls", "");
+		assertTrue(mDir.delete());
+	}
+
+	@After
+	public void tearDown() {
+		deleteAll(mDir);
+	}
+
+	@Test
+	public void segmentsStartAtKeyFrames() throws Exception {
+		final HlsSegmenter segmenter = createSegmenter(2000);
+		segmenter.start();
+		// 10 seconds, key frame every second
+		sendFrames(segmenter, 0, 10 * FPS, FPS);
+		segmenter.stop();
+		segmenter.join(5000);
+
+		assertEquals(5, segmenter.getSegmentCount());
+		assertEquals(0, segmenter.getDroppedCount());
+		final List<String> lines = readLines(segmenter.getPlaylistFile());
+		assertEquals("#EXTM3U", lines.get(0));
+		// target duration + key frame interval
+		assertTrue(lines.contains("#EXT-X-TARGETDURATION:3"));
+		assertTrue(lines.contains("#EXT-X-PLAYLIST-TYPE:EVENT"));
+		assertEquals("#EXT-X-ENDLIST", lines.get(lines.size() - 1));
+		final List<String> segments = segmentNames(lines);
+		assertEquals(5, segments.size());
+		for (final String name : segments) {
+			final byte[] ts = readFile(new File(mDir, name));
+			assertTrue(ts.length > 0);
+			assertEquals(0, ts.length % TsPacketizer.TS_PACKET_SIZE);
+			final ByteBuffer buf = ByteBuffer.wrap(ts);
+			assertEquals(TsPacketizer.PID_PAT, TsPacketizerTest.pid(buf, 0));
+			assertEquals(TsPacketizer.PID_PMT, TsPacketizerTest.pid(buf, 1));
+			assertEquals(TsPacketizer.PID_VIDEO, TsPacketizerTest.pid(buf, 2));
+			// random access indicator
+			assertEquals(0x40, buf.get(2 * TsPacketizer.TS_PACKET_SIZE + 5) & 0x40);
+		}
+		for (final String line : lines) {
+			if (line.startsWith("#EXTINF:")) {
+				final double duration = Double.parseDouble(line.substring(8, line.indexOf(',')));
+				assertEquals(2.0, duration, 0.05);
+			}
+		}
+	}
+
+	@Test
+	public void targetDurationCoversIgnoredKeyFrameRequests() throws Exception {
+		// nobody makes the requested key frames, segments wait for the periodic ones every 2 seconds
+		final HlsSegmenter segmenter = createSegmenter(1500);
+		segmenter.setKeyFrameInterval(2000);
+		segmenter.start();
+		assertEquals(4, segmenter.getPlaylistTargetDuration());
+		sendFrames(segmenter, 0, 10 * FPS, 2 * FPS);
+		segmenter.stop();
+		segmenter.join(5000);
+
+		final List<String> lines = readLines(segmenter.getPlaylistFile());
+		assertTrue(lines.contains("#EXT-X-TARGETDURATION:4"));
+		int count = 0;
+		for (final String line : lines) {
+			if (line.startsWith("#EXTINF:")) {
+				final double duration = Double.parseDouble(line.substring(8, line.indexOf(',')));
+				assertEquals(2.0, duration, 0.05);
+				assertTrue(Math.round(duration) <= segmenter.getPlaylistTargetDuration());
+				count++;
+			}
+		}
+		assertEquals(5, count);
+	}
+
+	@Test
+	public void dropsPacketsBeforeFirstKeyFrame() throws Exception {
+		final HlsSegmenter segmenter = createSegmenter(1000);
+		segmenter.start();
+		final ByteBuffer audio = ByteBuffer.allocateDirect(300);
+		assertFalse(segmenter.write(1, audio, 0, 300, 0, false));
+		final byte[] frame = TsPacketizerTest.createFrame(0x41, 1000);
+		assertFalse(segmenter.write(0, ByteBuffer.wrap(frame), 0, frame.length, 0, false));
+		sendFrames(segmenter, 0, 3 * FPS, FPS);
+		segmenter.stop();
+		segmenter.join(5000);
+		assertEquals(3, segmenter.getSegmentCount());
+	}
+
+	@Test
+	public void slidingWindowDeletesOldSegments() throws Exception {
+		final HlsSegmenter segmenter = createSegmenter(1000);
+		segmenter.setPlaylistSize(3);
+		segmenter.start();
+		sendFrames(segmenter, 0, 8 * FPS, FPS);
+		segmenter.stop();
+		segmenter.join(5000);
+
+		assertEquals(8, segmenter.getSegmentCount());
+		final List<String> lines = readLines(segmenter.getPlaylistFile());
+		assertFalse(lines.contains("#EXT-X-PLAYLIST-TYPE:EVENT"));
+		assertTrue(lines.contains("#EXT-X-MEDIA-SEQUENCE:5"));
+		final List<String> segments = segmentNames(lines);
+		assertEquals(3, segments.size());
+		final String[] files = mDir.list();
+		int tsCount = 0;
+		for (final String name : files) {
+			if (name.endsWith(".ts")) {
+				tsCount++;
+				assertTrue(name, segments.contains(name));
+			}
+		}
+		assertEquals(3, tsCount);
+	}
+
+	@Test
+	public void requestsKeyFrameOncePerSegment() throws Exception {
+		final HlsSegmenter segmenter = createSegmenter(2000);
+		segmenter.start();
+		final byte[] key = TsPacketizerTest.createFrame(0x65, 1000);
+		assertFalse(segmenter.isKeyFrameDue(0));
+		segmenter.write(0, ByteBuffer.wrap(key), 0, key.length, 0, true);
+		assertFalse(segmenter.isKeyFrameDue(1000000L));
+		assertTrue(segmenter.isKeyFrameDue(1950000L));
+		assertFalse(segmenter.isKeyFrameDue(1990000L));
+		segmenter.write(0, ByteBuffer.wrap(key), 0, key.length, 2000000L, true);
+		assertFalse(segmenter.isKeyFrameDue(2000000L));
+		assertTrue(segmenter.isKeyFrameDue(3950000L));
+		segmenter.stop();
+		segmenter.join(5000);
+	}
+
+//********************************************************************************
+	/*package*/ static HlsSegmenter createSegmenter(final File dir, final long targetDurationMs) {
+		final HlsSegmenter segmenter = new HlsSegmenter(dir, targetDurationMs);
+		assertEquals(0, segmenter.addVideoTrack(MediaVideoEncoder.MIME_AVC, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		assertEquals(1, segmenter.addAudioTrack(ByteBuffer.wrap(ASC)));
+		return segmenter;
+	}
+
+	private HlsSegmenter createSegmenter(final long targetDurationMs) {
+		return createSegmenter(mDir, targetDurationMs);
+	}
+
+	/*package*/ static void sendFrames(final HlsSegmenter segmenter, final int from, final int to, final int gop)
+		throws InterruptedException {
+
+		final ByteBuffer audio = ByteBuffer.allocateDirect(300);
+		for (int i = from; i < to; i++) {
+			final long pts = i * 1000000L / FPS;
+			final boolean key = i % gop == 0;
+			final byte[] frame = TsPacketizerTest.createFrame(key ? 0x65 : 0x41, 4000);
+			assertTrue(segmenter.write(0, ByteBuffer.wrap(frame), 0, frame.length, pts, key));
+			assertTrue(segmenter.write(1, audio, 0, 300, pts, false));
+			// keep the queue below the limit
+			while (segmenter.getQueueDepth() > 100) {
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private static List<String> readLines(final File file) throws IOException {
+		final List<String> result = new ArrayList<String>();
+		final BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				result.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static List<String> segmentNames(final List<String> playlist) {
+		final List<String> result = new ArrayList<String>();
+		for (final String line : playlist) {
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				result.add(line);
+			}
+		}
+		return result;
+	}
+
+	/*package*/ static byte[] readFile(final File file) throws IOException {
+		final byte[] result = new byte[(int)file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			int pos = 0;
+			while (pos < result.length) {
+				final int n = in.read(result, pos, result.length - pos);
+				if (n < 0) break;
+				pos += n;
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	/*package*/ static void deleteAll(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+}
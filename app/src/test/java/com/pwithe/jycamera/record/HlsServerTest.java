@@ -0,0 +1,252 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * HlsServer on the loopback interface, runs on the development machine.
+ */
+public class HlsServerTest {
+	private File mDir;
+	private HlsServer mServer;
+	private byte[] mContent;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("hls", "");
+		assertTrue(mDir.delete());
+		assertTrue(mDir.mkdirs());
+		mContent = new byte[3 * 1024 * 1024 + 123];
+		for (int i = 0; i < mContent.length; i++) {
+			mContent[i] = (byte)(i * 31 + (i >> 8));
+		}
+		final FileOutputStream out = new FileOutputStream(new File(mDir, "segment_00000.ts"));
+		try {
+			out.write(mContent);
+		} finally {
+			out.close();
+		}
+		mServer = new HlsServer(mDir, 0);
+		mServer.start();
+	}
+
+	@After
+	public void tearDown() {
+		mServer.stop();
+		HlsSegmenterTest.deleteAll(mDir);
+	}
+
+	@Test
+	public void getsWholeFile() throws Exception {
+		final HttpURLConnection conn = open("/segment_00000.ts");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("video/mp2t", conn.getContentType());
+		assertEquals(mContent.length, conn.getContentLength());
+		assertArrayEquals(mContent, readAll(conn.getInputStream()));
+		assertEquals(mContent.length, mServer.getSentBytes());
+	}
+
+	@Test
+	public void getsByteRange() throws Exception {
+		HttpURLConnection conn = open("/segment_00000.ts");
+		conn.setRequestProperty("Range", "bytes=1000-1999");
+		assertEquals(206, conn.getResponseCode());
+		assertEquals("bytes 1000-1999/" + mContent.length, conn.getHeaderField("Content-Range"));
+		assertArrayEquals(copyOfRange(1000, 2000), readAll(conn.getInputStream()));
+
+		conn = open("/segment_00000.ts");
+		conn.setRequestProperty("Range", "bytes=-100");
+		assertEquals(206, conn.getResponseCode());
+		assertArrayEquals(copyOfRange(mContent.length - 100, mContent.length), readAll(conn.getInputStream()));
+
+		conn = open("/segment_00000.ts");
+		conn.setRequestProperty("Range", "bytes=" + mContent.length + "-");
+		assertEquals(416, conn.getResponseCode());
+	}
+
+	@Test
+	public void headHasNoBody() throws Exception {
+		final HttpURLConnection conn = open("/segment_00000.ts");
+		conn.setRequestMethod("HEAD");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals(String.valueOf(mContent.length), conn.getHeaderField("Content-Length"));
+		assertEquals(0, mServer.getSentBytes());
+	}
+
+	@Test
+	public void rejectsMissingAndOutsideFiles() throws Exception {
+		assertEquals(404, open("/segment_00001.ts").getResponseCode());
+		assertEquals(404, open("/../" + mDir.getName() + "/segment_00000.ts").getResponseCode());
+		assertEquals(404, open("/%2e%2e/etc/passwd").getResponseCode());
+		assertEquals(405, statusOf("POST /segment_00000.ts HTTP/1.1\r\n\r\n"));
+		assertEquals(400, statusOf("GET\r\n\r\n"));
+	}
+
+	@Test
+	public void servesOnlyUnderAccessToken() throws Exception {
+		mServer.setAccessToken("s3cret");
+		assertEquals(404, open("/segment_00000.ts").getResponseCode());
+		assertEquals(404, open("/wrong/segment_00000.ts").getResponseCode());
+		assertEquals(404, open("/s3cret").getResponseCode());
+		final HttpURLConnection conn = open("/s3cret/segment_00000.ts");
+		assertEquals(200, conn.getResponseCode());
+		assertArrayEquals(mContent, readAll(conn.getInputStream()));
+	}
+
+	@Test
+	public void rejectsWhenAllThreadsAreBusy() throws Exception {
+		// idle clients hold every pool thread until the read timeout
+		final List<Socket> idle = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 4; i++) {
+				idle.add(new Socket(InetAddress.getLoopbackAddress(), mServer.getPort()));
+			}
+			final long limit = System.currentTimeMillis() + 5000;
+			while ((mServer.getRequestCount() < 4) && (System.currentTimeMillis() < limit)) {
+				Thread.sleep(10);
+			}
+			assertEquals(4, mServer.getRequestCount());
+			// answered at accept, before the request is read
+			assertEquals(503, statusOf(""));
+			assertEquals(1, mServer.getRejectedCount());
+		} finally {
+			for (final Socket socket: idle) {
+				socket.close();
+			}
+		}
+		// the threads are free again
+		final long limit = System.currentTimeMillis() + 5000;
+		int status = 0;
+		while ((status != 200) && (System.currentTimeMillis() < limit)) {
+			status = open("/segment_00000.ts").getResponseCode();
+		}
+		assertEquals(200, status);
+	}
+
+	@Test
+	public void stopClosesStalledClient() throws Exception {
+		// larger than the socket buffers of the loopback interface
+		final long length = 256 * 1024 * 1024L;
+		final RandomAccessFile large = new RandomAccessFile(new File(mDir, "large.mp4"), "rw");
+		try {
+			large.setLength(length);
+		} finally {
+			large.close();
+		}
+		final Socket socket = new Socket();
+		socket.setReceiveBufferSize(16 * 1024);
+		socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()));
+		try {
+			socket.getOutputStream().write("GET /large.mp4 HTTP/1.1\r\n\r\n".getBytes("US-ASCII"));
+			// the client reads nothing, the server blocks in its write until the socket buffers are full
+			long sent = -1;
+			while ((sent <= 0) || (sent != mServer.getSentBytes())) {
+				sent = mServer.getSentBytes();
+				Thread.sleep(200);
+			}
+			assertTrue(sent < length);
+			final long startMs = System.currentTimeMillis();
+			mServer.stop();
+			assertTrue("stop took too long", System.currentTimeMillis() - startMs < 1500);
+			// the connection is closed, the client gets the buffered data and then the end of the stream
+			socket.setSoTimeout(5000);
+			int total = 0;
+			try {
+				final InputStream in = socket.getInputStream();
+				final byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					total += n;
+				}
+			} catch (final SocketException e) {
+				// reset by the server is also fine
+			}
+			assertTrue(total < length);
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void servesSegmenterOutput() throws Exception {
+		final HlsSegmenter segmenter = HlsSegmenterTest.createSegmenter(new File(mDir, "live"), 1000);
+		segmenter.start();
+		HlsSegmenterTest.sendFrames(segmenter, 0, 60, 30);
+		segmenter.stop();
+		segmenter.join(5000);
+
+		final HttpURLConnection conn = open("/live/" + HlsSegmenter.PLAYLIST_NAME);
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("application/vnd.apple.mpegurl", conn.getContentType());
+		final String playlist = new String(readAll(conn.getInputStream()), "US-ASCII");
+		assertTrue(playlist.startsWith("#EXTM3U"));
+		assertTrue(playlist.contains("segment_00001.ts"));
+		final byte[] segment = readAll(open("/live/segment_00001.ts").getInputStream());
+		assertArrayEquals(HlsSegmenterTest.readFile(new File(mDir, "live/segment_00001.ts")), segment);
+	}
+
+//********************************************************************************
+	private HttpURLConnection open(final String path) throws IOException {
+		final URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), mServer.getPort(), path);
+		final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setConnectTimeout(5000);
+		conn.setReadTimeout(5000);
+		return conn;
+	}
+
+	/**
+	 * send a raw request that HttpURLConnection can not make
+	 */
+	private int statusOf(final String request) throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+		try {
+			socket.setSoTimeout(5000);
+			final OutputStream out = socket.getOutputStream();
+			out.write(request.getBytes("US-ASCII"));
+			out.flush();
+			final String response = new String(readAll(socket.getInputStream()), "US-ASCII");
+			return Integer.parseInt(response.substring(9, 12));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private byte[] copyOfRange(final int from, final int to) {
+		final byte[] result = new byte[to - from];
+		System.arraycopy(mContent, from, result, 0, result.length);
+		return result;
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try {
+			final byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				result.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return result.toByteArray();
+	}
+}
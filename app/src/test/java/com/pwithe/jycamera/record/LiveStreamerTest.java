@@ -0,0 +1,298 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * LiveStreamer against loopback receivers, runs on the development machine.
+ */
+public class LiveStreamerTest {
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+	private static final byte[] ASC = { 0x12, 0x10 };
+
+	@Test
+	public void streamsTsOverTcp() throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = server.accept();
+					final InputStream in = socket.getInputStream();
+					final byte[] buf = new byte[8192];
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						received.write(buf, 0, n);
+					}
+					socket.close();
+				} catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		receiver.start();
+		final LiveStreamer streamer = createStreamer(LiveStreamer.TRANSPORT_TCP, server.getLocalPort());
+		streamer.start();
+		waitConnected(streamer);
+		sendFrames(streamer, 60, 5000);
+		streamer.stop();
+		streamer.join(5000);
+		receiver.join(5000);
+		server.close();
+
+		final byte[] ts = received.toByteArray();
+		assertEquals(streamer.getSentBytes(), ts.length);
+		assertEquals(0, ts.length % TsPacketizer.TS_PACKET_SIZE);
+		assertEquals(0, streamer.getDroppedFrameCount());
+		final byte[] video = TsPacketizerTest.collectPayload(ByteBuffer.wrap(ts), TsPacketizer.PID_VIDEO);
+		final byte[] audio = TsPacketizerTest.collectPayload(ByteBuffer.wrap(ts), TsPacketizer.PID_AUDIO);
+		assertTrue(video.length > 60 * 5000);
+		assertTrue(audio.length > 0);
+	}
+
+	@Test
+	public void streamsTsOverUdp() throws Exception {
+		final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		socket.setReceiveBufferSize(4 * 1024 * 1024);
+		socket.setSoTimeout(2000);
+		final LiveStreamer streamer = createStreamer(LiveStreamer.TRANSPORT_UDP, socket.getLocalPort());
+		streamer.start();
+		waitConnected(streamer);
+		sendFrames(streamer, 10, 3000);
+		streamer.stop();
+		streamer.join(5000);
+
+		long bytes = 0;
+		final byte[] buf = new byte[2048];
+		while (bytes < streamer.getSentBytes()) {
+			final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			socket.receive(packet);
+			assertTrue(packet.getLength() <= 7 * TsPacketizer.TS_PACKET_SIZE);
+			assertEquals(0, packet.getLength() % TsPacketizer.TS_PACKET_SIZE);
+			assertEquals(0x47, buf[0]);
+			bytes += packet.getLength();
+		}
+		socket.close();
+		assertEquals(streamer.getSentBytes(), bytes);
+	}
+
+	@Test
+	public void dropsFramesWhenReceiverStalls() throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		server.setReceiveBufferSize(64 * 1024);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// accept but never read
+					final Socket socket = server.accept();
+					done.await();
+					socket.close();
+				} catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		receiver.start();
+		final int limit = 256 * 1024;
+		final LiveStreamer streamer = createStreamer(LiveStreamer.TRANSPORT_TCP, server.getLocalPort());
+		streamer.setQueueLimit(limit);
+		streamer.start();
+		waitConnected(streamer);
+		final int frameSize = 50 * 1024;
+		for (int i = 0; i < 2000; i++) {
+			// nal_ref_idc=0 for every other frame
+			final boolean key = i % 30 == 0;
+			final byte[] frame = TsPacketizerTest.createFrame(key ? 0x65 : (i % 2 == 0 ? 0x41 : 0x01), frameSize);
+			streamer.write(0, ByteBuffer.wrap(frame), 0, frame.length, i * 33333L, key);
+		}
+		assertTrue(streamer.getDroppedFrameCount() > 0);
+		assertTrue(streamer.getDroppedNonReferenceFrameCount() > 0);
+		assertTrue(streamer.getMaxQueuedBytes() < limit + 2 * frameSize);
+		done.countDown();
+		streamer.stop();
+		streamer.join(5000);
+		receiver.join(5000);
+		server.close();
+	}
+
+	@Test
+	public void stopInterruptsStalledWrite() throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		server.setReceiveBufferSize(64 * 1024);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// accept but never read until the streamer finished
+					final Socket socket = server.accept();
+					done.await();
+					socket.close();
+				} catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		receiver.start();
+		final LiveStreamer streamer = createStreamer(LiveStreamer.TRANSPORT_TCP, server.getLocalPort());
+		streamer.start();
+		waitConnected(streamer);
+		for (int i = 0; i < 100; i++) {
+			final byte[] frame = TsPacketizerTest.createFrame(i % 30 == 0 ? 0x65 : 0x41, 50 * 1024);
+			streamer.write(0, ByteBuffer.wrap(frame), 0, frame.length, i * 33333L, i % 30 == 0);
+		}
+		final long startMs = System.currentTimeMillis();
+		streamer.stop();
+		streamer.join(5000);
+		final long elapsedMs = System.currentTimeMillis() - startMs;
+		assertFalse(streamer.isConnected());
+		assertTrue("stop took " + elapsedMs + "ms", elapsedMs < 2500);
+		assertTrue(streamer.getDroppedFrameCount() > 0);
+		done.countDown();
+		receiver.join(5000);
+		server.close();
+	}
+
+	@Test
+	public void restartsAtKeyFrameAfterReconnect() throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final CountDownLatch reconnected = new CountDownLatch(1);
+		final Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the first connection is lost right away
+					server.accept().close();
+					final Socket socket = server.accept();
+					reconnected.countDown();
+					final InputStream in = socket.getInputStream();
+					final byte[] buf = new byte[8192];
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						received.write(buf, 0, n);
+					}
+					socket.close();
+				} catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		receiver.start();
+		final LiveStreamer streamer = createStreamer(LiveStreamer.TRANSPORT_TCP, server.getLocalPort());
+		streamer.start();
+		waitConnected(streamer);
+		// the encoder makes a key frame only when asked
+		boolean key = true;
+		int requests = 0;
+		int framesAfterReconnect = 0;
+		for (int i = 0; (i < 1000) && (framesAfterReconnect < 30); i++) {
+			final byte[] frame = TsPacketizerTest.createFrame(key ? 0x65 : 0x41, 2000);
+			streamer.write(0, ByteBuffer.wrap(frame), 0, frame.length, i * 33333L, key);
+			key = streamer.isKeyFrameDue();
+			if (key) requests++;
+			if (reconnected.getCount() == 0) framesAfterReconnect++;
+			Thread.sleep(10);
+		}
+		streamer.stop();
+		streamer.join(5000);
+		receiver.join(5000);
+		server.close();
+
+		assertEquals(1, requests);
+		assertTrue(streamer.getDroppedFrameCount() > 0);
+		// the second connection starts with the tables and a key frame
+		final byte[] ts = received.toByteArray();
+		assertTrue(ts.length > 0);
+		assertEquals(TsPacketizer.PID_PAT, TsPacketizerTest.pid(ByteBuffer.wrap(ts), 0));
+		final byte[] video = TsPacketizerTest.collectPayload(ByteBuffer.wrap(ts), TsPacketizer.PID_VIDEO);
+		assertEquals(5, firstSliceType(video));
+	}
+
+	@Test
+	public void countsPacketsDiscardedWhileNotConnected() throws Exception {
+		// nobody listens on the port
+		final ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int port = closed.getLocalPort();
+		closed.close();
+		final LiveStreamer streamer = createStreamer(LiveStreamer.TRANSPORT_TCP, port);
+		streamer.start();
+		sendFrames(streamer, 10, 1000);
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((streamer.getQueueDepth() > 0) && (System.nanoTime() < end)) {
+			Thread.sleep(10);
+		}
+		assertFalse(streamer.isConnected());
+		assertEquals(0, streamer.getSentBytes());
+		// video and audio of each frame
+		assertEquals(20, streamer.getDroppedFrameCount());
+		streamer.stop();
+		streamer.join(5000);
+	}
+
+	@Test
+	public void detectsNonReferenceFrames() {
+		assertTrue(LiveStreamer.isNonReference(ByteBuffer.wrap(TsPacketizerTest.createFrame(0x01, 100)), 0, 100, false));
+		assertFalse(LiveStreamer.isNonReference(ByteBuffer.wrap(TsPacketizerTest.createFrame(0x41, 100)), 0, 100, false));
+		assertFalse(LiveStreamer.isNonReference(ByteBuffer.wrap(TsPacketizerTest.createFrame(0x65, 100)), 0, 100, false));
+		// HEVC TRAIL_N(0) and TRAIL_R(1)
+		assertTrue(LiveStreamer.isNonReference(ByteBuffer.wrap(TsPacketizerTest.createFrame(0x00, 100)), 0, 100, true));
+		assertFalse(LiveStreamer.isNonReference(ByteBuffer.wrap(TsPacketizerTest.createFrame(0x02, 100)), 0, 100, true));
+	}
+
+//********************************************************************************
+	private static LiveStreamer createStreamer(final int transport, final int port) {
+		final LiveStreamer streamer = new LiveStreamer(transport,
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		assertEquals(0, streamer.addVideoTrack(MediaVideoEncoder.MIME_AVC, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		assertEquals(1, streamer.addAudioTrack(ByteBuffer.wrap(ASC)));
+		return streamer;
+	}
+
+	private static void waitConnected(final LiveStreamer streamer) throws Exception {
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!streamer.isConnected() && (System.nanoTime() < end)) {
+			Thread.sleep(10);
+		}
+		assertTrue(streamer.isConnected());
+	}
+
+	/**
+	 * @return nal_unit_type of the first H.264 slice in the PES payloads
+	 */
+	private static int firstSliceType(final byte[] payload) {
+		for (int i = 0; i + 3 < payload.length; i++) {
+			if ((payload[i] != 0) || (payload[i + 1] != 0) || (payload[i + 2] != 1)) continue;
+			final int type = payload[i + 3] & 0x1f;
+			if ((type >= 1) && (type <= 5)) return type;
+		}
+		return -1;
+	}
+
+	private static void sendFrames(final LiveStreamer streamer, final int frames, final int frameSize) {
+		final ByteBuffer audio = ByteBuffer.allocateDirect(300);
+		for (int i = 0; i < frames; i++) {
+			final boolean key = i % 30 == 0;
+			final byte[] frame = TsPacketizerTest.createFrame(key ? 0x65 : 0x41, frameSize);
+			assertTrue(streamer.write(0, ByteBuffer.wrap(frame), 0, frame.length, i * 33333L, key));
+			assertTrue(streamer.write(1, audio, 0, 300, i * 33333L, false));
+		}
+	}
+}
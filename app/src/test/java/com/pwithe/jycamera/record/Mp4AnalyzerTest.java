@@ -0,0 +1,219 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mp4Analyzer with FragmentedMp4Writer output and a hand made non-fragmented file,
+ * runs on the development machine.
+ */
+public class Mp4AnalyzerTest {
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f, (byte)0xda, 0x01, 0x40, 0x16, (byte)0xe8 };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+	private static final byte[] ASC = { 0x12, 0x10 };
+	private static final int FPS = 30;
+	private static final int FRAME_BYTES = 4000;
+
+	private File mFile;
+
+	@Before
+	public void setUp() throws Exception {
+		mFile = File.createTempFile("analyzer", ".mp4");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mFile.delete();
+	}
+
+	@Test
+	public void analyzesFragmentedRecording() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		// 10 seconds, key frame every second
+		FragmentedMp4WriterTest.writeAv(writer, 0, 10 * FPS, FPS, FRAME_BYTES);
+		writer.stop();
+		writer.release();
+
+		final Mp4Analyzer.Report report = Mp4Analyzer.analyze(mFile);
+		assertTrue(report.isFragmented());
+		assertEquals(10, report.getFragmentCount());
+		assertFalse(report.isTruncated());
+		assertTrue(report.getProblems().isEmpty());
+		assertEquals(2, report.getTracks().size());
+
+		final Mp4Analyzer.Track video = report.getVideoTrack();
+		assertEquals("avc1", video.getFormat());
+		assertEquals(10 * FPS, video.getSampleCount());
+		assertEquals(10 * FPS * (long)FRAME_BYTES, video.getTotalBytes());
+		assertEquals(10000000L, video.getDurationUs(), 1000);
+		assertEquals(FPS, video.getFps(), 0.1f);
+		assertEquals(0, video.getNonMonotonicPtsCount());
+		assertEquals(0, video.getGapCount());
+		assertEquals(10, video.getSyncSampleCount());
+		assertTrue(video.isFirstSampleSync());
+		assertEquals(1000000L, video.getMaxSyncIntervalUs(), 1000);
+		final int[] bitrate = video.getBitratePerSecond();
+		assertEquals(10, bitrate.length);
+		for (final int bps: bitrate) {
+			assertEquals(FPS * FRAME_BYTES * 8, bps);
+		}
+
+		final Mp4Analyzer.Track audio = report.getAudioTrack();
+		assertEquals("mp4a", audio.getFormat());
+		assertEquals(44100, audio.getTimescale());
+		assertEquals(44100 / 1024.0, audio.getFps(), 0.5);
+		assertTrue(Math.abs(report.getAvEndOffsetUs()) < 50000L);
+		assertTrue(report.verify(29.5f, 1100000L, 50000L).isEmpty());
+		// too strict limits
+		assertEquals(2, report.verify(31f, 500000L, 0).size());
+	}
+
+	@Test
+	public void detectsDroppedFramesAndUnfinishedFile() throws Exception {
+		final FragmentedMp4Writer writer = createWriter();
+		writer.setSyncEachFragment(false);
+		FragmentedMp4WriterTest.writeAv(writer, 0, 45, FPS, FRAME_BYTES);
+		// 5 frames dropped
+		FragmentedMp4WriterTest.writeAv(writer, 50, 25, FPS, FRAME_BYTES);
+		FragmentedMp4WriterTest.writeAv(writer, 75, 20, FPS, FRAME_BYTES);
+		// process died here, #stop is never called
+		writer.release();
+
+		final Mp4Analyzer.Report report = Mp4Analyzer.analyze(mFile);
+		assertTrue(report.isTruncated());
+		assertEquals(3, report.getFragmentCount());
+		final Mp4Analyzer.Track video = report.getVideoTrack();
+		// the last fragment(frame 90-) was still in memory
+		assertEquals(85, video.getSampleCount());
+		assertEquals(1, video.getGapCount());
+		assertEquals(6 * 1000000L / FPS, video.getMaxIntervalUs(), 1000);
+		assertFalse(report.verify(0, 0, 0).isEmpty());
+	}
+
+	@Test
+	public void analyzesSampleTable() throws Exception {
+		// 10 frames at 30fps, a gap of 3 frames, then 10 frames. key frames at 1 and 11
+		final int[] sizes = new int[22];
+		sizes[1] = 20;
+		for (int i = 0; i < 20; i++) {
+			sizes[i + 2] = (i == 0) || (i == 10) ? 10000 : 2000;
+		}
+		final byte[] videoTrak = trak(1, "vide", 90000, "avc1",
+			fullBox("stts", ints(3, 9, 3000, 1, 12000, 10, 3000)),
+			fullBox("stss", ints(2, 1, 11)),
+			fullBox("stsz", ints(sizes)));
+		// audio with a constant sample size and no stss
+		final byte[] audioTrak = trak(2, "soun", 44100, "mp4a",
+			fullBox("stts", ints(1, 30, 1024)),
+			fullBox("stsz", ints(300, 30)));
+
+		final FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(box("ftyp", "isom".getBytes("US-ASCII"), new byte[4]));
+			// mdat before moov like MediaMuxer
+			out.write(box("mdat", new byte[1000]));
+			out.write(box("moov", videoTrak, audioTrak));
+		} finally {
+			out.close();
+		}
+
+		final Mp4Analyzer.Report report = Mp4Analyzer.analyze(mFile);
+		assertFalse(report.isFragmented());
+		assertFalse(report.isTruncated());
+		assertTrue(report.getProblems().isEmpty());
+		final Mp4Analyzer.Track video = report.getVideoTrack();
+		assertEquals(1, video.getId());
+		assertEquals(20, video.getSampleCount());
+		assertEquals(2 * 10000 + 18 * 2000, video.getTotalBytes());
+		assertEquals((19 * 3000 + 12000) * 1000000L / 90000, video.getDurationUs());
+		assertEquals(1, video.getGapCount());
+		assertEquals(33333L, video.getMedianIntervalUs());
+		assertEquals(133333L, video.getMaxIntervalUs());
+		assertEquals(2, video.getSyncSampleCount());
+		assertTrue(video.isSyncSample(10));
+		assertEquals((9 * 3000 + 12000) * 1000000L / 90000, video.getPtsUs(10));
+		final Mp4Analyzer.Track audio = report.getAudioTrack();
+		assertEquals(30, audio.getSampleCount());
+		assertEquals(30, audio.getSyncSampleCount());
+		assertEquals(9000, audio.getTotalBytes());
+		assertTrue(report.verify(25f, 0, 0).isEmpty());
+		// 20 frames in 0.77 seconds
+		final List<String> failures = report.verify(27f, 0, 0);
+		assertEquals(failures.toString(), 1, failures.size());
+	}
+
+	@Test
+	public void reportsTruncatedMoov() throws Exception {
+		final FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(box("ftyp", "isom".getBytes("US-ASCII"), new byte[4]));
+			final byte[] mdat = box("mdat", new byte[1000]);
+			out.write(mdat, 0, 500);
+		} finally {
+			out.close();
+		}
+		final Mp4Analyzer.Report report = Mp4Analyzer.analyze(mFile);
+		assertTrue(report.isTruncated());
+		assertTrue(report.getTracks().isEmpty());
+		assertFalse(report.verify(0, 0, 0).isEmpty());
+	}
+
+//********************************************************************************
+	private FragmentedMp4Writer createWriter() throws Exception {
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+		assertEquals(0, writer.addAvcTrack(1280, 720, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		assertEquals(1, writer.addAacTrack(44100, 1, ByteBuffer.wrap(ASC)));
+		writer.start();
+		return writer;
+	}
+
+	private static byte[] trak(final int id, final String handler, final int timescale, final String format,
+		final byte[]... sampleTable) throws Exception {
+
+		final byte[][] stbl = new byte[sampleTable.length + 1][];
+		stbl[0] = fullBox("stsd", ints(1), box(format, new byte[8]));
+		System.arraycopy(sampleTable, 0, stbl, 1, sampleTable.length);
+		return box("trak", fullBox("tkhd", ints(0, 0, id)),
+			box("mdia", fullBox("mdhd", ints(0, 0, timescale, 0)),
+				fullBox("hdlr", ints(0), handler.getBytes("US-ASCII")),
+				box("minf", box("stbl", stbl))));
+	}
+
+	private static byte[] fullBox(final String type, final byte[]... body) throws Exception {
+		final byte[][] children = new byte[body.length + 1][];
+		children[0] = new byte[4];	// version and flags
+		System.arraycopy(body, 0, children, 1, body.length);
+		return box(type, children);
+	}
+
+	private static byte[] ints(final int... values) {
+		final ByteBuffer buf = ByteBuffer.allocate(values.length * 4);
+		for (final int value: values) {
+			buf.putInt(value);
+		}
+		return buf.array();
+	}
+
+	private static byte[] box(final String type, final byte[]... children) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int size = 8;
+		for (final byte[] child: children) {
+			size += child.length;
+		}
+		out.write(ints(size));
+		out.write(type.getBytes("US-ASCII"));
+		for (final byte[] child: children) {
+			out.write(child);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,189 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * MuxerWriter with a StorageBudget whose quota is too small, runs on the development machine.
+ * The callbacks check the budget the same way MediaMuxerWrapper does.
+ */
+public class MuxerWriterTest {
+	private static final int FRAME_BYTES = 1000;
+	private static final long FRAME_US = 33333L;
+	private static final int GOP = 30;
+	/**
+	 * 8Mbps, one second is about 1MB
+	 */
+	private static final StorageBudget.BitrateSource BITRATE = new StorageBudget.BitrateSource() {
+		@Override
+		public int getBitrate() {
+			return 8000000;
+		}
+	};
+
+	private File mDir;
+
+	/**
+	 * records the samples of each segment
+	 */
+	private static final class RecordingMuxer implements MuxerWriter.SampleMuxer {
+		private final List<Long> mPts = new ArrayList<Long>();
+		private volatile boolean mStopped, mReleased;
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final int offset, final int size,
+			final long presentationTimeUs, final boolean isKeyFrame) {
+
+			mPts.add(presentationTimeUs);
+		}
+
+		@Override
+		public void stop() {
+			mStopped = true;
+		}
+
+		@Override
+		public void release() {
+			mReleased = true;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		mDir = File.createTempFile("budget", "");
+		assertTrue(mDir.delete());
+		assertTrue(mDir.mkdir());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		final File[] files = mDir.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	@Test
+	public void refusesToStartWithoutSpace() throws Exception {
+		final File old = createFile("old.mp4", 20000);
+		// the old recording is evicted, but a second still does not fit
+		final StorageBudget budget = new StorageBudget(mDir, 100 * 1024, 0);
+		budget.scan();
+		final String path = new File(mDir, "rec.mp4").getPath();
+		final RecordingMuxer muxer = new RecordingMuxer();
+		final MuxerWriter writer = new MuxerWriter(muxer, new boolean[] { true }, null);
+		writer.setCallback(new MuxerWriter.Callback() {
+			@Override
+			public boolean onWriterStarted() {
+				budget.onRecordingStarted(path, BITRATE);
+				return budget.ensureSpace(budget.getBytesFor(1000000L));
+			}
+
+			@Override
+			public void onWriterFinished() {
+				budget.onRecordingStopped();
+			}
+		});
+		writer.start();
+		writeFrames(writer, 0, 10);
+		waitReleased(writer);
+
+		assertTrue(writer.isAborted());
+		assertFalse(old.exists());
+		assertTrue(muxer.mPts.isEmpty());
+		assertTrue(muxer.mReleased);
+		assertFalse(writer.write(0, ByteBuffer.allocate(FRAME_BYTES), 0, FRAME_BYTES, 0, true));
+		assertEquals(0, writer.getQueueDepth());
+	}
+
+	@Test
+	public void stopsAtSegmentWithoutSpace() throws Exception {
+		// the first segment is already on the disk, the quota does not allow another second
+		final File first = createFile("seg_000.mp4", 50 * 1024);
+		final StorageBudget budget = new StorageBudget(mDir, 100 * 1024, 0);
+		budget.scan();
+		budget.protect(first.getPath());
+		final RecordingMuxer firstMuxer = new RecordingMuxer();
+		final List<RecordingMuxer> nextMuxers = new ArrayList<RecordingMuxer>();
+		final MuxerWriter writer = new MuxerWriter(firstMuxer, new boolean[] { true },
+			new MuxerWriter.SegmentController() {
+				@Override
+				public boolean shouldRollover(final int trackIndex, final long presentationTimeUs, final boolean isKeyFrame) {
+					return isKeyFrame && (presentationTimeUs > 0);
+				}
+
+				@Override
+				public void onSegmentFinished() {
+				}
+
+				@Override
+				public MuxerWriter.SampleMuxer createNextMuxer() throws IOException {
+					final String path = new File(mDir, "seg_001.mp4").getPath();
+					budget.onRecordingStarted(path, BITRATE);
+					if (!budget.ensureSpace(budget.getBytesFor(1000000L))) {
+						throw new IOException("not enough space for " + path);
+					}
+					final RecordingMuxer muxer = new RecordingMuxer();
+					nextMuxers.add(muxer);
+					return muxer;
+				}
+			});
+		writer.start();
+		writeFrames(writer, 0, 3 * GOP);
+		waitReleased(writer);
+
+		assertTrue(writer.isAborted());
+		assertTrue(nextMuxers.isEmpty());
+		assertTrue(first.exists());
+		// the first segment is complete up to the key frame that should have started the next one
+		assertEquals(GOP, firstMuxer.mPts.size());
+		assertTrue(firstMuxer.mStopped);
+		assertTrue(firstMuxer.mReleased);
+		assertTrue(writer.getDroppedCount() > 0);
+		assertFalse(writer.write(0, ByteBuffer.allocate(FRAME_BYTES), 0, FRAME_BYTES, 0, true));
+	}
+
+//********************************************************************************
+	private File createFile(final String name, final int size) throws Exception {
+		final File file = new File(mDir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * write frames as fast as the writer takes them, a key frame every GOP frames
+	 */
+	private static void writeFrames(final MuxerWriter writer, final int firstFrame, final int frames) {
+		final ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+		for (int i = firstFrame; i < firstFrame + frames; i++) {
+			writer.write(0, frame, 0, FRAME_BYTES, i * FRAME_US, (i % GOP) == 0);
+		}
+		writer.stop();
+	}
+
+	private static void waitReleased(final MuxerWriter writer) throws Exception {
+		final long limit = System.currentTimeMillis() + 5000;
+		while (!writer.isReleased() && (System.currentTimeMillis() < limit)) {
+			Thread.sleep(10);
+		}
+		assertTrue(writer.isReleased());
+	}
+}
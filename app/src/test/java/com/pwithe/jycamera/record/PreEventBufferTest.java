@@ -0,0 +1,125 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * PreEventBuffer event writer against a producer that keeps the ring full, runs on the development machine.
+ */
+public class PreEventBufferTest {
+	private static final int GOP = 10;
+	private static final int FRAME_BYTES = 1000;
+	private static final long FRAME_US = 33333L;
+
+	/**
+	 * records the packets written to the event file, each write takes a while like a slow SD card
+	 */
+	private static final class SlowMuxer implements MuxerWriter.SampleMuxer {
+		private final List<Long> mSeqs = new ArrayList<Long>();
+		private final List<String> mCorrupted = new ArrayList<String>();
+		private volatile boolean mReleased;
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final int offset, final int size,
+			final long presentationTimeUs, final boolean isKeyFrame) {
+
+			final long seq = byteBuf.getLong(offset);
+			final byte pattern = (byte)seq;
+			for (int i = 8; i < size; i++) {
+				if (byteBuf.get(offset + i) != pattern) {
+					mCorrupted.add("packet " + seq + " at " + i);
+					break;
+				}
+			}
+			mSeqs.add(seq);
+			try {
+				Thread.sleep(1);
+			} catch (final InterruptedException e) {
+			}
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void release() {
+			mReleased = true;
+		}
+	}
+
+	@Test
+	public void stopEventUnderProducerLoad() throws Exception {
+		// room for about 50 packets, the producer evicts constantly
+		final PreEventBuffer buffer = new PreEventBuffer(1000, 50 * FRAME_BYTES);
+		buffer.setTracks(new boolean[] { true });
+		final ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+		long seq = 0;
+		for (; seq < 100; seq++) {
+			write(buffer, frame, seq);
+		}
+
+		final SlowMuxer muxer = new SlowMuxer();
+		assertTrue(buffer.startEvent(muxer));
+		for (; seq < 200; seq++) {
+			write(buffer, frame, seq);
+		}
+		buffer.stopEvent();
+		final long stopSeq = seq;
+		// the writer is still draining, the producer goes on
+		final SlowMuxer second = new SlowMuxer();
+		for (; seq < 2000; seq++) {
+			write(buffer, frame, seq);
+			if (seq == stopSeq + 10) {
+				assertTrue(buffer.isEventRunning());
+				assertFalse("new event while draining", buffer.startEvent(second));
+			}
+		}
+		final long limit = System.currentTimeMillis() + 10000;
+		while (buffer.isEventRunning() && (System.currentTimeMillis() < limit)) {
+			Thread.sleep(10);
+		}
+		assertFalse(buffer.isEventRunning());
+		assertTrue(muxer.mReleased);
+
+		assertTrue(muxer.mCorrupted.toString(), muxer.mCorrupted.isEmpty());
+		assertFalse(muxer.mSeqs.isEmpty());
+		assertEquals(0, muxer.mSeqs.get(0) % GOP);
+		long last = -1;
+		for (final long written: muxer.mSeqs) {
+			assertTrue("order:" + last + "->" + written, written > last);
+			assertTrue("after stop:" + written, written < stopSeq);
+			last = written;
+		}
+		// the writer holds back eviction, so the producer dropped packets but the event lost none after its start
+		for (int i = 1; i < muxer.mSeqs.size(); i++) {
+			final long prev = muxer.mSeqs.get(i - 1);
+			final long cur = muxer.mSeqs.get(i);
+			assertTrue("gap " + prev + "->" + cur, (cur == prev + 1) || (cur % GOP == 0));
+		}
+		assertTrue(buffer.getDroppedCount() > 0);
+
+		// the next event can start once the previous one has finished
+		assertTrue(buffer.startEvent(second));
+		buffer.stopEvent();
+		while (buffer.isEventRunning() && (System.currentTimeMillis() < limit)) {
+			Thread.sleep(10);
+		}
+		assertTrue(second.mCorrupted.isEmpty());
+	}
+
+	private static void write(final PreEventBuffer buffer, final ByteBuffer frame, final long seq) {
+		frame.clear();
+		frame.putLong(seq);
+		while (frame.hasRemaining()) {
+			frame.put((byte)seq);
+		}
+		frame.flip();
+		buffer.write(0, frame, 0, FRAME_BYTES, seq * FRAME_US, (seq % GOP) == 0);
+	}
+}
@@ -0,0 +1,169 @@
+package com.pwithe.jycamera.record;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * TsPacketizer with synthetic H.264/AAC packets, runs on the development machine.
+ */
+public class TsPacketizerTest {
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+	private static final byte[] ASC = { 0x12, 0x10 };	// AAC-LC 44100Hz mono
+
+	@Test
+	public void keyFrameStartsWithTablesAndParameterSets() throws Exception {
+		final TsPacketizer packetizer = createPacketizer();
+		final byte[] frame = createFrame(0x65, 1000);
+		final ByteBuffer out = ByteBuffer.allocate(packetizer.getMaxOutputSize(frame.length));
+		final int n = packetizer.writeVideo(ByteBuffer.wrap(frame), 0, frame.length, 0, true, out);
+		assertEquals(0, n % TsPacketizer.TS_PACKET_SIZE);
+		out.flip();
+		assertEquals(TsPacketizer.PID_PAT, pid(out, 0));
+		assertEquals(TsPacketizer.PID_PMT, pid(out, 1));
+		assertEquals(0, sectionCrc(out, 0));
+		assertEquals(0, sectionCrc(out, 1));
+
+		final byte[] pes = collectPayload(out, TsPacketizer.PID_VIDEO);
+		assertEquals(0xe0, pes[3] & 0xff);
+		assertEquals(90000L, readPts(pes));
+		final int headerSize = 9 + pes[8];
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(new byte[] { 0, 0, 0, 1, 0x09, (byte)0xf0 });
+		expected.write(SPS);
+		expected.write(PPS);
+		expected.write(frame);
+		assertEquals(expected.size(), pes.length - headerSize);
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.toByteArray()[i], pes[headerSize + i]);
+		}
+		// first packet of a key frame: random access indicator and PCR
+		final int first = 2 * TsPacketizer.TS_PACKET_SIZE;
+		assertEquals(0x30, out.get(first + 3) & 0x30);
+		assertEquals(0x50, out.get(first + 5) & 0xff);
+	}
+
+	@Test
+	public void nonKeyFrameHasNoTables() throws Exception {
+		final TsPacketizer packetizer = createPacketizer();
+		final byte[] key = createFrame(0x65, 500);
+		final byte[] frame = createFrame(0x41, 500);
+		final ByteBuffer out = ByteBuffer.allocate(packetizer.getMaxOutputSize(key.length) * 2);
+		packetizer.writeVideo(ByteBuffer.wrap(key), 0, key.length, 0, true, out);
+		final int start = out.position();
+		packetizer.writeVideo(ByteBuffer.wrap(frame), 0, frame.length, 33333, false, out);
+		out.flip();
+		assertEquals(TsPacketizer.PID_VIDEO, pid(out, start / TsPacketizer.TS_PACKET_SIZE));
+		assertContinuity(out, TsPacketizer.PID_VIDEO);
+	}
+
+	@Test
+	public void audioFrameHasAdtsHeader() throws Exception {
+		final TsPacketizer packetizer = createPacketizer();
+		final ByteBuffer aac = ByteBuffer.allocateDirect(300);
+		final ByteBuffer out = ByteBuffer.allocate(packetizer.getMaxOutputSize(300));
+		packetizer.writeAudio(aac, 0, 300, 0, out);
+		out.flip();
+		final byte[] pes = collectPayload(out, TsPacketizer.PID_AUDIO);
+		assertEquals(0xc0, pes[3] & 0xff);
+		assertEquals(300 + 7 + 8, ((pes[4] & 0xff) << 8) | (pes[5] & 0xff));
+		final int adts = 9 + pes[8];
+		assertEquals(0xff, pes[adts] & 0xff);
+		assertEquals(0xf1, pes[adts + 1] & 0xff);
+		// AAC-LC, 44100Hz
+		assertEquals(0x50, pes[adts + 2] & 0xfc);
+		final int frameLength = ((pes[adts + 3] & 0x03) << 11) | ((pes[adts + 4] & 0xff) << 3) | ((pes[adts + 5] & 0xff) >> 5);
+		assertEquals(307, frameLength);
+		assertEquals(adts + 307, pes.length);
+	}
+
+	@Test
+	public void largeFrameSpansPacketsWithContinuity() throws Exception {
+		final TsPacketizer packetizer = createPacketizer();
+		final ByteBuffer out = ByteBuffer.allocate(1024 * 1024);
+		for (int i = 0; i < 40; i++) {
+			final byte[] frame = createFrame(i % 10 == 0 ? 0x65 : 0x41, 3000 + i * 97);
+			assertTrue(out.remaining() >= packetizer.getMaxOutputSize(frame.length));
+			packetizer.writeVideo(ByteBuffer.wrap(frame), 0, frame.length, i * 33333L, i % 10 == 0, out);
+		}
+		out.flip();
+		assertEquals(0, out.limit() % TsPacketizer.TS_PACKET_SIZE);
+		for (int i = 0; i < out.limit(); i += TsPacketizer.TS_PACKET_SIZE) {
+			assertEquals(0x47, out.get(i));
+		}
+		assertContinuity(out, TsPacketizer.PID_VIDEO);
+		assertContinuity(out, TsPacketizer.PID_PAT);
+	}
+
+//********************************************************************************
+	private static TsPacketizer createPacketizer() {
+		final TsPacketizer packetizer = new TsPacketizer(TsPacketizer.STREAM_TYPE_H264, true);
+		packetizer.setVideoConfig(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+		packetizer.setAudioConfig(ByteBuffer.wrap(ASC));
+		return packetizer;
+	}
+
+	/*package*/ static byte[] createFrame(final int nalHeader, final int size) {
+		final byte[] frame = new byte[size];
+		frame[3] = 1;
+		frame[4] = (byte)nalHeader;
+		for (int i = 5; i < size; i++) {
+			frame[i] = (byte)(i % 200 + 2);	// never looks like a start code
+		}
+		return frame;
+	}
+
+	/*package*/ static int pid(final ByteBuffer ts, final int packet) {
+		final int p = packet * TsPacketizer.TS_PACKET_SIZE;
+		return ((ts.get(p + 1) & 0x1f) << 8) | (ts.get(p + 2) & 0xff);
+	}
+
+	/**
+	 * @return CRC over the section including its CRC_32, 0 if valid
+	 */
+	private static int sectionCrc(final ByteBuffer ts, final int packet) {
+		final int section = packet * TsPacketizer.TS_PACKET_SIZE + 5;
+		final int length = ((ts.get(section + 1) & 0x0f) << 8) | (ts.get(section + 2) & 0xff);
+		return TsPacketizer.crc32(ts, section, section + 3 + length);
+	}
+
+	/**
+	 * @return payloads of all packets of the PID
+	 */
+	/*package*/ static byte[] collectPayload(final ByteBuffer ts, final int pid) {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (int p = 0; p < ts.limit() / TsPacketizer.TS_PACKET_SIZE; p++) {
+			if (pid(ts, p) != pid) continue;
+			final int start = p * TsPacketizer.TS_PACKET_SIZE;
+			int payload = start + 4;
+			if ((ts.get(start + 3) & 0x20) != 0) {
+				payload += 1 + (ts.get(start + 4) & 0xff);
+			}
+			for (int i = payload; i < start + TsPacketizer.TS_PACKET_SIZE; i++) {
+				result.write(ts.get(i));
+			}
+		}
+		return result.toByteArray();
+	}
+
+	private static long readPts(final byte[] pes) {
+		return (((long)pes[9] & 0x0e) << 29) | ((pes[10] & 0xffL) << 22) | ((pes[11] & 0xfeL) << 14)
+			| ((pes[12] & 0xffL) << 7) | ((pes[13] & 0xfeL) >> 1);
+	}
+
+	private static void assertContinuity(final ByteBuffer ts, final int pid) {
+		int expected = -1;
+		for (int p = 0; p < ts.limit() / TsPacketizer.TS_PACKET_SIZE; p++) {
+			if (pid(ts, p) != pid) continue;
+			final int counter = ts.get(p * TsPacketizer.TS_PACKET_SIZE + 3) & 0x0f;
+			if (expected >= 0) {
+				assertEquals(expected, counter);
+			}
+			expected = (counter + 1) & 0x0f;
+		}
+	}
+}